@@ -20,10 +20,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +36,7 @@ import com.ibm.websphere.security.oauth20.store.OAuthStore;
 import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
 import com.ibm.websphere.security.oauth20.store.OAuthToken;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.FindIterable;
@@ -56,8 +58,8 @@ import com.mongodb.client.MongoDatabase;
  * </p>
  * Some additional items (not a comprehensive list) to consider for a production ready CustomStore:
  * <ul>
- * <li>Database tuning (connection timeouts, etc)</li>
- * <li>Database fail over</li>
+ * <li>Database tuning (the connection pool, timeouts and compressors can be set in the mongoDB.props file)</li>
+ * <li>Database fail over (a replica set can be configured with the HOST and REPLICA_SET properties)</li>
  * <li>Additional logging and tracing</li>
  * <li>Adding a custom primary key (see the _id field for MongoDB)</li>
  * <li>Appropriate security for your mongoDB implementation</li>
@@ -74,10 +76,24 @@ public class CustomStoreSample implements OAuthStore {
 	
 	// Default config for mongoDB
 	private String dbName = "oauthSample";
-	private String dbHost = "localhost";
+	private String dbHost = "localhost"; // a host name, or a comma separated list of host or host:port entries
 	private String dbUser = null;
 	private String dbPwd = null;
 	private int dbPort = 27017;
+	private String replicaSet = null;
+	// Connection pool and socket settings, the defaults are the defaults of the driver.
+	private int minPoolSize = 0;
+	private int maxPoolSize = 100;
+	private int maxWaitQueueSize = 500;
+	private int maxWaitTime = 120000; // milliseconds
+	private int maxConnectionIdleTime = 0; // milliseconds, 0 for no limit
+	private int maxConnectionLifeTime = 0; // milliseconds, 0 for no limit
+	private int connectTimeout = 10000; // milliseconds
+	private int socketTimeout = 0; // milliseconds, 0 for no timeout
+	private int serverSelectionTimeout = 30000; // milliseconds
+	private int heartbeatFrequency = 10000; // milliseconds
+	private String compressors = null; // a comma separated list, in order of preference, null for no compression
+	private int zlibCompressionLevel = -1; // -1 for the zlib default
 	
 	boolean loadedPropsFile = false;
 
@@ -137,21 +153,11 @@ public class CustomStoreSample implements OAuthStore {
 
 			MongoClient mongoClient = null;
 
-			LOGGER.log(Level.INFO, "Connecting to the " + dbName + " database at " + dbHost + ":" + dbPort);
+			LOGGER.log(Level.INFO, "Connecting to the " + dbName + " database at " + getServerAddresses()
+					+ (replicaSet == null ? "" : ", replica set " + replicaSet));
 
 			if (loadedPropsFile) {
-				MongoClientSettings settings = null;
-				if (dbUser != null && dbPwd != null) {
-					MongoCredential credential = MongoCredential.createCredential(dbUser, dbName, dbPwd.toCharArray());
-					// Add any additional appropriate connection settings
-					settings = MongoClientSettings.builder().credential(credential).applyToClusterSettings(
-							builder -> builder.hosts(Arrays.asList(new ServerAddress(dbHost, dbPort)))).build();
-				} else {
-					// Add any additional appropriate connection settings
-					settings = MongoClientSettings.builder().applyToClusterSettings(
-							builder -> builder.hosts(Arrays.asList(new ServerAddress(dbHost, dbPort)))).build();
-				}
-				mongoClient = MongoClients.create(settings);
+				mongoClient = MongoClients.create(createClientSettings());
 			} else {
 				mongoClient = MongoClients.create();
 			}
@@ -164,6 +170,88 @@ public class CustomStoreSample implements OAuthStore {
 
 	}
 
+	/**
+	 * Helper method to create the settings of the mongoDB client from the mongoDB.props file.
+	 * @return The client settings.
+	 */
+	private MongoClientSettings createClientSettings() {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder();
+		if (dbUser != null && dbPwd != null) {
+			settings.credential(MongoCredential.createCredential(dbUser, dbName, dbPwd.toCharArray()));
+		}
+		settings.applyToClusterSettings(builder -> builder.hosts(getServerAddresses()).requiredReplicaSetName(replicaSet)
+				.serverSelectionTimeout(serverSelectionTimeout, TimeUnit.MILLISECONDS));
+		settings.applyToConnectionPoolSettings(builder -> builder.minSize(minPoolSize).maxSize(maxPoolSize)
+				.maxWaitQueueSize(maxWaitQueueSize).maxWaitTime(maxWaitTime, TimeUnit.MILLISECONDS)
+				.maxConnectionIdleTime(maxConnectionIdleTime, TimeUnit.MILLISECONDS)
+				.maxConnectionLifeTime(maxConnectionLifeTime, TimeUnit.MILLISECONDS));
+		settings.applyToSocketSettings(builder -> builder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+				.readTimeout(socketTimeout, TimeUnit.MILLISECONDS));
+		settings.applyToServerSettings(builder -> builder.heartbeatFrequency(heartbeatFrequency, TimeUnit.MILLISECONDS));
+		settings.compressorList(getCompressors());
+		return settings.build();
+	}
+
+	/**
+	 * Helper method to parse the configured compressors, in order of preference. snappy needs the
+	 * snappy-java library. zstd is not supported by this version of the MongoDB driver.
+	 * @return The compressors.
+	 */
+	private List<MongoCompressor> getCompressors() {
+		List<MongoCompressor> result = new ArrayList<MongoCompressor>();
+		if (compressors == null) {
+			return result;
+		}
+		for (String name : compressors.split(",")) {
+			name = name.trim().toLowerCase();
+			if (name.equals("zlib")) {
+				result.add(zlibCompressionLevel < 0 ? MongoCompressor.createZlibCompressor()
+						: MongoCompressor.createZlibCompressor().withProperty(MongoCompressor.LEVEL, zlibCompressionLevel));
+			} else if (name.equals("snappy")) {
+				result.add(MongoCompressor.createSnappyCompressor());
+			} else if (!name.isEmpty()) {
+				LOGGER.log(Level.WARNING, "COMPRESSORS provided, " + name + ", is not supported. Skipping it.");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper method to parse the configured host into the addresses of the servers. The host can be
+	 * a comma separated seed list, see parseServerAddresses.
+	 * @return The server addresses.
+	 */
+	private List<ServerAddress> getServerAddresses() {
+		return parseServerAddresses(dbHost, dbPort);
+	}
+
+	/**
+	 * Helper method to parse a comma separated host list into the addresses of the servers, for
+	 * example host1:27017,host2:27017,host3. Entries without a port use the default port, as do
+	 * entries whose port is not an integer. The same method is in the CustomStoreSample of the
+	 * MongoDBHelper of the user feature, keep them identical.
+	 * @param hosts The host list.
+	 * @param port The default port.
+	 * @return The server addresses.
+	 */
+	static List<ServerAddress> parseServerAddresses(String hosts, int port) {
+		List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+		for (String host : hosts.split(",")) {
+			host = host.trim();
+			if (host.isEmpty()) {
+				continue;
+			}
+			int colon = host.lastIndexOf(':');
+			if (colon > 0 && host.indexOf(']', colon) < 0) {
+				int hostPort = getIntConfig("HOST", host.substring(colon + 1), port);
+				addresses.add(new ServerAddress(host.substring(0, colon), hostPort));
+			} else {
+				addresses.add(new ServerAddress(host, port));
+			}
+		}
+		return addresses;
+	}
+
 	/**
 	 * Helper method to lazy initialize the collection for the OAuthClient collection
 	 * @return A MongoCollection for the OAuthClient collection.
@@ -215,9 +303,22 @@ public class CustomStoreSample implements OAuthStore {
 			mongoProps.load(new FileReader(f));
 			dbName = mongoProps.getProperty("DBNAME", dbName);
 			dbHost = mongoProps.getProperty("HOST", dbHost);
-			dbPort = Integer.valueOf(mongoProps.getProperty("PORT", String.valueOf(dbPort)));
+			dbPort = getIntConfig("PORT", mongoProps.getProperty("PORT"), dbPort);
 			dbUser = mongoProps.getProperty("USER", dbUser);
 			dbPwd = mongoProps.getProperty("PWD", dbPwd);
+			replicaSet = mongoProps.getProperty("REPLICA_SET", replicaSet);
+			minPoolSize = getIntConfig("MIN_POOL_SIZE", mongoProps.getProperty("MIN_POOL_SIZE"), minPoolSize);
+			maxPoolSize = getIntConfig("MAX_POOL_SIZE", mongoProps.getProperty("MAX_POOL_SIZE"), maxPoolSize);
+			maxWaitQueueSize = getIntConfig("MAX_WAIT_QUEUE_SIZE", mongoProps.getProperty("MAX_WAIT_QUEUE_SIZE"), maxWaitQueueSize);
+			maxWaitTime = getIntConfig("MAX_WAIT_TIME", mongoProps.getProperty("MAX_WAIT_TIME"), maxWaitTime);
+			maxConnectionIdleTime = getIntConfig("MAX_CONNECTION_IDLE_TIME", mongoProps.getProperty("MAX_CONNECTION_IDLE_TIME"), maxConnectionIdleTime);
+			maxConnectionLifeTime = getIntConfig("MAX_CONNECTION_LIFE_TIME", mongoProps.getProperty("MAX_CONNECTION_LIFE_TIME"), maxConnectionLifeTime);
+			connectTimeout = getIntConfig("CONNECT_TIMEOUT", mongoProps.getProperty("CONNECT_TIMEOUT"), connectTimeout);
+			socketTimeout = getIntConfig("SOCKET_TIMEOUT", mongoProps.getProperty("SOCKET_TIMEOUT"), socketTimeout);
+			serverSelectionTimeout = getIntConfig("SERVER_SELECTION_TIMEOUT", mongoProps.getProperty("SERVER_SELECTION_TIMEOUT"), serverSelectionTimeout);
+			heartbeatFrequency = getIntConfig("HEARTBEAT_FREQUENCY", mongoProps.getProperty("HEARTBEAT_FREQUENCY"), heartbeatFrequency);
+			compressors = mongoProps.getProperty("COMPRESSORS", compressors);
+			zlibCompressionLevel = getIntConfig("ZLIB_COMPRESSION_LEVEL", mongoProps.getProperty("ZLIB_COMPRESSION_LEVEL"), zlibCompressionLevel);
 			loadedPropsFile = true;
 
 		} catch (IOException e) {
@@ -225,6 +326,27 @@ public class CustomStoreSample implements OAuthStore {
 		}
 	}
 
+	/**
+	 * Helper method to parse an integer configuration value.
+	 * @param name The name of the configuration value, used for logging.
+	 * @param value The configured value, may be null if it was not configured.
+	 * @param current The value to use if the value was not configured or is not an integer.
+	 * @return The integer value.
+	 */
+	private static int getIntConfig(String name, String value, int current) {
+		if (value == null) {
+			return current;
+		}
+		try {
+			int result = Integer.valueOf(value.trim());
+			LOGGER.log(Level.FINEST, "Found " + name + " from the config: " + result);
+			return result;
+		} catch (NumberFormatException ne) {
+			LOGGER.log(Level.WARNING, name + " provided, " + value + ", was not an integer. Using " + current);
+			return current;
+		}
+	}
+
 	@Override
 	public void create(OAuthClient oauthClient) throws OAuthStoreException {
 		try {
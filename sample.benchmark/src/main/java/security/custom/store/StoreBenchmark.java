@@ -0,0 +1,445 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+
+/**
+ * JMH benchmarks of every OAuthStore operation of the CustomStoreSample, to measure the
+ * throughput and latency of the store before and after a change to it.
+ * <p/>
+ * Each fork starts an embedded MongoDB on a free port, or connects to the one in the
+ * benchmark.host system property, and fills the oauthBenchmark database through the store:
+ * collectionSize tokens, a tenth as many consents, and a hundredth as many clients and users,
+ * so a user has about 100 tokens. The tokens, clients and consents carry about documentSize
+ * characters of token string, metadata or properties. The database is dropped first.
+ * <p/>
+ * The operations that remove an entry remove one created for them before each invocation, so
+ * the collections keep their size. deleteTokens and deleteConsents remove 10 expired entries
+ * of a user, after a scan of the index on the expiry time.
+ * <p/>
+ * Every run reports the throughput, the latency percentiles and, with the GC profiler, the
+ * bytes allocated per operation (gc.alloc.rate.norm) and the collections. Run it with:
+ * gradlew :sample.benchmark:benchmark. The following system properties can be set with -D:
+ * <ul>
+ * <li>benchmark.include: a regular expression of the benchmarks to run. Default all.</li>
+ * <li>benchmark.threads: the thread counts to run each benchmark with, separated by ','. Default 1,4,16.</li>
+ * <li>benchmark.collectionSize, benchmark.documentSize, benchmark.storageEngine: the parameter
+ * values, separated by ','. Default 1000,100000, 512,8192 and mongodb. The other storage
+ * engines run without MongoDB, as a baseline.</li>
+ * <li>benchmark.forks, benchmark.warmupIterations, benchmark.iterations: Default 1, 3 and 5
+ * iterations of 5 seconds.</li>
+ * <li>benchmark.profilers: more JMH profilers to add to gc, separated by ','. For example stack.</li>
+ * <li>benchmark.host and benchmark.port: an existing MongoDB to use instead of the embedded one.</li>
+ * <li>benchmark.store.&lt;option&gt;: a store option of MongoDBHelper, as in the server.xml. For
+ * example -Dbenchmark.store.tokenCacheSize=10000 to measure with the token cache.</li>
+ * </ul>
+ * The results of each thread count are written to build/reports/jmh/results-&lt;threads&gt;.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StoreBenchmark {
+
+	private final static String PROVIDER_ID = "BenchmarkProvider";
+	private final static String DBNAME = "oauthBenchmark";
+	private final static String PROPERTY_PREFIX = "benchmark.";
+	private final static String STORE_PROPERTY_PREFIX = "benchmark.store.";
+	private final static int EXPIRED_PER_INVOCATION = 10;
+	private final static long LIFETIME = 7200;
+	private final static AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * The number of tokens the collections are filled with.
+	 */
+	@Param({ "1000", "100000" })
+	public int collectionSize;
+
+	/**
+	 * The approximate number of characters of each token, client and consent.
+	 */
+	@Param({ "512", "8192" })
+	public int documentSize;
+
+	@Param({ MongoDBHelper.STORAGE_ENGINE_MONGODB })
+	public String storageEngine;
+
+	private MongodExecutable mongod = null;
+	private CustomStoreSample store;
+	private String filler;
+	private OAuthToken[] tokens;
+	private OAuthClient[] clients;
+	private OAuthConsent[] consents;
+	private String[] usernames;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		String host = System.getProperty("benchmark.host");
+		int port = Integer.getInteger("benchmark.port", 27017);
+		boolean mongodb = MongoDBHelper.STORAGE_ENGINE_MONGODB.equals(storageEngine);
+		if (host == null && mongodb) {
+			host = "localhost";
+			port = Network.getFreeServerPort();
+			mongod = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder().version(Version.V3_6_5)
+					.net(new Net(host, port, Network.localhostIsIPv6())).build());
+			mongod.start();
+		}
+
+		Hashtable<String, String> config = new Hashtable<String, String>();
+		config.put(MongoDBHelper.HOST_KEY, host == null ? "localhost" : host);
+		config.put(MongoDBHelper.PORT_KEY, String.valueOf(port));
+		config.put(MongoDBHelper.DB_KEY, DBNAME);
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(STORE_PROPERTY_PREFIX)) {
+				config.put(name.substring(STORE_PROPERTY_PREFIX.length()), System.getProperty(name));
+			}
+		}
+		MongoDBHelper.getInstance().updated(config);
+		if (mongodb) {
+			MongoDBHelper.getInstance().getDB().drop();
+		}
+
+		store = new CustomStoreSample();
+		store.activate(Collections.<String, Object> singletonMap(CustomStoreSample.STORAGE_ENGINE_PROPERTY, storageEngine));
+		fill();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		store.deactivate();
+		if (mongod != null) {
+			mongod.stop();
+		}
+	}
+
+	/**
+	 * Fill the store in parallel, to keep the setup of the large collections short.
+	 */
+	private void fill() {
+		Random random = new Random(42);
+		StringBuilder chars = new StringBuilder(documentSize);
+		for (int i = 0; i < documentSize; i++) {
+			chars.append((char) ('a' + random.nextInt(26)));
+		}
+		filler = chars.toString();
+
+		int users = Math.max(1, collectionSize / 100);
+		usernames = new String[users];
+		for (int i = 0; i < users; i++) {
+			usernames[i] = "user" + i;
+		}
+		clients = new OAuthClient[Math.max(1, collectionSize / 100)];
+		tokens = new OAuthToken[collectionSize];
+		consents = new OAuthConsent[Math.max(1, collectionSize / 10)];
+		long expires = System.currentTimeMillis() + 24 * 3600 * 1000L;
+		IntStream.range(0, clients.length).parallel().forEach(i -> {
+			clients[i] = newClient("client" + i);
+			create(clients[i]);
+		});
+		IntStream.range(0, tokens.length).parallel().forEach(i -> {
+			tokens[i] = newToken(usernames[i % users], clients[i % clients.length].getClientId(), expires);
+			create(tokens[i]);
+		});
+		IntStream.range(0, consents.length).parallel().forEach(i -> {
+			consents[i] = newConsent(usernames[i % users], clients[i % clients.length].getClientId(), "resource" + i, expires);
+			create(consents[i]);
+		});
+	}
+
+	private void create(Object entry) {
+		try {
+			if (entry instanceof OAuthClient) {
+				store.create((OAuthClient) entry);
+			} else if (entry instanceof OAuthToken) {
+				store.create((OAuthToken) entry);
+			} else {
+				store.create((OAuthConsent) entry);
+			}
+		} catch (OAuthStoreException e) {
+			throw new IllegalStateException("Failed to fill the store", e);
+		}
+	}
+
+	OAuthClient newClient(String clientId) {
+		String metadata = "{\"client_id\":\"" + clientId + "\",\"redirect_uris\":[\"https://localhost:8443/oauthclient/redirect.jsp\"],"
+				+ "\"scope\":\"openid profile email\",\"filler\":\"" + filler + "\"}";
+		return new OAuthClient(PROVIDER_ID, clientId, "secret", clientId + " name", true, metadata);
+	}
+
+	OAuthToken newToken(String username, String clientId, long expires) {
+		String lookupKey = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(sequence.incrementAndGet());
+		String tokenString = filler.substring(0, documentSize * 3 / 4);
+		String props = "{\"grant_type\":[\"authorization_code\"],\"filler\":[\"" + filler.substring(0, documentSize / 4) + "\"]}";
+		return new OAuthToken(lookupKey, lookupKey, PROVIDER_ID, "authorization_grant", "refresh_token",
+				expires - LIFETIME * 1000, (int) LIFETIME, expires, tokenString, clientId, username, "openid profile email",
+				"https://localhost:8443/oauthclient/redirect.jsp", "", props);
+	}
+
+	OAuthConsent newConsent(String username, String clientId, String resource, long expires) {
+		return new OAuthConsent(clientId, username, "openid profile email", resource, PROVIDER_ID, expires,
+				"{\"filler\":\"" + filler + "\"}");
+	}
+
+	private static <T> T pick(T[] entries) {
+		return entries[ThreadLocalRandom.current().nextInt(entries.length)];
+	}
+
+	/**
+	 * A client, token and consent created before each invocation, for the benchmarks that remove one.
+	 */
+	@State(Scope.Thread)
+	public static class Removable {
+		OAuthClient client;
+		OAuthToken token;
+		OAuthConsent consent;
+
+		@Setup(Level.Invocation)
+		public void setUp(StoreBenchmark benchmark) throws OAuthStoreException {
+			long expires = System.currentTimeMillis() + LIFETIME * 1000;
+			client = benchmark.newClient("removable" + sequence.incrementAndGet());
+			token = benchmark.newToken(pick(benchmark.usernames), client.getClientId(), expires);
+			consent = benchmark.newConsent(token.getUsername(), client.getClientId(), "removable", expires);
+			benchmark.store.create(client);
+			benchmark.store.create(token);
+			benchmark.store.create(consent);
+		}
+	}
+
+	/**
+	 * Tokens and consents that expired, created before each invocation, for the benchmarks of the cleanup.
+	 */
+	@State(Scope.Thread)
+	public static class Expired {
+		long timestamp;
+
+		@Setup(Level.Invocation)
+		public void setUp(StoreBenchmark benchmark) throws OAuthStoreException {
+			long expires = System.currentTimeMillis() - 1000;
+			String username = pick(benchmark.usernames);
+			for (int i = 0; i < EXPIRED_PER_INVOCATION; i++) {
+				String clientId = pick(benchmark.clients).getClientId();
+				benchmark.store.create(benchmark.newToken(username, clientId, expires));
+				benchmark.store.create(benchmark.newConsent(username, clientId, "expired" + sequence.incrementAndGet(), expires));
+			}
+			timestamp = System.currentTimeMillis();
+		}
+	}
+
+	@Benchmark
+	public OAuthClient createClient() throws OAuthStoreException {
+		OAuthClient client = newClient("created" + sequence.incrementAndGet());
+		store.create(client);
+		return client;
+	}
+
+	@Benchmark
+	public OAuthToken createToken() throws OAuthStoreException {
+		OAuthToken token = newToken(pick(usernames), pick(clients).getClientId(), System.currentTimeMillis() + LIFETIME * 1000);
+		store.create(token);
+		return token;
+	}
+
+	@Benchmark
+	public OAuthConsent createConsent() throws OAuthStoreException {
+		OAuthConsent consent = newConsent(pick(usernames), pick(clients).getClientId(), "created" + sequence.incrementAndGet(),
+				System.currentTimeMillis() + LIFETIME * 1000);
+		store.create(consent);
+		return consent;
+	}
+
+	@Benchmark
+	public OAuthClient readClient() throws OAuthStoreException {
+		return store.readClient(PROVIDER_ID, pick(clients).getClientId());
+	}
+
+	@Benchmark
+	public int readAllClients() throws OAuthStoreException {
+		return count(store.readAllClients(PROVIDER_ID, null));
+	}
+
+	@Benchmark
+	public OAuthToken readToken() throws OAuthStoreException {
+		return store.readToken(PROVIDER_ID, pick(tokens).getLookupKey());
+	}
+
+	/**
+	 * Read a lookup key that is not stored, as for an invalid or expired bearer token.
+	 */
+	@Benchmark
+	public OAuthToken readTokenMissing() throws OAuthStoreException {
+		return store.readToken(PROVIDER_ID, "missing" + ThreadLocalRandom.current().nextLong());
+	}
+
+	@Benchmark
+	public int readAllTokens() throws OAuthStoreException {
+		return count(store.readAllTokens(PROVIDER_ID, pick(usernames)));
+	}
+
+	@Benchmark
+	public int countTokens() throws OAuthStoreException {
+		OAuthToken token = pick(tokens);
+		return store.countTokens(PROVIDER_ID, token.getUsername(), token.getClientId());
+	}
+
+	@Benchmark
+	public OAuthConsent readConsent() throws OAuthStoreException {
+		OAuthConsent consent = pick(consents);
+		return store.readConsent(PROVIDER_ID, consent.getUser(), consent.getClientId(), consent.getResource());
+	}
+
+	@Benchmark
+	public void updateClient() throws OAuthStoreException {
+		OAuthClient client = pick(clients);
+		store.update(new OAuthClient(PROVIDER_ID, client.getClientId(), client.getClientSecret(),
+				client.getDisplayName() + sequence.incrementAndGet() % 2, client.isEnabled(), client.getClientMetadata()));
+	}
+
+	/**
+	 * Update the expiry time of a token, as a refresh does.
+	 */
+	@Benchmark
+	public void updateToken() throws OAuthStoreException {
+		OAuthToken token = pick(tokens);
+		long createdAt = System.currentTimeMillis();
+		store.update(new OAuthToken(token.getLookupKey(), token.getUniqueId(), PROVIDER_ID, token.getType(),
+				token.getSubType(), createdAt, token.getLifetimeInSeconds(), createdAt + token.getLifetimeInSeconds() * 1000L,
+				token.getTokenString(), token.getClientId(), token.getUsername(), token.getScope(), token.getRedirectUri(),
+				token.getStateId(), token.getTokenProperties()));
+	}
+
+	@Benchmark
+	public void updateConsent() throws OAuthStoreException {
+		OAuthConsent consent = pick(consents);
+		store.update(new OAuthConsent(consent.getClientId(), consent.getUser(), consent.getScope(), consent.getResource(),
+				PROVIDER_ID, System.currentTimeMillis() + LIFETIME * 1000, consent.getConsentProperties()));
+	}
+
+	@Benchmark
+	public void deleteClient(Removable removable) throws OAuthStoreException {
+		store.deleteClient(PROVIDER_ID, removable.client.getClientId());
+	}
+
+	@Benchmark
+	public void deleteToken(Removable removable) throws OAuthStoreException {
+		store.deleteToken(PROVIDER_ID, removable.token.getLookupKey());
+	}
+
+	@Benchmark
+	public void deleteTokens(Expired expired) throws OAuthStoreException {
+		store.deleteTokens(PROVIDER_ID, expired.timestamp);
+	}
+
+	@Benchmark
+	public void deleteConsent(Removable removable) throws OAuthStoreException {
+		OAuthConsent consent = removable.consent;
+		store.deleteConsent(PROVIDER_ID, consent.getUser(), consent.getClientId(), consent.getResource());
+	}
+
+	@Benchmark
+	public void deleteConsents(Expired expired) throws OAuthStoreException {
+		store.deleteConsents(PROVIDER_ID, expired.timestamp);
+	}
+
+	/**
+	 * Iterate the results, as the OAuth provider does, so a streamed collection is read too.
+	 */
+	private static int count(Collection<?> entries) {
+		int count = 0;
+		if (entries != null) {
+			for (Object entry : entries) {
+				if (entry != null) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		List<String> forwarded = new ArrayList<String>();
+		for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+			if (property.getKey().toString().startsWith(PROPERTY_PREFIX)) {
+				forwarded.add("-D" + property.getKey() + "=" + property.getValue());
+			}
+		}
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(StoreBenchmark.class.getSimpleName() + "\\." + System.getProperty("benchmark.include", ".*"))
+				.forks(Integer.getInteger("benchmark.forks", 1))
+				.warmupIterations(Integer.getInteger("benchmark.warmupIterations", 3)).warmupTime(TimeValue.seconds(5))
+				.measurementIterations(Integer.getInteger("benchmark.iterations", 5)).measurementTime(TimeValue.seconds(5))
+				.addProfiler(GCProfiler.class).jvmArgsAppend(forwarded.toArray(new String[forwarded.size()]))
+				.shouldFailOnError(true).resultFormat(ResultFormatType.JSON);
+		for (String profiler : System.getProperty("benchmark.profilers", "").split(",")) {
+			if (!profiler.trim().isEmpty()) {
+				options.addProfiler(profiler.trim());
+			}
+		}
+		for (String param : new String[] { "collectionSize", "documentSize", "storageEngine" }) {
+			String values = System.getProperty(PROPERTY_PREFIX + param);
+			if (values != null) {
+				options.param(param, values.split(","));
+			}
+		}
+		new File("build/reports/jmh").mkdirs();
+		for (String threads : System.getProperty("benchmark.threads", "1,4,16").split(",")) {
+			options.threads(Integer.parseInt(threads.trim())).result("build/reports/jmh/results-" + threads.trim() + ".json");
+			new Runner(options.build()).run();
+		}
+	}
+}
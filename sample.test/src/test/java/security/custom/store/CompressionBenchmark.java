@@ -0,0 +1,274 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+
+/**
+ * Measures the bytes sent over the network and the latency of the token
+ * operations of the OAuthStore samples, with each MongoDB network compressor.
+ * <p/>
+ * The benchmark connects to the MongoDB instance in the mongoDB.props file. It
+ * fills a collection with token documents shaped like the ones the samples
+ * write, a signed JWT in TOKENSTRING and a JSON blob in PROPS, all for one
+ * user. For each compressor it then times:
+ * <ul>
+ * <li>readAll: reading all tokens of the user, as readAllTokens does.</li>
+ * <li>insert: inserting one token, as create(OAuthToken) does.</li>
+ * </ul>
+ * The bytes are the change in the network counters of the server's
+ * serverStatus, so run it against a server that is not used by anything else.
+ * The server must accept the compressors, with the networkMessageCompressors
+ * option of mongod. The benchmark reports when the server did not compress.
+ * <p/>
+ * Run it with: gradlew :sample.test:compressionBenchmark. The following system
+ * properties can be set with -D:
+ * <ul>
+ * <li>benchmark.compressors: the compressors to compare, separated by ';'.
+ * Default none;snappy;zlib.</li>
+ * <li>benchmark.tokens: the number of tokens of the user. Default 200.</li>
+ * <li>benchmark.iterations: the number of timed operations. Default 500.</li>
+ * </ul>
+ */
+public class CompressionBenchmark {
+
+	private final static String MONGO_PROPS_FILE = "../SupportFiles/mongoDB.props";
+	private final static String COLLECTION = "CompressionBenchmark";
+	private final static String USERNAME = "benchmarkUser";
+	private final static int WARMUP = 50;
+
+	private final String dbName;
+	private final List<ServerAddress> addresses;
+	private final String replicaSet;
+	private final MongoCredential credential;
+	private final Random random = new Random(42);
+
+	private CompressionBenchmark(Properties props) {
+		dbName = props.getProperty("DBNAME", "oauthSample");
+		int port = Integer.valueOf(props.getProperty("PORT", "27017").trim());
+		addresses = new ArrayList<ServerAddress>();
+		for (String host : props.getProperty("HOST", "localhost").split(",")) {
+			host = host.trim();
+			int colon = host.lastIndexOf(':');
+			if (colon > 0) {
+				addresses.add(new ServerAddress(host.substring(0, colon), Integer.valueOf(host.substring(colon + 1))));
+			} else if (!host.isEmpty()) {
+				addresses.add(new ServerAddress(host, port));
+			}
+		}
+		replicaSet = props.getProperty("REPLICA_SET");
+		String user = props.getProperty("USER");
+		String pwd = props.getProperty("PWD");
+		credential = user != null && pwd != null ? MongoCredential.createCredential(user, dbName, pwd.toCharArray())
+				: null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Properties props = new Properties();
+		try {
+			props.load(new FileReader(MONGO_PROPS_FILE));
+		} catch (FileNotFoundException e) {
+			/* Use defaults. */
+		}
+		String[] compressors = System.getProperty("benchmark.compressors", "none;snappy;zlib").split(";");
+		int tokens = Integer.getInteger("benchmark.tokens", 200);
+		int iterations = Integer.getInteger("benchmark.iterations", 500);
+
+		CompressionBenchmark benchmark = new CompressionBenchmark(props);
+		System.out.println("Benchmarking " + Arrays.toString(compressors) + " against " + benchmark.addresses + " with "
+				+ tokens + " tokens and " + iterations + " iterations");
+		System.out.println(String.format("%-12s %-8s %12s %12s %10s %10s %10s", "compressor", "op", "bytesIn/op",
+				"bytesOut/op", "mean(us)", "p50(us)", "p99(us)"));
+		try (MongoClient admin = benchmark.createClient("none")) {
+			benchmark.fill(admin, tokens);
+			for (String compressor : compressors) {
+				benchmark.run(admin, compressor.trim(), iterations);
+			}
+			admin.getDatabase(benchmark.dbName).getCollection(COLLECTION).drop();
+		}
+	}
+
+	/**
+	 * Time the operations with one compressor.
+	 * @param admin An uncompressed client, used to read the server counters.
+	 * @param compressor The compressor, or none.
+	 * @param iterations
+	 */
+	private void run(MongoClient admin, String compressor, int iterations) {
+		try (MongoClient client = createClient(compressor)) {
+			MongoCollection<Document> col = client.getDatabase(dbName).getCollection(COLLECTION);
+			for (int i = 0; i < WARMUP; i++) {
+				readAll(col);
+			}
+
+			Document before = serverStatus(admin);
+			long[] latencies = new long[iterations];
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				readAll(col);
+				latencies[i] = System.nanoTime() - start;
+			}
+			report(compressor, "readAll", before, serverStatus(admin), latencies);
+
+			before = serverStatus(admin);
+			for (int i = 0; i < iterations; i++) {
+				Document token = createToken("insert");
+				long start = System.nanoTime();
+				col.insertOne(token);
+				latencies[i] = System.nanoTime() - start;
+			}
+			report(compressor, "insert", before, serverStatus(admin), latencies);
+			col.deleteMany(Filters.eq("USERNAME", "insert"));
+		}
+	}
+
+	private static int readAll(MongoCollection<Document> col) {
+		int count = 0;
+		try (MongoCursor<Document> cursor = col.find(Filters.eq("USERNAME", USERNAME)).iterator()) {
+			while (cursor.hasNext()) {
+				cursor.next();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void report(String compressor, String op, Document before, Document after, long[] latencies) {
+		int n = latencies.length;
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long latency : sorted) {
+			total += latency;
+		}
+		System.out.println(String.format("%-12s %-8s %12d %12d %10d %10d %10d", compressor, op,
+				(networkCounter(after, "In") - networkCounter(before, "In")) / n,
+				(networkCounter(after, "Out") - networkCounter(before, "Out")) / n, total / n / 1000,
+				sorted[n / 2] / 1000, sorted[Math.min(n - 1, n * 99 / 100)] / 1000));
+
+		if (!"none".equals(compressor) && compressedBytes(after, compressor) == compressedBytes(before, compressor)) {
+			System.out.println("  The server did not use " + compressor
+					+ ". Check the networkMessageCompressors option of mongod.");
+		}
+	}
+
+	/**
+	 * The bytes on the wire, after compression. physicalBytesIn/Out exist from
+	 * MongoDB 4.2, before that bytesIn/Out count the bytes on the wire.
+	 */
+	private static long networkCounter(Document status, String direction) {
+		Document network = (Document) status.get("network");
+		Number physical = (Number) network.get("physicalBytes" + direction);
+		return physical != null ? physical.longValue() : ((Number) network.get("bytes" + direction)).longValue();
+	}
+
+	private static long compressedBytes(Document status, String compressor) {
+		Document compression = (Document) ((Document) status.get("network")).get("compression");
+		Document counters = compression == null ? null : (Document) compression.get(compressor);
+		Document compressed = counters == null ? null : (Document) counters.get("compressor");
+		return compressed == null ? 0 : ((Number) compressed.get("bytesOut")).longValue();
+	}
+
+	private Document serverStatus(MongoClient admin) {
+		return admin.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+	}
+
+	private void fill(MongoClient admin, int tokens) {
+		MongoCollection<Document> col = admin.getDatabase(dbName).getCollection(COLLECTION);
+		col.drop();
+		List<Document> documents = new ArrayList<Document>(tokens);
+		for (int i = 0; i < tokens; i++) {
+			documents.add(createToken(USERNAME));
+		}
+		col.insertMany(documents);
+		col.createIndex(new Document("USERNAME", 1));
+	}
+
+	/**
+	 * Create a token document with the fields the OAuthStore samples write.
+	 * @param username
+	 * @return The document.
+	 */
+	private Document createToken(String username) {
+		long now = System.currentTimeMillis();
+		String clientId = "client" + random.nextInt(5);
+		String header = base64("{\"alg\":\"RS256\",\"typ\":\"JWT\",\"kid\":\"benchmark\"}");
+		String payload = base64("{\"iss\":\"https://localhost:8443/oidc/endpoint/OAuthConfigSample\",\"sub\":\""
+				+ username + "\",\"aud\":\"" + clientId + "\",\"exp\":" + (now / 1000 + 7200) + ",\"iat\":"
+				+ now / 1000 + ",\"scope\":\"openid profile email\",\"realmName\":\"BasicRealm\",\"uniqueSecurityName\":\""
+				+ username + "\",\"groupIds\":[\"group1\",\"group2\",\"group3\"],\"jti\":\"" + random.nextLong() + "\"}");
+		byte[] signature = new byte[256];
+		random.nextBytes(signature);
+		String tokenString = header + "." + payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+
+		String lookupKey = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+		String props = "{\"grant_type\":[\"authorization_code\"],\"com.ibm.ws.security.oauth20.token.id\":[\"" + lookupKey
+				+ "\"],\"refresh_token_key\":[\"" + Long.toHexString(random.nextLong())
+				+ "\"],\"issuerId\":[\"https://localhost:8443/oidc/endpoint/OAuthConfigSample\"],\"scope\":"
+				+ "[\"openid\",\"profile\",\"email\"]}";
+
+		return new Document("LOOKUPKEY", lookupKey).append("UNIQUEID", lookupKey).append("PROVIDERID", "OAuthConfigSample")
+				.append("TYPE", "authorization_grant").append("SUBTYPE", "refresh_token").append("CREATEDAT", now)
+				.append("LIFETIME", 7200).append("EXPIRES", now + 7200000).append("TOKENSTRING", tokenString)
+				.append("CLIENTID", clientId).append("USERNAME", username).append("SCOPE", "openid profile email")
+				.append("REDIRECTURI", "https://localhost:8443/oauthclient/redirect.jsp").append("STATEID", "")
+				.append("PROPS", props);
+	}
+
+	private static String base64(String json) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private MongoClient createClient(String compressor) {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder()
+				.applyToClusterSettings(builder -> builder.hosts(addresses).requiredReplicaSetName(replicaSet));
+		if (credential != null) {
+			settings.credential(credential);
+		}
+		if ("snappy".equals(compressor)) {
+			settings.compressorList(Collections.singletonList(MongoCompressor.createSnappyCompressor()));
+		} else if ("zlib".equals(compressor)) {
+			settings.compressorList(Collections.singletonList(MongoCompressor.createZlibCompressor()));
+		} else if (!"none".equals(compressor)) {
+			throw new IllegalArgumentException("Unsupported compressor " + compressor);
+		}
+		return MongoClients.create(settings.build());
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the StorageEngineTest against the InMemoryStorageEngine.
+ */
+public class InMemoryStorageEngineTest extends StorageEngineTest {
+
+	@Override
+	StorageEngine createEngine() {
+		return new InMemoryStorageEngine();
+	}
+
+	@Test
+	void concurrentUpdatesKeepTheIndexes() throws Exception {
+		long expires = System.currentTimeMillis() + HOUR;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; t++) {
+				String username = "user" + t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 500; i++) {
+						String lookupKey = username + "-" + i;
+						engine.create(newToken(PROVIDER_ID, lookupKey, username, "client01", expires));
+						engine.update(newToken(PROVIDER_ID, lookupKey, "shared", "client01", expires + i));
+						if (i % 2 == 0) {
+							engine.deleteToken(PROVIDER_ID, lookupKey);
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(1000, engine.countTokens(PROVIDER_ID, "shared", "client01"));
+		assertEquals(0, engine.countTokens(PROVIDER_ID, "user0", "client01"));
+		engine.deleteTokens(PROVIDER_ID, expires + 250);
+		assertEquals(500, engine.countTokens(PROVIDER_ID, "shared", "client01"));
+	}
+}
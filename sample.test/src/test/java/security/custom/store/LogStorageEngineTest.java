@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the StorageEngineTest against the LogStorageEngine, reopening the log to test that
+ * the index is rebuilt from the segments, and tests the compaction and the recovery of a
+ * torn record.
+ */
+public class LogStorageEngineTest extends StorageEngineTest {
+
+	private static final int SEGMENT_SIZE = 16 * 1024;
+
+	private File directory;
+
+	@Override
+	StorageEngine createEngine() throws IOException {
+		directory = Files.createTempDirectory("oauthlog").toFile();
+		return open();
+	}
+
+	private LogStorageEngine open() throws IOException {
+		return new LogStorageEngine(directory, SEGMENT_SIZE, MongoDBHelper.LOG_FSYNC_NEVER, 0, 0);
+	}
+
+	@Override
+	void reopen() throws IOException {
+		engine.close();
+		engine = open();
+	}
+
+	@AfterEach
+	void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	void dropsTornLastRecord() throws Exception {
+		long expires = System.currentTimeMillis() + HOUR;
+		engine.create(newToken(PROVIDER_ID, "token01", "user1", "client01", expires));
+		engine.create(newToken(PROVIDER_ID, "token02", "user1", "client01", expires));
+		engine.create(newToken(PROVIDER_ID, "token03", "user1", "client01", expires));
+		engine.close();
+
+		File[] files = segmentFiles();
+		assertEquals(1, files.length);
+		List<LogSegment.Header> headers = LogSegment.open(files[0]).headers();
+		LogSegment.Header last = headers.get(headers.size() - 1);
+		try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+			// Flip a byte of the payload, as if the crash came before all of it was written
+			long at = last.offset + last.length - 1;
+			file.seek(at);
+			int b = file.read();
+			file.seek(at);
+			file.write(b ^ 0xff);
+		}
+
+		engine = open();
+		assertNotNull(engine.readToken(PROVIDER_ID, "token01"));
+		assertNotNull(engine.readToken(PROVIDER_ID, "token02"));
+		assertNull(engine.readToken(PROVIDER_ID, "token03"));
+
+		// The next record overwrites the torn one
+		engine.create(newToken(PROVIDER_ID, "token04", "user1", "client01", expires));
+		reopen();
+		assertNotNull(engine.readToken(PROVIDER_ID, "token02"));
+		assertNull(engine.readToken(PROVIDER_ID, "token03"));
+		assertEquals("token04 string", engine.readToken(PROVIDER_ID, "token04").getTokenString());
+		assertEquals(3, engine.countTokens(PROVIDER_ID, "user1", "client01"));
+	}
+
+	@Test
+	void readsAfterCompaction() throws Exception {
+		long now = System.currentTimeMillis();
+		int count = fillSegments(3, i -> newToken(PROVIDER_ID, "token" + i, "user" + (i % 10), "client01",
+				i % 3 == 0 ? now - HOUR : now + HOUR));
+		for (int i = 0; i < count; i += 3) {
+			engine.update(newToken(PROVIDER_ID, "token" + i, "user" + (i % 10), "client01", now + 2 * HOUR));
+			engine.deleteToken(PROVIDER_ID, "token" + (i + 1));
+		}
+		engine.create(newClient(PROVIDER_ID, "client01", "Client 01"));
+		engine.create(newConsent(PROVIDER_ID, "user1", "client01", "resource1", "openid", now + HOUR));
+		File oldest = segmentFiles()[0];
+
+		((LogStorageEngine) engine).compact();
+		assertFalse(oldest.exists());
+		assertReads(count, now);
+
+		reopen();
+		assertReads(count, now);
+		assertEquals("Client 01", engine.readClient(PROVIDER_ID, "client01").getDisplayName());
+		assertNotNull(engine.readConsent(PROVIDER_ID, "user1", "client01", "resource1"));
+	}
+
+	private void assertReads(int count, long now) throws Exception {
+		for (int i = 0; i < count; i++) {
+			String lookupKey = "token" + i;
+			if (i % 3 == 1) {
+				assertNull(engine.readToken(PROVIDER_ID, lookupKey), lookupKey);
+			} else {
+				long expires = i % 3 == 0 ? now + 2 * HOUR : now + HOUR;
+				assertEquals(expires, engine.readToken(PROVIDER_ID, lookupKey).getExpires(), lookupKey);
+				assertEquals(lookupKey + " string", engine.readToken(PROVIDER_ID, lookupKey).getTokenString());
+			}
+		}
+	}
+
+	@Test
+	void compactionDropsExpiredTokens() throws Exception {
+		long now = System.currentTimeMillis();
+		int count = fillSegments(2, i -> newToken(PROVIDER_ID, "token" + i, "user1", "client01",
+				i % 2 == 0 ? now - HOUR : now + HOUR));
+		int inOldest = count - 1; // The last token started the second segment
+
+		((LogStorageEngine) engine).compact();
+		reopen();
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 1) {
+				assertNotNull(engine.readToken(PROVIDER_ID, "token" + i));
+			} else if (i < inOldest) {
+				assertNull(engine.readToken(PROVIDER_ID, "token" + i));
+			}
+		}
+	}
+
+	@Test
+	void expireRecordsDoNotTriggerCompaction() throws Exception {
+		long now = System.currentTimeMillis();
+		engine.create(newToken(PROVIDER_ID, "token", "user1", "client01", now + HOUR));
+		// Deletes nothing, but writes an expire record with a timestamp in the past
+		engine.deleteTokens(PROVIDER_ID, now - HOUR);
+		fillSegments(2, i -> newToken(PROVIDER_ID, "token" + i, "user1", "client01", now + HOUR));
+		File oldest = segmentFiles()[0];
+
+		((LogStorageEngine) engine).compact();
+		assertTrue(oldest.exists());
+	}
+
+	@Test
+	void fewExpiredTokensDoNotTriggerCompaction() throws Exception {
+		long now = System.currentTimeMillis();
+		engine.create(newToken(PROVIDER_ID, "expired", "user1", "client01", now - HOUR));
+		fillSegments(2, i -> newToken(PROVIDER_ID, "token" + i, "user1", "client01", now + HOUR));
+		File oldest = segmentFiles()[0];
+
+		((LogStorageEngine) engine).compact();
+		assertTrue(oldest.exists());
+	}
+
+	@Test
+	void compactsTheMostExpiredSegment() throws Exception {
+		long now = System.currentTimeMillis();
+		// The oldest segment holds live clients and a token that is deleted by a record of the next one
+		engine.create(newToken(PROVIDER_ID, "deleted", "user1", "client01", now + HOUR));
+		for (int i = 0; segmentFiles().length < 2; i++) {
+			engine.create(newClient(PROVIDER_ID, "client" + i, "Client " + i));
+		}
+		engine.deleteToken(PROVIDER_ID, "deleted");
+		fillSegments(3, i -> newToken(PROVIDER_ID, "token" + i, "user1", "client01", now - HOUR));
+		File[] files = segmentFiles();
+
+		((LogStorageEngine) engine).compact();
+		assertTrue(files[0].exists());
+		assertFalse(files[1].exists());
+
+		// The delete record was copied, so the token in the oldest segment stays deleted
+		reopen();
+		assertNull(engine.readToken(PROVIDER_ID, "deleted"));
+		assertEquals("Client 0", engine.readClient(PROVIDER_ID, "client0").getDisplayName());
+		assertNull(engine.readToken(PROVIDER_ID, "token0"));
+	}
+
+	@Test
+	void deleteTokensAfterReopen() throws Exception {
+		long now = System.currentTimeMillis();
+		engine.create(newToken(PROVIDER_ID, "expired", "user1", "client01", now - HOUR));
+		engine.create(newToken(PROVIDER_ID, "valid", "user1", "client01", now + HOUR));
+		engine.deleteTokens(PROVIDER_ID, now);
+		engine.create(newToken(PROVIDER_ID, "expiredLater", "user1", "client01", now - HOUR));
+		reopen();
+
+		// The expire record only applies to the tokens put before it
+		assertNull(engine.readToken(PROVIDER_ID, "expired"));
+		assertNotNull(engine.readToken(PROVIDER_ID, "expiredLater"));
+		engine.deleteTokens(PROVIDER_ID, now);
+		assertNull(engine.readToken(PROVIDER_ID, "expiredLater"));
+		assertNotNull(engine.readToken(PROVIDER_ID, "valid"));
+	}
+
+	/**
+	 * Create tokens until the log has a number of segments.
+	 * @return The number of tokens created.
+	 */
+	private int fillSegments(int segments, TokenFactory factory) throws Exception {
+		int i = 0;
+		while (segmentFiles().length < segments) {
+			engine.create(factory.newToken(i++));
+		}
+		return i;
+	}
+
+	private File[] segmentFiles() {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(LogSegment.PREFIX));
+		Arrays.sort(files);
+		return files;
+	}
+
+	private interface TokenFactory {
+		com.ibm.websphere.security.oauth20.store.OAuthToken newToken(int i);
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * The requests of the OAuth authorization code flow against the OIDC provider
+ * of the sample server: the client registration, the authorize request, the
+ * consent form, the token exchange and the client deletion. Each call returns
+ * the status, content and redirect of the response, and the caller checks
+ * them.
+ * <p/>
+ * Used by OAuthStoreSampleFvtTest to run one flow and by OAuthLoadGenerator
+ * to run many concurrent ones.
+ */
+public class OAuthFlow {
+
+	/**
+	 * The user to register the clients and authorize with.
+	 */
+	static final String TEST_USER_ID = "testuser";
+
+	/**
+	 * The password of {@link #TEST_USER_ID}.
+	 */
+	static final String TEST_USER_PW = "password";
+
+	/**
+	 * The OIDC provider of the sample server.
+	 */
+	static final String OIDC_PROVIDER_ID = "OidcConfigSample";
+
+	private static final String CREDENTIALS_BASE64 = basic(TEST_USER_ID, TEST_USER_PW);
+
+	private static final Pattern OAUTH_FORM_DATA = Pattern.compile(".+oauthFormData=(\\{.*\\}).+", Pattern.DOTALL);
+
+	private static final Pattern CODE = Pattern.compile("[?&]code=([^&]+)");
+
+	private static final Gson gson = new Gson();
+
+	private static final Type map_of_string_object_type = new TypeToken<Map<String, Object>>() {
+	}.getType();
+
+	/**
+	 * The status, content and Location header of a response.
+	 */
+	public static class Response {
+		private final int status;
+		private final String content;
+		private final String location;
+
+		Response(org.apache.http.HttpResponse response) throws IOException {
+			status = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			content = entity == null ? null : EntityUtils.toString(entity);
+			Header header = response.getFirstHeader("Location");
+			location = header == null ? null : header.getValue();
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getContent() {
+			return content;
+		}
+
+		public String getLocation() {
+			return location;
+		}
+
+		/**
+		 * @return The authorization code in the redirect, or null.
+		 */
+		public String getCode() {
+			Matcher m = location == null ? null : CODE.matcher(location);
+			return m != null && m.find() ? m.group(1) : null;
+		}
+	}
+
+	private final String registrationUri;
+	private final String authorizeEndpoint;
+	private final String tokenEndpoint;
+	private final String redirectUriBase;
+	private final CloseableHttpClient httpClient;
+	private final CookieStore cookieStore = new BasicCookieStore();
+	private final Executor executor;
+
+	/**
+	 * @param host The host of the OP, also used for the redirect URIs of the RP.
+	 * @param port The HTTPS port.
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 */
+	public OAuthFlow(String host, String port)
+			throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException {
+		String endpoint = "https://" + host + ":" + port + "/oidc/endpoint/" + OIDC_PROVIDER_ID;
+		registrationUri = endpoint + "/registration";
+		authorizeEndpoint = endpoint + "/authorize";
+		tokenEndpoint = endpoint + "/token";
+		redirectUriBase = "https://" + host + ":" + port + "/oidcclient/redirect/";
+		httpClient = getTrustAllHttpClient();
+		executor = Executor.newInstance(httpClient).use(cookieStore);
+	}
+
+	private OAuthFlow(OAuthFlow flow) {
+		registrationUri = flow.registrationUri;
+		authorizeEndpoint = flow.authorizeEndpoint;
+		tokenEndpoint = flow.tokenEndpoint;
+		redirectUriBase = flow.redirectUriBase;
+		httpClient = flow.httpClient;
+		executor = Executor.newInstance(httpClient).use(cookieStore);
+	}
+
+	/**
+	 * @return A flow against the same provider that shares the connections of
+	 *         this flow but has its own cookies, so the session of one virtual
+	 *         user of the load generator is not seen by the others.
+	 */
+	public OAuthFlow newSession() {
+		return new OAuthFlow(this);
+	}
+
+	/**
+	 * @param clientId
+	 * @return The redirect URI the client is registered with.
+	 */
+	public String getRedirectUri(String clientId) {
+		return redirectUriBase + clientId;
+	}
+
+	/**
+	 * Register a client. The provider responds with 201.
+	 */
+	public Response register(String clientId, String clientSecret, String clientName) throws IOException {
+		return executor.execute(Request.Post(registrationUri).addHeader("Content-Type", "application/json")
+				.addHeader("Authorization", "Basic " + CREDENTIALS_BASE64)
+				.bodyString("{\"client_id\":\"" + clientId + "\",\"client_secret\":\"" + clientSecret
+						+ "\",\"client_name\":\"" + clientName + "\",\"redirect_uris\":[\"" + getRedirectUri(clientId)
+						+ "\"],\"scope\":\"ALL_SCOPES\"}", ContentType.DEFAULT_TEXT))
+				.handleResponse(Response::new);
+	}
+
+	/**
+	 * Send a request to the authorize endpoint. The provider responds with 200 and
+	 * the consent form, or with a 302 redirect with the code if the user already
+	 * gave their consent and asked to remember it.
+	 */
+	public Response authorize(String clientId, String userName) throws IOException {
+		Collection<BasicNameValuePair> nvps = new HashSet<BasicNameValuePair>();
+		nvps.add(new BasicNameValuePair("auto", "true"));
+		nvps.add(new BasicNameValuePair("response_type", "code"));
+		nvps.add(new BasicNameValuePair("user_name", userName));
+		nvps.add(new BasicNameValuePair("client_id", clientId));
+		nvps.add(new BasicNameValuePair("redirect_uri", getRedirectUri(clientId)));
+		nvps.add(new BasicNameValuePair("authorize_endpoint", authorizeEndpoint));
+		nvps.add(new BasicNameValuePair("state", "abcdefg"));
+		nvps.add(new BasicNameValuePair("scope", "openid"));
+		nvps.add(new BasicNameValuePair("autoauthz", "true"));
+		return executor.execute(Request.Post(authorizeEndpoint).bodyForm(nvps)).handleResponse(Response::new);
+	}
+
+	/**
+	 * Populate the consent form of an authorize response and submit it, allowing
+	 * the request and remembering the decision. The provider responds with a 302
+	 * redirect with the code.
+	 *
+	 * @param consentForm The authorize response.
+	 * @return The response, or null if the authorize response did not hold a
+	 *         consent form.
+	 */
+	@SuppressWarnings("unchecked")
+	public Response consent(String clientId, Response consentForm) throws IOException {
+		Matcher m = OAUTH_FORM_DATA.matcher(consentForm.getContent() == null ? "" : consentForm.getContent());
+		if (!m.matches()) {
+			return null;
+		}
+		Map<String, Object> oauthFormData = gson.fromJson(m.group(1), map_of_string_object_type);
+		Collection<BasicNameValuePair> nvps = new HashSet<BasicNameValuePair>();
+		nvps.add(new BasicNameValuePair("consentNonce", (String) oauthFormData.get("consentNonce")));
+		nvps.add(new BasicNameValuePair("client_id", clientId));
+		nvps.add(new BasicNameValuePair("response_type", "code"));
+		nvps.add(new BasicNameValuePair("state", "abcdefg"));
+		nvps.add(new BasicNameValuePair("scope", "openid"));
+		nvps.add(new BasicNameValuePair("prompt", "none")); // 'none' == allow, remember my decision
+		nvps.add(new BasicNameValuePair("redirect_uri", getRedirectUri(clientId)));
+		Map<String, Object> extendedProperties = (Map<String, Object>) oauthFormData.get("extendedProperties");
+		nvps.add(new BasicNameValuePair("nonce", (String) extendedProperties.get("nonce")));
+//		nvps.add(new BasicNameValuePair("acr_values", (String) extendedProperties.get("acr_values")));
+		nvps.add(new BasicNameValuePair("response_mode", (String) extendedProperties.get("response_mode")));
+		nvps.add(new BasicNameValuePair("action", authorizeEndpoint));
+		nvps.add(new BasicNameValuePair("method", "POST"));
+		return executor.execute(Request.Post(authorizeEndpoint).bodyForm(nvps)).handleResponse(Response::new);
+	}
+
+	/**
+	 * Exchange an authorization code for tokens. The provider responds with 200
+	 * and the tokens in JSON.
+	 */
+	public Response token(String clientId, String clientSecret, String code) throws IOException {
+		Collection<BasicNameValuePair> nvps = new HashSet<BasicNameValuePair>();
+		nvps.add(new BasicNameValuePair("grant_type", "authorization_code"));
+		nvps.add(new BasicNameValuePair("code", code));
+		nvps.add(new BasicNameValuePair("redirect_uri", getRedirectUri(clientId)));
+		return executor.execute(Request.Post(tokenEndpoint).addHeader("Authorization", "Basic " + basic(clientId, clientSecret))
+				.bodyForm(nvps)).handleResponse(Response::new);
+	}
+
+	/**
+	 * Delete a client. The provider responds with 204.
+	 */
+	public Response deleteClient(String clientId) throws IOException {
+		return executor.execute(Request.Delete(registrationUri + "/" + clientId).addHeader("Authorization",
+				"Basic " + CREDENTIALS_BASE64)).handleResponse(Response::new);
+	}
+
+	private static String basic(String user, String password) {
+		return Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Create an {@link CloseableHttpClient} that trusts all HTTPS connections.
+	 *
+	 * @return An HTTP client that trusts all HTTPS connections.
+	 * @throws KeyManagementException
+	 * @throws NoSuchAlgorithmException
+	 * @throws KeyStoreException
+	 */
+	private static CloseableHttpClient getTrustAllHttpClient()
+			throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException {
+		final SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, (x509CertChain, authType) -> true)
+				.build();
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder
+				.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE)
+				.register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
+				.build());
+		// The sessions of the load generator share the connections of one client
+		connectionManager.setMaxTotal(1000);
+		connectionManager.setDefaultMaxPerRoute(1000);
+		return HttpClientBuilder.create().setSSLContext(sslContext).setConnectionManager(connectionManager).build();
+	}
+}
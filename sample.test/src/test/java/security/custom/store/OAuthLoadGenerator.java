@@ -0,0 +1,303 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.bson.Document;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+
+/**
+ * Generates load on the OAuth provider of the locally started sample server
+ * with many concurrent authorization code flows, to size the servers and the
+ * MongoDB instance for a peak.
+ * <p/>
+ * Each virtual user registers a client of its own, then runs the flow of
+ * OAuthFlow over and over: the authorize request, the consent form on the
+ * first flow of the client, and the token exchange. The flows start at a fixed
+ * arrival rate, or back to back when no rate is set. A flow that starts late
+ * because all virtual users are busy counts the wait in its latency, so an
+ * overloaded server shows in the flow percentiles. At the end the clients are
+ * deleted.
+ * <p/>
+ * The report has the HdrHistogram latency percentiles of each endpoint and
+ * of the whole flow, and the changes in the OAuth collections and in the
+ * operation counters of MongoDB. The MongoDB instance is the one in the
+ * mongoDB.props file; like the FVT, the generator starts it when START_MONGODB
+ * is true, as a replica set of the HOST entries when REPLICA_SET is set. Start the server first with gradlew sample.user.feature:start.
+ * <p/>
+ * Run it with: gradlew :sample.test:loadTest. The following system properties
+ * can be set with -D:
+ * <ul>
+ * <li>load.users: the number of virtual users. Default 10.</li>
+ * <li>load.rate: the flows started per second, 0 to start them back to back.
+ * Default 0.</li>
+ * <li>load.duration: the seconds to start flows for. Default 60.</li>
+ * <li>load.host and load.port: the OIDC provider. Default localhost and
+ * 8443.</li>
+ * </ul>
+ */
+public class OAuthLoadGenerator {
+
+	private final static String MONGO_PROPS_FILE = "../SupportFiles/mongoDB.props";
+	private final static String[] COLLECTIONS = { "OauthClient", "OauthToken", "OauthConsent" };
+	private final static String[] ENDPOINTS = { "registration", "authorize", "consent", "token", "delete", "flow" };
+	private final static String CLIENT_SECRET = "loadSecret";
+	private final static long STOP = Long.MIN_VALUE;
+
+	private final OAuthFlow flow;
+	private final int users;
+	private final double rate;
+	private final long duration;
+	private final Map<String, Histogram> latencies = new LinkedHashMap<String, Histogram>();
+	private final Map<String, AtomicLong> errors = new LinkedHashMap<String, AtomicLong>();
+	// The intended start times of the flows, in nanoseconds. Unbounded so that
+	// the arrivals keep their schedule when the virtual users fall behind.
+	private final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+
+	private OAuthLoadGenerator(OAuthFlow flow, int users, double rate, long duration) {
+		this.flow = flow;
+		this.users = users;
+		this.rate = rate;
+		this.duration = duration;
+		for (String endpoint : ENDPOINTS) {
+			latencies.put(endpoint, new ConcurrentHistogram(3));
+			errors.put(endpoint, new AtomicLong());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties props = new Properties();
+		try {
+			props.load(new FileReader(MONGO_PROPS_FILE));
+		} catch (FileNotFoundException e) {
+			/* Use defaults. */
+		}
+		int users = Integer.getInteger("load.users", 10);
+		double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+		long duration = Long.getLong("load.duration", 60);
+		OAuthFlow flow = new OAuthFlow(System.getProperty("load.host", "localhost"), System.getProperty("load.port", "8443"));
+
+		List<MongodExecutable> mongods = new ArrayList<MongodExecutable>();
+		String dbName = props.getProperty("DBNAME", "oauthSample");
+		List<ServerAddress> addresses = MongoDBHelper.parseServerAddresses(props.getProperty("HOST", "localhost"),
+				Integer.valueOf(props.getProperty("PORT", "27017").trim()));
+		try {
+			if (Boolean.valueOf(props.getProperty("START_MONGODB", "true"))) {
+				System.out.println("Starting a local mongoDB.");
+				OAuthStoreSampleFvtTest.startMongoDB(addresses, props.getProperty("REPLICA_SET"), mongods);
+			}
+			try (MongoClient mongoClient = createClient(props, dbName, addresses)) {
+				MongoDatabase db = mongoClient.getDatabase(dbName);
+				System.out.println("Running " + users + " virtual users for " + duration + " seconds at "
+						+ (rate > 0 ? rate + " flows per second" : "the highest rate they can"));
+				Map<String, Long> before = storeCounts(db);
+				OAuthLoadGenerator generator = new OAuthLoadGenerator(flow, users, rate, duration);
+				long start = System.nanoTime();
+				generator.run();
+				double seconds = (System.nanoTime() - start) / 1e9;
+				generator.report(seconds);
+				reportStore(before, storeCounts(db), seconds);
+			}
+		} finally {
+			for (MongodExecutable mongod : mongods) {
+				mongod.stop();
+			}
+		}
+	}
+
+	private void run() throws InterruptedException {
+		List<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		for (int i = 0; i < users; i++) {
+			String clientId = "loadclient" + i;
+			Thread thread = new Thread(() -> virtualUser(clientId, end), clientId);
+			threads.add(thread);
+			thread.start();
+		}
+		if (rate > 0) {
+			long interval = (long) (1e9 / rate);
+			for (long next = start; next < end; next += interval) {
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				arrivals.put(next);
+			}
+			for (int i = 0; i < users; i++) {
+				arrivals.put(STOP);
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Register a client, run flows until the end and delete the client. With a
+	 * rate the flows are taken from the arrivals, else they run back to back.
+	 * The virtual user has its own HTTP session, see OAuthFlow.newSession.
+	 */
+	private void virtualUser(String clientId, long end) {
+		OAuthFlow flow = this.flow.newSession();
+		if (!timed("registration", 201, () -> flow.register(clientId, CLIENT_SECRET, clientId + " name"))) {
+			return;
+		}
+		try {
+			while (true) {
+				long arrival = rate > 0 ? arrivals.take() : System.nanoTime();
+				if (arrival == STOP || (rate <= 0 && arrival >= end)) {
+					break;
+				}
+				if (runFlow(flow, clientId)) {
+					latencies.get("flow").recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - arrival));
+				} else {
+					errors.get("flow").incrementAndGet();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			timed("delete", 204, () -> flow.deleteClient(clientId));
+		}
+	}
+
+	/**
+	 * Run one authorization code flow.
+	 * @return true if it ended with a token.
+	 */
+	private boolean runFlow(OAuthFlow flow, String clientId) {
+		OAuthFlow.Response[] redirect = new OAuthFlow.Response[1];
+		OAuthFlow.Response[] authorize = new OAuthFlow.Response[1];
+		if (!timed("authorize", -1, () -> authorize[0] = flow.authorize(clientId, clientId + " name"))) {
+			return false;
+		}
+		if (authorize[0].getStatus() == 302) {
+			// The consent of the first flow was remembered
+			redirect[0] = authorize[0];
+		} else if (authorize[0].getStatus() != 200
+				|| !timed("consent", 302, () -> redirect[0] = flow.consent(clientId, authorize[0]))) {
+			errors.get("authorize").incrementAndGet();
+			return false;
+		}
+		String code = redirect[0].getCode();
+		return code != null && timed("token", 200, () -> flow.token(clientId, CLIENT_SECRET, code));
+	}
+
+	@FunctionalInterface
+	private interface Call {
+		OAuthFlow.Response call() throws IOException;
+	}
+
+	/**
+	 * Time a request and record its latency, or an error.
+	 * @param expected The expected status, or -1 to let the caller check it.
+	 * @return true if the request returned the expected status.
+	 */
+	private boolean timed(String endpoint, int expected, Call call) {
+		long start = System.nanoTime();
+		try {
+			OAuthFlow.Response response = call.call();
+			latencies.get(endpoint).recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			if (response != null && (expected < 0 || response.getStatus() == expected)) {
+				return true;
+			}
+		} catch (IOException e) {
+			// Counted as an error
+		}
+		errors.get(endpoint).incrementAndGet();
+		return false;
+	}
+
+	private void report(double seconds) {
+		System.out.println(String.format("%-13s %8s %8s %9s %9s %9s %9s %9s %9s", "endpoint", "count", "errors",
+				"per sec", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)"));
+		for (String endpoint : ENDPOINTS) {
+			Histogram histogram = latencies.get(endpoint);
+			System.out.println(String.format("%-13s %8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f", endpoint,
+					histogram.getTotalCount(), errors.get(endpoint).get(), histogram.getTotalCount() / seconds,
+					histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+					histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+					histogram.getMaxValue() / 1000.0));
+		}
+	}
+
+	/**
+	 * The documents in the OAuth collections, and the operation counters of the
+	 * server.
+	 */
+	private static Map<String, Long> storeCounts(MongoDatabase db) {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (String collection : COLLECTIONS) {
+			counts.put(collection, db.getCollection(collection).countDocuments());
+		}
+		try {
+			Document opcounters = (Document) db.runCommand(new Document("serverStatus", 1)).get("opcounters");
+			for (Map.Entry<String, Object> counter : opcounters.entrySet()) {
+				counts.put("opcounters." + counter.getKey(), ((Number) counter.getValue()).longValue());
+			}
+		} catch (RuntimeException e) {
+			// The user may not be allowed to run serverStatus
+		}
+		return counts;
+	}
+
+	private static void reportStore(Map<String, Long> before, Map<String, Long> after, double seconds) {
+		System.out.println(String.format("%-22s %10s %10s %10s %9s", "store", "before", "after", "change", "per sec"));
+		for (Map.Entry<String, Long> count : after.entrySet()) {
+			long previous = before.containsKey(count.getKey()) ? before.get(count.getKey()) : 0;
+			long change = count.getValue() - previous;
+			System.out.println(String.format("%-22s %10d %10d %10d %9.1f", count.getKey(), previous, count.getValue(),
+					change, change / seconds));
+		}
+		System.out.println("The server also counts the operations of other clients and of the generator itself.");
+	}
+
+	private static MongoClient createClient(Properties props, String dbName, List<ServerAddress> addresses) {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder().applyToClusterSettings(
+				builder -> builder.hosts(addresses).requiredReplicaSetName(props.getProperty("REPLICA_SET")));
+		String user = props.getProperty("USER");
+		String pwd = props.getProperty("PWD");
+		if (user != null && pwd != null) {
+			settings.credential(MongoCredential.createCredential(user, dbName, pwd.toCharArray()));
+		}
+		return MongoClients.create(settings.build());
+	}
+}
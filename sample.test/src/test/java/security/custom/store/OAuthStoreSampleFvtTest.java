@@ -22,53 +22,27 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.LogManager;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.net.ssl.SSLContext;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.fluent.Executor;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.apache.http.util.EntityUtils;
+import java.util.logging.Logger;
+
 import org.bson.Document;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
@@ -81,6 +55,7 @@ import de.flapdoodle.embed.mongo.MongodExecutable;
 import de.flapdoodle.embed.mongo.MongodStarter;
 import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
 import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.config.Storage;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.process.runtime.Network;
 
@@ -99,10 +74,17 @@ import de.flapdoodle.embed.process.runtime.Network;
  */
 public class OAuthStoreSampleFvtTest {
 
+	private static final Logger LOGGER = Logger.getLogger(OAuthStoreSampleFvtTest.class.getName());
+
+	/*
+	 * How long to wait for the replica set started by this test to elect its primary.
+	 */
+	private static final long REPLICA_SET_ELECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
 	/**
-	 * A handle to the MongoDB executable.
+	 * Handles to the MongoDB executables, one per replica set member.
 	 */
-	private static MongodExecutable mongodExecutable = null;
+	private static List<MongodExecutable> mongodExecutables = new ArrayList<MongodExecutable>();
 	
 	private static MongoClient mongoClient = null;
 
@@ -285,6 +267,13 @@ public class OAuthStoreSampleFvtTest {
 	 */
 	private final static String MONGO_PROP_START_MONGODB = "START_MONGODB";
 
+	/**
+	 * The property used to store the replica set name of MongoDB. When set and the
+	 * test starts MongoDB, it starts a replica set with one member for each host in
+	 * the HOST property. This is retrieved from the mongoDB.props file.
+	 */
+	private final static String MONGO_PROP_REPLICA_SET = "REPLICA_SET";
+
 	/**
 	 * MongoDB collection containing clients.
 	 */
@@ -306,31 +295,12 @@ public class OAuthStoreSampleFvtTest {
 	 */
 	private static final String TEST_USER_ID = "testuser";
 
-	/**
-	 * The password for {@link #TEST_USER_ID}. This password is defined in the
-	 * server.xml.
-	 */
-	private static final String TEST_USER_PW = "password";
-
-	/**
-	 * Base64 encoded credentials for {@link #TEST_USER_ID}, suitable for use in an
-	 * HTTP Authentication header for use in basic authentication.
-	 */
-	private static final String CREDENTIALS_BASE64 = Base64.getEncoder()
-			.encodeToString((TEST_USER_ID + ":" + TEST_USER_PW).getBytes());
-
 	/**
 	 * The OAuth provider configuration ID. This is defined in the 'oauthProvider'
 	 * element of the sever.xml.
 	 */
 	private static final String OAUTH_PROVIDER_ID = "OauthConfigSample";
 
-	/**
-	 * The OAuth provider configuration ID. This is defined in the
-	 * 'openidConnectProvider' element of the sever.xml.
-	 */
-	private static final String OIDC_PROVIDER_ID = "OidcConfigSample";
-
 	/**
 	 * The host name for the Liberty server that is the OIDC provider.
 	 */
@@ -371,35 +341,12 @@ public class OAuthStoreSampleFvtTest {
 	 */
 	private static final String CLIENT_SECRET_XOR = "{xor}LDo8LTorb24=";
 
-	/**
-	 * The OIDC registration URI.
-	 */
-	private static final String REGISTRATION_URI = "https://" + OP_HOST + ":" + OP_PORT + "/oidc/endpoint/"
-			+ OIDC_PROVIDER_ID + "/registration";
-
 	/**
 	 * The OIDC redirect URI for {@link #CLIENT_ID}.
 	 */
 	private static final String REDIRECT_URI = "https://" + RP_HOST + ":" + RP_PORT + "/oidcclient/redirect/"
 			+ CLIENT_ID;
 
-	/**
-	 * The OIDC authorize URI.
-	 */
-	private static final String AUTHORIZE_ENDPOINT = "https://" + OP_HOST + ":" + OP_PORT + "/oidc/endpoint/"
-			+ OIDC_PROVIDER_ID + "/authorize";
-
-	/**
-	 * A GSON instance.
-	 */
-	private static final Gson gson = new Gson();
-
-	/**
-	 * A Type of Map<String, Object>.
-	 */
-	private static final Type map_of_string_object_type = new TypeToken<Map<String, Object>>() {
-	}.getType();
-
 	static {
 		/*
 		 * Enable HTTP client logging. Will log to stderr.
@@ -427,7 +374,7 @@ public class OAuthStoreSampleFvtTest {
 			System.out.println("Closed mongoClient");
 			mongoClient.close();
 		}
-		if (mongodExecutable != null) {
+		for (MongodExecutable mongodExecutable : mongodExecutables) {
 			mongodExecutable.stop();
 			System.out.println("Stopped mongoDB server.");
 		}
@@ -586,6 +533,7 @@ public class OAuthStoreSampleFvtTest {
 		String mongodbUser = null;
 		String mongodbPassword = null;
 		boolean mongodbStart = true;
+		String mongodbReplicaSet = null;
 		try {
 			Properties props = new Properties();
 			props.load(new FileReader(MONGO_PROPS_FILE));
@@ -595,6 +543,7 @@ public class OAuthStoreSampleFvtTest {
 			mongodbUser = props.getProperty(MONGO_PROP_USER);
 			mongodbPassword = props.getProperty(MONGO_PROP_PWD);
 			mongodbStart = Boolean.valueOf(props.getProperty(MONGO_PROP_START_MONGODB, "true"));
+			mongodbReplicaSet = props.getProperty(MONGO_PROP_REPLICA_SET);
 
 			/*
 			 * We don't currently start MongoDb with authentication enabled. Fail if the
@@ -616,20 +565,18 @@ public class OAuthStoreSampleFvtTest {
 		System.out.println("USER: " + mongodbUser);
 		System.out.println("PWD: " + mongodbPassword);
 		System.out.println("START_MONGODB: " + mongodbStart);
+		System.out.println("REPLICA_SET: " + mongodbReplicaSet);
 		System.out.println("=================================================================");
 
 		/*
 		 * Startup a MondoDB instance.
 		 */
+		List<ServerAddress> mongodbAddresses = MongoDBHelper.parseServerAddresses(mongodbHost, mongodbPort);
 		if (mongodbStart) {
 			System.out.println("Starting a local mongoDB.");
-			MongodStarter starter = MongodStarter.getDefaultInstance();
-			MongodConfigBuilder builder = new MongodConfigBuilder().version(Version.V3_6_5)
-					.net(new Net(mongodbHost, mongodbPort, Network.localhostIsIPv6()));
-			mongodExecutable = starter.prepare(builder.build());
-			mongodExecutable.start();
+			startMongoDB(mongodbAddresses, mongodbReplicaSet, mongodExecutables);
 		} else {
-			System.out.println("Will connect to an existing mongoDB at " + mongodbHost +":" + mongodbPort);
+			System.out.println("Will connect to an existing mongoDB at " + mongodbAddresses);
 		}
 
 		/*
@@ -637,7 +584,8 @@ public class OAuthStoreSampleFvtTest {
 		 * collections. We will use these to verify the data is being written to MongoDB
 		 * through the OAuthStore implementation.
 		 */
-		MongoDatabase mongoDb = getMongoDatabase(mongodbName, mongodbHost, mongodbPort, mongodbUser, mongodbPassword);
+		MongoDatabase mongoDb = getMongoDatabase(mongodbName, mongodbAddresses, mongodbReplicaSet, mongodbUser,
+				mongodbPassword);
 		clientCollection = mongoDb.getCollection(MONGO_OAUTH_CLIENT_TABLE);
 		consentCollection = mongoDb.getCollection(MONGO_OAUTH_CONSENT_TABLE);
 		tokenCollection = mongoDb.getCollection(MONGO_OAUTH_TOKEN_TABLE);
@@ -679,15 +627,15 @@ public class OAuthStoreSampleFvtTest {
 	 * verify that the OAuthStore implementation is writing the relevant data to
 	 * MongoDB.
 	 * 
-	 * @param mongodbName     The database name.
-	 * @param mongodbHost     The host.
-	 * @param mongodbPort     The port.
-	 * @param mongodbUser     The administrative user (can be null).
-	 * @param mongodbPassword The administrative user (can be null).
+	 * @param mongodbName       The database name.
+	 * @param mongodbAddresses  The hosts and ports.
+	 * @param mongodbReplicaSet The replica set name (can be null).
+	 * @param mongodbUser       The administrative user (can be null).
+	 * @param mongodbPassword   The administrative user (can be null).
 	 * @return The database connection.
 	 */
-	private static MongoDatabase getMongoDatabase(String mongodbName, String mongodbHost, int mongodbPort,
-			String mongodbUser, String mongodbPassword) {
+	private static MongoDatabase getMongoDatabase(String mongodbName, List<ServerAddress> mongodbAddresses,
+			String mongodbReplicaSet, String mongodbUser, String mongodbPassword) {
 
 		MongoClientSettings settings = null;
 		if (mongodbUser != null && mongodbPassword != null) {
@@ -696,13 +644,13 @@ public class OAuthStoreSampleFvtTest {
 			// Add any additional appropriate connection settings
 			settings = MongoClientSettings.builder().credential(credential)
 					.applyToClusterSettings(
-							builder -> builder.hosts(Arrays.asList(new ServerAddress(mongodbHost, mongodbPort))))
+							builder -> builder.hosts(mongodbAddresses).requiredReplicaSetName(mongodbReplicaSet))
 					.build();
 		} else {
 			// Add any additional appropriate connection settings
 			settings = MongoClientSettings.builder()
 					.applyToClusterSettings(
-							builder -> builder.hosts(Arrays.asList(new ServerAddress(mongodbHost, mongodbPort))))
+							builder -> builder.hosts(mongodbAddresses).requiredReplicaSetName(mongodbReplicaSet))
 					.build();
 		}
 
@@ -710,6 +658,70 @@ public class OAuthStoreSampleFvtTest {
 		return mongoClient.getDatabase(mongodbName);
 	}
 
+	/**
+	 * Start a local MongoDB instance at each address, and initiate a replica set
+	 * of them if a replica set name is given. Also used by OAuthLoadGenerator.
+	 * 
+	 * @param mongodbAddresses  The addresses to start the instances at.
+	 * @param mongodbReplicaSet The replica set name, or null.
+	 * @param started           The list to add the instances to, to stop them.
+	 * @throws IOException          If an instance could not be started.
+	 * @throws InterruptedException If interrupted while waiting for the election.
+	 */
+	static void startMongoDB(List<ServerAddress> mongodbAddresses, String mongodbReplicaSet,
+			List<MongodExecutable> started) throws IOException, InterruptedException {
+		MongodStarter starter = MongodStarter.getDefaultInstance();
+		for (ServerAddress address : mongodbAddresses) {
+			MongodConfigBuilder builder = new MongodConfigBuilder().version(Version.V3_6_5)
+					.net(new Net(address.getHost(), address.getPort(), Network.localhostIsIPv6()));
+			if (mongodbReplicaSet != null) {
+				builder.replication(new Storage(null, mongodbReplicaSet, 0));
+			}
+			MongodExecutable mongodExecutable = starter.prepare(builder.build());
+			started.add(mongodExecutable);
+			mongodExecutable.start();
+		}
+		if (mongodbReplicaSet != null) {
+			initiateReplicaSet(mongodbReplicaSet, mongodbAddresses);
+		}
+	}
+
+	/**
+	 * Initiate a replica set on the MongoDB instances started by this test, and
+	 * wait until the members have elected the first member as the primary.
+	 * 
+	 * @param mongodbReplicaSet The replica set name.
+	 * @param mongodbAddresses  The members of the replica set.
+	 * @throws InterruptedException If interrupted while waiting for the election.
+	 */
+	private static void initiateReplicaSet(String mongodbReplicaSet, List<ServerAddress> mongodbAddresses)
+			throws InterruptedException {
+		List<Document> members = new ArrayList<Document>();
+		for (int i = 0; i < mongodbAddresses.size(); i++) {
+			members.add(new Document("_id", i).append("host", mongodbAddresses.get(i).toString()).append("priority",
+					i == 0 ? 2 : 1));
+		}
+		Document config = new Document("_id", mongodbReplicaSet).append("members", members);
+
+		MongoClientSettings settings = MongoClientSettings.builder()
+				.applyToClusterSettings(builder -> builder.hosts(Arrays.asList(mongodbAddresses.get(0)))).build();
+		try (MongoClient client = MongoClients.create(settings)) {
+			MongoDatabase admin = client.getDatabase("admin");
+			admin.runCommand(new Document("replSetInitiate", config));
+			LOGGER.log(Level.INFO, "Initiated replica set " + mongodbReplicaSet + " with members " + mongodbAddresses);
+
+			long deadline = System.currentTimeMillis() + REPLICA_SET_ELECTION_TIMEOUT;
+			while (!Boolean.TRUE.equals(admin.runCommand(new Document("isMaster", 1)).getBoolean("ismaster"))) {
+				if (System.currentTimeMillis() > deadline) {
+					fail("Replica set " + mongodbReplicaSet + " did not elect a primary within "
+							+ REPLICA_SET_ELECTION_TIMEOUT + " ms");
+				}
+				Thread.sleep(500);
+			}
+			LOGGER.log(Level.INFO, mongodbAddresses.get(0) + " is the primary of replica set " + mongodbReplicaSet);
+		}
+	}
+
 	/**
 	 * Retrieve the MongoDB Document that contains the token data.
 	 * 
@@ -726,26 +738,6 @@ public class OAuthStoreSampleFvtTest {
 		return tokenCollection.find(queryDoc).limit(1).first();
 	}
 
-	/**
-	 * Create an {@link CloseableHttpClient} that trusts all HTTPS connections.
-	 * 
-	 * @return An HTTP client that trusts all HTTPS connections.
-	 * @throws KeyManagementException
-	 * @throws NoSuchAlgorithmException
-	 * @throws KeyStoreException
-	 */
-	private static CloseableHttpClient getTrustAllHttpClient()
-			throws KeyManagementException, NoSuchAlgorithmException, KeyStoreException {
-		final SSLContext sslContext = new SSLContextBuilder().loadTrustMaterial(null, (x509CertChain, authType) -> true)
-				.build();
-		return HttpClientBuilder.create().setSSLContext(sslContext)
-				.setConnectionManager(new PoolingHttpClientConnectionManager(RegistryBuilder
-						.<ConnectionSocketFactory>create().register("http", PlainConnectionSocketFactory.INSTANCE)
-						.register("https", new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE))
-						.build()))
-				.build();
-	}
-
 	/**
 	 * This test runs some HTTP requests against the OIDC provider to trigger calls
 	 * to the custom OAuthStore implementation. This test is not exhaustive and does
@@ -754,7 +746,6 @@ public class OAuthStoreSampleFvtTest {
 	 * 
 	 * @throws Exception If the test failed for some unforeseen reason.
 	 */
-	@SuppressWarnings("unchecked")
 	@Test
 	public void testCustomOauthStore() throws Exception {
 
@@ -768,13 +759,9 @@ public class OAuthStoreSampleFvtTest {
 		/*
 		 * Register the client.
 		 */
-		Executor executor = Executor.newInstance(getTrustAllHttpClient());
-		executor.execute(Request.Post(REGISTRATION_URI).addHeader("Content-Type", "application/json")
-				.addHeader("Authorization", "Basic " + CREDENTIALS_BASE64)
-				.bodyString("{\"client_id\":\"" + CLIENT_ID + "\",\"client_secret\":\"" + CLIENT_SECRET
-						+ "\",\"client_name\":\"" + CLIENT_NAME + "\",\"redirect_uris\":[\"" + REDIRECT_URI
-						+ "\"],\"scope\":\"ALL_SCOPES\"}", ContentType.DEFAULT_TEXT))
-				.handleResponse(new AssertResponseHandler(201));
+		OAuthFlow flow = new OAuthFlow(OP_HOST, OP_PORT);
+		assertEquals(201, flow.register(CLIENT_ID, CLIENT_SECRET, CLIENT_NAME).getStatus(),
+				"Unexpected HTTP response status.");
 
 		/*
 		 * Registration should have added a client entry.
@@ -787,42 +774,15 @@ public class OAuthStoreSampleFvtTest {
 		 * Send an request to the authorize endpoint. We will receive the consent form
 		 * in response.
 		 */
-		Collection<BasicNameValuePair> nvps = new HashSet<BasicNameValuePair>();
-		nvps.add(new BasicNameValuePair("auto", "true"));
-		nvps.add(new BasicNameValuePair("response_type", "code"));
-		nvps.add(new BasicNameValuePair("user_name", CLIENT_NAME));
-		nvps.add(new BasicNameValuePair("client_id", CLIENT_ID));
-		nvps.add(new BasicNameValuePair("redirect_uri", REDIRECT_URI));
-		nvps.add(new BasicNameValuePair("authorize_endpoint", AUTHORIZE_ENDPOINT));
-		nvps.add(new BasicNameValuePair("state", "abcdefg"));
-		nvps.add(new BasicNameValuePair("scope", "openid"));
-		nvps.add(new BasicNameValuePair("autoauthz", "true"));
-		String responseContent = executor.execute(Request.Post(AUTHORIZE_ENDPOINT).bodyForm(nvps))
-				.handleResponse(new AssertResponseHandler(200));
+		OAuthFlow.Response consentForm = flow.authorize(CLIENT_ID, CLIENT_NAME);
+		assertEquals(200, consentForm.getStatus(), "Unexpected HTTP response status.");
 
 		/*
 		 * Populate the consent form and submit the response.
 		 */
-		Pattern p = Pattern.compile(".+oauthFormData=(\\{.*\\}).+", Pattern.DOTALL);
-		Matcher m = p.matcher(responseContent);
-		assertTrue(m.matches(), "Did not find 'oauthFormData' in consent form.");
-		Map<String, Object> oauthFormData = gson.fromJson(m.group(1), map_of_string_object_type);
-		nvps = new HashSet<BasicNameValuePair>();
-		nvps.add(new BasicNameValuePair("consentNonce", (String) oauthFormData.get("consentNonce")));
-		nvps.add(new BasicNameValuePair("client_id", CLIENT_ID));
-		nvps.add(new BasicNameValuePair("response_type", "code"));
-		nvps.add(new BasicNameValuePair("state", "abcdefg"));
-		nvps.add(new BasicNameValuePair("scope", "openid"));
-		nvps.add(new BasicNameValuePair("prompt", "none")); // 'none' == allow, remember my decision
-		nvps.add(new BasicNameValuePair("redirect_uri", REDIRECT_URI));
-		Map<String, Object> extendedProperties = (Map<String, Object>) oauthFormData.get("extendedProperties");
-		nvps.add(new BasicNameValuePair("nonce", (String) extendedProperties.get("nonce")));
-//		nvps.add(new BasicNameValuePair("acr_values", (String) extendedProperties.get("acr_values")));
-		nvps.add(new BasicNameValuePair("response_mode", (String) extendedProperties.get("response_mode")));
-		nvps.add(new BasicNameValuePair("action", AUTHORIZE_ENDPOINT));
-		nvps.add(new BasicNameValuePair("method", "POST"));
-		executor.execute(Request.Post(AUTHORIZE_ENDPOINT).bodyForm(nvps))
-				.handleResponse(new AssertResponseHandler(302));
+		OAuthFlow.Response consent = flow.consent(CLIENT_ID, consentForm);
+		assertNotNull(consent, "Did not find 'oauthFormData' in consent form.");
+		assertEquals(302, consent.getStatus(), "Unexpected HTTP response status.");
 
 		/*
 		 * Submitting the consent form will have created entries for both a token and a
@@ -835,8 +795,7 @@ public class OAuthStoreSampleFvtTest {
 		/*
 		 * Delete the client.
 		 */
-		executor.execute(Request.Delete(REGISTRATION_URI + "/" + CLIENT_ID).addHeader("Authorization",
-				"Basic " + CREDENTIALS_BASE64)).handleResponse(new AssertResponseHandler(204));
+		assertEquals(204, flow.deleteClient(CLIENT_ID).getStatus(), "Unexpected HTTP response status.");
 		assertClientDataNotInMongo();
 
 		/*
@@ -847,31 +806,4 @@ public class OAuthStoreSampleFvtTest {
 		assertTokenDataNotInMongo();
 		assertConsentDataNotInMongo();
 	}
-
-	/**
-	 * Simple response handler to return the content and make assertions on the
-	 * return code.
-	 */
-	class AssertResponseHandler implements ResponseHandler<String> {
-
-		final int expectedStatus;
-		String content = null;
-
-		AssertResponseHandler(int expectedResponse) {
-			this.expectedStatus = expectedResponse;
-		}
-
-		@Override
-		public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
-
-			assertEquals(expectedStatus, response.getStatusLine().getStatusCode(), "Unexpected HTTP response status.");
-
-			HttpEntity responseEntity = response.getEntity();
-			if (responseEntity != null) {
-				content = EntityUtils.toString(responseEntity);
-			}
-
-			return content;
-		}
-	}
 }
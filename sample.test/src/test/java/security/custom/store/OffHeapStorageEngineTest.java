@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+
+/**
+ * Runs the StorageEngineTest against the OffHeapStorageEngine, and tests that the token
+ * store reuses the room freed by compaction when all its slabs are allocated.
+ */
+public class OffHeapStorageEngineTest extends StorageEngineTest {
+
+	private static final int SLAB_SIZE = 4096;
+	private static final int SLABS = 4;
+
+	@Override
+	StorageEngine createEngine() {
+		return new OffHeapStorageEngine(SLAB_SIZE, SLAB_SIZE * SLABS);
+	}
+
+	@Test
+	void fullStoreThrows() throws Exception {
+		long expires = System.currentTimeMillis() + HOUR;
+		int count = fill(i -> expires);
+		assertThrows(OAuthStoreException.class,
+				() -> engine.create(newToken(PROVIDER_ID, lookupKey(count), "user1", "client01", expires)));
+
+		// Replacing a token marks its old record dead, compaction makes room for the new one
+		engine.update(newToken(PROVIDER_ID, lookupKey(0), "user2", "client01", expires + HOUR));
+		assertEquals(expires + HOUR, engine.readToken(PROVIDER_ID, lookupKey(0)).getExpires());
+		assertEquals(count - 1, engine.countTokens(PROVIDER_ID, "user1", "client01"));
+	}
+
+	@Test
+	void reusesRoomAfterExpiry() throws Exception {
+		long now = System.currentTimeMillis();
+		int perSlab = fill(i -> now + HOUR) / SLABS;
+		engine.close();
+		engine = createEngine();
+
+		// Three of every four tokens of all but the last slab expire, so deleteTokens compacts
+		// those slabs but leaves the full last slab as it is
+		int expiring = (SLABS - 1) * perSlab;
+		int count = fill(i -> i < expiring && i % 4 != 0 ? now - HOUR : now + HOUR);
+		assertEquals(SLABS * perSlab, count);
+		engine.deleteTokens(PROVIDER_ID, now);
+
+		int created = expiring / 2;
+		for (int i = count; i < count + created; i++) {
+			engine.create(newToken(PROVIDER_ID, lookupKey(i), "user1", "client01", now + HOUR));
+		}
+		int live = 0;
+		for (int i = 0; i < count + created; i++) {
+			if (i < expiring && i % 4 != 0) {
+				assertNull(engine.readToken(PROVIDER_ID, lookupKey(i)));
+			} else {
+				live++;
+				assertNotNull(engine.readToken(PROVIDER_ID, lookupKey(i)), lookupKey(i));
+				assertEquals(lookupKey(i) + " string", engine.readToken(PROVIDER_ID, lookupKey(i)).getTokenString());
+			}
+		}
+		assertEquals(live, engine.countTokens(PROVIDER_ID, "user1", "client01"));
+	}
+
+	/**
+	 * Create tokens of user1 until the store is full.
+	 * @return The number of tokens created.
+	 */
+	private int fill(ExpiryFunction expiry) throws Exception {
+		for (int i = 0;; i++) {
+			try {
+				engine.create(newToken(PROVIDER_ID, lookupKey(i), "user1", "client01", expiry.expires(i)));
+			} catch (OAuthStoreException e) {
+				return i;
+			}
+		}
+	}
+
+	private static String lookupKey(int i) {
+		return String.format("token%05d", i);
+	}
+
+	private interface ExpiryFunction {
+		long expires(int i);
+	}
+}
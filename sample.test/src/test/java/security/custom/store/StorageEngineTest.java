@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Collection;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * The create, read, update and delete tests that every StorageEngine must pass. A subclass
+ * runs them against one engine, and can reopen the engine to test what it persists.
+ */
+public abstract class StorageEngineTest {
+
+	static final String PROVIDER_ID = "OAuthConfigSample";
+	static final String OTHER_PROVIDER_ID = "OAuthConfigOther";
+	static final long HOUR = 60 * 60 * 1000;
+
+	StorageEngine engine;
+
+	/**
+	 * @return A new, empty engine.
+	 */
+	abstract StorageEngine createEngine() throws Exception;
+
+	/**
+	 * Close the engine and open it again on what it persisted. Engines that do not persist
+	 * their entries keep the engine open.
+	 */
+	void reopen() throws Exception {
+	}
+
+	@BeforeEach
+	void openEngine() throws Exception {
+		engine = createEngine();
+	}
+
+	@AfterEach
+	void closeEngine() {
+		if (engine != null) {
+			engine.close();
+		}
+	}
+
+	@Test
+	void clientCrud() throws Exception {
+		engine.create(newClient(PROVIDER_ID, "client01", "Client 01"));
+		engine.create(newClient(PROVIDER_ID, "client02", "Client 02"));
+		engine.create(newClient(OTHER_PROVIDER_ID, "client01", "Other 01"));
+		reopen();
+
+		assertEquals("Client 01", engine.readClient(PROVIDER_ID, "client01").getDisplayName());
+		assertEquals("Other 01", engine.readClient(OTHER_PROVIDER_ID, "client01").getDisplayName());
+		assertNull(engine.readClient(PROVIDER_ID, "client03"));
+		assertEquals(2, engine.readAllClients(PROVIDER_ID, null).size());
+
+		engine.update(newClient(PROVIDER_ID, "client01", "Client 01 renamed"));
+		engine.update(newClient(PROVIDER_ID, "client03", "Never created"));
+		reopen();
+		assertEquals("Client 01 renamed", engine.readClient(PROVIDER_ID, "client01").getDisplayName());
+		assertNull(engine.readClient(PROVIDER_ID, "client03"));
+
+		engine.deleteClient(PROVIDER_ID, "client01");
+		reopen();
+		assertNull(engine.readClient(PROVIDER_ID, "client01"));
+		assertNotNull(engine.readClient(PROVIDER_ID, "client02"));
+		assertNotNull(engine.readClient(OTHER_PROVIDER_ID, "client01"));
+	}
+
+	@Test
+	void tokenCrud() throws Exception {
+		long expires = System.currentTimeMillis() + HOUR;
+		engine.create(newToken(PROVIDER_ID, "token01", "user1", "client01", expires));
+		engine.create(newToken(PROVIDER_ID, "token02", "user1", "client01", expires));
+		engine.create(newToken(PROVIDER_ID, "token03", "user1", "client02", expires));
+		engine.create(newToken(PROVIDER_ID, "token04", "user2", "client01", expires));
+		engine.create(newToken(OTHER_PROVIDER_ID, "token01", "user1", "client01", expires));
+		reopen();
+
+		OAuthToken token = engine.readToken(PROVIDER_ID, "token01");
+		assertNotNull(token);
+		assertEquals("user1", token.getUsername());
+		assertEquals(expires, token.getExpires());
+		assertEquals("token01 string", token.getTokenString());
+		assertNull(engine.readToken(PROVIDER_ID, "token05"));
+		assertEquals(3, engine.readAllTokens(PROVIDER_ID, "user1").size());
+		assertEquals(2, engine.countTokens(PROVIDER_ID, "user1", "client01"));
+		assertEquals(0, engine.countTokens(PROVIDER_ID, "user3", "client01"));
+
+		engine.update(newToken(PROVIDER_ID, "token02", "user2", "client01", expires + HOUR));
+		reopen();
+		assertEquals(expires + HOUR, engine.readToken(PROVIDER_ID, "token02").getExpires());
+		assertEquals(2, engine.readAllTokens(PROVIDER_ID, "user1").size());
+		assertEquals(2, engine.readAllTokens(PROVIDER_ID, "user2").size());
+
+		engine.deleteToken(PROVIDER_ID, "token01");
+		reopen();
+		assertNull(engine.readToken(PROVIDER_ID, "token01"));
+		assertNotNull(engine.readToken(OTHER_PROVIDER_ID, "token01"));
+		Collection<OAuthToken> tokens = engine.readAllTokens(PROVIDER_ID, "user1");
+		assertEquals(1, tokens.size());
+		assertEquals("token03", tokens.iterator().next().getLookupKey());
+	}
+
+	@Test
+	void deleteExpiredTokens() throws Exception {
+		long now = System.currentTimeMillis();
+		engine.create(newToken(PROVIDER_ID, "expired01", "user1", "client01", now - HOUR));
+		engine.create(newToken(PROVIDER_ID, "expired02", "user1", "client01", now - 1));
+		engine.create(newToken(PROVIDER_ID, "valid01", "user1", "client01", now + HOUR));
+		engine.create(newToken(PROVIDER_ID, "renewed01", "user1", "client01", now - HOUR));
+		engine.update(newToken(PROVIDER_ID, "renewed01", "user1", "client01", now + HOUR));
+		engine.create(newToken(OTHER_PROVIDER_ID, "expired01", "user1", "client01", now - HOUR));
+
+		engine.deleteTokens(PROVIDER_ID, now);
+		reopen();
+
+		assertNull(engine.readToken(PROVIDER_ID, "expired01"));
+		assertNull(engine.readToken(PROVIDER_ID, "expired02"));
+		assertNotNull(engine.readToken(PROVIDER_ID, "valid01"));
+		assertNotNull(engine.readToken(PROVIDER_ID, "renewed01"));
+		assertNotNull(engine.readToken(OTHER_PROVIDER_ID, "expired01"));
+		assertEquals(2, engine.countTokens(PROVIDER_ID, "user1", "client01"));
+
+		engine.deleteTokens(PROVIDER_ID, now + 2 * HOUR);
+		assertNull(engine.readToken(PROVIDER_ID, "valid01"));
+		assertNull(engine.readAllTokens(PROVIDER_ID, "user1"));
+	}
+
+	@Test
+	void consentCrud() throws Exception {
+		long now = System.currentTimeMillis();
+		engine.create(newConsent(PROVIDER_ID, "user1", "client01", "resource1", "openid", now + HOUR));
+		engine.create(newConsent(PROVIDER_ID, "user1", "client01", "resource2", "openid", now - HOUR));
+		reopen();
+
+		assertEquals("openid", engine.readConsent(PROVIDER_ID, "user1", "client01", "resource1").getScope());
+		assertNull(engine.readConsent(PROVIDER_ID, "user2", "client01", "resource1"));
+
+		engine.update(newConsent(PROVIDER_ID, "user1", "client01", "resource1", "openid profile", now + HOUR));
+		reopen();
+		assertEquals("openid profile", engine.readConsent(PROVIDER_ID, "user1", "client01", "resource1").getScope());
+
+		engine.deleteConsents(PROVIDER_ID, now);
+		reopen();
+		assertNotNull(engine.readConsent(PROVIDER_ID, "user1", "client01", "resource1"));
+		assertNull(engine.readConsent(PROVIDER_ID, "user1", "client01", "resource2"));
+
+		engine.deleteConsent(PROVIDER_ID, "user1", "client01", "resource1");
+		reopen();
+		assertNull(engine.readConsent(PROVIDER_ID, "user1", "client01", "resource1"));
+	}
+
+	@Test
+	void keyFieldsDoNotRunTogether() throws Exception {
+		long now = System.currentTimeMillis();
+		engine.create(newConsent(PROVIDER_ID, "user1\u0000client01", "resource1", "resource2", "openid", now + HOUR));
+		engine.create(newConsent(PROVIDER_ID, "user1", "client01\u0000resource1", "resource2", "profile", now + HOUR));
+		reopen();
+
+		assertEquals("openid", engine.readConsent(PROVIDER_ID, "user1\u0000client01", "resource1", "resource2").getScope());
+		assertEquals("profile", engine.readConsent(PROVIDER_ID, "user1", "client01\u0000resource1", "resource2").getScope());
+	}
+
+	static OAuthClient newClient(String providerId, String clientId, String displayName) {
+		return new OAuthClient(providerId, clientId, "secret", displayName, true,
+				"{\"client_id\":\"" + clientId + "\",\"scope\":\"openid\"}");
+	}
+
+	static OAuthToken newToken(String providerId, String lookupKey, String username, String clientId, long expires) {
+		return new OAuthToken(lookupKey, lookupKey, providerId, "authorization_grant", "refresh_token", expires - HOUR,
+				3600, expires, lookupKey + " string", clientId, username, "openid",
+				"https://localhost:8443/oauthclient/redirect.jsp", "", "{\"grant_type\":[\"authorization_code\"]}");
+	}
+
+	static OAuthConsent newConsent(String providerId, String username, String clientId, String resource, String scope,
+			long expires) {
+		return new OAuthConsent(clientId, username, scope, resource, providerId, expires, "{}");
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the TokenFilter against keys held in a map in place of the database.
+ */
+public class TokenFilterTest {
+
+	private static final String PROVIDER_ID = "OAuthConfigSample";
+	private static final String OTHER_PROVIDER_ID = "OAuthConfigOther";
+
+	private final Map<String, Set<String>> stored = new ConcurrentHashMap<String, Set<String>>();
+	private volatile long scanPauseMillis = 0;
+	private volatile long insertPauseMillis = 0;
+	private TokenFilter filter;
+
+	@BeforeEach
+	void createFilter() throws Exception {
+		filter = new TokenFilter(this::scan);
+		awaitRebuilds(1);
+		assertTrue(filter.isReady());
+	}
+
+	@AfterEach
+	void closeFilter() {
+		filter.close();
+	}
+
+	/**
+	 * Lists the stored keys like a database query: the keys are read first and reported
+	 * after a pause, in which more keys can be stored.
+	 */
+	private void scan(String providerId, BiConsumer<String, String> keys) throws Exception {
+		List<String[]> found = new ArrayList<String[]>();
+		for (Map.Entry<String, Set<String>> entry : stored.entrySet()) {
+			if (providerId == null || providerId.equals(entry.getKey())) {
+				for (String lookupKey : entry.getValue()) {
+					found.add(new String[] { entry.getKey(), lookupKey });
+				}
+			}
+		}
+		if (scanPauseMillis > 0) {
+			Thread.sleep(scanPauseMillis);
+		}
+		for (String[] key : found) {
+			keys.accept(key[0], key[1]);
+		}
+	}
+
+	/**
+	 * Create a token the way MongoStorageEngine does, with a pause for the insert.
+	 */
+	private void create(String providerId, String lookupKey) throws InterruptedException {
+		long rebuilds = filter.add(providerId, lookupKey);
+		if (insertPauseMillis > 0) {
+			Thread.sleep(insertPauseMillis);
+		}
+		stored.computeIfAbsent(providerId, id -> ConcurrentHashMap.newKeySet()).add(lookupKey);
+		filter.confirm(providerId, lookupKey, rebuilds);
+	}
+
+	private void awaitRebuilds(long count) throws InterruptedException {
+		for (int i = 0; i < 1000 && filter.getRebuildCount() < count; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, filter.getRebuildCount());
+	}
+
+	@Test
+	void addAndRemove() throws Exception {
+		for (int i = 0; i < 1000; i++) {
+			create(PROVIDER_ID, "token" + i);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain(PROVIDER_ID, "token" + i));
+		}
+		assertFalse(filter.mightContain(OTHER_PROVIDER_ID, "token0"));
+		assertEquals(1000, filter.getCount());
+
+		int passed = 0;
+		for (int i = 0; i < 500; i++) {
+			filter.remove(PROVIDER_ID, "token" + i);
+			if (filter.mightContain(PROVIDER_ID, "token" + i)) {
+				passed++;
+			}
+		}
+		for (int i = 500; i < 1000; i++) {
+			assertTrue(filter.mightContain(PROVIDER_ID, "token" + i));
+		}
+		// Only a removed key that shares a fingerprint and bucket with another key still passes
+		assertTrue(passed < 5, passed + " removed keys passed");
+	}
+
+	@Test
+	void growsWithoutFalseNegatives() throws Exception {
+		for (int i = 0; i < 100000; i++) {
+			create(PROVIDER_ID, "token" + i);
+		}
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.mightContain(PROVIDER_ID, "token" + i));
+		}
+		int passed = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (filter.mightContain(PROVIDER_ID, "absent" + i)) {
+				passed++;
+			}
+		}
+		assertTrue(passed < 100000 * filter.getExpectedFalsePositiveRate() * 2 + 10, passed + " absent keys passed");
+	}
+
+	@Test
+	void rebuildDropsKeysThatAreNotStored() throws Exception {
+		create(PROVIDER_ID, "stored");
+		create(OTHER_PROVIDER_ID, "other");
+		filter.add(PROVIDER_ID, "failed"); // As if the insert failed
+		assertTrue(filter.mightContain(PROVIDER_ID, "failed"));
+
+		filter.rebuildLater(PROVIDER_ID);
+		awaitRebuilds(2);
+		assertFalse(filter.mightContain(PROVIDER_ID, "failed"));
+		assertTrue(filter.mightContain(PROVIDER_ID, "stored"));
+		assertTrue(filter.mightContain(OTHER_PROVIDER_ID, "other"));
+	}
+
+	@Test
+	void noFalseNegativesWhileRebuilding() throws Exception {
+		scanPauseMillis = 2;
+		insertPauseMillis = 1;
+		AtomicBoolean creating = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<Integer> rebuilder = executor.submit(() -> {
+				int requested = 0;
+				while (creating.get()) {
+					filter.rebuildLater(requested % 2 == 0 ? PROVIDER_ID : null);
+					requested++;
+					awaitRebuilds(1 + requested);
+				}
+				return requested;
+			});
+			List<Future<?>> creators = new ArrayList<Future<?>>();
+			for (int t = 0; t < 3; t++) {
+				String prefix = "thread" + t + "-";
+				creators.add(executor.submit(() -> {
+					for (int i = 0; i < 500; i++) {
+						String lookupKey = prefix + i;
+						create(PROVIDER_ID, lookupKey);
+						if (!filter.mightContain(PROVIDER_ID, lookupKey)) {
+							throw new AssertionError("The filter skips the created token " + lookupKey);
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> creator : creators) {
+				creator.get();
+			}
+			creating.set(false);
+			assertTrue(rebuilder.get() > 0);
+		} finally {
+			creating.set(false);
+			executor.shutdownNow();
+		}
+
+		for (String lookupKey : stored.get(PROVIDER_ID)) {
+			assertTrue(filter.mightContain(PROVIDER_ID, lookupKey), lookupKey);
+		}
+		assertEquals(1500, stored.get(PROVIDER_ID).size());
+	}
+}
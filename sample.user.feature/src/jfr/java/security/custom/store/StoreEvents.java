@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package security.custom.store;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.ServerAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the store, so that the time spent in the store and in
+ * database round trips can be read next to the garbage collection and thread events of
+ * the same recording.
+ * </p>
+ * An OperationEvent is committed for each OAuthStore call, and a CommandEvent for each
+ * command the MongoDB driver sends. Like the JDK events, they are only committed when
+ * enabled in the recording and longer than their threshold, 10 ms by default. Change
+ * the thresholds in the recording settings, for example in a .jfc file:
+ * <pre>
+ * &lt;event name="security.custom.store.Operation"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;1 ms&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre>
+ * This class needs the jdk.jfr API. It is in the jfr source set, which the build only
+ * compiles with a JDK that has the API, and StoreCall only loads it, as its RECORDER, when
+ * the JVM has the API too.
+ */
+final class StoreEvents implements StoreRecorder {
+
+	private static final String CATEGORY = "OAuth Store";
+
+	private static final EventType OPERATION_TYPE = EventType.getEventType(OperationEvent.class);
+	private static final EventType COMMAND_TYPE = EventType.getEventType(CommandEvent.class);
+
+	// The command events in progress, by request ID
+	private static final Map<Integer, CommandEvent> commands = new ConcurrentHashMap<Integer, CommandEvent>();
+
+	StoreEvents() {
+	}
+
+	@Name("security.custom.store.Operation")
+	@Label("OAuth Store Operation")
+	@Category(CATEGORY)
+	@Description("A call to an OAuthStore method of the custom store")
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static class OperationEvent extends Event {
+		@Label("Store")
+		String store;
+
+		@Label("Operation")
+		@Description("The OAuthStore method")
+		String operation;
+
+		@Label("Provider ID")
+		String providerId;
+
+		@Label("Key Hash")
+		@Description("A hash of the client ID, lookup key or user name the call is for")
+		String keyHash;
+
+		@Label("Documents")
+		@Description("The documents the database commands of the call returned or changed, or else the entries the call read")
+		long documents;
+
+		@Label("Database Commands")
+		@Description("The database commands the call sent from its thread")
+		int commands;
+
+		@Label("Cached")
+		@Description("Whether a read was answered without a database command, by a cache or the token filter")
+		boolean cached;
+
+		@Label("Failed")
+		boolean failed;
+	}
+
+	@Name("security.custom.store.DatabaseCommand")
+	@Label("OAuth Store Database Command")
+	@Category(CATEGORY)
+	@Description("A command the MongoDB driver of the custom store sent")
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static class CommandEvent extends Event {
+		@Label("Command")
+		String commandName;
+
+		@Label("Database")
+		String databaseName;
+
+		@Label("Server")
+		String server;
+
+		@Label("Operation")
+		@Description("The OAuthStore method that sent the command, if it was sent from the thread of the call")
+		String operation;
+
+		@Label("Documents")
+		@Description("The documents the command returned or changed")
+		int documents;
+
+		@Label("Failed")
+		boolean failed;
+	}
+
+	/**
+	 * @return A begun OperationEvent, or null when the event is not enabled.
+	 */
+	@Override
+	public Object beginOperation() {
+		if (!OPERATION_TYPE.isEnabled()) {
+			return null;
+		}
+		OperationEvent event = new OperationEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void commitOperation(StoreCall call, String storeId, String providerId, String key, int resultSize,
+			boolean database, boolean failed) {
+		OperationEvent event = (OperationEvent) call.event;
+		event.end();
+		if (event.shouldCommit()) {
+			event.store = storeId;
+			event.operation = call.operation.getMethodName();
+			event.providerId = providerId;
+			event.keyHash = key == null ? null : hash(key);
+			event.commands = call.commands;
+			event.documents = call.commands > 0 ? call.documents : Math.max(resultSize, 0);
+			event.cached = database && resultSize >= 0 && call.commands == 0 && !failed;
+			event.failed = failed;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void beginCommand(int requestId, String databaseName) {
+		if (COMMAND_TYPE.isEnabled()) {
+			CommandEvent event = new CommandEvent();
+			event.databaseName = databaseName;
+			event.begin();
+			commands.put(requestId, event);
+		}
+	}
+
+	@Override
+	public void commitCommand(int requestId, String commandName, ServerAddress server, StoreCall call,
+			int documents, boolean failed) {
+		CommandEvent event = commands.remove(requestId);
+		if (event != null) {
+			event.end();
+			if (event.shouldCommit()) {
+				event.commandName = commandName;
+				event.server = server.toString();
+				event.operation = call == null ? null : call.operation.getMethodName();
+				event.documents = documents;
+				event.failed = failed;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Helper method to hash a key, so that the events do not hold client IDs, token lookup
+	 * keys or user names, but the calls for the same key can still be matched.
+	 */
+	private static String hash(String key) {
+		long h = 0xcbf29ce484222325L; // FNV-1a
+		for (int i = 0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return String.format("%016x", h);
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+
+/**
+ * Base class for the codecs that convert the OAuthStore objects directly to and from
+ * BSON, without building an intermediate Document.
+ * </p>
+ * The codecs write the same fields, with the same names and BSON types, as the Document
+ * mapping of the CustomStoreSample, so documents written either way can be read either
+ * way. Fields the codecs do not know, like _id, are skipped when decoding. The client and
+ * token codecs also write a DIGEST field, which MongoStorageEngine.updateChangedFields uses to
+ * tell whether a document still holds the object it cached.
+ *
+ * @param <T> The OAuthStore object type.
+ */
+public abstract class AbstractStoreCodec<T> implements Codec<T> {
+
+	/**
+	 * Write a string field, or a null value if the string is null.
+	 */
+	protected static void writeString(BsonWriter writer, String name, String value) {
+		if (value == null) {
+			writer.writeNull(name);
+		} else {
+			writer.writeString(name, value);
+		}
+	}
+
+	/**
+	 * Compute the value of the DIGEST field, a 64 bit FNV-1a hash of the values of the other
+	 * fields. Each value is preceded by its length, or -1 for null, so that two values can not
+	 * run together into the same input.
+	 */
+	protected static long digest(Object... values) {
+		long hash = 0xcbf29ce484222325L;
+		for (Object value : values) {
+			String s = value == null ? null : value.toString();
+			hash = (hash ^ (s == null ? -1 : s.length())) * 0x100000001b3L;
+			if (s != null) {
+				for (int i = 0; i < s.length(); i++) {
+					hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Read a string value, mapping a BSON null to null.
+	 */
+	protected static String readString(BsonReader reader) {
+		if (reader.getCurrentBsonType() == BsonType.NULL) {
+			reader.readNull();
+			return null;
+		}
+		return reader.readString();
+	}
+
+	/**
+	 * Read a numeric value as a long. Documents written by other tools may hold a number as
+	 * an int32, an int64 or a double.
+	 */
+	protected static long readLong(BsonReader reader) {
+		switch (reader.getCurrentBsonType()) {
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case DOUBLE:
+			return (long) reader.readDouble();
+		default:
+			reader.skipValue();
+			return 0;
+		}
+	}
+
+	/**
+	 * Read a numeric value as an int.
+	 */
+	protected static int readInt(BsonReader reader) {
+		return (int) readLong(reader);
+	}
+
+	/**
+	 * Read a boolean value, mapping a missing or non boolean value to the default.
+	 */
+	protected static boolean readBoolean(BsonReader reader, boolean defaultValue) {
+		if (reader.getCurrentBsonType() == BsonType.BOOLEAN) {
+			return reader.readBoolean();
+		}
+		reader.skipValue();
+		return defaultValue;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+/**
+ * A CompletionStage based view of the store collections, built on the Reactive Streams
+ * MongoDB driver. No thread waits while an operation is on the network; the returned
+ * stage completes on a driver thread when the server replies.
+ * </p>
+ * The OAuthStore interface is synchronous, so a Liberty thread has to wait for the
+ * result of a read whichever driver is used. This engine is therefore used for the
+ * operations whose result the caller does not wait for: the expired entry cleanup and
+ * the batches of the token writer. Code that completes the returned stages must not
+ * block, as it runs on a driver thread.
+ */
+public class AsyncMongoDBEngine {
+
+	private final MongoDatabase db;
+
+	/**
+	 * @param db The database, obtained from MongoDBHelper.getAsyncDB(). Its codec registry must hold
+	 * a codec for every document class passed to bulkWrite.
+	 */
+	public AsyncMongoDBEngine(MongoDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * Run a bulk write on a collection.
+	 * @param collectionName
+	 * @param documentClass The class the documents of the writes are encoded from.
+	 * @param models The writes to run.
+	 * @param options
+	 * @param writeConcern
+	 * @return A stage that completes with the result of the bulk write.
+	 */
+	public <T> CompletionStage<BulkWriteResult> bulkWrite(String collectionName, Class<T> documentClass,
+			List<? extends WriteModel<T>> models, BulkWriteOptions options, WriteConcern writeConcern) {
+		return first(db.getCollection(collectionName, documentClass).withWriteConcern(writeConcern).bulkWrite(models, options));
+	}
+
+	/**
+	 * Delete the documents that match a filter.
+	 * @param collectionName
+	 * @param filter
+	 * @return A stage that completes with the number of deleted documents.
+	 */
+	public CompletionStage<Long> deleteMany(String collectionName, Bson filter) {
+		return first(getCollection(collectionName).deleteMany(filter)).thenApply(DeleteResult::getDeletedCount);
+	}
+
+	/**
+	 * Unwrap the exception a dependent stage completed with.
+	 * @param t
+	 * @return The cause of a CompletionException, otherwise t.
+	 */
+	public static Throwable unwrap(Throwable t) {
+		return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+	}
+
+	private MongoCollection<Document> getCollection(String collectionName) {
+		return db.getCollection(collectionName);
+	}
+
+	/**
+	 * Subscribe to a publisher of a single result.
+	 * @param publisher
+	 * @return A stage that completes with the first result, or null if the publisher completes without one.
+	 */
+	private static <T> CompletionStage<T> first(Publisher<T> publisher) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		publisher.subscribe(new Subscriber<T>() {
+			@Override
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(T value) {
+				result.complete(value);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				result.completeExceptionally(t);
+			}
+
+			@Override
+			public void onComplete() {
+				result.complete(null);
+			}
+		});
+		return result;
+	}
+}
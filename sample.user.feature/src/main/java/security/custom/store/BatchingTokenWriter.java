@@ -0,0 +1,361 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+
+/**
+ * Coalesces the token inserts of concurrent create(OAuthToken) calls into unordered
+ * bulk writes.
+ * </p>
+ * A single background thread takes the first queued token, then waits at most the
+ * linger time for more tokens to join the batch, up to the maximum batch size, and
+ * writes the batch with one bulkWrite call.
+ * </p>
+ * When waiting for acknowledgement, the calling thread blocks until its batch has been
+ * written and gets the failure of its own insert, if any. Otherwise the calling thread
+ * returns as soon as the token is queued. The queue is bounded; when it is full the
+ * token is inserted directly by the calling thread, so a slow database turns into
+ * back pressure instead of an unbounded backlog. Queued tokens are kept in a pending
+ * map so they can be read, and waited for, before they reach the database.
+ * </p>
+ * With an AsyncMongoDBEngine, the background thread does not wait for a batch to be
+ * acknowledged before it starts the next one. Up to MAX_IN_FLIGHT batches can be on
+ * the network at the same time.
+ * </p>
+ * A caller waits at most WAIT_SECONDS for its batch. Tokens still queued when close
+ * stops the background thread are written by close, and tokens inserted after that
+ * are inserted directly.
+ * </p>
+ * A batch mixes tokens of all types, so it is written with the write concern of the
+ * collection. The write concerns the ConcernPolicy sets per token type do not apply.
+ */
+public class BatchingTokenWriter implements Runnable {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(BatchingTokenWriter.class.getName());
+
+	private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+	private static final int MAX_IN_FLIGHT = 4;
+	private static final long WAIT_SECONDS = 30;
+
+	private final MongoCollection<OAuthToken> col;
+	private final AsyncMongoDBEngine asyncEngine;
+	private final CausalSessions causalSessions;
+	private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+	private final int maxBatchSize;
+	private final long lingerNanos;
+	private final boolean waitForAck;
+
+	private final BlockingQueue<PendingInsert> queue;
+	private final Map<String, PendingInsert> pending = new ConcurrentHashMap<String, PendingInsert>();
+	private final Thread worker;
+	// Held for read while a token is queued and for write while closing, so no token is queued after the last drain
+	private final ReadWriteLock closing = new ReentrantReadWriteLock();
+	private volatile boolean closed = false;
+
+	/**
+	 * A token waiting to be written.
+	 */
+	private static final class PendingInsert {
+		final String key;
+		final OAuthToken token;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		PendingInsert(String key, OAuthToken token) {
+			this.key = key;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * Create the writer and start its background thread.
+	 * @param col The collection to write the tokens to, encoding them with the OAuthTokenCodec.
+	 * @param asyncEngine The engine to write the batches with, or null to write them with the collection.
+	 * @param causalSessions The sessions to record the batches written with the collection in, or null.
+	 * Batches written with the asynchronous engine are not recorded.
+	 * @param maxBatchSize The maximum number of tokens in one bulk write.
+	 * @param lingerMillis The longest time a token waits for more tokens to join its batch.
+	 * @param queueSize The maximum number of tokens waiting to be written.
+	 * @param waitForAck true if callers wait for their batch to be acknowledged.
+	 */
+	public BatchingTokenWriter(MongoCollection<OAuthToken> col, AsyncMongoDBEngine asyncEngine, CausalSessions causalSessions,
+			int maxBatchSize, long lingerMillis, int queueSize, boolean waitForAck) {
+		this.col = col;
+		this.asyncEngine = asyncEngine;
+		this.causalSessions = causalSessions;
+		this.maxBatchSize = Math.max(maxBatchSize, 1);
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(lingerMillis, 0));
+		this.waitForAck = waitForAck;
+		this.queue = new ArrayBlockingQueue<PendingInsert>(Math.max(queueSize, 1));
+		this.worker = new Thread(this, "CustomStoreSample token writer");
+		this.worker.setDaemon(true);
+		this.worker.start();
+		LOGGER.log(Level.INFO, "Started the token writer: maxBatchSize=" + this.maxBatchSize + ", lingerMillis="
+				+ lingerMillis + ", queueSize=" + queueSize + ", waitForAck=" + waitForAck + ", async=" + (asyncEngine != null));
+	}
+
+	/**
+	 * Insert a token.
+	 * @param key The cache key of the token, used to find pending tokens.
+	 * @param token The token.
+	 * @throws Exception If the insert failed. Only reported when waiting for acknowledgement
+	 * or when the token was inserted directly. A TimeoutException if the batch was not
+	 * acknowledged in WAIT_SECONDS, the token may still be written.
+	 */
+	public void insert(String key, OAuthToken token) throws Exception {
+		PendingInsert insert = new PendingInsert(key, token);
+		boolean queued = false;
+		closing.readLock().lock();
+		try {
+			if (!closed) {
+				if (waitForAck) {
+					// Offered with a timeout, the write lock of close waits for this read lock
+					queued = queue.offer(insert, WAIT_SECONDS, TimeUnit.SECONDS);
+				} else {
+					pending.put(key, insert);
+					queued = queue.offer(insert);
+					if (!queued) {
+						pending.remove(key, insert);
+						LOGGER.log(Level.FINEST, "The token writer queue is full, inserting the token directly");
+					}
+				}
+			}
+		} finally {
+			closing.readLock().unlock();
+		}
+
+		if (!queued) {
+			col.insertOne(token);
+		} else if (waitForAck) {
+			try {
+				insert.done.get(WAIT_SECONDS, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+	}
+
+	/**
+	 * Get a token that has been queued but not yet written.
+	 * @param key The cache key of the token.
+	 * @return The token, or null if there is no pending token for the key.
+	 */
+	public OAuthToken getPending(String key) {
+		PendingInsert insert = pending.get(key);
+		return insert == null ? null : insert.token;
+	}
+
+	/**
+	 * Wait, at most WAIT_SECONDS, until a pending token has been written, so an update or
+	 * delete of the token is not overtaken by its insert.
+	 * @param key The cache key of the token.
+	 */
+	public void awaitPending(String key) {
+		PendingInsert insert = pending.get(key);
+		if (insert != null) {
+			try {
+				insert.done.get(WAIT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// Already logged by the writer thread.
+			} catch (TimeoutException e) {
+				LOGGER.log(Level.WARNING, "The pending OAuthToken for " + insert.token.getClientId() + " under "
+						+ insert.token.getProviderId() + " was not written in " + WAIT_SECONDS + " seconds");
+			}
+		}
+	}
+
+	/**
+	 * @return The number of tokens waiting to be written.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public void run() {
+		List<PendingInsert> batch = new ArrayList<PendingInsert>(maxBatchSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				PendingInsert first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < maxBatchSize) {
+					PendingInsert next = queue.poll(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				write(batch);
+			} catch (InterruptedException e) {
+				LOGGER.log(Level.FINEST, "The token writer was interrupted");
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of tokens and complete the callers of the tokens.
+	 * @param batch The batch, it is reused by the caller once this method returns.
+	 * @throws InterruptedException If interrupted while waiting for an in-flight batch to complete.
+	 */
+	private void write(List<PendingInsert> batch) throws InterruptedException {
+		List<InsertOneModel<OAuthToken>> models = new ArrayList<InsertOneModel<OAuthToken>>(batch.size());
+		for (PendingInsert insert : batch) {
+			models.add(new InsertOneModel<OAuthToken>(insert.token));
+		}
+
+		if (asyncEngine != null) {
+			List<PendingInsert> written = new ArrayList<PendingInsert>(batch);
+			inFlight.acquire();
+			CompletionStage<BulkWriteResult> result;
+			try {
+				result = asyncEngine.bulkWrite(col.getNamespace().getCollectionName(), OAuthToken.class, models, UNORDERED,
+						col.getWriteConcern());
+			} catch (RuntimeException e) {
+				// Not started, so there is no callback to release the permit
+				inFlight.release();
+				complete(written, e);
+				return;
+			}
+			result.whenComplete((r, t) -> {
+				try {
+					complete(written, AsyncMongoDBEngine.unwrap(t));
+				} finally {
+					inFlight.release();
+				}
+			});
+		} else {
+			Throwable failure = null;
+			ClientSession session = causalSessions == null || !col.getWriteConcern().isAcknowledged() ? null : causalSessions.start();
+			try {
+				if (session == null) {
+					col.bulkWrite(models, UNORDERED);
+				} else {
+					col.bulkWrite(session, models, UNORDERED);
+				}
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				if (session != null) {
+					causalSessions.end(session);
+				}
+			}
+			complete(batch, failure);
+		}
+	}
+
+	/**
+	 * Complete the callers of a batch of tokens.
+	 * @param batch
+	 * @param failure The failure of the bulk write, or null if it succeeded.
+	 */
+	private void complete(List<PendingInsert> batch, Throwable failure) {
+		Map<Integer, Throwable> failures = new HashMap<Integer, Throwable>();
+		if (failure instanceof MongoBulkWriteException) {
+			for (BulkWriteError error : ((MongoBulkWriteException) failure).getWriteErrors()) {
+				failures.put(error.getIndex(), failure);
+			}
+		} else if (failure != null) {
+			for (int i = 0; i < batch.size(); i++) {
+				failures.put(i, failure);
+			}
+		} else {
+			LOGGER.log(Level.FINEST, "Wrote a batch of " + batch.size() + " token(s)");
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			PendingInsert insert = batch.get(i);
+			Throwable insertFailure = failures.get(i);
+			if (insertFailure == null) {
+				insert.done.complete(null);
+			} else {
+				if (!waitForAck) {
+					LOGGER.log(Level.SEVERE, "Failed to write OAuthToken for " + insert.token.getClientId()
+							+ " under " + insert.token.getProviderId(), insertFailure);
+				}
+				insert.done.completeExceptionally(insertFailure);
+			}
+			pending.remove(insert.key, insert);
+		}
+	}
+
+	/**
+	 * Stop the background thread after it has written the queued tokens. Tokens inserted
+	 * from now on are inserted directly by their callers.
+	 */
+	public void close() {
+		closing.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closing.writeLock().unlock();
+		}
+		try {
+			worker.join(TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			List<PendingInsert> remaining = new ArrayList<PendingInsert>();
+			queue.drainTo(remaining);
+			if (!remaining.isEmpty()) {
+				write(remaining);
+			}
+			// Wait for the in-flight batches of the asynchronous engine.
+			if (inFlight.tryAcquire(MAX_IN_FLIGHT, WAIT_SECONDS, TimeUnit.SECONDS)) {
+				inFlight.release(MAX_IN_FLIGHT);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOGGER.log(Level.INFO, "Stopped the token writer");
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+
+/**
+ * Keeps the reads that go to secondaries consistent with the writes of this server.
+ * </p>
+ * A ClientSession can not be shared between threads, so every store operation that needs
+ * it starts its own causally consistent session. When a write session ends, its operation
+ * and cluster time are recorded. A read session is advanced to the latest recorded times
+ * before it is used, so a secondary only answers once it has replicated every write this
+ * server made before the read started.
+ */
+public class CausalSessions {
+
+	private static final ClientSessionOptions CAUSAL = ClientSessionOptions.builder().causallyConsistent(true).build();
+
+	private final MongoClient client;
+	private BsonTimestamp operationTime = null;
+	private BsonDocument clusterTime = null;
+
+	/**
+	 * @param client The client to start the sessions on.
+	 */
+	public CausalSessions(MongoClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Start a causally consistent session that follows the writes recorded so far.
+	 * @return The session, which must be passed to {@link #end(ClientSession)}.
+	 */
+	public ClientSession start() {
+		ClientSession session = client.startSession(CAUSAL);
+		synchronized (this) {
+			if (clusterTime != null) {
+				session.advanceClusterTime(clusterTime);
+			}
+			if (operationTime != null) {
+				session.advanceOperationTime(operationTime);
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Record the operation and cluster time of a session and close it.
+	 * @param session
+	 */
+	public void end(ClientSession session) {
+		try {
+			BsonTimestamp sessionOperationTime = session.getOperationTime();
+			BsonDocument sessionClusterTime = session.getClusterTime();
+			synchronized (this) {
+				if (sessionOperationTime != null && (operationTime == null || sessionOperationTime.compareTo(operationTime) > 0)) {
+					operationTime = sessionOperationTime;
+				}
+				if (sessionClusterTime != null && (clusterTime == null
+						|| clusterTime(sessionClusterTime).compareTo(clusterTime(clusterTime)) > 0)) {
+					clusterTime = sessionClusterTime;
+				}
+			}
+		} finally {
+			session.close();
+		}
+	}
+
+	private static BsonTimestamp clusterTime(BsonDocument clusterTime) {
+		return clusterTime.getTimestamp("clusterTime");
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.WriteConcern;
+
+/**
+ * Picks the write and read concern of each store operation.
+ * </p>
+ * Clients, consents and tokens each have their own write and read concern. The write
+ * concern of a token can be overridden by its subType or type, so short lived
+ * authorization codes can be written with w:1 while refresh tokens wait for a majority.
+ * </p>
+ * Write concerns are named as in WriteConcern.valueOf: ACKNOWLEDGED, W1, W2, W3,
+ * UNACKNOWLEDGED, JOURNALED or MAJORITY. Read concerns are named by their level: local,
+ * majority, linearizable or snapshot. A concern that is not configured is the driver
+ * default. An unacknowledged write concern only applies to creates and updates; deletes
+ * need their result, so they use w:1 instead.
+ */
+public class ConcernPolicy {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(ConcernPolicy.class.getName());
+
+	private final WriteConcern clientWriteConcern;
+	private final WriteConcern tokenWriteConcern;
+	private final WriteConcern consentWriteConcern;
+	private final Map<String, WriteConcern> tokenWriteConcerns = new HashMap<String, WriteConcern>();
+	private final ReadConcern clientReadConcern;
+	private final ReadConcern tokenReadConcern;
+	private final ReadConcern consentReadConcern;
+
+	/**
+	 * Create the policy from the configuration, see MongoDBHelper.
+	 * @param helper
+	 */
+	public ConcernPolicy(MongoDBHelper helper) {
+		clientWriteConcern = parseWriteConcern("clientWriteConcern", helper.getClientWriteConcern());
+		tokenWriteConcern = parseWriteConcern("tokenWriteConcern", helper.getTokenWriteConcern());
+		consentWriteConcern = parseWriteConcern("consentWriteConcern", helper.getConsentWriteConcern());
+		clientReadConcern = parseReadConcern("clientReadConcern", helper.getClientReadConcern());
+		tokenReadConcern = parseReadConcern("tokenReadConcern", helper.getTokenReadConcern());
+		consentReadConcern = parseReadConcern("consentReadConcern", helper.getConsentReadConcern());
+
+		// For example: authorization_code=W1,refresh_token=MAJORITY
+		String byType = helper.getTokenWriteConcerns();
+		if (byType != null) {
+			for (String entry : byType.split(",")) {
+				int eq = entry.indexOf('=');
+				if (eq <= 0) {
+					if (!entry.trim().isEmpty()) {
+						LOGGER.log(Level.WARNING, "tokenWriteConcerns entry " + entry + " is not of the form type=concern. Ignoring it.");
+					}
+					continue;
+				}
+				WriteConcern concern = parseWriteConcern("tokenWriteConcerns", entry.substring(eq + 1));
+				if (concern != null) {
+					tokenWriteConcerns.put(entry.substring(0, eq).trim(), concern);
+				}
+			}
+		}
+		LOGGER.log(Level.FINEST, toString());
+	}
+
+	/**
+	 * @param defaultConcern The write concern of the collection when none is configured.
+	 * @return The write concern for client creates and updates.
+	 */
+	public WriteConcern getClientWriteConcern(WriteConcern defaultConcern) {
+		return clientWriteConcern == null ? defaultConcern : clientWriteConcern;
+	}
+
+	/**
+	 * @param defaultConcern The write concern of the collection when none is configured.
+	 * @return The write concern for consent creates and updates.
+	 */
+	public WriteConcern getConsentWriteConcern(WriteConcern defaultConcern) {
+		return consentWriteConcern == null ? defaultConcern : consentWriteConcern;
+	}
+
+	/**
+	 * @param defaultConcern The write concern of the collection when none is configured.
+	 * @return The write concern for token creates and updates whose type has no write concern of its own.
+	 */
+	public WriteConcern getTokenWriteConcern(WriteConcern defaultConcern) {
+		return tokenWriteConcern == null ? defaultConcern : tokenWriteConcern;
+	}
+
+	/**
+	 * @param oauthToken
+	 * @param defaultConcern The write concern to use when neither the token type nor the tokens have one.
+	 * @return The write concern for the create or update of the token. The subType is checked
+	 * before the type.
+	 */
+	public WriteConcern getTokenWriteConcern(OAuthToken oauthToken, WriteConcern defaultConcern) {
+		if (!tokenWriteConcerns.isEmpty()) {
+			WriteConcern concern = oauthToken.getSubType() == null ? null : tokenWriteConcerns.get(oauthToken.getSubType());
+			if (concern == null && oauthToken.getType() != null) {
+				concern = tokenWriteConcerns.get(oauthToken.getType());
+			}
+			if (concern != null) {
+				return concern;
+			}
+		}
+		return getTokenWriteConcern(defaultConcern);
+	}
+
+	public ReadConcern getClientReadConcern(ReadConcern defaultConcern) {
+		return clientReadConcern == null ? defaultConcern : clientReadConcern;
+	}
+
+	public ReadConcern getTokenReadConcern(ReadConcern defaultConcern) {
+		return tokenReadConcern == null ? defaultConcern : tokenReadConcern;
+	}
+
+	public ReadConcern getConsentReadConcern(ReadConcern defaultConcern) {
+		return consentReadConcern == null ? defaultConcern : consentReadConcern;
+	}
+
+	/**
+	 * The write concern for the operations that need an acknowledgement, like deletes.
+	 * @param concern
+	 * @return The concern, or W1 if the concern is unacknowledged.
+	 */
+	public static WriteConcern acknowledged(WriteConcern concern) {
+		return concern.isAcknowledged() ? concern : WriteConcern.W1;
+	}
+
+	private static WriteConcern parseWriteConcern(String name, String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		WriteConcern concern = WriteConcern.valueOf(value.trim());
+		if (concern == null) {
+			LOGGER.log(Level.WARNING, name + " provided, " + value + ", is not a write concern. Using the default.");
+		}
+		return concern;
+	}
+
+	private static ReadConcern parseReadConcern(String name, String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return new ReadConcern(ReadConcernLevel.fromString(value.trim()));
+		} catch (IllegalArgumentException e) {
+			LOGGER.log(Level.WARNING, name + " provided, " + value + ", is not a read concern level. Using the default.");
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "{clientWriteConcern=" + clientWriteConcern + ", tokenWriteConcern=" + tokenWriteConcern + ", tokenWriteConcerns="
+				+ tokenWriteConcerns + ", consentWriteConcern=" + consentWriteConcern + ", clientReadConcern=" + clientReadConcern
+				+ ", tokenReadConcern=" + tokenReadConcern + ", consentReadConcern=" + consentReadConcern + "}";
+	}
+}
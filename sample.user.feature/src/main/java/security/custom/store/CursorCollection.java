@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * A read only Collection that streams the results of a list query from a cursor,
+ * instead of holding them all in memory.
+ * </p>
+ * The first iterator reads from the cursor the query was started with, one batch at
+ * a time. Any later iterator runs the query again. A cursor is closed as soon as its
+ * iterator has returned the last result, or when the collection is closed. size()
+ * counts the matching documents on the server, so it can differ from the number of
+ * results an iterator returns if the documents change in between.
+ * </p>
+ * The OAuthStore callers do not close the collection, and may stop iterating early.
+ * The cursors of a collection that is no longer referenced are therefore closed, and
+ * its session ended, by the next CursorCollection that is created after the garbage
+ * collector has found it unreachable. No thread or finalizer is needed. Until then the
+ * server closes a cursor that has been idle for its cursorTimeoutMillis, 10 minutes by
+ * default.
+ * </p>
+ * The iterators throw the unchecked exceptions of the driver if a batch can not be read.
+ *
+ * @param <T> The type of the results.
+ */
+public class CursorCollection<T> extends AbstractCollection<T> implements Closeable {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(CursorCollection.class.getName());
+
+	private static final ReferenceQueue<CursorCollection<?>> UNREACHABLE = new ReferenceQueue<CursorCollection<?>>();
+	// Keeps the cleanups of the collections with open cursors reachable, so that they are enqueued
+	private static final Set<Cleanup> CLEANUPS = ConcurrentHashMap.newKeySet();
+
+	private final FindIterable<T> query;
+	private final LongSupplier counter;
+	private final Cleanup cleanup;
+	private MongoCursor<T> first; // null once handed out to an iterator
+	private int size = -1;
+
+	/**
+	 * The open cursors of a collection. It does not reference the collection, so it can
+	 * close the cursors once the collection is unreachable.
+	 */
+	private static final class Cleanup extends PhantomReference<CursorCollection<?>> {
+		private final Set<MongoCursor<?>> openCursors = ConcurrentHashMap.newKeySet();
+		private final MongoCursor<?> firstCursor;
+		private final Runnable onFirstClose;
+
+		Cleanup(CursorCollection<?> collection, MongoCursor<?> first, Runnable onFirstClose) {
+			super(collection, UNREACHABLE);
+			this.firstCursor = first;
+			this.onFirstClose = onFirstClose;
+			add(first);
+		}
+
+		synchronized void add(MongoCursor<?> cursor) {
+			openCursors.add(cursor);
+			CLEANUPS.add(this);
+		}
+
+		synchronized void close(MongoCursor<?> cursor) {
+			if (openCursors.remove(cursor)) {
+				try {
+					cursor.close();
+				} finally {
+					if (cursor == firstCursor && onFirstClose != null) {
+						onFirstClose.run();
+					}
+					if (openCursors.isEmpty()) {
+						CLEANUPS.remove(this);
+					}
+				}
+			}
+		}
+
+		void closeAll() {
+			for (MongoCursor<?> cursor : openCursors) {
+				close(cursor);
+			}
+		}
+	}
+
+	/**
+	 * @param first The cursor the query was started with.
+	 * @param query The query, used to start the cursors of any later iterators.
+	 * @param counter Counts the documents that match the query, for size().
+	 * @param onFirstClose Run once the first cursor is closed, for example to end its session.
+	 *        It must not reference the collection.
+	 */
+	public CursorCollection(MongoCursor<T> first, FindIterable<T> query, LongSupplier counter, Runnable onFirstClose) {
+		closeUnreachable();
+		this.first = first;
+		this.query = query;
+		this.counter = counter;
+		this.cleanup = new Cleanup(this, first, onFirstClose);
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		MongoCursor<T> cursor;
+		synchronized (this) {
+			cursor = first;
+			first = null;
+		}
+		if (cursor == null) {
+			cursor = query.iterator();
+			cleanup.add(cursor);
+		}
+		return new CursorIterator(cursor);
+	}
+
+	@Override
+	public synchronized int size() {
+		if (size < 0) {
+			size = (int) counter.getAsLong();
+		}
+		return size;
+	}
+
+	/**
+	 * Close the cursors that are still open. Iterators that have not returned all their
+	 * results stop early.
+	 */
+	@Override
+	public void close() {
+		cleanup.closeAll();
+	}
+
+	/**
+	 * Close the cursors of the collections that the garbage collector found unreachable.
+	 */
+	private static void closeUnreachable() {
+		Reference<? extends CursorCollection<?>> ref;
+		while ((ref = UNREACHABLE.poll()) != null) {
+			Cleanup cleanup = (Cleanup) ref;
+			LOGGER.log(Level.FINEST, "Closing the cursors of a list result that was not read to the end");
+			try {
+				cleanup.closeAll();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.FINEST, "Failed to close the cursors of a list result", e);
+			} finally {
+				CLEANUPS.remove(cleanup);
+			}
+		}
+	}
+
+	/**
+	 * Iterates over one cursor and closes it after the last result.
+	 */
+	private final class CursorIterator implements Iterator<T> {
+		private final MongoCursor<T> cursor;
+		private boolean closed = false;
+
+		CursorIterator(MongoCursor<T> cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (closed) {
+				return false;
+			}
+			boolean hasNext;
+			try {
+				hasNext = cursor.hasNext();
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+			if (!hasNext) {
+				close();
+			}
+			return hasNext;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return cursor.next();
+		}
+
+		private void close() {
+			closed = true;
+			cleanup.close(cursor);
+		}
+	}
+}
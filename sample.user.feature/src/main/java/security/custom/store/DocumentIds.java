@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.bson.BsonBinary;
+
+/**
+ * Derives the _id of the store documents from their key fields, used in the derived idMode.
+ * </p>
+ * The _id is the first 16 bytes of the SHA-256 hash of the key fields, stored as BSON
+ * binary data. That is small enough to keep the _id index compact, and large enough that
+ * two different keys will not get the same _id. Each field is hashed after its length, so
+ * no choice of characters in one field can make two different keys hash the same bytes.
+ * Because the _id is unique, the same key can not be stored twice, so no separate unique
+ * index on the key fields is needed.
+ * </p>
+ * The storage engines and caches that key their maps by a string join the key fields the
+ * same way, see joinKey.
+ */
+public final class DocumentIds {
+
+	private static final int ID_LENGTH = 16;
+	private static final int NULL_FIELD = -1; // in place of the length of a null field
+
+	private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+	};
+
+	private DocumentIds() {
+	}
+
+	/**
+	 * @return The _id of the OAuthClient document with the given key.
+	 */
+	public static BsonBinary forClient(String providerId, String clientId) {
+		return derive(providerId, clientId);
+	}
+
+	/**
+	 * @return The _id of the OAuthToken document with the given key.
+	 */
+	public static BsonBinary forToken(String providerId, String lookupKey) {
+		return derive(providerId, lookupKey);
+	}
+
+	/**
+	 * @return The _id of the OAuthConsent document with the given key.
+	 */
+	public static BsonBinary forConsent(String providerId, String username, String clientId, String resource) {
+		return derive(providerId, username, clientId, resource);
+	}
+
+	/**
+	 * Join key fields into a string, for the maps of the storage engines and caches. Each field
+	 * is written after its length and a colon, or as -1 and a colon if it is null, so different
+	 * keys can not join into the same string.
+	 * @return The string key.
+	 */
+	static String joinKey(String... fields) {
+		StringBuilder key = new StringBuilder();
+		for (String field : fields) {
+			if (field == null) {
+				key.append(NULL_FIELD).append(':');
+			} else {
+				key.append(field.length()).append(':').append(field);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return The first field of a string key from joinKey.
+	 */
+	static String firstKeyField(String key) {
+		int colon = key.indexOf(':');
+		int length = Integer.parseInt(key.substring(0, colon));
+		return length == NULL_FIELD ? null : key.substring(colon + 1, colon + 1 + length);
+	}
+
+	private static BsonBinary derive(String... fields) {
+		MessageDigest digest = SHA256.get();
+		digest.reset();
+		for (String field : fields) {
+			if (field == null) {
+				updateLength(digest, NULL_FIELD);
+			} else {
+				byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+				updateLength(digest, bytes.length);
+				digest.update(bytes);
+			}
+		}
+		return new BsonBinary(Arrays.copyOf(digest.digest(), ID_LENGTH));
+	}
+
+	private static void updateLength(MessageDigest digest, int length) {
+		digest.update((byte) (length >>> 24));
+		digest.update((byte) (length >>> 16));
+		digest.update((byte) (length >>> 8));
+		digest.update((byte) length);
+	}
+}
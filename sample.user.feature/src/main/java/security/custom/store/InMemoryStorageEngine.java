@@ -0,0 +1,405 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * A StorageEngine that keeps the clients, tokens and consents in the memory of the server.
+ * Nothing is persisted: the entries are lost when the server stops, and servers do not
+ * share them. It is meant for single server deployments and as a baseline to compare the
+ * MongoStorageEngine with.
+ * </p>
+ * The entries are held in concurrent maps by their key. The tokens of a user and the
+ * expiry times of the tokens and consents are kept in secondary indexes, so readAllTokens,
+ * countTokens and the expiry cleanup do not scan all entries. Each index is split into
+ * stripes with their own lock:
+ * <ul>
+ * <li>The username index is striped by provider and username, so all the tokens of a user
+ * are found under one lock.</li>
+ * <li>The expiry indexes are striped by entry key. A cleanup locks one stripe at a time, so
+ * it only holds up the creates that fall in the stripe it is reading.</li>
+ * </ul>
+ * The indexes are updated while the entry is locked in its map, so they follow the changes
+ * of an entry in order. The index lookups are still checked against the entry, as an entry
+ * can change between the lookup and the read.
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(InMemoryStorageEngine.class.getName());
+
+	private static final int STRIPES = 16;
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, OAuthClient>> clients = new ConcurrentHashMap<String, ConcurrentHashMap<String, OAuthClient>>();
+	private final ConcurrentHashMap<String, OAuthToken> tokens = new ConcurrentHashMap<String, OAuthToken>();
+	private final ConcurrentHashMap<String, OAuthConsent> consents = new ConcurrentHashMap<String, OAuthConsent>();
+	private final UsernameIndex usernameIndex = new UsernameIndex();
+	private final ExpiryIndex tokenExpiries = new ExpiryIndex();
+	private final ExpiryIndex consentExpiries = new ExpiryIndex();
+
+	/**
+	 * Selects the InMemoryStorageEngine by the name memory, see META-INF/services.
+	 */
+	public static class Provider implements StorageEngineProvider {
+		@Override
+		public String getName() {
+			return MongoDBHelper.STORAGE_ENGINE_MEMORY;
+		}
+
+		@Override
+		public StorageEngine createEngine() {
+			return new InMemoryStorageEngine();
+		}
+	}
+
+	/**
+	 * The keys of the tokens of each user, striped by provider and username.
+	 */
+	private static final class UsernameIndex {
+		private final List<Map<String, Set<String>>> stripes = new ArrayList<Map<String, Set<String>>>(STRIPES);
+
+		UsernameIndex() {
+			for (int i = 0; i < STRIPES; i++) {
+				stripes.add(new HashMap<String, Set<String>>());
+			}
+		}
+
+		void add(String userKey, String key) {
+			Map<String, Set<String>> stripe = stripeFor(stripes, userKey);
+			synchronized (stripe) {
+				stripe.computeIfAbsent(userKey, k -> new HashSet<String>()).add(key);
+			}
+		}
+
+		void remove(String userKey, String key) {
+			Map<String, Set<String>> stripe = stripeFor(stripes, userKey);
+			synchronized (stripe) {
+				Set<String> keys = stripe.get(userKey);
+				if (keys != null && keys.remove(key) && keys.isEmpty()) {
+					stripe.remove(userKey);
+				}
+			}
+		}
+
+		List<String> get(String userKey) {
+			Map<String, Set<String>> stripe = stripeFor(stripes, userKey);
+			synchronized (stripe) {
+				Set<String> keys = stripe.get(userKey);
+				return keys == null ? new ArrayList<String>() : new ArrayList<String>(keys);
+			}
+		}
+	}
+
+	/**
+	 * The keys of the entries of each provider by expiry time, striped by entry key.
+	 */
+	private static final class ExpiryIndex {
+		private final List<Map<String, TreeMap<Long, Set<String>>>> stripes = new ArrayList<Map<String, TreeMap<Long, Set<String>>>>(STRIPES);
+
+		ExpiryIndex() {
+			for (int i = 0; i < STRIPES; i++) {
+				stripes.add(new HashMap<String, TreeMap<Long, Set<String>>>());
+			}
+		}
+
+		void add(String providerId, long expires, String key) {
+			Map<String, TreeMap<Long, Set<String>>> stripe = stripeFor(stripes, key);
+			synchronized (stripe) {
+				stripe.computeIfAbsent(providerId, p -> new TreeMap<Long, Set<String>>())
+						.computeIfAbsent(expires, e -> new HashSet<String>()).add(key);
+			}
+		}
+
+		void remove(String providerId, long expires, String key) {
+			Map<String, TreeMap<Long, Set<String>>> stripe = stripeFor(stripes, key);
+			synchronized (stripe) {
+				TreeMap<Long, Set<String>> byExpiry = stripe.get(providerId);
+				Set<String> keys = byExpiry == null ? null : byExpiry.get(expires);
+				if (keys != null && keys.remove(key) && keys.isEmpty()) {
+					byExpiry.remove(expires);
+					if (byExpiry.isEmpty()) {
+						stripe.remove(providerId);
+					}
+				}
+			}
+		}
+
+		/**
+		 * @param providerId
+		 * @param timestamp
+		 * @return The keys of the entries of the provider that expire before the timestamp.
+		 */
+		List<String> expiredBefore(String providerId, long timestamp) {
+			List<String> expired = new ArrayList<String>();
+			for (Map<String, TreeMap<Long, Set<String>>> stripe : stripes) {
+				synchronized (stripe) {
+					TreeMap<Long, Set<String>> byExpiry = stripe.get(providerId);
+					if (byExpiry != null) {
+						for (Set<String> keys : byExpiry.headMap(timestamp, false).values()) {
+							expired.addAll(keys);
+						}
+					}
+				}
+			}
+			return expired;
+		}
+	}
+
+	@Override
+	public void create(OAuthClient oauthClient) {
+		getClients(oauthClient.getProviderId()).put(oauthClient.getClientId(), oauthClient);
+		LOGGER.log(Level.FINEST, "Created OAuthClient: providerId=" + oauthClient.getProviderId() + ", clientId="
+				+ oauthClient.getClientId());
+	}
+
+	@Override
+	public void create(OAuthToken oauthToken) {
+		tokens.compute(createTokenKey(oauthToken.getProviderId(), oauthToken.getLookupKey()), (key, existing) -> {
+			if (existing != null) {
+				unindex(key, existing);
+			}
+			index(key, oauthToken);
+			return oauthToken;
+		});
+		LOGGER.log(Level.FINEST, "Created OAuthToken: providerId=" + oauthToken.getProviderId() + ", clientId="
+				+ oauthToken.getClientId());
+	}
+
+	@Override
+	public void create(OAuthConsent oauthConsent) {
+		consents.compute(createConsentKey(oauthConsent), (key, existing) -> {
+			if (existing != null) {
+				consentExpiries.remove(existing.getProviderId(), existing.getExpires(), key);
+			}
+			consentExpiries.add(oauthConsent.getProviderId(), oauthConsent.getExpires(), key);
+			return oauthConsent;
+		});
+		LOGGER.log(Level.FINEST, "Created OAuthConsent: providerId=" + oauthConsent.getProviderId() + ", clientId="
+				+ oauthConsent.getClientId());
+	}
+
+	@Override
+	public OAuthClient readClient(String providerId, String clientId) {
+		return getClients(providerId).get(clientId);
+	}
+
+	@Override
+	public Collection<OAuthClient> readAllClients(String providerId, String attribute) {
+		if (attribute != null && !attribute.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Attribute on readAllClients not implemented");
+			return null;
+		}
+		Collection<OAuthClient> results = new HashSet<OAuthClient>(getClients(providerId).values());
+		return results.isEmpty() ? null : results;
+	}
+
+	@Override
+	public OAuthToken readToken(String providerId, String lookupKey) {
+		return tokens.get(createTokenKey(providerId, lookupKey));
+	}
+
+	@Override
+	public Collection<OAuthToken> readAllTokens(String providerId, String username) {
+		Collection<OAuthToken> results = new ArrayList<OAuthToken>();
+		for (String key : usernameIndex.get(createUserKey(providerId, username))) {
+			OAuthToken token = tokens.get(key);
+			if (token != null && Objects.equals(username, token.getUsername())) {
+				results.add(token);
+			}
+		}
+		return results.isEmpty() ? null : results;
+	}
+
+	@Override
+	public int countTokens(String providerId, String username, String clientId) {
+		int count = 0;
+		for (String key : usernameIndex.get(createUserKey(providerId, username))) {
+			OAuthToken token = tokens.get(key);
+			if (token != null && Objects.equals(username, token.getUsername())
+					&& Objects.equals(clientId, token.getClientId())) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public OAuthConsent readConsent(String providerId, String username, String clientId, String resource) {
+		return consents.get(createConsentKey(providerId, username, clientId, resource));
+	}
+
+	@Override
+	public void update(OAuthClient oauthClient) {
+		if (getClients(oauthClient.getProviderId()).replace(oauthClient.getClientId(), oauthClient) == null) {
+			LOGGER.log(Level.FINEST, "Did not find OAuthClient to update: " + oauthClient.getClientId());
+		}
+	}
+
+	@Override
+	public void update(OAuthToken oauthToken) {
+		OAuthToken updated = tokens.computeIfPresent(createTokenKey(oauthToken.getProviderId(), oauthToken.getLookupKey()),
+				(key, existing) -> {
+					unindex(key, existing);
+					index(key, oauthToken);
+					return oauthToken;
+				});
+		if (updated == null) {
+			LOGGER.log(Level.FINEST, "Did not find OAuthToken to update: " + oauthToken.getLookupKey());
+		}
+	}
+
+	@Override
+	public void update(OAuthConsent oauthConsent) {
+		OAuthConsent updated = consents.computeIfPresent(createConsentKey(oauthConsent), (key, existing) -> {
+			consentExpiries.remove(existing.getProviderId(), existing.getExpires(), key);
+			consentExpiries.add(oauthConsent.getProviderId(), oauthConsent.getExpires(), key);
+			return oauthConsent;
+		});
+		if (updated == null) {
+			LOGGER.log(Level.FINEST, "Did not find OAuthConsent to update: " + oauthConsent.getClientId());
+		}
+	}
+
+	@Override
+	public void deleteClient(String providerId, String clientId) {
+		getClients(providerId).remove(clientId);
+	}
+
+	@Override
+	public void deleteToken(String providerId, String lookupKey) {
+		tokens.computeIfPresent(createTokenKey(providerId, lookupKey), (key, existing) -> {
+			unindex(key, existing);
+			return null;
+		});
+	}
+
+	@Override
+	public void deleteTokens(String providerId, long timestamp) {
+		AtomicInteger deleted = new AtomicInteger();
+		for (String expiredKey : tokenExpiries.expiredBefore(providerId, timestamp)) {
+			tokens.computeIfPresent(expiredKey, (key, existing) -> {
+				if (existing.getExpires() >= timestamp) {
+					return existing; // Updated since the index was read.
+				}
+				unindex(key, existing);
+				deleted.incrementAndGet();
+				return null;
+			});
+		}
+		if (deleted.get() > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthToken(s): providerId=" + providerId + ", timeStamp=" + timestamp
+					+ ", count=" + deleted.get());
+		}
+	}
+
+	@Override
+	public void deleteConsent(String providerId, String username, String clientId, String resource) {
+		consents.computeIfPresent(createConsentKey(providerId, username, clientId, resource), (key, existing) -> {
+			consentExpiries.remove(existing.getProviderId(), existing.getExpires(), key);
+			return null;
+		});
+	}
+
+	@Override
+	public void deleteConsents(String providerId, long timestamp) {
+		AtomicInteger deleted = new AtomicInteger();
+		for (String expiredKey : consentExpiries.expiredBefore(providerId, timestamp)) {
+			consents.computeIfPresent(expiredKey, (key, existing) -> {
+				if (existing.getExpires() >= timestamp) {
+					return existing; // Updated since the index was read.
+				}
+				consentExpiries.remove(existing.getProviderId(), existing.getExpires(), key);
+				deleted.incrementAndGet();
+				return null;
+			});
+		}
+		if (deleted.get() > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthConsent(s): providerId=" + providerId + ", timeStamp=" + timestamp
+					+ ", count=" + deleted.get());
+		}
+	}
+
+	@Override
+	public void close() {
+		LOGGER.log(Level.INFO, "Closing the in-memory storage engine with " + tokens.size() + " token(s) and "
+				+ consents.size() + " consent(s)");
+	}
+
+	/**
+	 * Helper method to add a token to the secondary indexes.
+	 * @param key The key of the token in the tokens map.
+	 * @param token
+	 */
+	private void index(String key, OAuthToken token) {
+		usernameIndex.add(createUserKey(token.getProviderId(), token.getUsername()), key);
+		tokenExpiries.add(token.getProviderId(), token.getExpires(), key);
+	}
+
+	/**
+	 * Helper method to remove a token from the secondary indexes.
+	 * @param key The key of the token in the tokens map.
+	 * @param token
+	 */
+	private void unindex(String key, OAuthToken token) {
+		usernameIndex.remove(createUserKey(token.getProviderId(), token.getUsername()), key);
+		tokenExpiries.remove(token.getProviderId(), token.getExpires(), key);
+	}
+
+	private ConcurrentHashMap<String, OAuthClient> getClients(String providerId) {
+		return clients.computeIfAbsent(providerId, p -> new ConcurrentHashMap<String, OAuthClient>());
+	}
+
+	private static <S> S stripeFor(List<S> stripes, String key) {
+		int h = key.hashCode();
+		return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+	}
+
+	private static String createTokenKey(String providerId, String lookupKey) {
+		return DocumentIds.joinKey(providerId, lookupKey);
+	}
+
+	private static String createUserKey(String providerId, String username) {
+		return DocumentIds.joinKey(providerId, username);
+	}
+
+	private static String createConsentKey(OAuthConsent oauthConsent) {
+		return createConsentKey(oauthConsent.getProviderId(), oauthConsent.getUser(), oauthConsent.getClientId(),
+				oauthConsent.getResource());
+	}
+
+	private static String createConsentKey(String providerId, String username, String clientId, String resource) {
+		return DocumentIds.joinKey(providerId, username, clientId, resource);
+	}
+}
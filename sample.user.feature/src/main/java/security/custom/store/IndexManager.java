@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * Helper class that makes sure the indexes the CustomStoreSample queries rely on
+ * exist on a collection.
+ * </p>
+ * Each expected index is identified by its name. When an index with the expected
+ * name is missing it is created (unless index creation has been disabled, in which
+ * case a warning is logged so a DBA can create it). When an index with the expected
+ * name exists, but was created with different keys or options, the drift is logged
+ * and the index is left alone. Dropping and rebuilding an index on a large
+ * collection is a decision for the DBA, not for the store.
+ */
+public class IndexManager {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(IndexManager.class.getName());
+
+	private static final String ID_INDEX = "_id_";
+
+	private final boolean createIndexes;
+
+	/**
+	 * @param createIndexes true to create missing indexes, false to only verify and log them.
+	 */
+	public IndexManager(boolean createIndexes) {
+		this.createIndexes = createIndexes;
+	}
+
+	/**
+	 * Verify the expected indexes against the indexes that exist on the collection,
+	 * creating the missing ones and logging any drift. Failures are logged and do not
+	 * prevent the collection from being used.
+	 *
+	 * @param col The collection to check.
+	 * @param expected The indexes the store expects on the collection. Every index must be named.
+	 */
+	public void ensureIndexes(MongoCollection<Document> col, List<IndexModel> expected) {
+		String colName = col.getNamespace().getCollectionName();
+		try {
+			Map<String, Document> existing = new HashMap<String, Document>();
+			for (Document index : col.listIndexes()) {
+				existing.put(index.getString("name"), index);
+			}
+
+			for (IndexModel model : expected) {
+				String name = model.getOptions().getName();
+				BsonDocument keys = model.getKeys().toBsonDocument(Document.class, col.getCodecRegistry());
+				Document found = existing.remove(name);
+				if (found == null) {
+					Document sameKeys = findByKeys(existing.values(), keys, col.getCodecRegistry());
+					if (sameKeys != null) {
+						existing.remove(sameKeys.getString("name"));
+						LOGGER.log(Level.WARNING, "Index " + name + " on " + colName + " exists under the name "
+								+ sameKeys.getString("name") + ", not creating it again.");
+						logDrift(colName, name, sameKeys, model.getOptions());
+					} else if (createIndexes) {
+						col.createIndexes(Collections.singletonList(model));
+						LOGGER.log(Level.INFO, "Created index " + name + " " + keys.toJson() + " on " + colName);
+					} else {
+						LOGGER.log(Level.WARNING, "Index " + name + " " + keys.toJson() + " is missing on " + colName
+								+ " and index creation is disabled. Queries on " + colName + " may scan the collection.");
+					}
+				} else {
+					Document foundKeys = (Document) found.get("key");
+					if (!sameKeys(foundKeys, keys, col.getCodecRegistry())) {
+						LOGGER.log(Level.WARNING, "Index " + name + " on " + colName + " has keys " + foundKeys.toJson()
+								+ ", expected " + keys.toJson());
+					}
+					logDrift(colName, name, found, model.getOptions());
+				}
+			}
+
+			for (String name : existing.keySet()) {
+				if (!ID_INDEX.equals(name)) {
+					LOGGER.log(Level.FINE, "Index " + name + " on " + colName + " is not managed by the store.");
+				}
+			}
+		} catch (MongoException e) {
+			LOGGER.log(Level.WARNING, "Failed to verify the indexes on " + colName + ". Continuing without them.", e);
+		}
+	}
+
+	/**
+	 * Helper method to find an existing index with the given keys.
+	 * @param indexes The existing indexes
+	 * @param keys The keys to look for
+	 * @param registry The codec registry used to convert the index keys
+	 * @return The matching index Document, or null if there is none.
+	 */
+	private static Document findByKeys(Iterable<Document> indexes, BsonDocument keys, CodecRegistry registry) {
+		for (Document index : indexes) {
+			Document indexKeys = (Document) index.get("key");
+			if (indexKeys != null && sameKeys(indexKeys, keys, registry)) {
+				return index;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper method to compare index keys. The field order of an index is significant,
+	 * so the keys are compared by their JSON form rather than with BsonDocument.equals().
+	 */
+	private static boolean sameKeys(Document indexKeys, BsonDocument keys, CodecRegistry registry) {
+		return indexKeys.toBsonDocument(Document.class, registry).toJson().equals(keys.toJson());
+	}
+
+	/**
+	 * Helper method to compare the options of an existing index with the expected options
+	 * and log the differences.
+	 */
+	private static void logDrift(String colName, String name, Document found, IndexOptions expected) {
+		boolean foundUnique = Boolean.TRUE.equals(found.get("unique"));
+		if (foundUnique != expected.isUnique()) {
+			LOGGER.log(Level.WARNING, "Index " + name + " on " + colName + " has unique=" + foundUnique + ", expected unique="
+					+ expected.isUnique());
+		}
+
+		Long expectedTtl = expected.getExpireAfter(TimeUnit.SECONDS);
+		Number foundTtl = (Number) found.get("expireAfterSeconds");
+		if (expectedTtl == null ? foundTtl != null : foundTtl == null || foundTtl.longValue() != expectedTtl) {
+			LOGGER.log(Level.WARNING, "Index " + name + " on " + colName + " has expireAfterSeconds=" + foundTtl
+					+ ", expected expireAfterSeconds=" + expectedTtl);
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A segment file of the LogStorageEngine, memory mapped and appended to.
+ * </p>
+ * A record is laid out as:
+ * <pre>
+ * int length, int crc, byte op, byte kind, long expires, string key, string group, payload
+ * </pre>
+ * where a string is an int length, -1 for null, and the UTF-8 bytes. The CRC32 covers the
+ * record after the crc field, so a record torn by a crash is found and dropped when the
+ * segment is opened again.
+ * </p>
+ * When a segment is full it is sealed: a footer with the header of every record, without
+ * the payloads, is written after the last record, and a trailer at the end of the file
+ * points to it. Opening a sealed segment reads only its footer. Room for the footer is
+ * kept free as records are appended.
+ */
+public class LogSegment {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(LogSegment.class.getName());
+
+	public static final String PREFIX = "segment-";
+	public static final String SUFFIX = ".log";
+
+	// The trailer: int footer offset, int footer entries, long magic
+	private static final int TRAILER = 16;
+	private static final long SEALED = 0x4f41757468536567L;
+	private static final long DEAD = 0x4f41757468446564L;
+
+	// The record header: int length, int crc, byte op, byte kind, long expires
+	private static final int HEADER = 18;
+	// A footer entry: byte op, byte kind, int offset, int length, long expires
+	private static final int FOOTER_ENTRY = 18;
+
+	/**
+	 * The header of a record, as read from the record or from the footer.
+	 */
+	public static final class Header {
+		public final byte op;
+		public final byte kind;
+		public final int offset;
+		public final int length;
+		public final long expires;
+		public final String key;
+		public final String group;
+
+		Header(byte op, byte kind, int offset, int length, long expires, String key, String group) {
+			this.op = op;
+			this.kind = kind;
+			this.offset = offset;
+			this.length = length;
+			this.expires = expires;
+			this.key = key;
+			this.group = group;
+		}
+	}
+
+	private final long sequence;
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int size;
+	private int position = 0;
+	private int footerSize = 0;
+	private boolean sealed = false;
+	private long deadBytes = 0;
+	private long tombstoneBytes = 0;
+
+	private LogSegment(long sequence, File file, int size) throws IOException {
+		this.sequence = sequence;
+		this.file = file;
+		this.size = size;
+		// The mapping stays valid after the file is closed
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+	/**
+	 * Create a new, empty segment.
+	 * @param directory
+	 * @param sequence The number of the segment, higher than that of all other segments.
+	 * @param size The size of the file in bytes.
+	 * @throws IOException
+	 */
+	public static LogSegment create(File directory, long sequence, int size) throws IOException {
+		File file = new File(directory, String.format("%s%016d%s", PREFIX, sequence, SUFFIX));
+		LOGGER.log(Level.FINEST, "Creating segment " + file);
+		return new LogSegment(sequence, file, size);
+	}
+
+	/**
+	 * Open an existing segment. Call headers() to find its records.
+	 * @param file
+	 * @return The segment, or null if the file is not a segment.
+	 * @throws IOException
+	 */
+	public static LogSegment open(File file) throws IOException {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return null;
+		}
+		long sequence;
+		try {
+			sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return new LogSegment(sequence, file, (int) file.length());
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public boolean isSealed() {
+		return sealed || buffer.getLong(size - 8) == SEALED;
+	}
+
+	/**
+	 * @return true if the segment was compacted, but its file could not be deleted.
+	 */
+	public boolean isDead() {
+		return buffer.getLong(size - 8) == DEAD;
+	}
+
+	/**
+	 * @return The bytes written to the segment.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return The bytes of the records in the segment that were replaced, deleted or expired.
+	 */
+	public long getDeadBytes() {
+		return deadBytes;
+	}
+
+	public void addDeadBytes(long bytes) {
+		deadBytes += bytes;
+	}
+
+	/**
+	 * @return The bytes of the delete and expire records in the segment, which are also dead bytes.
+	 */
+	public long getTombstoneBytes() {
+		return tombstoneBytes;
+	}
+
+	public void addTombstoneBytes(long bytes) {
+		tombstoneBytes += bytes;
+	}
+
+	/**
+	 * Whether a record, and its entry in the footer, fit in the segment.
+	 * @param record
+	 * @return
+	 */
+	public boolean hasRoom(byte[] record) {
+		return !sealed && position + record.length + footerSize + footerEntryLength(record) + TRAILER <= size;
+	}
+
+	/**
+	 * Append a record, after checking hasRoom.
+	 * @param record An encoded record.
+	 * @return The offset of the record.
+	 */
+	public int append(byte[] record) {
+		int offset = position;
+		ByteBuffer target = buffer.duplicate();
+		target.position(offset);
+		target.put(record);
+		position += record.length;
+		footerSize += footerEntryLength(record);
+		return offset;
+	}
+
+	/**
+	 * @param offset
+	 * @param length
+	 * @return A copy of the record at an offset.
+	 */
+	public byte[] read(int offset, int length) {
+		byte[] record = new byte[length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.get(record);
+		return record;
+	}
+
+	/**
+	 * @param offset
+	 * @return A buffer positioned at the payload of the record at an offset.
+	 */
+	public ByteBuffer payload(int offset) {
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + HEADER);
+		skipString(source);
+		skipString(source);
+		return source;
+	}
+
+	/**
+	 * Write the footer and trailer, so the segment is not appended to again.
+	 */
+	public void seal() {
+		List<Header> headers = scan();
+		ByteBuffer footer = buffer.duplicate();
+		footer.position(position);
+		for (Header header : headers) {
+			footer.put(header.op).put(header.kind).putInt(header.offset).putInt(header.length).putLong(header.expires);
+			putString(footer, utf8(header.key));
+			putString(footer, utf8(header.group));
+		}
+		buffer.putInt(size - TRAILER, position);
+		buffer.putInt(size - TRAILER + 4, headers.size());
+		buffer.force();
+		buffer.putLong(size - 8, SEALED);
+		buffer.force();
+		sealed = true;
+		LOGGER.log(Level.FINEST, "Sealed segment " + file + " with " + headers.size() + " records");
+	}
+
+	/**
+	 * Read the headers of the records, from the footer of a sealed segment, or else by
+	 * scanning the records. A scan stops at the first torn record and appends after it.
+	 * @return The headers in the order the records were written.
+	 */
+	public List<Header> headers() {
+		if (!isSealed()) {
+			List<Header> headers = scan();
+			for (Header header : headers) {
+				footerSize += FOOTER_ENTRY + 8 + utf8Length(header.key) + utf8Length(header.group);
+			}
+			return headers;
+		}
+		sealed = true;
+		int footerOffset = buffer.getInt(size - TRAILER);
+		int count = buffer.getInt(size - TRAILER + 4);
+		List<Header> headers = new ArrayList<Header>(count);
+		ByteBuffer footer = buffer.duplicate();
+		footer.position(footerOffset);
+		for (int i = 0; i < count; i++) {
+			headers.add(new Header(footer.get(), footer.get(), footer.getInt(), footer.getInt(), footer.getLong(),
+					getString(footer), getString(footer)));
+		}
+		position = footerOffset;
+		return headers;
+	}
+
+	private List<Header> scan() {
+		List<Header> headers = new ArrayList<Header>();
+		ByteBuffer records = buffer.duplicate();
+		int offset = 0;
+		CRC32 crc = new CRC32();
+		while (offset + HEADER <= size - TRAILER) {
+			int length = records.getInt(offset);
+			if (length < HEADER || offset + length > size - TRAILER) {
+				break;
+			}
+			crc.reset();
+			for (int i = offset + 8; i < offset + length; i++) {
+				crc.update(records.get(i));
+			}
+			if ((int) crc.getValue() != records.getInt(offset + 4)) {
+				LOGGER.log(Level.WARNING, "Dropping the torn record at " + offset + " of segment " + file);
+				break;
+			}
+			records.position(offset + 8);
+			byte op = records.get();
+			byte kind = records.get();
+			long expires = records.getLong();
+			headers.add(new Header(op, kind, offset, length, expires, getString(records), getString(records)));
+			offset += length;
+		}
+		if (!sealed) {
+			position = offset;
+		}
+		return headers;
+	}
+
+	/**
+	 * Write the changes to the segment to the disk.
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Delete the file of the segment after it was compacted. If the file can not be deleted
+	 * while it is mapped, it is marked dead instead, and deleted when the store is opened again.
+	 */
+	public void delete() {
+		if (!file.delete()) {
+			buffer.putLong(size - 8, DEAD);
+			buffer.force();
+			LOGGER.log(Level.FINEST, "Could not delete segment " + file + ", marked it dead");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+
+	/**
+	 * Encode a record.
+	 * @param op
+	 * @param kind
+	 * @param expires
+	 * @param key
+	 * @param group
+	 * @param payload The encoded entry, may be empty.
+	 * @return The record, with its length and crc.
+	 */
+	public static byte[] encode(byte op, byte kind, long expires, String key, String group, byte[] payload) {
+		byte[] keyBytes = utf8(key);
+		byte[] groupBytes = utf8(group);
+		int length = HEADER + stringLength(keyBytes) + stringLength(groupBytes) + payload.length;
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(length).putInt(0).put(op).put(kind).putLong(expires);
+		putString(record, keyBytes);
+		putString(record, groupBytes);
+		record.put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, length - 8);
+		record.putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	private static int footerEntryLength(byte[] record) {
+		// The footer entry has the record header without the length and crc, plus the offset and length
+		ByteBuffer header = ByteBuffer.wrap(record);
+		int keyLength = Math.max(header.getInt(HEADER), 0);
+		int groupLength = Math.max(header.getInt(HEADER + 4 + keyLength), 0);
+		return FOOTER_ENTRY + 8 + keyLength + groupLength;
+	}
+
+	static void putString(ByteBuffer target, byte[] value) {
+		if (value == null) {
+			target.putInt(-1);
+		} else {
+			target.putInt(value.length).put(value);
+		}
+	}
+
+	static String getString(ByteBuffer source) {
+		int length = source.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] value = new byte[length];
+		source.get(value);
+		return new String(value, StandardCharsets.UTF_8);
+	}
+
+	private static void skipString(ByteBuffer source) {
+		int length = source.getInt();
+		if (length > 0) {
+			source.position(source.position() + length);
+		}
+	}
+
+	static byte[] utf8(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static int stringLength(byte[] value) {
+		return 4 + (value == null ? 0 : value.length);
+	}
+
+	private static int utf8Length(String value) {
+		return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+	}
+}
@@ -0,0 +1,763 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+import security.custom.store.LogSegment.Header;
+
+/**
+ * A StorageEngine that persists the clients, tokens and consents in a local append-only log,
+ * for deployments without MongoDB. Like the memory engine it suits a single server.
+ * </p>
+ * Every create, update and delete is appended as a record to the last segment of the log,
+ * see LogSegment. An index in memory points to the latest record of each entry, and a read
+ * decodes the entry from the mapped segment. The logFsync option sets when the appends are
+ * written to the disk.
+ * </p>
+ * deleteTokens and deleteConsents append a single expire record for the provider and drop the
+ * expired entries from the index, found in an index of the entries of each provider by expiry
+ * time, as in the InMemoryStorageEngine. The space of expired and replaced records is reclaimed by
+ * a background compaction, which picks the sealed segment with the largest share of dead and
+ * expired records, rewrites its live records to the end of the log and deletes the segment.
+ * Expired tokens and consents are dropped as they are compacted. A delete or expire record is
+ * only dropped from the oldest segment, where no older record it applies to is left; the other
+ * segments copy them too.
+ * </p>
+ * When the engine starts, the index is rebuilt from the footers of the sealed segments and
+ * a scan of the last segment only.
+ */
+public class LogStorageEngine implements StorageEngine {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(LogStorageEngine.class.getName());
+
+	private static final int MEGABYTE = 1024 * 1024;
+
+	// Record operations
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte EXPIRE = 3;
+
+	// Record kinds
+	private static final byte CLIENT = 0;
+	private static final byte TOKEN = 1;
+	private static final byte CONSENT = 2;
+	private static final int KINDS = 3;
+
+	/**
+	 * Where the latest record of an entry is.
+	 */
+	private static final class Location {
+		final LogSegment segment;
+		final int offset;
+		final int length;
+		final long expires;
+		final String group;
+
+		Location(LogSegment segment, int offset, int length, long expires, String group) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expires = expires;
+			this.group = group;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean fsyncAlways;
+	private final List<LogSegment> segments = new ArrayList<LogSegment>();
+	// The index of each kind, by entry key
+	private final List<Map<String, Location>> index = perKind();
+	// The keys of the clients by provider and of the tokens by provider and username
+	private final List<Map<String, Set<String>>> groups = perKind();
+	// The keys of the tokens and consents by provider and expiry time
+	private final List<Map<String, TreeMap<Long, Set<String>>>> expiries = perKind();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ScheduledExecutorService scheduler;
+	private boolean dirty = false;
+
+	/**
+	 * Selects the LogStorageEngine by the name log, see META-INF/services.
+	 */
+	public static class Provider implements StorageEngineProvider {
+		@Override
+		public String getName() {
+			return MongoDBHelper.STORAGE_ENGINE_LOG;
+		}
+
+		@Override
+		public StorageEngine createEngine() {
+			MongoDBHelper config = MongoDBHelper.getInstance();
+			try {
+				return new LogStorageEngine(new File(config.getLogDirectory()), config.getLogSegmentSize() * MEGABYTE,
+						config.getLogFsync(), config.getLogFsyncInterval(), config.getLogCompactionInterval());
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to open the log in " + config.getLogDirectory(), e);
+			}
+		}
+	}
+
+	/**
+	 * Open the log in a directory and rebuild the index.
+	 * @param directory Created if it does not exist.
+	 * @param segmentSize The size of a segment file in bytes.
+	 * @param fsync The fsync policy: always, interval or never.
+	 * @param fsyncInterval The milliseconds between writes to the disk for the interval policy.
+	 * @param compactionInterval The seconds between compactions, 0 to not compact.
+	 * @throws IOException If the segments can not be opened.
+	 */
+	public LogStorageEngine(File directory, int segmentSize, String fsync, int fsyncInterval, int compactionInterval)
+			throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.fsyncAlways = MongoDBHelper.LOG_FSYNC_ALWAYS.equals(fsync);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the directory " + directory);
+		}
+		long start = System.currentTimeMillis();
+		rebuild();
+		LOGGER.log(Level.INFO, "Opened the log in " + directory.getAbsolutePath() + " with " + segments.size()
+				+ " segments in " + (System.currentTimeMillis() - start) + " ms: " + index.get(CLIENT).size() + " clients, "
+				+ index.get(TOKEN).size() + " tokens, " + index.get(CONSENT).size() + " consents");
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "LogStorageEngine");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (MongoDBHelper.LOG_FSYNC_INTERVAL.equals(fsync) && fsyncInterval > 0) {
+			scheduler.scheduleWithFixedDelay(this::force, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+		}
+		if (compactionInterval > 0) {
+			scheduler.scheduleWithFixedDelay(this::compact, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return A map for each kind of entry.
+	 */
+	private static <V> List<Map<String, V>> perKind() {
+		List<Map<String, V>> maps = new ArrayList<Map<String, V>>(KINDS);
+		for (int i = 0; i < KINDS; i++) {
+			maps.add(new HashMap<String, V>());
+		}
+		return maps;
+	}
+
+	/**
+	 * Open the segments in order and apply the headers of their records to the index.
+	 */
+	private void rebuild() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Could not list the directory " + directory);
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			LogSegment segment = LogSegment.open(file);
+			if (segment == null) {
+				continue;
+			}
+			if (segment.isDead()) {
+				segment.delete();
+				continue;
+			}
+			if (!segments.isEmpty() && !last().isSealed()) {
+				last().seal(); // Only the last segment is appended to
+			}
+			segments.add(segment);
+			for (Header header : segment.headers()) {
+				Location location = new Location(segment, header.offset, header.length, header.expires, header.group);
+				switch (header.op) {
+				case PUT:
+					applyPut(header.kind, header.key, location);
+					break;
+				case DELETE:
+					applyDelete(header.kind, header.key, location);
+					break;
+				case EXPIRE:
+					applyExpire(header.kind, header.key, header.expires, location);
+					break;
+				default:
+					LOGGER.log(Level.WARNING, "Unknown record operation " + header.op + " in segment " + segment);
+				}
+			}
+		}
+	}
+
+	private LogSegment last() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/**
+	 * Append a record to the last segment, starting a new segment when it is full. Called with
+	 * the write lock held.
+	 * @return The location of the record.
+	 */
+	private Location append(byte op, byte kind, String key, String group, long expires, byte[] payload)
+			throws OAuthStoreException {
+		return write(LogSegment.encode(op, kind, expires, key, group, payload), op, kind, expires, group);
+	}
+
+	/**
+	 * Append an encoded record. Called with the write lock held.
+	 * @return The location of the record.
+	 */
+	private Location write(byte[] record, byte op, byte kind, long expires, String group) throws OAuthStoreException {
+		try {
+			if (segments.isEmpty() || !last().hasRoom(record)) {
+				if (!segments.isEmpty()) {
+					last().seal();
+				}
+				long sequence = segments.isEmpty() ? 1 : last().getSequence() + 1;
+				segments.add(LogSegment.create(directory, sequence, segmentSize));
+				if (!last().hasRoom(record)) {
+					throw new OAuthStoreException(
+							"A record of " + record.length + " bytes is larger than the segment size " + segmentSize);
+				}
+			}
+		} catch (IOException e) {
+			throw new OAuthStoreException("Failed to create a segment in " + directory, e);
+		}
+		LogSegment segment = last();
+		int offset = segment.append(record);
+		if (fsyncAlways) {
+			segment.force();
+		} else {
+			dirty = true;
+		}
+		return new Location(segment, offset, record.length, expires, group);
+	}
+
+	private void applyPut(byte kind, String key, Location location) {
+		Location old = index.get(kind).put(key, location);
+		if (old != null) {
+			removed(kind, key, old);
+		}
+		if (location.group != null) {
+			groups.get(kind).computeIfAbsent(location.group, g -> new HashSet<String>()).add(key);
+		}
+		if (kind != CLIENT) {
+			expiries.get(kind).computeIfAbsent(providerOf(key), p -> new TreeMap<Long, Set<String>>())
+					.computeIfAbsent(location.expires, e -> new HashSet<String>()).add(key);
+		}
+	}
+
+	private void applyDelete(byte kind, String key, Location tombstone) {
+		Location old = index.get(kind).remove(key);
+		if (old != null) {
+			removed(kind, key, old);
+		}
+		tombstone.segment.addDeadBytes(tombstone.length);
+		tombstone.segment.addTombstoneBytes(tombstone.length);
+	}
+
+	private int applyExpire(byte kind, String providerId, long timestamp, Location tombstone) {
+		int expired = 0;
+		TreeMap<Long, Set<String>> byExpiry = expiries.get(kind).get(providerId);
+		if (byExpiry != null) {
+			List<String> keys = new ArrayList<String>();
+			for (Set<String> expiredKeys : byExpiry.headMap(timestamp, false).values()) {
+				keys.addAll(expiredKeys);
+			}
+			for (String key : keys) {
+				Location old = index.get(kind).remove(key);
+				if (old != null) {
+					removed(kind, key, old);
+					expired++;
+				}
+			}
+		}
+		tombstone.segment.addDeadBytes(tombstone.length);
+		tombstone.segment.addTombstoneBytes(tombstone.length);
+		return expired;
+	}
+
+	private void removed(byte kind, String key, Location old) {
+		old.segment.addDeadBytes(old.length);
+		if (old.group != null) {
+			Set<String> keys = groups.get(kind).get(old.group);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					groups.get(kind).remove(old.group);
+				}
+			}
+		}
+		if (kind != CLIENT) {
+			String providerId = providerOf(key);
+			TreeMap<Long, Set<String>> byExpiry = expiries.get(kind).get(providerId);
+			Set<String> keys = byExpiry == null ? null : byExpiry.get(old.expires);
+			if (keys != null && keys.remove(key) && keys.isEmpty()) {
+				byExpiry.remove(old.expires);
+				if (byExpiry.isEmpty()) {
+					expiries.get(kind).remove(providerId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The provider ID at the start of an entry key.
+	 */
+	private static String providerOf(String key) {
+		return DocumentIds.firstKeyField(key);
+	}
+
+	private void put(byte kind, String key, String group, long expires, byte[] payload, boolean mustExist)
+			throws OAuthStoreException {
+		lock.writeLock().lock();
+		try {
+			if (mustExist && !index.get(kind).containsKey(key)) {
+				LOGGER.log(Level.FINEST, "No entry to update for " + key);
+				return;
+			}
+			applyPut(kind, key, append(PUT, kind, key, group, expires, payload));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void delete(byte kind, String key) throws OAuthStoreException {
+		lock.writeLock().lock();
+		try {
+			if (index.get(kind).containsKey(key)) {
+				applyDelete(kind, key, append(DELETE, kind, key, null, 0, new byte[0]));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int expire(byte kind, String providerId, long timestamp) throws OAuthStoreException {
+		lock.writeLock().lock();
+		try {
+			return applyExpire(kind, providerId, timestamp, append(EXPIRE, kind, providerId, null, timestamp, new byte[0]));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The payload of the latest record of an entry, or null. Called with the read lock held.
+	 */
+	private ByteBuffer read(byte kind, String key) {
+		Location location = index.get(kind).get(key);
+		return location == null ? null : location.segment.payload(location.offset);
+	}
+
+	/**
+	 * Write the appends to the disk, for the interval fsync policy.
+	 */
+	private void force() {
+		lock.readLock().lock();
+		try {
+			if (dirty && !segments.isEmpty()) {
+				dirty = false;
+				last().force();
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Failed to write the log to the disk", e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Compact segments while one is more than half dead or expired. The write lock is released
+	 * between segments.
+	 */
+	void compact() {
+		try {
+			while (compactOne()) {
+				// Next segment
+			}
+		} catch (OAuthStoreException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Failed to compact the log", e);
+		}
+	}
+
+	/**
+	 * Append the live records of the sealed segment with the largest share of reclaimable bytes
+	 * again and delete the segment. The reclaimable bytes are the dead bytes and the bytes of the
+	 * expired tokens and consents, less the delete and expire records a segment other than the
+	 * oldest has to copy.
+	 * @return true if a segment was compacted.
+	 */
+	private boolean compactOne() throws OAuthStoreException {
+		lock.writeLock().lock();
+		try {
+			long now = System.currentTimeMillis();
+			if (segments.size() < 2) {
+				return false; // The last segment is appended to
+			}
+			Map<LogSegment, Long> expiredBytes = expiredBytes(now);
+			LogSegment target = null;
+			double targetShare = 0.5;
+			for (LogSegment segment : segments.subList(0, segments.size() - 1)) {
+				long reclaimable = segment.getDeadBytes() + expiredBytes.getOrDefault(segment, 0L);
+				if (segment != segments.get(0)) {
+					reclaimable -= segment.getTombstoneBytes();
+				}
+				double share = (double) reclaimable / Math.max(1, segment.getPosition());
+				if (share >= targetShare) {
+					target = segment;
+					targetShare = share;
+				}
+			}
+			if (target == null) {
+				return false;
+			}
+			boolean oldest = target == segments.get(0);
+			int copied = 0;
+			int dropped = 0;
+			for (Header header : target.headers()) {
+				Location location = index.get(header.kind).get(header.key);
+				if (header.op != PUT) {
+					// An older segment may hold a record the delete or expire record applies to, unless
+					// the key was put again since. A copied expire record also applies to the entries put
+					// after it that had already expired at its time, which are dropped when the log is opened.
+					if (!oldest && (header.op == EXPIRE || location == null)) {
+						Location tombstone = write(target.read(header.offset, header.length), header.op, header.kind,
+								header.expires, null);
+						tombstone.segment.addDeadBytes(tombstone.length);
+						tombstone.segment.addTombstoneBytes(tombstone.length);
+					}
+					continue;
+				}
+				if (location == null || location.segment != target || location.offset != header.offset) {
+					continue; // Replaced, deleted or expired
+				}
+				if (header.kind != CLIENT && header.expires < now) {
+					index.get(header.kind).remove(header.key);
+					removed(header.kind, header.key, location);
+					dropped++;
+				} else {
+					byte[] record = target.read(header.offset, header.length);
+					applyPut(header.kind, header.key, write(record, PUT, header.kind, header.expires, header.group));
+					copied++;
+				}
+			}
+			segments.remove(target);
+			// The copies must be on the disk before the segment is gone
+			last().force();
+			dirty = false;
+			target.delete();
+			LOGGER.log(Level.INFO, "Compacted segment " + target + ": copied " + copied + " entries, dropped " + dropped
+					+ " expired entries");
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The bytes of the records of the tokens and consents that expired before a time, by
+	 *         segment. Called with the write lock held.
+	 */
+	private Map<LogSegment, Long> expiredBytes(long now) {
+		Map<LogSegment, Long> bytes = new HashMap<LogSegment, Long>();
+		for (byte kind = TOKEN; kind < KINDS; kind++) {
+			for (TreeMap<Long, Set<String>> byExpiry : expiries.get(kind).values()) {
+				for (Set<String> keys : byExpiry.headMap(now, false).values()) {
+					for (String key : keys) {
+						Location location = index.get(kind).get(key);
+						if (location != null) {
+							bytes.merge(location.segment, (long) location.length, Long::sum);
+						}
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
+	@Override
+	public void create(OAuthClient oauthClient) throws OAuthStoreException {
+		put(CLIENT, createClientKey(oauthClient.getProviderId(), oauthClient.getClientId()), oauthClient.getProviderId(),
+				0, encode(oauthClient), false);
+	}
+
+	@Override
+	public void create(OAuthToken oauthToken) throws OAuthStoreException {
+		put(TOKEN, createTokenKey(oauthToken.getProviderId(), oauthToken.getLookupKey()),
+				createUserKey(oauthToken.getProviderId(), oauthToken.getUsername()), oauthToken.getExpires(),
+				encode(oauthToken), false);
+	}
+
+	@Override
+	public void create(OAuthConsent oauthConsent) throws OAuthStoreException {
+		put(CONSENT, createConsentKey(oauthConsent.getProviderId(), oauthConsent.getUser(), oauthConsent.getClientId(),
+				oauthConsent.getResource()), null, oauthConsent.getExpires(), encode(oauthConsent), false);
+	}
+
+	@Override
+	public OAuthClient readClient(String providerId, String clientId) throws OAuthStoreException {
+		lock.readLock().lock();
+		try {
+			ByteBuffer payload = read(CLIENT, createClientKey(providerId, clientId));
+			return payload == null ? null : decodeClient(payload);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Collection<OAuthClient> readAllClients(String providerId, String attribute) throws OAuthStoreException {
+		if (attribute != null && !attribute.isEmpty()) {
+			LOGGER.log(Level.WARNING, "Attribute on readAllClients not implemented");
+			return null;
+		}
+		lock.readLock().lock();
+		try {
+			Set<String> keys = groups.get(CLIENT).get(providerId);
+			if (keys == null) {
+				return null;
+			}
+			Collection<OAuthClient> results = new HashSet<OAuthClient>();
+			for (String key : keys) {
+				results.add(decodeClient(read(CLIENT, key)));
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public OAuthToken readToken(String providerId, String lookupKey) throws OAuthStoreException {
+		lock.readLock().lock();
+		try {
+			ByteBuffer payload = read(TOKEN, createTokenKey(providerId, lookupKey));
+			return payload == null ? null : decodeToken(payload);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Collection<OAuthToken> readAllTokens(String providerId, String username) throws OAuthStoreException {
+		lock.readLock().lock();
+		try {
+			Set<String> keys = groups.get(TOKEN).get(createUserKey(providerId, username));
+			if (keys == null) {
+				return null;
+			}
+			Collection<OAuthToken> results = new ArrayList<OAuthToken>(keys.size());
+			for (String key : keys) {
+				results.add(decodeToken(read(TOKEN, key)));
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int countTokens(String providerId, String username, String clientId) throws OAuthStoreException {
+		Collection<OAuthToken> tokens = readAllTokens(providerId, username);
+		int count = 0;
+		if (tokens != null) {
+			for (OAuthToken token : tokens) {
+				if (clientId == null ? token.getClientId() == null : clientId.equals(token.getClientId())) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public OAuthConsent readConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		lock.readLock().lock();
+		try {
+			ByteBuffer payload = read(CONSENT, createConsentKey(providerId, username, clientId, resource));
+			return payload == null ? null : decodeConsent(payload);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void update(OAuthClient oauthClient) throws OAuthStoreException {
+		put(CLIENT, createClientKey(oauthClient.getProviderId(), oauthClient.getClientId()), oauthClient.getProviderId(),
+				0, encode(oauthClient), true);
+	}
+
+	@Override
+	public void update(OAuthToken oauthToken) throws OAuthStoreException {
+		put(TOKEN, createTokenKey(oauthToken.getProviderId(), oauthToken.getLookupKey()),
+				createUserKey(oauthToken.getProviderId(), oauthToken.getUsername()), oauthToken.getExpires(),
+				encode(oauthToken), true);
+	}
+
+	@Override
+	public void update(OAuthConsent oauthConsent) throws OAuthStoreException {
+		put(CONSENT, createConsentKey(oauthConsent.getProviderId(), oauthConsent.getUser(), oauthConsent.getClientId(),
+				oauthConsent.getResource()), null, oauthConsent.getExpires(), encode(oauthConsent), true);
+	}
+
+	@Override
+	public void deleteClient(String providerId, String clientId) throws OAuthStoreException {
+		delete(CLIENT, createClientKey(providerId, clientId));
+	}
+
+	@Override
+	public void deleteToken(String providerId, String lookupKey) throws OAuthStoreException {
+		delete(TOKEN, createTokenKey(providerId, lookupKey));
+	}
+
+	@Override
+	public void deleteTokens(String providerId, long timestamp) throws OAuthStoreException {
+		int deleted = expire(TOKEN, providerId, timestamp);
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted " + deleted + " expired tokens of " + providerId);
+		}
+	}
+
+	@Override
+	public void deleteConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		delete(CONSENT, createConsentKey(providerId, username, clientId, resource));
+	}
+
+	@Override
+	public void deleteConsents(String providerId, long timestamp) throws OAuthStoreException {
+		int deleted = expire(CONSENT, providerId, timestamp);
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted " + deleted + " expired consents of " + providerId);
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			if (!segments.isEmpty()) {
+				last().force();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static byte[] encode(OAuthClient client) {
+		return encode(new String[] { client.getProviderId(), client.getClientId(), client.getClientSecret(),
+				client.getDisplayName(), client.getClientMetadata() }, client.isEnabled() ? 1 : 0);
+	}
+
+	private static OAuthClient decodeClient(ByteBuffer payload) {
+		String[] fields = decode(payload, 5);
+		boolean enabled = payload.getLong() != 0;
+		return new OAuthClient(fields[0], fields[1], fields[2], fields[3], enabled, fields[4]);
+	}
+
+	private static byte[] encode(OAuthToken token) {
+		return encode(new String[] { token.getLookupKey(), token.getUniqueId(), token.getProviderId(), token.getType(),
+				token.getSubType(), token.getTokenString(), token.getClientId(), token.getUsername(), token.getScope(),
+				token.getRedirectUri(), token.getStateId(), token.getTokenProperties() }, token.getCreatedAt(),
+				token.getLifetimeInSeconds(), token.getExpires());
+	}
+
+	private static OAuthToken decodeToken(ByteBuffer payload) {
+		String[] fields = decode(payload, 12);
+		long createdAt = payload.getLong();
+		int lifetime = (int) payload.getLong();
+		long expires = payload.getLong();
+		return new OAuthToken(fields[0], fields[1], fields[2], fields[3], fields[4], createdAt, lifetime, expires,
+				fields[5], fields[6], fields[7], fields[8], fields[9], fields[10], fields[11]);
+	}
+
+	private static byte[] encode(OAuthConsent consent) {
+		return encode(new String[] { consent.getClientId(), consent.getUser(), consent.getScope(), consent.getResource(),
+				consent.getProviderId(), consent.getConsentProperties() }, consent.getExpires());
+	}
+
+	private static OAuthConsent decodeConsent(ByteBuffer payload) {
+		String[] fields = decode(payload, 6);
+		long expires = payload.getLong();
+		return new OAuthConsent(fields[0], fields[1], fields[2], fields[3], fields[4], expires, fields[5]);
+	}
+
+	private static byte[] encode(String[] fields, long... numbers) {
+		byte[][] bytes = new byte[fields.length][];
+		int length = 8 * numbers.length;
+		for (int i = 0; i < fields.length; i++) {
+			bytes[i] = LogSegment.utf8(fields[i]);
+			length += LogSegment.stringLength(bytes[i]);
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		for (byte[] field : bytes) {
+			LogSegment.putString(payload, field);
+		}
+		for (long number : numbers) {
+			payload.putLong(number);
+		}
+		return payload.array();
+	}
+
+	private static String[] decode(ByteBuffer payload, int count) {
+		String[] fields = new String[count];
+		for (int i = 0; i < count; i++) {
+			fields[i] = LogSegment.getString(payload);
+		}
+		return fields;
+	}
+
+	private static String createClientKey(String providerId, String clientId) {
+		return DocumentIds.joinKey(providerId, clientId);
+	}
+
+	private static String createTokenKey(String providerId, String lookupKey) {
+		return DocumentIds.joinKey(providerId, lookupKey);
+	}
+
+	private static String createUserKey(String providerId, String username) {
+		return DocumentIds.joinKey(providerId, username);
+	}
+
+	private static String createConsentKey(String providerId, String username, String clientId, String resource) {
+		return DocumentIds.joinKey(providerId, username, clientId, resource);
+	}
+}
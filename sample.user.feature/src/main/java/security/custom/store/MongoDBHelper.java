@@ -20,10 +20,13 @@ package security.custom.store;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,7 +34,9 @@ import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -42,8 +47,13 @@ import com.mongodb.client.MongoDatabase;
  * either pull the database config from a mongoDB.props file or from the
  * server.xml.
  * </p>
- * This example does not have any performance tuning or fail over options
- * configured.
+ * The connection pool and socket timeouts can be tuned, see createClientSettings(). The host
+ * can be a seed list of several servers, optionally with the name of their replica set. Network
+ * compression can be enabled with a list of compressors.
+ * </p>
+ * The commands of both drivers go through a StoreCommandListener, which relates them to the
+ * OAuthStore call that sent them, records them as Java Flight Recorder events and logs the
+ * slow ones, see slowCommandThreshold.
  * </p>
  * It can connect with a username and password enabled, but any other authentication
  * option will need to be added.
@@ -64,6 +74,96 @@ public class MongoDBHelper implements ManagedService {
 	public final static String PASSWORD_KEY = "password";
 	public final static String HOST_KEY = "hostname";
 	public final static String PORT_KEY = "port";
+	public final static String STORAGE_ENGINE_KEY = "storageEngine";
+	public final static String CREATE_INDEXES_KEY = "createIndexes";
+	public final static String EXPIRY_MODE_KEY = "expiryMode";
+	public final static String CLIENT_CACHE_SIZE_KEY = "clientCacheSize";
+	public final static String CLIENT_CACHE_TTL_KEY = "clientCacheTimeToLive";
+	public final static String TOKEN_CACHE_SIZE_KEY = "tokenCacheSize";
+	public final static String TOKEN_CACHE_TTL_KEY = "tokenCacheTimeToLive";
+	public final static String TOKEN_NEGATIVE_CACHE_TTL_KEY = "tokenNegativeCacheTimeToLive";
+	public final static String ASYNC_DRIVER_KEY = "asyncDriver";
+	public final static String WRITE_BEHIND_KEY = "writeBehind";
+	public final static String WRITE_BEHIND_BATCH_SIZE_KEY = "writeBehindBatchSize";
+	public final static String WRITE_BEHIND_LINGER_KEY = "writeBehindLinger";
+	public final static String WRITE_BEHIND_QUEUE_SIZE_KEY = "writeBehindQueueSize";
+	public final static String ID_MODE_KEY = "idMode";
+	public final static String MIN_POOL_SIZE_KEY = "minPoolSize";
+	public final static String MAX_POOL_SIZE_KEY = "maxPoolSize";
+	public final static String MAX_WAIT_QUEUE_SIZE_KEY = "maxWaitQueueSize";
+	public final static String MAX_WAIT_TIME_KEY = "maxWaitTime";
+	public final static String MAX_CONNECTION_IDLE_TIME_KEY = "maxConnectionIdleTime";
+	public final static String MAX_CONNECTION_LIFE_TIME_KEY = "maxConnectionLifeTime";
+	public final static String CONNECT_TIMEOUT_KEY = "connectTimeout";
+	public final static String SOCKET_TIMEOUT_KEY = "socketTimeout";
+	public final static String SERVER_SELECTION_TIMEOUT_KEY = "serverSelectionTimeout";
+	public final static String HEARTBEAT_FREQUENCY_KEY = "heartbeatFrequency";
+	public final static String REPLICA_SET_KEY = "replicaSet";
+	public final static String LIST_READ_PREFERENCE_KEY = "listReadPreference";
+	public final static String LIST_STREAMING_KEY = "listStreaming";
+	public final static String LIST_BATCH_SIZE_KEY = "listBatchSize";
+	public final static String LIST_EXCLUDED_FIELDS_KEY = "listExcludedFields";
+	public final static String CLIENT_WRITE_CONCERN_KEY = "clientWriteConcern";
+	public final static String TOKEN_WRITE_CONCERN_KEY = "tokenWriteConcern";
+	public final static String TOKEN_WRITE_CONCERNS_KEY = "tokenWriteConcerns";
+	public final static String CONSENT_WRITE_CONCERN_KEY = "consentWriteConcern";
+	public final static String CLIENT_READ_CONCERN_KEY = "clientReadConcern";
+	public final static String TOKEN_READ_CONCERN_KEY = "tokenReadConcern";
+	public final static String CONSENT_READ_CONCERN_KEY = "consentReadConcern";
+	public final static String COMPRESSORS_KEY = "compressors";
+	public final static String ZLIB_COMPRESSION_LEVEL_KEY = "zlibCompressionLevel";
+	public final static String OFF_HEAP_SLAB_SIZE_KEY = "offHeapSlabSize";
+	public final static String OFF_HEAP_MAX_SIZE_KEY = "offHeapMaxSize";
+	public final static String PARTITIONING_KEY = "partitioning";
+	public final static String TOKEN_BUCKET_SIZE_KEY = "tokenBucketSize";
+	public final static String TOKEN_BUCKET_SIZES_KEY = "tokenBucketSizes";
+	public final static String TOKEN_FILTER_KEY = "tokenFilter";
+	public final static String METRICS_KEY = "metrics";
+	public final static String SLOW_COMMAND_THRESHOLD_KEY = "slowCommandThreshold";
+	public final static String SLOW_COMMAND_EXPLAIN_KEY = "slowCommandExplain";
+	public final static String LOG_DIRECTORY_KEY = "logDirectory";
+	public final static String LOG_SEGMENT_SIZE_KEY = "logSegmentSize";
+	public final static String LOG_FSYNC_KEY = "logFsync";
+	public final static String LOG_FSYNC_INTERVAL_KEY = "logFsyncInterval";
+	public final static String LOG_COMPACTION_INTERVAL_KEY = "logCompactionInterval";
+
+	// Values for the storageEngine attribute, see the StorageEngineProvider implementations
+	public final static String STORAGE_ENGINE_MONGODB = "mongodb";
+	public final static String STORAGE_ENGINE_MEMORY = "memory";
+	public final static String STORAGE_ENGINE_OFFHEAP = "offheap";
+	public final static String STORAGE_ENGINE_LOG = "log";
+
+	// Values for the logFsync attribute
+	public final static String LOG_FSYNC_ALWAYS = "always";
+	public final static String LOG_FSYNC_INTERVAL = "interval";
+	public final static String LOG_FSYNC_NEVER = "never";
+
+	// Values for the partitioning attribute
+	public final static String PARTITIONING_NONE = "none";
+	public final static String PARTITIONING_COLLECTION = "collection";
+	public final static String PARTITIONING_DATABASE = "database";
+
+	// Values for the expiryMode attribute
+	public final static String EXPIRY_MODE_CLEANUP = "cleanup";
+	public final static String EXPIRY_MODE_TTL = "ttl";
+
+	// Values for the writeBehind attribute
+	public final static String WRITE_BEHIND_OFF = "off";
+	public final static String WRITE_BEHIND_SYNC = "sync";
+	public final static String WRITE_BEHIND_ASYNC = "async";
+
+	// Values for the listReadPreference attribute
+	private final static String[] READ_PREFERENCES = { "primary", "primarypreferred", "secondary", "secondarypreferred",
+			"nearest" };
+
+	// Values for the compressors attribute
+	public final static String COMPRESSOR_SNAPPY = "snappy";
+	public final static String COMPRESSOR_ZLIB = "zlib";
+	public final static String COMPRESSOR_ZSTD = "zstd";
+
+	// Values for the idMode attribute
+	public final static String ID_MODE_GENERATED = "generated";
+	public final static String ID_MODE_DERIVED = "derived";
 
 	// The mongoDB config from a props file. This file originates in SupportFiles/mongoDB.props
 	// and is copied over to the server config folder during the gradlew build.
@@ -71,15 +171,73 @@ public class MongoDBHelper implements ManagedService {
 
 	// Default config for mongoDB
 	private String dbName = "oauthSample";
-	private String dbHost = "localhost";
+	private String dbHost = "localhost"; // a host name, or a comma separated list of host or host:port entries
 	private String dbUser = null;
 	private String dbPwd = null;
 	private int dbPort = 27017;
+	private boolean createIndexes = true;
+	private String storageEngine = STORAGE_ENGINE_MONGODB;
+	private String expiryMode = EXPIRY_MODE_CLEANUP;
+	private int clientCacheSize = 0; // off unless configured
+	private int clientCacheTtl = 300; // seconds
+	private int tokenCacheSize = 0; // off unless configured
+	private int tokenCacheTtl = 30; // seconds
+	private int tokenNegativeCacheTtl = 5; // seconds
+	private boolean asyncDriver = false;
+	private String writeBehind = WRITE_BEHIND_OFF;
+	private int writeBehindBatchSize = 100;
+	private int writeBehindLinger = 5; // milliseconds
+	private int writeBehindQueueSize = 10000;
+	private String idMode = ID_MODE_GENERATED;
+	private String replicaSet = null;
+	private String listReadPreference = ReadPreference.primary().getName().toLowerCase();
+	private boolean listStreaming = false;
+	private int listBatchSize = 0; // 0 for the driver default
+	private String listExcludedFields = null; // a comma separated list of field names
+	private String partitioning = PARTITIONING_NONE;
+	private int tokenBucketSize = 0; // seconds, 0 to keep all tokens in one collection
+	private String tokenBucketSizes = null; // seconds by token subType or type
+	private boolean tokenFilter = false;
+	private boolean metrics = true;
+	private int slowCommandThreshold = 100; // milliseconds, 0 to disable the slow command log
+	private boolean slowCommandExplain = false;
+	private int offHeapSlabSize = 64; // megabytes
+	private int offHeapMaxSize = 1024; // megabytes
+	private String logDirectory = "oauthStoreLog"; // relative to the server output directory
+	private int logSegmentSize = 64; // megabytes
+	private String logFsync = LOG_FSYNC_INTERVAL;
+	private int logFsyncInterval = 1000; // milliseconds
+	private int logCompactionInterval = 60; // seconds
+	// Write and read concerns, see ConcernPolicy. null for the driver default.
+	private String clientWriteConcern = null;
+	private String tokenWriteConcern = null;
+	private String tokenWriteConcerns = null;
+	private String consentWriteConcern = null;
+	private String clientReadConcern = null;
+	private String tokenReadConcern = null;
+	private String consentReadConcern = null;
+	// Connection pool and socket settings, the defaults are the defaults of the driver.
+	private int minPoolSize = 0;
+	private int maxPoolSize = 100;
+	private int maxWaitQueueSize = 500;
+	private int maxWaitTime = 120000; // milliseconds
+	private int maxConnectionIdleTime = 0; // milliseconds, 0 for no limit
+	private int maxConnectionLifeTime = 0; // milliseconds, 0 for no limit
+	private int connectTimeout = 10000; // milliseconds
+	private int socketTimeout = 0; // milliseconds, 0 for no timeout
+	private int serverSelectionTimeout = 30000; // milliseconds
+	private int heartbeatFrequency = 10000; // milliseconds
+	private String compressors = null; // a comma separated list, in order of preference, null for no compression
+	private int zlibCompressionLevel = -1; // -1 for the zlib default
 
 	boolean loadedProps = false;
 
+	private MongoClientSettings clientSettings = null; // null until connected
+	private final StoreCommandListener commandListener = new StoreCommandListener();
 	private MongoClient mongoClient = null;
 	private MongoDatabase db = null;
+	private com.mongodb.reactivestreams.client.MongoClient asyncMongoClient = null;
+	private com.mongodb.reactivestreams.client.MongoDatabase asyncDb = null;
 
 	public static MongoDBHelper getInstance() {
 		if (instance == null) {
@@ -109,32 +267,20 @@ public class MongoDBHelper implements ManagedService {
 	public synchronized MongoDatabase getDB() {
 		if (db == null) {
 
-			if (!loadedProps) { // if we didn't load props from the server.xml config, try the default props
-								// file.
-				LOGGER.log(Level.INFO,
-						"Did not load properties from config, trying the " + MONGO_PROPS_FILE + " file.");
-				getDatabaseConfig();
-			}
+			loadConfig();
 
-			LOGGER.log(Level.INFO, "Connecting to the " + dbName + " database at " + dbHost + ":" + dbPort);
+			LOGGER.log(Level.INFO, "Connecting to the " + dbName + " database at " + getServerAddresses()
+					+ (replicaSet == null ? "" : ", replica set " + replicaSet));
 
 			if (loadedProps) {
-				MongoClientSettings settings = null;
-				if (dbUser != null && dbPwd != null) {
-					LOGGER.log(Level.FINEST, "Logging in with user " + dbUser);
-					MongoCredential credential = MongoCredential.createCredential(dbUser, dbName, dbPwd.toCharArray());
-					settings = MongoClientSettings.builder().credential(credential).applyToClusterSettings(
-							builder -> builder.hosts(Arrays.asList(new ServerAddress(dbHost, dbPort)))).build();
-				} else {
-					settings = MongoClientSettings.builder().applyToClusterSettings(
-							builder -> builder.hosts(Arrays.asList(new ServerAddress(dbHost, dbPort)))).build();
-				}
-				mongoClient = MongoClients.create(settings);
+				clientSettings = createClientSettings();
 			} else {
 				LOGGER.log(Level.INFO,
 						"Customized properties not provided, connecting to database with defaults. localhost:27017");
-				mongoClient = MongoClients.create();
+				clientSettings = MongoClientSettings.builder().addCommandListener(commandListener).build();
 			}
+			mongoClient = MongoClients.create(clientSettings);
+			commandListener.configure(slowCommandThreshold, slowCommandExplain ? mongoClient : null);
 			db = mongoClient.getDatabase(dbName);
 			LOGGER.log(Level.INFO, "Connected to the database " + dbName);
 		}
@@ -143,6 +289,170 @@ public class MongoDBHelper implements ManagedService {
 
 	}
 
+	/**
+	 * Load the configuration from the mongoDB.props file, unless it was provided in the server.xml.
+	 */
+	private void loadConfig() {
+		if (!loadedProps) { // if we didn't load props from the server.xml config, try the default props
+							// file.
+			LOGGER.log(Level.INFO,
+					"Did not load properties from config, trying the " + MONGO_PROPS_FILE + " file.");
+			getDatabaseConfig();
+		}
+	}
+
+	/**
+	 * Helper method to create the settings of the mongoDB client from the configuration.
+	 * @return The client settings.
+	 */
+	private MongoClientSettings createClientSettings() {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder();
+		if (dbUser != null && dbPwd != null) {
+			LOGGER.log(Level.FINEST, "Logging in with user " + dbUser);
+			settings.credential(MongoCredential.createCredential(dbUser, dbName, dbPwd.toCharArray()));
+		}
+		settings.applyToClusterSettings(builder -> builder.hosts(getServerAddresses()).requiredReplicaSetName(replicaSet)
+				.serverSelectionTimeout(serverSelectionTimeout, TimeUnit.MILLISECONDS));
+		settings.applyToConnectionPoolSettings(builder -> builder.minSize(minPoolSize).maxSize(maxPoolSize)
+				.maxWaitQueueSize(maxWaitQueueSize).maxWaitTime(maxWaitTime, TimeUnit.MILLISECONDS)
+				.maxConnectionIdleTime(maxConnectionIdleTime, TimeUnit.MILLISECONDS)
+				.maxConnectionLifeTime(maxConnectionLifeTime, TimeUnit.MILLISECONDS));
+		settings.applyToSocketSettings(builder -> builder.connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+				.readTimeout(socketTimeout, TimeUnit.MILLISECONDS));
+		settings.applyToServerSettings(builder -> builder.heartbeatFrequency(heartbeatFrequency, TimeUnit.MILLISECONDS));
+		settings.compressorList(getCompressors());
+		settings.addCommandListener(commandListener);
+		LOGGER.log(Level.FINEST, "Connection pool: minPoolSize=" + minPoolSize + ", maxPoolSize=" + maxPoolSize
+				+ ", maxWaitQueueSize=" + maxWaitQueueSize + ", maxWaitTime=" + maxWaitTime + ", maxConnectionIdleTime="
+				+ maxConnectionIdleTime + ", maxConnectionLifeTime=" + maxConnectionLifeTime + ", connectTimeout="
+				+ connectTimeout + ", socketTimeout=" + socketTimeout + ", serverSelectionTimeout=" + serverSelectionTimeout
+				+ ", heartbeatFrequency=" + heartbeatFrequency + ", compressors=" + compressors);
+		return settings.build();
+	}
+
+	/**
+	 * Helper method to parse the configured compressors. The driver offers them to the server
+	 * in this order, and the server uses the first one it also supports. Messages are sent
+	 * uncompressed if the list is empty or the server supports none of them.
+	 * </p>
+	 * snappy needs the snappy-java library on the classpath. zstd needs version 4.0 or later
+	 * of the MongoDB driver, so it is skipped with a warning.
+	 * @return The compressors, in order of preference.
+	 */
+	private List<MongoCompressor> getCompressors() {
+		List<MongoCompressor> result = new ArrayList<MongoCompressor>();
+		if (compressors == null) {
+			return result;
+		}
+		for (String name : compressors.split(",")) {
+			name = name.trim().toLowerCase();
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (COMPRESSOR_ZLIB.equals(name)) {
+				MongoCompressor zlib = MongoCompressor.createZlibCompressor();
+				if (zlibCompressionLevel >= 0) {
+					zlib = zlib.withProperty(MongoCompressor.LEVEL, zlibCompressionLevel);
+				}
+				result.add(zlib);
+			} else if (COMPRESSOR_SNAPPY.equals(name)) {
+				try {
+					Class.forName("org.xerial.snappy.Snappy", false, MongoDBHelper.class.getClassLoader());
+					result.add(MongoCompressor.createSnappyCompressor());
+				} catch (ClassNotFoundException e) {
+					LOGGER.log(Level.WARNING, "The snappy compressor needs the snappy-java library, which was not found. Skipping it.");
+				}
+			} else if (COMPRESSOR_ZSTD.equals(name)) {
+				LOGGER.log(Level.WARNING, "The zstd compressor is not supported by this version of the MongoDB driver. Skipping it.");
+			} else {
+				LOGGER.log(Level.WARNING, COMPRESSORS_KEY + " provided, " + name + ", is not one of ["
+						+ COMPRESSOR_SNAPPY + ", " + COMPRESSOR_ZLIB + ", " + COMPRESSOR_ZSTD + "]. Skipping it.");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Helper method to parse the configured host into the addresses of the servers. The host can be
+	 * a comma separated seed list, see parseServerAddresses.
+	 * @return The server addresses.
+	 */
+	private List<ServerAddress> getServerAddresses() {
+		return parseServerAddresses(dbHost, dbPort);
+	}
+
+	/**
+	 * Helper method to parse a comma separated host list into the addresses of the servers, for
+	 * example host1:27017,host2:27017,host3. Entries without a port use the default port, as do
+	 * entries whose port is not an integer. The same method is in the CustomStoreSample of the
+	 * bell sample, keep them identical. The FVT and the load generator use this one.
+	 * @param hosts The host list.
+	 * @param port The default port.
+	 * @return The server addresses.
+	 */
+	static List<ServerAddress> parseServerAddresses(String hosts, int port) {
+		List<ServerAddress> addresses = new ArrayList<ServerAddress>();
+		for (String host : hosts.split(",")) {
+			host = host.trim();
+			if (host.isEmpty()) {
+				continue;
+			}
+			int colon = host.lastIndexOf(':');
+			if (colon > 0 && host.indexOf(']', colon) < 0) {
+				int hostPort = getIntConfig("HOST", host.substring(colon + 1), port);
+				addresses.add(new ServerAddress(host.substring(0, colon), hostPort));
+			} else {
+				addresses.add(new ServerAddress(host, port));
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * The client connected by {@link #getDB()}, used to start sessions.
+	 * @return The client.
+	 */
+	public synchronized MongoClient getClient() {
+		getDB();
+		return mongoClient;
+	}
+
+	/**
+	 * Get the database of a partition in the database partitioning mode. It is named after the
+	 * configured database with the partition name appended, and uses the same client.
+	 * @param partition The partition name, see PartitionedStorageEngine.
+	 * @return The MongoDatabase of the partition, created by MongoDB on its first write.
+	 */
+	public synchronized MongoDatabase getDB(String partition) {
+		return getClient().getDatabase(dbName + "_" + partition);
+	}
+
+	/**
+	 * Get the database of a partition through the asynchronous driver, see {@link #getDB(String)}.
+	 * @param partition The partition name.
+	 * @return A MongoDatabase reference of the asynchronous driver
+	 */
+	public synchronized com.mongodb.reactivestreams.client.MongoDatabase getAsyncDB(String partition) {
+		getAsyncDB();
+		return asyncMongoClient.getDatabase(dbName + "_" + partition);
+	}
+
+	/**
+	 * Get a connection to mongoDB through the asynchronous Reactive Streams driver. It uses the same
+	 * configuration and settings as {@link #getDB()}, but its own connection pool.
+	 *
+	 * @return A MongoDatabase reference of the asynchronous driver
+	 */
+	public synchronized com.mongodb.reactivestreams.client.MongoDatabase getAsyncDB() {
+		if (asyncDb == null) {
+			getDB(); // Loads the configuration and the client settings.
+			asyncMongoClient = com.mongodb.reactivestreams.client.MongoClients.create(clientSettings);
+			asyncDb = asyncMongoClient.getDatabase(dbName);
+			LOGGER.log(Level.INFO, "Connected the asynchronous driver to the database " + dbName);
+		}
+		return asyncDb;
+	}
+
 	/**
 	 * This helper method uses a properties file to get the database connection
 	 * parameters.
@@ -165,6 +475,69 @@ public class MongoDBHelper implements ManagedService {
 			dbPort = Integer.valueOf(mongoProps.getProperty("PORT", String.valueOf(dbPort)));
 			dbUser = mongoProps.getProperty("USER", dbUser);
 			dbPwd = mongoProps.getProperty("PWD", dbPwd);
+			storageEngine = mongoProps.getProperty("STORAGE_ENGINE", storageEngine);
+			createIndexes = Boolean.valueOf(mongoProps.getProperty("CREATE_INDEXES", String.valueOf(createIndexes)));
+			expiryMode = getChoiceConfig("EXPIRY_MODE", mongoProps.getProperty("EXPIRY_MODE"), expiryMode,
+					EXPIRY_MODE_CLEANUP, EXPIRY_MODE_TTL);
+			clientCacheSize = getIntConfig("CLIENT_CACHE_SIZE", mongoProps.getProperty("CLIENT_CACHE_SIZE"), clientCacheSize);
+			clientCacheTtl = getIntConfig("CLIENT_CACHE_TTL", mongoProps.getProperty("CLIENT_CACHE_TTL"), clientCacheTtl);
+			tokenCacheSize = getIntConfig("TOKEN_CACHE_SIZE", mongoProps.getProperty("TOKEN_CACHE_SIZE"), tokenCacheSize);
+			tokenCacheTtl = getIntConfig("TOKEN_CACHE_TTL", mongoProps.getProperty("TOKEN_CACHE_TTL"), tokenCacheTtl);
+			tokenNegativeCacheTtl = getIntConfig("TOKEN_NEGATIVE_CACHE_TTL",
+					mongoProps.getProperty("TOKEN_NEGATIVE_CACHE_TTL"), tokenNegativeCacheTtl);
+			asyncDriver = Boolean.valueOf(mongoProps.getProperty("ASYNC_DRIVER", String.valueOf(asyncDriver)));
+			writeBehind = getChoiceConfig("WRITE_BEHIND", mongoProps.getProperty("WRITE_BEHIND"), writeBehind,
+					WRITE_BEHIND_OFF, WRITE_BEHIND_SYNC, WRITE_BEHIND_ASYNC);
+			writeBehindBatchSize = getIntConfig("WRITE_BEHIND_BATCH_SIZE", mongoProps.getProperty("WRITE_BEHIND_BATCH_SIZE"),
+					writeBehindBatchSize);
+			writeBehindLinger = getIntConfig("WRITE_BEHIND_LINGER", mongoProps.getProperty("WRITE_BEHIND_LINGER"),
+					writeBehindLinger);
+			writeBehindQueueSize = getIntConfig("WRITE_BEHIND_QUEUE_SIZE", mongoProps.getProperty("WRITE_BEHIND_QUEUE_SIZE"),
+					writeBehindQueueSize);
+			idMode = getChoiceConfig("ID_MODE", mongoProps.getProperty("ID_MODE"), idMode, ID_MODE_GENERATED, ID_MODE_DERIVED);
+			replicaSet = mongoProps.getProperty("REPLICA_SET", replicaSet);
+			listReadPreference = getChoiceConfig("LIST_READ_PREFERENCE", mongoProps.getProperty("LIST_READ_PREFERENCE"),
+					listReadPreference, READ_PREFERENCES);
+			listStreaming = Boolean.valueOf(mongoProps.getProperty("LIST_STREAMING", String.valueOf(listStreaming)));
+			listBatchSize = getIntConfig("LIST_BATCH_SIZE", mongoProps.getProperty("LIST_BATCH_SIZE"), listBatchSize);
+			listExcludedFields = mongoProps.getProperty("LIST_EXCLUDED_FIELDS", listExcludedFields);
+			partitioning = getChoiceConfig("PARTITIONING", mongoProps.getProperty("PARTITIONING"), partitioning,
+					PARTITIONING_NONE, PARTITIONING_COLLECTION, PARTITIONING_DATABASE);
+			tokenBucketSize = getIntConfig("TOKEN_BUCKET_SIZE", mongoProps.getProperty("TOKEN_BUCKET_SIZE"), tokenBucketSize);
+			tokenBucketSizes = mongoProps.getProperty("TOKEN_BUCKET_SIZES", tokenBucketSizes);
+			tokenFilter = Boolean.valueOf(mongoProps.getProperty("TOKEN_FILTER", String.valueOf(tokenFilter)));
+			metrics = Boolean.valueOf(mongoProps.getProperty("METRICS", String.valueOf(metrics)));
+			slowCommandThreshold = getIntConfig("SLOW_COMMAND_THRESHOLD", mongoProps.getProperty("SLOW_COMMAND_THRESHOLD"),
+					slowCommandThreshold);
+			slowCommandExplain = Boolean.valueOf(mongoProps.getProperty("SLOW_COMMAND_EXPLAIN", String.valueOf(slowCommandExplain)));
+			offHeapSlabSize = getIntConfig("OFF_HEAP_SLAB_SIZE", mongoProps.getProperty("OFF_HEAP_SLAB_SIZE"), offHeapSlabSize);
+			offHeapMaxSize = getIntConfig("OFF_HEAP_MAX_SIZE", mongoProps.getProperty("OFF_HEAP_MAX_SIZE"), offHeapMaxSize);
+			logDirectory = mongoProps.getProperty("LOG_DIRECTORY", logDirectory);
+			logSegmentSize = getIntConfig("LOG_SEGMENT_SIZE", mongoProps.getProperty("LOG_SEGMENT_SIZE"), logSegmentSize);
+			logFsync = getChoiceConfig("LOG_FSYNC", mongoProps.getProperty("LOG_FSYNC"), logFsync, LOG_FSYNC_ALWAYS,
+					LOG_FSYNC_INTERVAL, LOG_FSYNC_NEVER);
+			logFsyncInterval = getIntConfig("LOG_FSYNC_INTERVAL", mongoProps.getProperty("LOG_FSYNC_INTERVAL"), logFsyncInterval);
+			logCompactionInterval = getIntConfig("LOG_COMPACTION_INTERVAL", mongoProps.getProperty("LOG_COMPACTION_INTERVAL"),
+					logCompactionInterval);
+			clientWriteConcern = mongoProps.getProperty("CLIENT_WRITE_CONCERN", clientWriteConcern);
+			tokenWriteConcern = mongoProps.getProperty("TOKEN_WRITE_CONCERN", tokenWriteConcern);
+			tokenWriteConcerns = mongoProps.getProperty("TOKEN_WRITE_CONCERNS", tokenWriteConcerns);
+			consentWriteConcern = mongoProps.getProperty("CONSENT_WRITE_CONCERN", consentWriteConcern);
+			clientReadConcern = mongoProps.getProperty("CLIENT_READ_CONCERN", clientReadConcern);
+			tokenReadConcern = mongoProps.getProperty("TOKEN_READ_CONCERN", tokenReadConcern);
+			consentReadConcern = mongoProps.getProperty("CONSENT_READ_CONCERN", consentReadConcern);
+			minPoolSize = getIntConfig("MIN_POOL_SIZE", mongoProps.getProperty("MIN_POOL_SIZE"), minPoolSize);
+			maxPoolSize = getIntConfig("MAX_POOL_SIZE", mongoProps.getProperty("MAX_POOL_SIZE"), maxPoolSize);
+			maxWaitQueueSize = getIntConfig("MAX_WAIT_QUEUE_SIZE", mongoProps.getProperty("MAX_WAIT_QUEUE_SIZE"), maxWaitQueueSize);
+			maxWaitTime = getIntConfig("MAX_WAIT_TIME", mongoProps.getProperty("MAX_WAIT_TIME"), maxWaitTime);
+			maxConnectionIdleTime = getIntConfig("MAX_CONNECTION_IDLE_TIME", mongoProps.getProperty("MAX_CONNECTION_IDLE_TIME"), maxConnectionIdleTime);
+			maxConnectionLifeTime = getIntConfig("MAX_CONNECTION_LIFE_TIME", mongoProps.getProperty("MAX_CONNECTION_LIFE_TIME"), maxConnectionLifeTime);
+			connectTimeout = getIntConfig("CONNECT_TIMEOUT", mongoProps.getProperty("CONNECT_TIMEOUT"), connectTimeout);
+			socketTimeout = getIntConfig("SOCKET_TIMEOUT", mongoProps.getProperty("SOCKET_TIMEOUT"), socketTimeout);
+			serverSelectionTimeout = getIntConfig("SERVER_SELECTION_TIMEOUT", mongoProps.getProperty("SERVER_SELECTION_TIMEOUT"), serverSelectionTimeout);
+			heartbeatFrequency = getIntConfig("HEARTBEAT_FREQUENCY", mongoProps.getProperty("HEARTBEAT_FREQUENCY"), heartbeatFrequency);
+			compressors = mongoProps.getProperty("COMPRESSORS", compressors);
+			zlibCompressionLevel = getIntConfig("ZLIB_COMPRESSION_LEVEL", mongoProps.getProperty("ZLIB_COMPRESSION_LEVEL"), zlibCompressionLevel);
 			loadedProps = true;
 			
 		} catch (IOException e) {
@@ -173,14 +546,414 @@ public class MongoDBHelper implements ManagedService {
 		}
 	}
 
+	/**
+	 * The name of the StorageEngine the CustomStoreSample uses, unless its OSGi component names
+	 * one. Loads the configuration if it has not been provided yet, without connecting.
+	 * @return The lower case engine name, mongodb by default.
+	 */
+	public synchronized String getStorageEngine() {
+		loadConfig();
+		return storageEngine.trim().toLowerCase();
+	}
+
+	/**
+	 * Whether the CustomStoreSample should create missing indexes on its collections. When
+	 * false, the indexes are only verified and missing ones are logged.
+	 * @return true if missing indexes should be created
+	 */
+	public boolean isCreateIndexes() {
+		return createIndexes;
+	}
+
+	/**
+	 * Whether expired tokens and consents are removed by a MongoDB TTL index instead of by the
+	 * periodic deleteTokens and deleteConsents cleanup.
+	 * @return true if the ttl expiry mode is configured
+	 */
+	public boolean isTtlExpiry() {
+		return EXPIRY_MODE_TTL.equals(expiryMode);
+	}
+
+	/**
+	 * The maximum number of OAuthClients the CustomStoreSample caches. 0, the default, disables the cache.
+	 * @return The maximum number of cached clients.
+	 */
+	public int getClientCacheSize() {
+		return clientCacheSize;
+	}
+
+	/**
+	 * How long, in seconds, the CustomStoreSample caches an OAuthClient. Updates made by this
+	 * server are seen immediately, updates made by other servers sharing the database are seen
+	 * after at most this time.
+	 * @return The client cache time to live in seconds.
+	 */
+	public int getClientCacheTimeToLive() {
+		return clientCacheTtl;
+	}
+
+	/**
+	 * The maximum number of OAuthTokens the CustomStoreSample caches. The same number of
+	 * lookup keys that were not found is cached separately. 0, the default, disables both caches.
+	 * @return The maximum number of cached tokens.
+	 */
+	public int getTokenCacheSize() {
+		return tokenCacheSize;
+	}
+
+	/**
+	 * The longest time, in seconds, the CustomStoreSample caches an OAuthToken. A token is
+	 * never cached past its expiry time. Tokens deleted by other servers sharing the database
+	 * can be read from the cache for at most this time.
+	 * @return The token cache time to live in seconds.
+	 */
+	public int getTokenCacheTimeToLive() {
+		return tokenCacheTtl;
+	}
+
+	/**
+	 * How long, in seconds, the CustomStoreSample remembers that a lookup key was not found.
+	 * 0 disables the negative cache.
+	 * @return The negative token cache time to live in seconds.
+	 */
+	public int getTokenNegativeCacheTimeToLive() {
+		return tokenNegativeCacheTtl;
+	}
+
+	/**
+	 * Whether the CustomStoreSample uses the asynchronous driver, see {@link #getAsyncDB()}, for
+	 * the expired entry cleanup and the token writer batches.
+	 * @return true if the asynchronous driver is used
+	 */
+	public boolean isAsyncDriver() {
+		return asyncDriver;
+	}
+
+	/**
+	 * How create(OAuthToken) writes tokens to the database.
+	 * <ul>
+	 * <li>off: each token is inserted by the calling thread.</li>
+	 * <li>sync: tokens are batched into bulk writes and the calling thread waits for the batch to be acknowledged.</li>
+	 * <li>async: tokens are batched into bulk writes and the calling thread returns once the token is queued.</li>
+	 * </ul>
+	 * @return One of off, sync or async.
+	 */
+	public String getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * @return The maximum number of tokens written in one bulk write.
+	 */
+	public int getWriteBehindBatchSize() {
+		return writeBehindBatchSize;
+	}
+
+	/**
+	 * @return The longest time, in milliseconds, a token waits for more tokens to join its batch.
+	 */
+	public int getWriteBehindLinger() {
+		return writeBehindLinger;
+	}
+
+	/**
+	 * @return The maximum number of tokens waiting to be written.
+	 */
+	public int getWriteBehindQueueSize() {
+		return writeBehindQueueSize;
+	}
+
+	/**
+	 * Whether the _id of the store documents is derived from their key, see DocumentIds, instead
+	 * of being an ObjectId generated by the driver. Lookups by key then use the _id index.
+	 * @return true if the derived idMode is configured
+	 */
+	public boolean isDerivedIds() {
+		return ID_MODE_DERIVED.equals(idMode);
+	}
+
+	/**
+	 * The read preference of the list queries, readAllClients, readAllTokens and countTokens. The
+	 * point reads, like readToken, always read from the primary.
+	 * @return The read preference of the list queries.
+	 */
+	public ReadPreference getListReadPreference() {
+		return ReadPreference.valueOf(listReadPreference);
+	}
+
+	/**
+	 * Whether readAllClients and readAllTokens return a CursorCollection that streams the results
+	 * from the database, instead of a collection that holds all of them.
+	 * @return true if the list results are streamed
+	 */
+	public boolean isListStreaming() {
+		return listStreaming;
+	}
+
+	/**
+	 * The number of documents the list queries fetch per round trip.
+	 * @return The batch size, 0 for the driver default.
+	 */
+	public int getListBatchSize() {
+		return listBatchSize;
+	}
+
+	/**
+	 * The fields readAllClients and readAllTokens leave out of their results, for example
+	 * TOKENSTRING when the callers only need the token metadata.
+	 * @return A comma separated list of field names, or null to return all fields.
+	 */
+	public String getListExcludedFields() {
+		return listExcludedFields;
+	}
+
+	/**
+	 * How the mongodb storage engine separates the entries of the OAuth providers, see
+	 * PartitionedStorageEngine: none, collection for collections per provider, or database for
+	 * databases per provider. Loads the configuration if it has not been provided yet.
+	 * @return The lower case partitioning mode.
+	 */
+	public synchronized String getPartitioning() {
+		loadConfig();
+		return partitioning;
+	}
+
+	/**
+	 * The expiry window of the token bucket collections, see TokenBuckets.
+	 * @return The window in seconds, 0 or less to keep all tokens in the OauthToken collection.
+	 */
+	public int getTokenBucketSize() {
+		return tokenBucketSize;
+	}
+
+	/**
+	 * The expiry windows of the token buckets by token subType or type, see TokenBuckets.
+	 * @return For example authorization_code=60,refresh_token=86400, or null.
+	 */
+	public String getTokenBucketSizes() {
+		return tokenBucketSizes;
+	}
+
+	/**
+	 * Whether readToken checks a TokenFilter before it queries the database, so that the lookup
+	 * keys that were never stored are not looked up.
+	 * @return true if the token filter is used
+	 */
+	public boolean isTokenFilter() {
+		return tokenFilter;
+	}
+
+	/**
+	 * Whether the CustomStoreSample records the calls, errors, latency and result size of each
+	 * operation in StoreMetrics. Loads the configuration if it has not been provided yet, without
+	 * connecting.
+	 * @return true if the metrics are recorded
+	 */
+	public synchronized boolean isMetrics() {
+		loadConfig();
+		return metrics;
+	}
+
+	/**
+	 * The duration above which a database command is logged as slow, with the shape of its
+	 * filter and the OAuthStore method that sent it, see StoreCommandListener.
+	 * @return The threshold in milliseconds, 0 if slow commands are not logged.
+	 */
+	public int getSlowCommandThreshold() {
+		return slowCommandThreshold;
+	}
+
+	/**
+	 * Whether the first slow command of each filter shape is explained, and its query plan logged.
+	 * @return true if slow commands are explained
+	 */
+	public boolean isSlowCommandExplain() {
+		return slowCommandExplain;
+	}
+
+	/**
+	 * The size of the direct buffers the offheap storage engine keeps its token records in.
+	 * @return The slab size in megabytes, between 1 and 1024.
+	 */
+	public int getOffHeapSlabSize() {
+		return Math.min(Math.max(offHeapSlabSize, 1), 1024);
+	}
+
+	/**
+	 * The most memory the offheap storage engine allocates for token records. The indexes of
+	 * the engine come on top, about 32 bytes per token.
+	 * @return The maximum size in megabytes.
+	 */
+	public int getOffHeapMaxSize() {
+		return offHeapMaxSize;
+	}
+
+	/**
+	 * The directory the log storage engine keeps its segment files in.
+	 * @return The directory, relative to the working directory of the server unless absolute.
+	 */
+	public String getLogDirectory() {
+		return logDirectory;
+	}
+
+	/**
+	 * The size of the segment files of the log storage engine.
+	 * @return The segment size in megabytes, between 1 and 1024.
+	 */
+	public int getLogSegmentSize() {
+		return Math.min(Math.max(logSegmentSize, 1), 1024);
+	}
+
+	/**
+	 * When the log storage engine writes its appends to the disk: always, after every append,
+	 * interval, every logFsyncInterval milliseconds, or never, leaving it to the operating system.
+	 * @return The lower case policy.
+	 */
+	public String getLogFsync() {
+		return logFsync;
+	}
+
+	/**
+	 * @return The milliseconds between writes to the disk with the interval logFsync policy.
+	 */
+	public int getLogFsyncInterval() {
+		return logFsyncInterval;
+	}
+
+	/**
+	 * @return The seconds between the compactions of the log storage engine, 0 to not compact.
+	 */
+	public int getLogCompactionInterval() {
+		return logCompactionInterval;
+	}
+
+	/**
+	 * The write concern of the OAuthClient creates and updates, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getClientWriteConcern() {
+		return clientWriteConcern;
+	}
+
+	/**
+	 * The write concern of the OAuthToken creates and updates, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getTokenWriteConcern() {
+		return tokenWriteConcern;
+	}
+
+	/**
+	 * The write concerns of the OAuthToken creates and updates by token subType or type, as a comma separated list of type=concern, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getTokenWriteConcerns() {
+		return tokenWriteConcerns;
+	}
+
+	/**
+	 * The write concern of the OAuthConsent creates and updates, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getConsentWriteConcern() {
+		return consentWriteConcern;
+	}
+
+	/**
+	 * The read concern level of the OAuthClient reads, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getClientReadConcern() {
+		return clientReadConcern;
+	}
+
+	/**
+	 * The read concern level of the OAuthToken reads, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getTokenReadConcern() {
+		return tokenReadConcern;
+	}
+
+	/**
+	 * The read concern level of the OAuthConsent reads, see ConcernPolicy.
+	 * @return The configured value, or null for the driver default.
+	 */
+	public String getConsentReadConcern() {
+		return consentReadConcern;
+	}
+
+	/**
+	 * Helper method to get a string configuration value.
+	 * @param name The name of the configuration value, used for logging.
+	 * @param value The configured value, may be null if it was not configured.
+	 * @param current The value to use if the value was not configured.
+	 * @return The string value.
+	 */
+	private String getStringConfig(String name, String value, String current) {
+		if (value == null) {
+			return current;
+		}
+		LOGGER.log(Level.FINEST, "Found " + name + " from the config: " + value);
+		return value;
+	}
+
+	/**
+	 * Helper method to parse an integer configuration value.
+	 * @param name The name of the configuration value, used for logging.
+	 * @param value The configured value, may be null if it was not configured.
+	 * @param current The value to use if the value was not configured or is not an integer.
+	 * @return The integer value.
+	 */
+	private static int getIntConfig(String name, String value, int current) {
+		if (value == null) {
+			return current;
+		}
+		try {
+			int result = Integer.valueOf(value.trim());
+			LOGGER.log(Level.FINEST, "Found " + name + " from the config: " + result);
+			return result;
+		} catch (NumberFormatException ne) {
+			LOGGER.log(Level.WARNING, name + " provided, " + value + ", was not an integer. Using " + current);
+			return current;
+		}
+	}
+
+	/**
+	 * Helper method to parse a configuration value that must be one of a set of values.
+	 * @param name The name of the configuration value, used for logging.
+	 * @param value The configured value, may be null if it was not configured.
+	 * @param current The value to use if the value was not configured or is not allowed.
+	 * @param allowed The allowed values, in lower case.
+	 * @return The lower case value.
+	 */
+	private String getChoiceConfig(String name, String value, String current, String... allowed) {
+		if (value == null) {
+			return current;
+		}
+		String result = value.trim().toLowerCase();
+		if (Arrays.asList(allowed).contains(result)) {
+			LOGGER.log(Level.FINEST, "Found " + name + " from the config: " + result);
+			return result;
+		}
+		LOGGER.log(Level.WARNING, name + " provided, " + value + ", is not one of " + Arrays.toString(allowed)
+				+ ". Using " + current);
+		return current;
+	}
+
 	/**
 	 * Close the mongoDB client connection. This can be called by the bundle Activator.
 	 */
 	public synchronized void stopDB() {
+		commandListener.close();
 		if (mongoClient != null) {
 			mongoClient.close();
 			LOGGER.log(Level.INFO, "Disconnected database connection to " + dbName);
 		}
+		if (asyncMongoClient != null) {
+			asyncMongoClient.close();
+			LOGGER.log(Level.INFO, "Disconnected asynchronous database connection to " + dbName);
+		}
 	}
 
 	/**
@@ -241,6 +1014,102 @@ public class MongoDBHelper implements ManagedService {
 							"Port provided, " + port + ", was not an integer. Using default port " + dbPort);
 				}
 			}
+
+			storageEngine = getStringConfig(STORAGE_ENGINE_KEY, (String) properties.get(STORAGE_ENGINE_KEY), storageEngine);
+
+			String indexes = (String) properties.get(CREATE_INDEXES_KEY);
+			if (indexes != null) {
+				createIndexes = Boolean.valueOf(indexes);
+				LOGGER.log(Level.FINEST, "Found createIndexes from the server config: " + createIndexes);
+			}
+
+			expiryMode = getChoiceConfig(EXPIRY_MODE_KEY, (String) properties.get(EXPIRY_MODE_KEY), expiryMode,
+					EXPIRY_MODE_CLEANUP, EXPIRY_MODE_TTL);
+			clientCacheSize = getIntConfig(CLIENT_CACHE_SIZE_KEY, (String) properties.get(CLIENT_CACHE_SIZE_KEY), clientCacheSize);
+			clientCacheTtl = getIntConfig(CLIENT_CACHE_TTL_KEY, (String) properties.get(CLIENT_CACHE_TTL_KEY), clientCacheTtl);
+			tokenCacheSize = getIntConfig(TOKEN_CACHE_SIZE_KEY, (String) properties.get(TOKEN_CACHE_SIZE_KEY), tokenCacheSize);
+			tokenCacheTtl = getIntConfig(TOKEN_CACHE_TTL_KEY, (String) properties.get(TOKEN_CACHE_TTL_KEY), tokenCacheTtl);
+			tokenNegativeCacheTtl = getIntConfig(TOKEN_NEGATIVE_CACHE_TTL_KEY,
+					(String) properties.get(TOKEN_NEGATIVE_CACHE_TTL_KEY), tokenNegativeCacheTtl);
+			String async = (String) properties.get(ASYNC_DRIVER_KEY);
+			if (async != null) {
+				asyncDriver = Boolean.valueOf(async);
+				LOGGER.log(Level.FINEST, "Found asyncDriver from the server config: " + asyncDriver);
+			}
+
+			writeBehind = getChoiceConfig(WRITE_BEHIND_KEY, (String) properties.get(WRITE_BEHIND_KEY), writeBehind,
+					WRITE_BEHIND_OFF, WRITE_BEHIND_SYNC, WRITE_BEHIND_ASYNC);
+			writeBehindBatchSize = getIntConfig(WRITE_BEHIND_BATCH_SIZE_KEY,
+					(String) properties.get(WRITE_BEHIND_BATCH_SIZE_KEY), writeBehindBatchSize);
+			writeBehindLinger = getIntConfig(WRITE_BEHIND_LINGER_KEY, (String) properties.get(WRITE_BEHIND_LINGER_KEY),
+					writeBehindLinger);
+			writeBehindQueueSize = getIntConfig(WRITE_BEHIND_QUEUE_SIZE_KEY,
+					(String) properties.get(WRITE_BEHIND_QUEUE_SIZE_KEY), writeBehindQueueSize);
+			idMode = getChoiceConfig(ID_MODE_KEY, (String) properties.get(ID_MODE_KEY), idMode, ID_MODE_GENERATED,
+					ID_MODE_DERIVED);
+			String replicaSetName = (String) properties.get(REPLICA_SET_KEY);
+			if (replicaSetName != null) {
+				replicaSet = replicaSetName;
+				LOGGER.log(Level.FINEST, "Found replicaSet from the server config: " + replicaSet);
+			}
+			listReadPreference = getChoiceConfig(LIST_READ_PREFERENCE_KEY, (String) properties.get(LIST_READ_PREFERENCE_KEY),
+					listReadPreference, READ_PREFERENCES);
+			String streaming = (String) properties.get(LIST_STREAMING_KEY);
+			if (streaming != null) {
+				listStreaming = Boolean.valueOf(streaming);
+				LOGGER.log(Level.FINEST, "Found listStreaming from the server config: " + listStreaming);
+			}
+			listBatchSize = getIntConfig(LIST_BATCH_SIZE_KEY, (String) properties.get(LIST_BATCH_SIZE_KEY), listBatchSize);
+			listExcludedFields = getStringConfig(LIST_EXCLUDED_FIELDS_KEY, (String) properties.get(LIST_EXCLUDED_FIELDS_KEY), listExcludedFields);
+			partitioning = getChoiceConfig(PARTITIONING_KEY, (String) properties.get(PARTITIONING_KEY), partitioning,
+					PARTITIONING_NONE, PARTITIONING_COLLECTION, PARTITIONING_DATABASE);
+			tokenBucketSize = getIntConfig(TOKEN_BUCKET_SIZE_KEY, (String) properties.get(TOKEN_BUCKET_SIZE_KEY), tokenBucketSize);
+			tokenBucketSizes = getStringConfig(TOKEN_BUCKET_SIZES_KEY, (String) properties.get(TOKEN_BUCKET_SIZES_KEY), tokenBucketSizes);
+			String filter = (String) properties.get(TOKEN_FILTER_KEY);
+			if (filter != null) {
+				tokenFilter = Boolean.valueOf(filter);
+				LOGGER.log(Level.FINEST, "Found tokenFilter from the server config: " + tokenFilter);
+			}
+			String metricsEnabled = (String) properties.get(METRICS_KEY);
+			if (metricsEnabled != null) {
+				metrics = Boolean.valueOf(metricsEnabled);
+				LOGGER.log(Level.FINEST, "Found metrics from the server config: " + metrics);
+			}
+			slowCommandThreshold = getIntConfig(SLOW_COMMAND_THRESHOLD_KEY, (String) properties.get(SLOW_COMMAND_THRESHOLD_KEY),
+					slowCommandThreshold);
+			String explain = (String) properties.get(SLOW_COMMAND_EXPLAIN_KEY);
+			if (explain != null) {
+				slowCommandExplain = Boolean.valueOf(explain);
+				LOGGER.log(Level.FINEST, "Found slowCommandExplain from the server config: " + slowCommandExplain);
+			}
+			offHeapSlabSize = getIntConfig(OFF_HEAP_SLAB_SIZE_KEY, (String) properties.get(OFF_HEAP_SLAB_SIZE_KEY), offHeapSlabSize);
+			offHeapMaxSize = getIntConfig(OFF_HEAP_MAX_SIZE_KEY, (String) properties.get(OFF_HEAP_MAX_SIZE_KEY), offHeapMaxSize);
+			logDirectory = getStringConfig(LOG_DIRECTORY_KEY, (String) properties.get(LOG_DIRECTORY_KEY), logDirectory);
+			logSegmentSize = getIntConfig(LOG_SEGMENT_SIZE_KEY, (String) properties.get(LOG_SEGMENT_SIZE_KEY), logSegmentSize);
+			logFsync = getChoiceConfig(LOG_FSYNC_KEY, (String) properties.get(LOG_FSYNC_KEY), logFsync, LOG_FSYNC_ALWAYS,
+					LOG_FSYNC_INTERVAL, LOG_FSYNC_NEVER);
+			logFsyncInterval = getIntConfig(LOG_FSYNC_INTERVAL_KEY, (String) properties.get(LOG_FSYNC_INTERVAL_KEY), logFsyncInterval);
+			logCompactionInterval = getIntConfig(LOG_COMPACTION_INTERVAL_KEY,
+					(String) properties.get(LOG_COMPACTION_INTERVAL_KEY), logCompactionInterval);
+			clientWriteConcern = getStringConfig(CLIENT_WRITE_CONCERN_KEY, (String) properties.get(CLIENT_WRITE_CONCERN_KEY), clientWriteConcern);
+			tokenWriteConcern = getStringConfig(TOKEN_WRITE_CONCERN_KEY, (String) properties.get(TOKEN_WRITE_CONCERN_KEY), tokenWriteConcern);
+			tokenWriteConcerns = getStringConfig(TOKEN_WRITE_CONCERNS_KEY, (String) properties.get(TOKEN_WRITE_CONCERNS_KEY), tokenWriteConcerns);
+			consentWriteConcern = getStringConfig(CONSENT_WRITE_CONCERN_KEY, (String) properties.get(CONSENT_WRITE_CONCERN_KEY), consentWriteConcern);
+			clientReadConcern = getStringConfig(CLIENT_READ_CONCERN_KEY, (String) properties.get(CLIENT_READ_CONCERN_KEY), clientReadConcern);
+			tokenReadConcern = getStringConfig(TOKEN_READ_CONCERN_KEY, (String) properties.get(TOKEN_READ_CONCERN_KEY), tokenReadConcern);
+			consentReadConcern = getStringConfig(CONSENT_READ_CONCERN_KEY, (String) properties.get(CONSENT_READ_CONCERN_KEY), consentReadConcern);
+			minPoolSize = getIntConfig(MIN_POOL_SIZE_KEY, (String) properties.get(MIN_POOL_SIZE_KEY), minPoolSize);
+			maxPoolSize = getIntConfig(MAX_POOL_SIZE_KEY, (String) properties.get(MAX_POOL_SIZE_KEY), maxPoolSize);
+			maxWaitQueueSize = getIntConfig(MAX_WAIT_QUEUE_SIZE_KEY, (String) properties.get(MAX_WAIT_QUEUE_SIZE_KEY), maxWaitQueueSize);
+			maxWaitTime = getIntConfig(MAX_WAIT_TIME_KEY, (String) properties.get(MAX_WAIT_TIME_KEY), maxWaitTime);
+			maxConnectionIdleTime = getIntConfig(MAX_CONNECTION_IDLE_TIME_KEY, (String) properties.get(MAX_CONNECTION_IDLE_TIME_KEY), maxConnectionIdleTime);
+			maxConnectionLifeTime = getIntConfig(MAX_CONNECTION_LIFE_TIME_KEY, (String) properties.get(MAX_CONNECTION_LIFE_TIME_KEY), maxConnectionLifeTime);
+			connectTimeout = getIntConfig(CONNECT_TIMEOUT_KEY, (String) properties.get(CONNECT_TIMEOUT_KEY), connectTimeout);
+			socketTimeout = getIntConfig(SOCKET_TIMEOUT_KEY, (String) properties.get(SOCKET_TIMEOUT_KEY), socketTimeout);
+			serverSelectionTimeout = getIntConfig(SERVER_SELECTION_TIMEOUT_KEY, (String) properties.get(SERVER_SELECTION_TIMEOUT_KEY), serverSelectionTimeout);
+			heartbeatFrequency = getIntConfig(HEARTBEAT_FREQUENCY_KEY, (String) properties.get(HEARTBEAT_FREQUENCY_KEY), heartbeatFrequency);
+			compressors = getStringConfig(COMPRESSORS_KEY, (String) properties.get(COMPRESSORS_KEY), compressors);
+			zlibCompressionLevel = getIntConfig(ZLIB_COMPRESSION_LEVEL_KEY, (String) properties.get(ZLIB_COMPRESSION_LEVEL_KEY), zlibCompressionLevel);
 		} else {
 			LOGGER.log(Level.FINEST, "Received ManagedService updated() call, but the properties map was null.");
 		}
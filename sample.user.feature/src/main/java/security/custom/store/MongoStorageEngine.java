@@ -0,0 +1,1543 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ * 
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License, 
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package security.custom.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthStore;
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * The StorageEngine that keeps the clients, tokens and consents in MongoDB. This is the
+ * default engine of the CustomStoreSample.
+ * </p>
+ * The database is connected through MongoDBHelper on the first call. Reads of clients
+ * and tokens are served from a StoreCache when possible, and token inserts can be
+ * batched by a BatchingTokenWriter. The tokens can be split into collections by expiry
+ * window, see TokenBuckets.
+ **/
+public class MongoStorageEngine implements StorageEngine {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(MongoStorageEngine.class.getName());
+
+	private final String partition; // null unless the engine serves one provider, see PartitionedStorageEngine
+	// Set last by their lazy initialization, which also sets the fields below. Each operation reads
+	// its collection field first, so it sees the fields set with it.
+	private volatile MongoCollection<Document> clientCollection = null;
+	private volatile MongoCollection<Document> tokenCollection = null;
+	private volatile MongoCollection<Document> consentCollection = null;
+	// The same collections, read and written with the codecs in getCodecRegistry.
+	private MongoCollection<OAuthClient> clientObjects = null;
+	private MongoCollection<OAuthToken> tokenObjects = null;
+	private MongoCollection<OAuthConsent> consentObjects = null;
+	private CodecRegistry codecRegistry = null;
+	private ReadPreference listReadPreference = null;
+	private Bson listProjection = null;
+	private ConcernPolicy concernPolicy = null;
+	private CausalSessions causalSessions = null; // only used when the list queries can read from secondaries
+	private IndexManager indexManager = null;
+	private StoreCache<OAuthClient> clientCache = null;
+	private StoreCache<OAuthToken> tokenCache = null;
+	private StoreCache<OAuthToken> missingTokenCache = null; // lookup keys that were not found
+	private BatchingTokenWriter tokenWriter = null;
+	private TokenBuckets tokenBuckets = null; // only used when the tokens are bucketed by expiry
+	private TokenFilter tokenFilter = null; // only used when the tokenFilter option is set
+	private AsyncMongoDBEngine asyncEngine = null;
+	private final ConcurrentHashMap<String, CompletableFuture<Long>> asyncCleanups = new ConcurrentHashMap<String, CompletableFuture<Long>>();
+
+	// Collection names in the database.
+	private final static String OAUTHCLIENT = "OauthClient";
+	private final static String OAUTHTOKEN = "OauthToken";
+	private final static String OAUTHCONSENT = "OauthConsent";
+
+	// Keys in the database. These are also used by the codecs, see AbstractStoreCodec.
+	final static String ID = "_id"; // ObjectId, or BsonBinary from DocumentIds in the derived idMode
+	final static String LOOKUPKEY = "LOOKUPKEY";
+	final static String UNIQUEID = "UNIQUEID";
+	final static String TYPE = "TYPE";
+	final static String SUBTYPE = "SUBTYPE";
+	final static String CREATEDAT = "CREATEDAT";
+	final static String LIFETIME = "LIFETIME";
+	final static String EXPIRES = "EXPIRES"; // long
+	final static String EXPIRESAT = "EXPIRESAT"; // Date, only written in the ttl expiry mode
+	final static String TOKENSTRING = "TOKENSTRING";
+	final static String CLIENTID = "CLIENTID";
+	final static String USERNAME = "USERNAME";
+	final static String SCOPE = "SCOPE";
+	final static String REDIRECTURI = "REDIRECTURI";
+	final static String STATEID = "STATEID";
+	final static String PROPS = "PROPS";
+	final static String RESOURCE = "RESOURCE";
+	final static String PROVIDERID = "PROVIDERID";
+	final static String CLIENTSECRET = "CLIENTSECRET";
+	final static String DISPLAYNAME = "DISPLAYNAME";
+	final static String ENABLED = "ENABLED";
+	final static String METADATA = "METADATA";
+	final static String DIGEST = "DIGEST"; // long, the hash of the other fields, see AbstractStoreCodec.digest
+
+	// Index names in the database.
+	private final static String CLIENT_KEY_INDEX = "CLIENTID_PROVIDERID";
+	private final static String TOKEN_KEY_INDEX = "LOOKUPKEY_PROVIDERID";
+	private final static String TOKEN_USER_INDEX = "USERNAME_PROVIDERID_CLIENTID";
+	private final static String TOKEN_EXPIRES_INDEX = "PROVIDERID_EXPIRES";
+	private final static String CONSENT_KEY_INDEX = "CLIENTID_USERNAME_RESOURCE_PROVIDERID";
+	private final static String CONSENT_EXPIRES_INDEX = "PROVIDERID_EXPIRES";
+	private final static String EXPIRESAT_TTL_INDEX = "EXPIRESAT_TTL";
+
+	/**
+	 * Selects the MongoStorageEngine by the name mongodb, see META-INF/services.
+	 */
+	public static class Provider implements StorageEngineProvider {
+		@Override
+		public String getName() {
+			return MongoDBHelper.STORAGE_ENGINE_MONGODB;
+		}
+
+		@Override
+		public StorageEngine createEngine() {
+			if (MongoDBHelper.PARTITIONING_NONE.equals(MongoDBHelper.getInstance().getPartitioning())) {
+				return new MongoStorageEngine();
+			}
+			return new PartitionedStorageEngine();
+		}
+	}
+
+	public MongoStorageEngine() {
+		this(null);
+	}
+
+	/**
+	 * @param partition The partition of the provider the engine serves, or null to serve all
+	 * providers from the shared collections. See PartitionedStorageEngine.
+	 */
+	public MongoStorageEngine(String partition) {
+		this.partition = partition;
+	}
+
+	/**
+	 * Helper method to get the database of the engine: the database of its partition in the
+	 * database partitioning mode, otherwise the configured database.
+	 * @return The MongoDatabase.
+	 */
+	private MongoDatabase getDatabase() {
+		MongoDBHelper helper = MongoDBHelper.getInstance();
+		if (partition != null && MongoDBHelper.PARTITIONING_DATABASE.equals(helper.getPartitioning())) {
+			return helper.getDB(partition);
+		}
+		return helper.getDB();
+	}
+
+	/**
+	 * Helper method to get the name of a collection of the engine. In the collection partitioning
+	 * mode, the partition name is appended.
+	 * @param name OAUTHCLIENT, OAUTHTOKEN or OAUTHCONSENT
+	 * @return The collection name.
+	 */
+	private String getCollectionName(String name) {
+		if (partition != null && MongoDBHelper.PARTITIONING_COLLECTION.equals(MongoDBHelper.getInstance().getPartitioning())) {
+			return name + "_" + partition;
+		}
+		return name;
+	}
+
+	/**
+	 * Writes any tokens still queued by the token writer.
+	 */
+	@Override
+	public synchronized void close() {
+		if (tokenFilter != null) {
+			tokenFilter.close();
+		}
+		if (tokenWriter != null) {
+			tokenWriter.close();
+			tokenWriter = null;
+		}
+	}
+
+	/**
+	 * Helper method to lazy initialize the collection for the OAuthClient collection
+	 * @return A MongoCollection for the OAuthClient collection.
+	 */
+	private MongoCollection<Document> getClientCollection() {
+		if (clientCollection == null) {
+			synchronized (this) {
+				if (clientCollection == null) {
+					prepareHelpers();
+					MongoCollection<Document> col = getDatabase().getCollection(getCollectionName(OAUTHCLIENT));
+					getIndexManager().ensureIndexes(col, getClientIndexes());
+					clientCache = new StoreCache<OAuthClient>(getCollectionName(OAUTHCLIENT), MongoDBHelper.getInstance().getClientCacheSize());
+					WriteConcern writeConcern = getConcernPolicy().getClientWriteConcern(col.getWriteConcern());
+					col = col.withReadConcern(getConcernPolicy().getClientReadConcern(col.getReadConcern()))
+							.withWriteConcern(ConcernPolicy.acknowledged(writeConcern));
+					clientObjects = col.withDocumentClass(OAuthClient.class).withCodecRegistry(getCodecRegistry())
+							.withWriteConcern(writeConcern);
+					clientCollection = col;
+				}
+			}
+		}
+		return clientCollection;
+	}
+
+	/**
+	 * Helper method to lazy initialize the collection for the OAuthToken collection
+	 * @return  A MongoCollection for the OAuthToken collection.
+	 */
+	private MongoCollection<Document> getTokenCollection() {
+		if (tokenCollection == null) {
+			synchronized (this) {
+				if (tokenCollection == null) {
+					prepareHelpers();
+					MongoCollection<Document> col = getDatabase().getCollection(getCollectionName(OAUTHTOKEN));
+					getIndexManager().ensureIndexes(col, getTokenIndexes());
+					MongoDBHelper helper = MongoDBHelper.getInstance();
+					tokenCache = new StoreCache<OAuthToken>(getCollectionName(OAUTHTOKEN), helper.getTokenCacheSize());
+					missingTokenCache = new StoreCache<OAuthToken>(getCollectionName(OAUTHTOKEN) + " not found",
+							helper.getTokenNegativeCacheTimeToLive() > 0 ? helper.getTokenCacheSize() : 0);
+					WriteConcern writeConcern = getConcernPolicy().getTokenWriteConcern(col.getWriteConcern());
+					col = col.withReadConcern(getConcernPolicy().getTokenReadConcern(col.getReadConcern()))
+							.withWriteConcern(ConcernPolicy.acknowledged(writeConcern));
+					tokenObjects = col.withDocumentClass(OAuthToken.class).withCodecRegistry(getCodecRegistry())
+							.withWriteConcern(writeConcern);
+					if (helper.getTokenBucketSize() > 0) {
+						tokenBuckets = new TokenBuckets(getDatabase(), getCollectionName(OAUTHTOKEN), this::prepareTokenBucket,
+								helper.getTokenBucketSize(), helper.getTokenBucketSizes());
+						if (!MongoDBHelper.WRITE_BEHIND_OFF.equals(helper.getWriteBehind())) {
+							LOGGER.log(Level.WARNING, "writeBehind is not supported with token buckets, the tokens are written directly");
+						}
+					} else if (!MongoDBHelper.WRITE_BEHIND_OFF.equals(helper.getWriteBehind())) {
+						tokenWriter = new BatchingTokenWriter(tokenObjects, getAsyncEngine(), getCausalSessions(), helper.getWriteBehindBatchSize(), helper.getWriteBehindLinger(),
+								helper.getWriteBehindQueueSize(), MongoDBHelper.WRITE_BEHIND_SYNC.equals(helper.getWriteBehind()));
+					}
+					if (helper.isTokenFilter()) {
+						if (tokenWriter != null) {
+							LOGGER.log(Level.WARNING,
+									"tokenFilter is not supported with writeBehind, readToken queries the database for every key");
+						} else {
+							tokenFilter = new TokenFilter(this::scanTokenKeysHelper);
+						}
+					}
+					tokenCollection = col;
+				}
+			}
+		}
+		return tokenCollection;
+	}
+
+	/**
+	 * Helper method to initialize the helpers that the operations get without a lock, so that
+	 * they are set before the collection field that publishes them. Call with the engine locked.
+	 */
+	private void prepareHelpers() {
+		getConcernPolicy();
+		getIndexManager();
+		getCodecRegistry();
+		getCausalSessions();
+		getListProjection();
+		getAsyncEngine();
+	}
+
+	/**
+	 * Helper method to set up a token bucket collection like the OAuthToken collection, see TokenBuckets.
+	 * @param col The bucket collection.
+	 * @return The bucket, read and written with the codecs and concerns of the OAuthToken collection.
+	 */
+	private MongoCollection<OAuthToken> prepareTokenBucket(MongoCollection<Document> col) {
+		getIndexManager().ensureIndexes(col, getTokenIndexes());
+		return col.withDocumentClass(OAuthToken.class).withCodecRegistry(getCodecRegistry())
+				.withReadConcern(tokenObjects.getReadConcern()).withWriteConcern(tokenObjects.getWriteConcern());
+	}
+
+	/**
+	 * Helper method to list the lookup keys of the stored tokens for the TokenFilter. Only the
+	 * key fields are read.
+	 * @param providerId The provider to list, or null for all providers.
+	 * @param keys Receives the provider ID and lookup key of each token.
+	 */
+	private void scanTokenKeysHelper(String providerId, BiConsumer<String, String> keys) {
+		Document query = providerId == null ? new Document() : new Document(PROVIDERID, providerId);
+		for (MongoCollection<OAuthToken> col : getTokenObjectsForRead()) {
+			for (Document doc : col.withDocumentClass(Document.class).find(query).projection(Projections.include(PROVIDERID, LOOKUPKEY))) {
+				keys.accept(doc.getString(PROVIDERID), doc.getString(LOOKUPKEY));
+			}
+		}
+	}
+
+	/**
+	 * Helper method to list the collections a token can be in: the token buckets that have not
+	 * been dropped, the first to expire first, and the OAuthToken collection, which holds the
+	 * tokens that do not expire and the tokens written before the buckets were enabled.
+	 * @return The token collections.
+	 */
+	private List<MongoCollection<OAuthToken>> getTokenObjectsForRead() {
+		if (tokenBuckets == null) {
+			return Collections.singletonList(tokenObjects);
+		}
+		List<MongoCollection<OAuthToken>> cols = new ArrayList<MongoCollection<OAuthToken>>();
+		for (TokenBuckets.Bucket bucket : tokenBuckets.getBuckets()) {
+			cols.add(bucket.getObjects());
+		}
+		cols.add(tokenObjects);
+		return cols;
+	}
+
+	/**
+	 * Helper method to lazy initialize the collection for the OAuthConsent collection
+	 * @return  A MongoCollection for the OAuthConsent collection.
+	 */
+	private MongoCollection<Document> getConsentCollection() {
+		if (consentCollection == null) {
+			synchronized (this) {
+				if (consentCollection == null) {
+					prepareHelpers();
+					MongoCollection<Document> col = getDatabase().getCollection(getCollectionName(OAUTHCONSENT));
+					getIndexManager().ensureIndexes(col, getConsentIndexes());
+					WriteConcern writeConcern = getConcernPolicy().getConsentWriteConcern(col.getWriteConcern());
+					col = col.withReadConcern(getConcernPolicy().getConsentReadConcern(col.getReadConcern()))
+							.withWriteConcern(ConcernPolicy.acknowledged(writeConcern));
+					consentObjects = col.withDocumentClass(OAuthConsent.class).withCodecRegistry(getCodecRegistry())
+							.withWriteConcern(writeConcern);
+					consentCollection = col;
+				}
+			}
+		}
+		return consentCollection;
+	}
+
+	/**
+	 * Helper method to lazy initialize the CodecRegistry used to read and write the OAuthStore
+	 * objects. The codecs stream the fields directly to and from BSON, without building a
+	 * Document first. The default registry is kept for the other types, like the filters.
+	 * The database must already be connected so that the configuration has been loaded.
+	 * @return The CodecRegistry for the OAuthStore objects.
+	 */
+	private CodecRegistry getCodecRegistry() {
+		if (codecRegistry == null) {
+			boolean ttlExpiry = MongoDBHelper.getInstance().isTtlExpiry();
+			boolean derivedIds = MongoDBHelper.getInstance().isDerivedIds();
+			codecRegistry = CodecRegistries.fromRegistries(
+					CodecRegistries.fromCodecs(new OAuthClientCodec(derivedIds), new OAuthTokenCodec(ttlExpiry, derivedIds),
+							new OAuthConsentCodec(ttlExpiry, derivedIds)),
+					MongoClientSettings.getDefaultCodecRegistry());
+		}
+		return codecRegistry;
+	}
+
+	/**
+	 * The cache used by readClient. The hit, miss and eviction counts of the cache can be used
+	 * to tune its size.
+	 * @return The client cache, or null if no OAuthClient operation has been done yet.
+	 */
+	public StoreCache<OAuthClient> getClientCache() {
+		return clientCache;
+	}
+
+	/**
+	 * The cache used by readToken for the tokens that were found.
+	 * @return The token cache, or null if no OAuthToken operation has been done yet.
+	 */
+	public StoreCache<OAuthToken> getTokenCache() {
+		return tokenCache;
+	}
+
+	/**
+	 * The cache used by readToken for the lookup keys that were not found. Its hits are the
+	 * readToken calls for unknown tokens that did not go to the database.
+	 * @return The negative token cache, or null if no OAuthToken operation has been done yet.
+	 */
+	public StoreCache<OAuthToken> getMissingTokenCache() {
+		return missingTokenCache;
+	}
+
+	/**
+	 * Helper method to cache a token that was read or created. The token is cached until
+	 * it expires or the token cache time to live passes, whichever comes first.
+	 * @param cacheKey
+	 * @param oauthToken
+	 * @param stamp The generation of the key in the token cache, taken before the token was read or written.
+	 */
+	private void cacheToken(String cacheKey, OAuthToken oauthToken, long stamp) {
+		long expiresAt = System.currentTimeMillis() + MongoDBHelper.getInstance().getTokenCacheTimeToLive() * 1000L;
+		if (oauthToken.getExpires() > 0 && oauthToken.getExpires() < expiresAt) {
+			expiresAt = oauthToken.getExpires();
+		}
+		tokenCache.put(cacheKey, oauthToken, expiresAt, stamp);
+	}
+
+	/**
+	 * Helper method to remove a token from both token caches.
+	 * @param cacheKey
+	 */
+	private void invalidateToken(String cacheKey) {
+		tokenCache.invalidate(cacheKey);
+		missingTokenCache.invalidate(cacheKey);
+	}
+
+	/**
+	 * Helper method to wait until a token queued by the token writer has been written, so
+	 * that an update or delete of the token is not overtaken by its insert.
+	 * @param cacheKey
+	 */
+	private void awaitPendingToken(String cacheKey) {
+		if (tokenWriter != null) {
+			tokenWriter.awaitPending(cacheKey);
+		}
+	}
+
+	/**
+	 * Helper method to lazy initialize the AsyncMongoDBEngine. The database must already be
+	 * connected so that the configuration has been loaded.
+	 * @return The AsyncMongoDBEngine, or null if the asynchronous driver is not enabled.
+	 */
+	private AsyncMongoDBEngine getAsyncEngine() {
+		MongoDBHelper helper = MongoDBHelper.getInstance();
+		if (asyncEngine == null && helper.isAsyncDriver()) {
+			com.mongodb.reactivestreams.client.MongoDatabase db = partition != null
+					&& MongoDBHelper.PARTITIONING_DATABASE.equals(helper.getPartitioning()) ? helper.getAsyncDB(partition)
+							: helper.getAsyncDB();
+			asyncEngine = new AsyncMongoDBEngine(db.withCodecRegistry(getCodecRegistry()));
+		}
+		return asyncEngine;
+	}
+
+	/**
+	 * Helper method to lazy initialize the ConcernPolicy. The database must already be connected
+	 * so that the configuration has been loaded.
+	 * @return The ConcernPolicy.
+	 */
+	private ConcernPolicy getConcernPolicy() {
+		if (concernPolicy == null) {
+			concernPolicy = new ConcernPolicy(MongoDBHelper.getInstance());
+		}
+		return concernPolicy;
+	}
+
+	/**
+	 * Helper method to get the token collection with the write concern for a token, see ConcernPolicy.
+	 * When the tokens are bucketed, this is the bucket of the token.
+	 * @param oauthToken
+	 * @return The collection to create or update the token with.
+	 */
+	private MongoCollection<OAuthToken> getTokenObjects(OAuthToken oauthToken) {
+		MongoCollection<OAuthToken> col = tokenObjects;
+		TokenBuckets.Bucket bucket = tokenBuckets == null ? null : tokenBuckets.bucketFor(oauthToken);
+		if (bucket != null) {
+			col = bucket.getObjects();
+		}
+		WriteConcern writeConcern = getConcernPolicy().getTokenWriteConcern(oauthToken, col.getWriteConcern());
+		return writeConcern.equals(col.getWriteConcern()) ? col : col.withWriteConcern(writeConcern);
+	}
+
+	/**
+	 * Helper method to lazy initialize the read preference of the list queries. The database must
+	 * already be connected so that the configuration has been loaded.
+	 * @return The read preference of readAllClients, readAllTokens and countTokens.
+	 */
+	private ReadPreference getListReadPreference() {
+		if (listReadPreference == null) {
+			listReadPreference = MongoDBHelper.getInstance().getListReadPreference();
+		}
+		return listReadPreference;
+	}
+
+	/**
+	 * Helper method to lazy initialize the CausalSessions. They are only needed when the list queries
+	 * can read from a secondary, which may not have replicated the latest writes yet.
+	 * @return The CausalSessions, or null if the list queries read from the primary.
+	 */
+	private CausalSessions getCausalSessions() {
+		if (causalSessions == null && !ReadPreference.primary().equals(getListReadPreference())) {
+			causalSessions = new CausalSessions(MongoDBHelper.getInstance().getClient());
+		}
+		return causalSessions;
+	}
+
+	/**
+	 * Helper method to lazy initialize the projection of the list queries from the listExcludedFields
+	 * option. The database must already be connected so that the configuration has been loaded.
+	 * @return The projection, or null to return all fields.
+	 */
+	private Bson getListProjection() {
+		String excluded = MongoDBHelper.getInstance().getListExcludedFields();
+		if (listProjection == null && excluded != null) {
+			List<String> fields = new ArrayList<String>();
+			for (String field : excluded.split(",")) {
+				if (!field.trim().isEmpty()) {
+					fields.add(field.trim());
+				}
+			}
+			listProjection = fields.isEmpty() ? null : Projections.exclude(fields);
+		}
+		return listProjection;
+	}
+
+	/**
+	 * Helper method to apply the batch size and the projection of the list queries to a query.
+	 * @param find
+	 * @return The query.
+	 */
+	private <T> FindIterable<T> listOptionsHelper(FindIterable<T> find) {
+		// Let the server close a streamed cursor that the caller stopped reading, see CursorCollection
+		find.noCursorTimeout(false);
+		int batchSize = MongoDBHelper.getInstance().getListBatchSize();
+		if (batchSize > 0) {
+			find.batchSize(batchSize);
+		}
+		Bson projection = getListProjection();
+		return projection == null ? find : find.projection(projection);
+	}
+
+	/**
+	 * Helper method to run a list query, in a causally consistent session when one is needed.
+	 * </p>
+	 * With listStreaming enabled, the results are returned as a CursorCollection that reads them
+	 * from the open cursor as the caller iterates. The session stays open until the first iterator
+	 * has returned the last result. Otherwise all the results are read into the given collection.
+	 * @param col The collection to query, with the read preference of the list queries.
+	 * @param filter
+	 * @param results The empty collection to read the results into when they are not streamed.
+	 * @return The results, or null if there are none.
+	 */
+	private <T> Collection<T> readAllHelper(MongoCollection<T> col, Bson filter, Collection<T> results) {
+		ClientSession session = startSession();
+		MongoCursor<T> cursor = null;
+		boolean streaming = false;
+		try {
+			cursor = listOptionsHelper(session == null ? col.find(filter) : col.find(session, filter)).iterator();
+			if (!cursor.hasNext()) {
+				return null;
+			}
+			if (MongoDBHelper.getInstance().isListStreaming()) {
+				streaming = true;
+				return new CursorCollection<T>(cursor, listOptionsHelper(col.find(filter)), () -> col.countDocuments(filter),
+						() -> endSession(session));
+			}
+			while (cursor.hasNext()) {
+				results.add(cursor.next());
+			}
+			return results;
+		} finally {
+			if (!streaming) {
+				if (cursor != null) {
+					cursor.close();
+				}
+				endSession(session);
+			}
+		}
+	}
+
+	/**
+	 * Helper method to start a causally consistent session for a write of a token or client, or for
+	 * a list query.
+	 * @return The session, or null if the list queries read from the primary and no session is needed.
+	 */
+	private ClientSession startSession() {
+		CausalSessions sessions = getCausalSessions();
+		return sessions == null ? null : sessions.start();
+	}
+
+	/**
+	 * Helper method to start a causally consistent session for a write to a collection. Unacknowledged
+	 * writes can not run in a session and do not get one.
+	 * @param col The collection to write to.
+	 * @return The session, or null if no session is needed or possible.
+	 */
+	private ClientSession startSession(MongoCollection<?> col) {
+		return col.getWriteConcern().isAcknowledged() ? startSession() : null;
+	}
+
+	/**
+	 * Helper method to end a session started by startSession.
+	 * @param session The session, may be null.
+	 */
+	private void endSession(ClientSession session) {
+		if (session != null) {
+			causalSessions.end(session);
+		}
+	}
+
+	/**
+	 * Helper method to insert a document, in a causally consistent session when one is needed.
+	 */
+	private <T> void insertOneHelper(MongoCollection<T> col, T value) {
+		ClientSession session = startSession(col);
+		try {
+			if (session == null) {
+				col.insertOne(value);
+			} else {
+				col.insertOne(session, value);
+			}
+		} finally {
+			endSession(session);
+		}
+	}
+
+	/**
+	 * Helper method to replace a document, in a causally consistent session when one is needed.
+	 */
+	private <T> UpdateResult replaceOneHelper(MongoCollection<T> col, Bson filter, T value) {
+		ClientSession session = startSession(col);
+		try {
+			return session == null ? col.replaceOne(filter, value) : col.replaceOne(session, filter, value);
+		} finally {
+			endSession(session);
+		}
+	}
+
+	/**
+	 * Helper method to update a document, in a causally consistent session when one is needed.
+	 */
+	private <T> UpdateResult updateOneHelper(MongoCollection<T> col, Bson filter, Bson update) {
+		ClientSession session = startSession(col);
+		try {
+			return session == null ? col.updateOne(filter, update) : col.updateOne(session, filter, update);
+		} finally {
+			endSession(session);
+		}
+	}
+
+	/**
+	 * Helper method to delete a document, in a causally consistent session when one is needed.
+	 */
+	private <T> DeleteResult deleteOneHelper(MongoCollection<T> col, Bson filter) {
+		ClientSession session = startSession(col);
+		try {
+			return session == null ? col.deleteOne(filter) : col.deleteOne(session, filter);
+		} finally {
+			endSession(session);
+		}
+	}
+
+	/**
+	 * Helper method to lazy initialize the IndexManager. The database must already be
+	 * connected so that the configuration has been loaded.
+	 * @return The IndexManager for the collections.
+	 */
+	private IndexManager getIndexManager() {
+		if (indexManager == null) {
+			indexManager = new IndexManager(MongoDBHelper.getInstance().isCreateIndexes());
+		}
+		return indexManager;
+	}
+
+	/**
+	 * The indexes for the OAuthClient collection. The key index matches createClientKeyHelper
+	 * and is unique, as a client ID can only be registered once per provider. In the derived
+	 * idMode the _id index takes its place.
+	 * @return The expected indexes.
+	 */
+	private List<IndexModel> getClientIndexes() {
+		if (MongoDBHelper.getInstance().isDerivedIds()) {
+			return new ArrayList<IndexModel>();
+		}
+		return Arrays.asList(new IndexModel(Indexes.ascending(CLIENTID, PROVIDERID),
+				new IndexOptions().name(CLIENT_KEY_INDEX).unique(true)));
+	}
+
+	/**
+	 * The indexes for the OAuthToken collection.
+	 * <ul>
+	 * <li>The key index matches createTokenKeyHelper and is unique, as lookup keys are unique per provider.
+	 * In the derived idMode the _id index takes its place.</li>
+	 * <li>The user index serves readAllTokens (on its USERNAME, PROVIDERID prefix) and countTokens.</li>
+	 * <li>The expires index serves the expired token cleanup in deleteTokens.</li>
+	 * <li>In the ttl expiry mode, the TTL index lets MongoDB remove the expired tokens.</li>
+	 * </ul>
+	 * @return The expected indexes.
+	 */
+	private List<IndexModel> getTokenIndexes() {
+		List<IndexModel> indexes = new ArrayList<IndexModel>(Arrays.asList(
+				new IndexModel(Indexes.ascending(USERNAME, PROVIDERID, CLIENTID),
+						new IndexOptions().name(TOKEN_USER_INDEX)),
+				new IndexModel(Indexes.ascending(PROVIDERID, EXPIRES), new IndexOptions().name(TOKEN_EXPIRES_INDEX))));
+		if (!MongoDBHelper.getInstance().isDerivedIds()) {
+			indexes.add(0, new IndexModel(Indexes.ascending(LOOKUPKEY, PROVIDERID),
+					new IndexOptions().name(TOKEN_KEY_INDEX).unique(true)));
+		}
+		if (MongoDBHelper.getInstance().isTtlExpiry()) {
+			indexes.add(createTtlIndex());
+		}
+		return indexes;
+	}
+
+	/**
+	 * The indexes for the OAuthConsent collection. The key index matches createConsentKeyHelper.
+	 * It is not unique as the store does not prevent the same consent from being created twice.
+	 * In the derived idMode the _id index takes its place.
+	 * @return The expected indexes.
+	 */
+	private List<IndexModel> getConsentIndexes() {
+		List<IndexModel> indexes = new ArrayList<IndexModel>(Arrays.asList(
+				new IndexModel(Indexes.ascending(PROVIDERID, EXPIRES), new IndexOptions().name(CONSENT_EXPIRES_INDEX))));
+		if (!MongoDBHelper.getInstance().isDerivedIds()) {
+			indexes.add(0, new IndexModel(Indexes.ascending(CLIENTID, USERNAME, RESOURCE, PROVIDERID),
+					new IndexOptions().name(CONSENT_KEY_INDEX)));
+		}
+		if (MongoDBHelper.getInstance().isTtlExpiry()) {
+			indexes.add(createTtlIndex());
+		}
+		return indexes;
+	}
+
+	/**
+	 * The TTL index used in the ttl expiry mode. MongoDB removes a document once the time in
+	 * its EXPIRESAT field has passed. The TTL monitor runs about once a minute, so expired
+	 * documents can still be read for a short time after they expire.
+	 * @return The TTL index.
+	 */
+	private IndexModel createTtlIndex() {
+		return new IndexModel(Indexes.ascending(EXPIRESAT),
+				new IndexOptions().name(EXPIRESAT_TTL_INDEX).expireAfter(0L, TimeUnit.SECONDS));
+	}
+
+	@Override
+	public void create(OAuthClient oauthClient) throws OAuthStoreException {
+		try {
+			getClientCollection();
+			insertOneHelper(clientObjects, oauthClient);
+			clientCache.invalidate(createCacheKey(oauthClient.getProviderId(), oauthClient.getClientId()));
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed to process create on OAuthClient " + oauthClient.getClientId(), e);
+		}
+		LOGGER.log(Level.INFO, "Created OAuthClient: " + toString(oauthClient));
+	}
+
+	@Override
+	public void create(OAuthToken oauthToken) throws OAuthStoreException {
+		try {
+			getTokenCollection();
+			String cacheKey = createCacheKey(oauthToken.getProviderId(), oauthToken.getLookupKey());
+			long stamp = tokenCache.stamp(cacheKey);
+			long filterRebuilds = 0;
+			if (tokenFilter != null) {
+				// Before the insert, so a concurrent readToken can not skip a stored token. A failed insert only leaves a false positive.
+				filterRebuilds = tokenFilter.add(oauthToken.getProviderId(), oauthToken.getLookupKey());
+			}
+			if (tokenWriter != null) {
+				tokenWriter.insert(cacheKey, oauthToken);
+			} else {
+				insertOneHelper(getTokenObjects(oauthToken), oauthToken);
+			}
+			if (tokenFilter != null) {
+				tokenFilter.confirm(oauthToken.getProviderId(), oauthToken.getLookupKey(), filterRebuilds);
+			}
+			missingTokenCache.invalidate(cacheKey);
+			cacheToken(cacheKey, oauthToken, stamp);
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed to process create on OAuthToken " + oauthToken.getClientId(), e);
+		}
+		LOGGER.log(Level.INFO, "Created OAuthToken: " + toString(oauthToken));
+	}
+
+	@Override
+	public void create(OAuthConsent oauthConsent) throws OAuthStoreException {
+		try {
+			getConsentCollection();
+			if (MongoDBHelper.getInstance().isDerivedIds()) {
+				// The _id is unique, so a consent given again replaces the existing one instead of failing.
+				consentObjects.replaceOne(createConsentKeyHelper(oauthConsent), oauthConsent, new ReplaceOptions().upsert(true));
+			} else {
+				consentObjects.insertOne(oauthConsent);
+			}
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed to process create on OAuthConsent " + oauthConsent.getClientId(), e);
+		}
+		LOGGER.log(Level.INFO, "Created OAuthConsent: " + toString(oauthConsent));
+	}
+
+	@Override
+	public OAuthClient readClient(String providerId, String clientId) throws OAuthStoreException {
+		try {
+			getClientCollection();
+			String cacheKey = createCacheKey(providerId, clientId);
+			StoreCache.Entry<OAuthClient> cached = clientCache.get(cacheKey);
+			if (cached != null) {
+				LOGGER.log(Level.FINEST, "readClient Found clientId " + clientId + " under " + providerId + " in the cache");
+				return cached.getValue();
+			}
+
+			// Taken before the find, so the client is not cached if it is updated or deleted meanwhile
+			long stamp = clientCache.stamp(cacheKey);
+			OAuthClient client = clientObjects.find(createClientKeyHelper(providerId, clientId)).limit(1).first();
+			if (client == null) {
+				LOGGER.log(Level.FINEST, "readClient Did not find clientId " + clientId + " under " + providerId);
+				return null;
+			}
+			
+			LOGGER.log(Level.FINEST, "Found clientId " + clientId + " under " + providerId);
+			clientCache.put(cacheKey, client,
+					System.currentTimeMillis() + MongoDBHelper.getInstance().getClientCacheTimeToLive() * 1000L, stamp);
+			return client;
+
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed to readClient " + clientId + " under " + providerId, e);
+		}
+	}
+
+	@Override
+	public Collection<OAuthClient> readAllClients(String providerId, String attribute) throws OAuthStoreException {
+		Collection<OAuthClient> results = null;
+
+		try {
+			getClientCollection();
+
+			if (attribute == null || attribute.isEmpty()) {
+				MongoCollection<OAuthClient> col = clientObjects.withReadPreference(getListReadPreference());
+				results = readAllHelper(col, new Document(PROVIDERID, providerId), new HashSet<OAuthClient>());
+			} else {
+				LOGGER.log(Level.WARNING, "Attribute on readAllClients not implemented");
+				// TODO Need to create query to check for all clients that
+				// contain 'attribute' in metadata.
+			}
+
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on readAllClients found under " + providerId, e);
+		}
+		return results;
+	}
+
+	@Override
+	public OAuthToken readToken(String providerId, String lookupKey) throws OAuthStoreException {
+		try {
+			getTokenCollection();
+			String cacheKey = createCacheKey(providerId, lookupKey);
+			// Taken before any lookup, so the result is not cached if the token is created, updated or deleted meanwhile
+			long stamp = tokenCache.stamp(cacheKey);
+			long missingStamp = missingTokenCache.stamp(cacheKey);
+			StoreCache.Entry<OAuthToken> cached = tokenCache.get(cacheKey);
+			if (cached == null && tokenWriter != null) {
+				OAuthToken pendingToken = tokenWriter.getPending(cacheKey);
+				if (pendingToken != null) {
+					LOGGER.log(Level.FINEST, "readToken Found lookupKey " + lookupKey + " under " + providerId + " waiting to be written");
+					return pendingToken;
+				}
+			}
+			if (cached == null) {
+				cached = missingTokenCache.get(cacheKey);
+			}
+			if (cached != null) {
+				LOGGER.log(Level.FINEST, "readToken Found lookupKey " + lookupKey + " under " + providerId + " in the cache, found="
+						+ (cached.getValue() != null));
+				return cached.getValue();
+			}
+
+			if (tokenFilter != null && !tokenFilter.mightContain(providerId, lookupKey)) {
+				LOGGER.log(Level.FINEST, "readToken lookupKey " + lookupKey + " under " + providerId + " is not in the token filter");
+				return null;
+			}
+			OAuthToken token = findTokenHelper(createTokenKeyHelper(providerId, lookupKey));
+			if (token == null) {
+				LOGGER.log(Level.FINEST, "readToken Did not find lookupKey " + lookupKey);
+				if (tokenFilter != null && tokenFilter.isReady()) {
+					tokenFilter.recordFalsePositive();
+				}
+				missingTokenCache.put(cacheKey, null,
+						System.currentTimeMillis() + MongoDBHelper.getInstance().getTokenNegativeCacheTimeToLive() * 1000L,
+						missingStamp);
+				return null;
+			}
+			LOGGER.log(Level.FINEST, "readToken Found lookupKey " + lookupKey + " under " + providerId);
+			cacheToken(cacheKey, token, stamp);
+			return token;
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed to readToken " + lookupKey, e);
+		}
+	}
+
+	/**
+	 * Helper method to find a token in the token collections, see getTokenObjectsForRead.
+	 * @param filter
+	 * @return The token, or null if it is not found.
+	 */
+	private OAuthToken findTokenHelper(Bson filter) {
+		for (MongoCollection<OAuthToken> col : getTokenObjectsForRead()) {
+			OAuthToken token = col.find(filter).limit(1).first();
+			if (token != null) {
+				return token;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Collection<OAuthToken> readAllTokens(String providerId, String username) throws OAuthStoreException {
+		try {
+			getTokenCollection();
+			Document d = new Document(USERNAME, username);
+			d.append(PROVIDERID, providerId);
+			if (tokenBuckets != null) {
+				return readAllBucketsHelper(d);
+			}
+			MongoCollection<OAuthToken> col = tokenObjects.withReadPreference(getListReadPreference());
+			return readAllHelper(col, d, new ArrayList<OAuthToken>());
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed to readAllTokens for " + username + " under " + providerId, e);
+		}
+	}
+
+	/**
+	 * Helper method to read the tokens that match a filter from all the token buckets, in one
+	 * causally consistent session when one is needed. The results are not streamed.
+	 * @param filter
+	 * @return The tokens, or null if there are none.
+	 */
+	private Collection<OAuthToken> readAllBucketsHelper(Bson filter) {
+		ClientSession session = startSession();
+		try {
+			List<OAuthToken> results = new ArrayList<OAuthToken>();
+			for (MongoCollection<OAuthToken> col : getTokenObjectsForRead()) {
+				col = col.withReadPreference(getListReadPreference());
+				listOptionsHelper(session == null ? col.find(filter) : col.find(session, filter)).into(results);
+			}
+			return results.isEmpty() ? null : results;
+		} finally {
+			endSession(session);
+		}
+	}
+
+	@Override
+	public int countTokens(String providerId, String username, String clientId) throws OAuthStoreException {
+		ClientSession session = null;
+		try {
+			getTokenCollection();
+			Document d = new Document(USERNAME, username);
+			d.append(PROVIDERID, providerId);
+			d.append(CLIENTID, clientId);
+			session = startSession();
+			long count = 0; // mongoDB returns as a long
+			for (MongoCollection<OAuthToken> col : getTokenObjectsForRead()) {
+				col = col.withReadPreference(getListReadPreference());
+				count += session == null ? col.countDocuments(d) : col.countDocuments(session, d);
+			}
+			return (int) count;
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on countTokens for " + username, e);
+		} finally {
+			endSession(session);
+		}
+	}
+
+	@Override
+	public OAuthConsent readConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		try {
+			getConsentCollection();
+			OAuthConsent consent = consentObjects.find(createConsentKeyHelper(providerId, username, clientId, resource)).limit(1).first();
+			if (consent == null) {
+				LOGGER.log(Level.FINEST, "readConsent Did not find username " + username);
+				return null;
+			}
+			LOGGER.log(Level.FINEST, "readConsent Found clientId " + clientId + " under " + providerId);
+			return consent;
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on readConsent for " + username, e);
+		}
+	}
+	
+	@Override
+	public void update(OAuthClient oauthClient) throws OAuthStoreException {
+		try {
+			getClientCollection();
+			// Invalidate before and after the update. The second invalidate also stops a readClient
+			// that found the old client during the update from caching it, see StoreCache.stamp.
+			String cacheKey = createCacheKey(oauthClient.getProviderId(), oauthClient.getClientId());
+			// Only the changed fields are sent when the client cache holds the client, see updateChangedFields.
+			StoreCache.Entry<OAuthClient> baseline = clientCache.get(cacheKey);
+			clientCache.invalidate(cacheKey);
+			UpdateResult result = baseline == null
+					? replaceOneHelper(clientObjects, createClientKeyHelper(oauthClient), oauthClient)
+					: updateChangedFields(clientObjects, createClientKeyHelper(oauthClient), baseline.getValue(), oauthClient);
+			clientCache.invalidate(cacheKey);
+			logUpdate("OAuthClient", toString(oauthClient), result);
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on update for OAuthClient for " + oauthClient.getClientId(), e);
+		}
+	}
+
+	@Override
+	public void update(OAuthToken oauthToken) throws OAuthStoreException {
+		try {
+			getTokenCollection();
+			// Invalidate before and after the update. The second invalidate also stops a readToken
+			// that found the old token during the update from caching it, see StoreCache.stamp.
+			String cacheKey = createCacheKey(oauthToken.getProviderId(), oauthToken.getLookupKey());
+			awaitPendingToken(cacheKey);
+			// Only the changed fields are sent when the token cache holds the token, see updateChangedFields.
+			StoreCache.Entry<OAuthToken> baseline = tokenCache.get(cacheKey);
+			invalidateToken(cacheKey);
+			UpdateResult result = baseline == null
+					? replaceOneHelper(getTokenObjects(oauthToken), createTokenKeyHelper(oauthToken), oauthToken)
+					: updateChangedFields(getTokenObjects(oauthToken), createTokenKeyHelper(oauthToken), baseline.getValue(), oauthToken);
+			if (tokenBuckets != null && result.wasAcknowledged() && result.getMatchedCount() == 0) {
+				result = moveTokenHelper(oauthToken);
+			}
+			invalidateToken(cacheKey);
+			logUpdate("OAuthToken", toString(oauthToken), result);
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on update for OAuthToken for " + oauthToken.getClientId(), e);
+		}
+	}
+
+	@Override
+	public void update(OAuthConsent oauthConsent) throws OAuthStoreException {
+		try {
+			getConsentCollection();
+			// Consents are not cached, so there is no baseline to compare with.
+			UpdateResult result = consentObjects.replaceOne(createConsentKeyHelper(oauthConsent), oauthConsent);
+			logUpdate("OAuthConsent", toString(oauthConsent), result);
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on update for OAuthConsent for " + oauthConsent.getClientId(), e);
+		}
+	}
+
+	/**
+	 * Helper method to move a token to the bucket of its new expiry time. The token is deleted
+	 * from the bucket it is found in and inserted into its new bucket.
+	 * @param oauthToken The updated token.
+	 * @return The result of the update, matching 0 documents if the token was not found.
+	 */
+	private UpdateResult moveTokenHelper(OAuthToken oauthToken) {
+		MongoCollection<OAuthToken> target = getTokenObjects(oauthToken);
+		Bson filter = createTokenKeyHelper(oauthToken);
+		for (MongoCollection<OAuthToken> col : getTokenObjectsForRead()) {
+			if (!col.getNamespace().equals(target.getNamespace())
+					&& deleteOneHelper(acknowledged(col), filter).getDeletedCount() > 0) {
+				LOGGER.log(Level.FINEST, "Moving token " + oauthToken.getLookupKey() + " from "
+						+ col.getNamespace().getCollectionName() + " to " + target.getNamespace().getCollectionName());
+				insertOneHelper(target, oauthToken);
+				return UpdateResult.acknowledged(1, 1L, null);
+			}
+		}
+		return UpdateResult.acknowledged(0, 0L, null);
+	}
+
+	/**
+	 * Helper method to get a collection with a write concern that reports the result of a delete.
+	 * @param col
+	 * @return The collection, with W1 instead of an unacknowledged write concern.
+	 */
+	private static <T> MongoCollection<T> acknowledged(MongoCollection<T> col) {
+		WriteConcern writeConcern = ConcernPolicy.acknowledged(col.getWriteConcern());
+		return writeConcern.equals(col.getWriteConcern()) ? col : col.withWriteConcern(writeConcern);
+	}
+
+	/**
+	 * Helper method to update only the fields of a document that changed. Both versions of the
+	 * object are encoded with the codec of the collection, and only the fields whose encoded value
+	 * differs are sent in a $set, or a $unset for fields the new version no longer writes.
+	 * </p>
+	 * The baseline is the cached copy of the object, so the partial update is only used when the
+	 * client or token cache is enabled and holds the object; otherwise the caller replaces the
+	 * whole document. The cached copy may be stale, so the update only matches the document while
+	 * its DIGEST field still holds the digest of the baseline. The digest changes with any field,
+	 * and the $set writes the digest of the updated object along with the changed fields.
+	 * Otherwise, when no field changed, or when the write concern does not report a match, the
+	 * whole object is replaced instead, so the document always ends up holding the updated object.
+	 * Documents written without a DIGEST field are replaced on their first update.
+	 * @param col The collection, typed on the object class.
+	 * @param filter The filter for the document.
+	 * @param baseline The version of the object the document is expected to hold.
+	 * @param updated The new version of the object.
+	 * @return The result of the update or of the replace.
+	 */
+	private <T> UpdateResult updateChangedFields(MongoCollection<T> col, Bson filter, T baseline, T updated) {
+		if (!col.getWriteConcern().isAcknowledged()) {
+			return replaceOneHelper(col, filter, updated);
+		}
+		Codec<T> codec = col.getCodecRegistry().get(col.getDocumentClass());
+		BsonDocument before = encodeHelper(codec, baseline);
+		BsonDocument after = encodeHelper(codec, updated);
+
+		BsonValue digest = before.get(DIGEST);
+		if (digest == null) {
+			return replaceOneHelper(col, filter, updated);
+		}
+
+		Document set = new Document();
+		for (Map.Entry<String, BsonValue> field : after.entrySet()) {
+			if (!ID.equals(field.getKey()) && !field.getValue().equals(before.get(field.getKey()))) {
+				set.append(field.getKey(), field.getValue());
+			}
+		}
+		Document unset = new Document();
+		for (String name : before.keySet()) {
+			if (!after.containsKey(name)) {
+				unset.append(name, "");
+			}
+		}
+		if (set.isEmpty() && unset.isEmpty()) {
+			return replaceOneHelper(col, filter, updated);
+		}
+
+		Document update = new Document();
+		if (!set.isEmpty()) {
+			update.append("$set", set);
+		}
+		if (!unset.isEmpty()) {
+			update.append("$unset", unset);
+		}
+		LOGGER.log(Level.FINEST, "Updating fields " + set.keySet() + unset.keySet() + " of " + col.getNamespace().getCollectionName());
+		UpdateResult result = updateOneHelper(col, Filters.and(filter, Filters.eq(DIGEST, digest)), update);
+		if (result.getMatchedCount() == 0) {
+			LOGGER.log(Level.FINEST, "The baseline is not current, replacing the document in " + col.getNamespace().getCollectionName());
+			result = replaceOneHelper(col, filter, updated);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper method to encode an object with its codec.
+	 * @param codec
+	 * @param value
+	 * @return The BsonDocument the codec writes for the object.
+	 */
+	private static <T> BsonDocument encodeHelper(Codec<T> codec, T value) {
+		BsonDocument d = new BsonDocument();
+		codec.encode(new BsonDocumentWriter(d), value, EncoderContext.builder().build());
+		return d;
+	}
+
+	/**
+	 * Helper method to log the result of an update.
+	 * @param type The type of the updated object.
+	 * @param description The toString of the updated object.
+	 * @param result The result of the update.
+	 */
+	private static void logUpdate(String type, String description, UpdateResult result) {
+		if (!result.wasAcknowledged()) {
+			LOGGER.log(Level.FINEST, "Sent unacknowledged update of " + type + ": " + description);
+		} else if (result.getMatchedCount() == 0) {
+			LOGGER.log(Level.FINEST, "Did not find " + type + " to update: " + description);
+		} else {
+			LOGGER.log(Level.FINEST, "Updated " + type + ": " + description);
+		}
+	}
+
+	@Override
+	public void deleteClient(String providerId, String clientId) throws OAuthStoreException {
+		long deleted = 0;
+		try {
+			MongoCollection<Document> col = getClientCollection();
+			// Invalidate before and after the delete. The second invalidate also stops a readClient
+			// that found the client during the delete from caching it, see StoreCache.stamp.
+			String cacheKey = createCacheKey(providerId, clientId);
+			clientCache.invalidate(cacheKey);
+			deleted = deleteOneHelper(col, createClientKeyHelper(providerId, clientId)).getDeletedCount();
+			clientCache.invalidate(cacheKey);
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on delete for OAuthClient for " + clientId, e);
+		}
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthClient: providerId=" + providerId + ", clientId=" + clientId);
+		}
+	}
+
+	@Override
+	public void deleteToken(String providerId, String lookupKey) throws OAuthStoreException {
+		long deleted = 0;
+		try {
+			MongoCollection<Document> col = getTokenCollection();
+			// Invalidate before and after the delete. The second invalidate also stops a readToken
+			// that found the token during the delete from caching it, see StoreCache.stamp.
+			String cacheKey = createCacheKey(providerId, lookupKey);
+			awaitPendingToken(cacheKey);
+			invalidateToken(cacheKey);
+			if (tokenBuckets == null) {
+				deleted = deleteOneHelper(col, createTokenKeyHelper(providerId, lookupKey)).getDeletedCount();
+			} else {
+				for (MongoCollection<OAuthToken> bucket : getTokenObjectsForRead()) {
+					deleted = deleteOneHelper(acknowledged(bucket), createTokenKeyHelper(providerId, lookupKey)).getDeletedCount();
+					if (deleted > 0) {
+						break;
+					}
+				}
+			}
+			invalidateToken(cacheKey);
+			if (deleted > 0 && tokenFilter != null) {
+				// Only a key that was stored can be removed from the filter, see TokenFilter
+				tokenFilter.remove(providerId, lookupKey);
+			}
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on delete for OAuthToken for " + lookupKey, e);
+		}
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthToken: providerId=" + providerId + ", lookupKey=" + lookupKey);
+		}
+	}
+
+	@Override
+	public void deleteTokens(String providerId, long timestamp) throws OAuthStoreException {
+		long deleted = 0;
+		try {
+			MongoCollection<Document> col = getTokenCollection();
+			tokenCache.invalidateIf(token -> token.getExpires() < timestamp && providerId.equals(token.getProviderId()));
+			// In the ttl expiry mode, the TTL index removes the expired tokens, only clean up the tokens that were written without an EXPIRESAT.
+			Document query = createExpiredQueryHelper(providerId, timestamp, MongoDBHelper.getInstance().isTtlExpiry());
+			if (tokenBuckets != null) {
+				// The expired buckets are dropped, the OAuthToken collection is cleaned up as before
+				deleted = deleteExpiredBucketsHelper(providerId, timestamp, query);
+			} else if (getAsyncEngine() != null) {
+				CompletableFuture<Long> cleanup = deleteExpiredAsync(getCollectionName(OAUTHTOKEN), providerId, timestamp,
+						query);
+				if (cleanup != null) {
+					// A rebuild that read the database before the delete completed would keep the expired keys
+					cleanup.whenComplete((count, t) -> rebuildTokenFilterHelper(providerId));
+				}
+				return;
+			}
+			if (LOGGER.isLoggable(Level.FINEST)) {
+				LOGGER.log(Level.FINEST, "deleteTokens before count " + col.countDocuments());
+			}
+			deleted += col.deleteMany(query).getDeletedCount();
+			if (LOGGER.isLoggable(Level.FINEST)) {
+				LOGGER.log(Level.FINEST, "deleteTokens after count " + col.countDocuments());
+			}
+			rebuildTokenFilterHelper(providerId);
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on deleteTokens for time after " + timestamp, e);
+		}
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthToken(s): providerId=" + providerId + ", timeStamp=" + timestamp
+					+ ", count=" + deleted);
+		}
+	}
+
+	/**
+	 * Helper method to drop the keys of the expired tokens from the TokenFilter, whose keys are not
+	 * known to deleteTokens, by rebuilding the filter of the provider in the background.
+	 * @param providerId
+	 */
+	private void rebuildTokenFilterHelper(String providerId) {
+		if (tokenFilter != null) {
+			tokenFilter.rebuildLater(providerId);
+		}
+	}
+
+	/**
+	 * @return The TokenFilter, or null if the tokenFilter option is not set or no token was
+	 * accessed yet.
+	 */
+	TokenFilter getTokenFilter() {
+		return tokenFilter;
+	}
+
+	@Override
+	public void deleteConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		long deleted = 0;
+		try {
+			MongoCollection<Document> col = getConsentCollection();
+			deleted = col.deleteOne(createConsentKeyHelper(providerId, username, clientId, resource)).getDeletedCount();
+
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on delete for Consent for " + username, e);
+		}
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthConsent: providerId=" + providerId + ", username=" + username
+					+ ", clientId=" + clientId + ", resource=" + resource);
+		}
+	}
+
+	@Override
+	public void deleteConsents(String providerId, long timestamp) throws OAuthStoreException {
+		long deleted = 0;
+		try {
+			MongoCollection<Document> col = getConsentCollection();
+			// In the ttl expiry mode, the TTL index removes the expired consents, only clean up the consents that were written without an EXPIRESAT.
+			Document query = createExpiredQueryHelper(providerId, timestamp, MongoDBHelper.getInstance().isTtlExpiry());
+			if (getAsyncEngine() != null) {
+				deleteExpiredAsync(getCollectionName(OAUTHCONSENT), providerId, timestamp, query);
+				return;
+			}
+			deleted = col.deleteMany(query).getDeletedCount();
+		} catch (Exception e) {
+			throw new OAuthStoreException("Failed on deleteConsents for time after " + timestamp, e);
+		}
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted OAuthConsent(s): providerId=" + providerId + ", timeStamp=" + timestamp
+					+ ", count=" + deleted);
+		}
+	}
+
+	/**
+	 * Helper method to delete the expired tokens of a provider from the token buckets. A bucket
+	 * whose tokens have all expired is dropped, unless it holds tokens of other providers. In a
+	 * bucket where only some tokens have expired, these are deleted.
+	 * @param providerId
+	 * @param timestamp
+	 * @param query The filter of the expired tokens.
+	 * @return The number of deleted tokens.
+	 */
+	private long deleteExpiredBucketsHelper(String providerId, long timestamp, Document query) {
+		tokenBuckets.refresh();
+		long deleted = 0;
+		for (TokenBuckets.Bucket bucket : tokenBuckets.getBuckets()) {
+			MongoCollection<OAuthToken> col = acknowledged(bucket.getObjects());
+			if (bucket.expiresBefore(timestamp)) {
+				if (col.countDocuments(Filters.ne(PROVIDERID, providerId), new CountOptions().limit(1)) == 0) {
+					deleted += col.estimatedDocumentCount();
+					col.drop();
+					tokenBuckets.remove(bucket);
+					LOGGER.log(Level.FINEST, "Dropped token bucket " + bucket.getName());
+				} else {
+					deleted += col.deleteMany(new Document(PROVIDERID, providerId)).getDeletedCount();
+				}
+			} else if (bucket.straddles(timestamp)) {
+				deleted += col.deleteMany(query).getDeletedCount();
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Helper method to delete expired tokens or consents with the asynchronous driver. The
+	 * calling thread does not wait for the delete; its outcome is logged when it completes.
+	 * A cleanup is skipped while the previous cleanup of the same collection and provider is
+	 * still running, so a slow database does not pile up cleanups.
+	 * @param collectionName
+	 * @param providerId
+	 * @param timestamp
+	 * @param query The filter of the expired entries.
+	 * @return The cleanup, which completes with the number of deleted entries, or null if it was skipped.
+	 */
+	private CompletableFuture<Long> deleteExpiredAsync(String collectionName, String providerId, long timestamp,
+			Document query) {
+		String cleanupKey = createCacheKey(providerId, collectionName);
+		CompletableFuture<Long> started = new CompletableFuture<Long>();
+		CompletableFuture<Long> running = asyncCleanups.merge(cleanupKey, started,
+				(previous, next) -> previous.isDone() ? next : previous);
+		if (running != started) {
+			LOGGER.log(Level.FINEST, "The previous cleanup of " + collectionName + " under " + providerId
+					+ " is still running, skipping this one");
+			return null;
+		}
+
+		getAsyncEngine().deleteMany(collectionName, query).whenComplete((deleted, t) -> {
+			if (t != null) {
+				LOGGER.log(Level.WARNING, "Failed to delete the expired " + collectionName + " entries under " + providerId
+						+ " for time after " + timestamp, t);
+				started.completeExceptionally(t);
+			} else {
+				if (deleted > 0) {
+					LOGGER.log(Level.INFO, "Deleted " + collectionName + "(s): providerId=" + providerId + ", timeStamp="
+							+ timestamp + ", count=" + deleted);
+				}
+				started.complete(deleted);
+			}
+		});
+		return started;
+	}
+
+	/**
+	 * Helper method to create a filter Document to find the expired tokens or consents.
+	 * @param providerId
+	 * @param timestamp Entries that expire before this time are matched.
+	 * @param withoutExpiresAt true to only match the entries that do not have an EXPIRESAT field.
+	 * @return A filter Document created with the provided fields.
+	 */
+	private Document createExpiredQueryHelper(String providerId, long timestamp, boolean withoutExpiresAt) {
+		Document query = new Document();
+		query.put(EXPIRES, new Document("$lt", timestamp));
+		query.put(PROVIDERID, providerId);
+		if (withoutExpiresAt) {
+			query.put(EXPIRESAT, new Document("$exists", false));
+		}
+		return query;
+	}
+
+	/**
+	 * Helper method to create a filter Document to look up an OAuthClient.
+	 * @param oauthClient
+	 * @return A filter Document created with the providerId and clientId from the provided OAuthClient
+	 */
+	private Document createClientKeyHelper(OAuthClient oauthClient) {
+		return createClientKeyHelper(oauthClient.getProviderId(), oauthClient.getClientId());
+	}
+
+	/**
+	 * Helper method to create a filter Document to look up an OAuthClient.
+	 * @param providerId
+	 * @param clientId
+	 * @return A filter Document created with the provided fields, or with the derived _id in the derived idMode.
+	 */
+	private Document createClientKeyHelper(String providerId, String clientId) {
+		if (MongoDBHelper.getInstance().isDerivedIds()) {
+			return new Document(ID, DocumentIds.forClient(providerId, clientId));
+		}
+		Document d = new Document(CLIENTID, clientId);
+		d.append(PROVIDERID, providerId);
+		return d;
+	}
+
+	/**
+	 * Helper method to create a filter Document to look up an OAuthToken.
+	 * @param oauthToken
+	 * @return A filter Document created with the providerId and lookupKey from the provided OAuthToken
+	 */
+	private Document createTokenKeyHelper(OAuthToken oauthToken) {
+		return createTokenKeyHelper(oauthToken.getProviderId(), oauthToken.getLookupKey());
+	}
+
+	/**
+	 * Helper method to create a filter Document to look up an OAuthToken.
+	 * @param oauthToken
+	 * @return A filter Document created with the provided fields, or with the derived _id in the derived idMode.
+	 */
+	private Document createTokenKeyHelper(String providerId, String lookupKey) {
+		if (MongoDBHelper.getInstance().isDerivedIds()) {
+			return new Document(ID, DocumentIds.forToken(providerId, lookupKey));
+		}
+		Document d = new Document(LOOKUPKEY, lookupKey);
+		d.append(PROVIDERID, providerId);
+		return d;
+	}
+
+	/**
+	 * Helper method to create a filter Document to look up an OAuthConsent.
+	 * @param oauthConsent
+	 * @return A filter Document created with the clientId, user, resource and providerId fields from the provided OAuthConsent
+	 */
+	private Document createConsentKeyHelper(OAuthConsent oauthConsent) {
+		return createConsentKeyHelper(oauthConsent.getProviderId(), oauthConsent.getUser(), oauthConsent.getClientId(),
+				oauthConsent.getResource());
+	}
+
+	/**
+	 * Helper method to create a filter Document to look up an OAuthConsent.
+	 * @param providerId 
+	 * @param username
+	 * @param clientId
+	 * @param resource
+	 * @return A filter Document created with the provided fields, or with the derived _id in the derived idMode.
+	 */
+	private Document createConsentKeyHelper(String providerId, String username, String clientId, String resource) {
+		if (MongoDBHelper.getInstance().isDerivedIds()) {
+			return new Document(ID, DocumentIds.forConsent(providerId, username, clientId, resource));
+		}
+		Document d = new Document(CLIENTID, clientId);
+		d.append(USERNAME, username);
+		d.append(RESOURCE, resource);
+		d.append(PROVIDERID, providerId);
+		return d;
+	}
+
+	/**
+	 * Helper method to create the key for an entry in a cache.
+	 * @param providerId
+	 * @param id The clientId or lookupKey of the entry
+	 * @return The cache key.
+	 */
+	private static String createCacheKey(String providerId, String id) {
+		return DocumentIds.joinKey(providerId, id);
+	}
+
+	/**
+	 * Get a string representation of an OAuthClient.
+	 * 
+	 * <p/>
+	 * WARNING! This method is for demonstrative purposes only and care should be
+	 * taken to not print out confidential information.
+	 * 
+	 * @param client The OAuthClient to get a string representation of.
+	 * @return The toString.
+	 */
+	private static String toString(OAuthClient client) {
+		return "{" + client.toString() + ": " + "clientId=" + client.getClientId() + ", providerID="
+				+ client.getProviderId() + ", displayName=" + client.getDisplayName() + ", clientSecret="
+				+ client.getClientSecret() + ", clientMetadata=" + client.getClientMetadata() + ", enabled="
+				+ client.isEnabled() + "}";
+	}
+
+	/**
+	 * Get a string representation of an OAuthConsent.
+	 * 
+	 * <p/>
+	 * WARNING! This method is for demonstrative purposes only and care should be
+	 * taken to not print out confidential information.
+	 * 
+	 * @param client The OAuthClient to get a string representation of.
+	 * @return The toString.
+	 */
+	private static String toString(OAuthConsent consent) {
+		return "{" + consent.toString() + ": " + "clientId=" + consent.getClientId() + ", providerID="
+				+ consent.getProviderId() + ", user=" + consent.getUser() + ", resource=" + consent.getResource()
+				+ ", scope=" + consent.getScope() + ", expires=" + consent.getExpires() + ", consentProperties="
+				+ consent.getConsentProperties() + "}";
+	}
+
+	/**
+	 * Get a string representation of an OAuthToken.
+	 * 
+	 * <p/>
+	 * WARNING! This method is for demonstrative purposes only and care should be
+	 * taken to not print out confidential information.
+	 * 
+	 * @param client The OAuthClient to get a string representation of.
+	 * @return The toString.
+	 */
+	private static String toString(OAuthToken token) {
+		return "{" + token.toString() + ": " + "clientId=" + token.getClientId() + ", providerID="
+				+ token.getProviderId() + ", lookupKey=" + token.getLookupKey() + ", username=" + token.getUsername()
+				+ ", createdAt=" + token.getCreatedAt() + ", expires=" + token.getExpires() + ", lifetimeInSeconds="
+				+ token.getLifetimeInSeconds() + ", redirectUri=" + token.getRedirectUri() + ", scope="
+				+ token.getScope() + ", stateId=" + token.getStateId() + ", subType=" + token.getSubType()
+				+ ", tokenProperties=" + token.getTokenProperties() + ", type=" + token.getType() + ", uniqueId="
+				+ token.getUniqueId() + "}";
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static security.custom.store.MongoStorageEngine.CLIENTID;
+import static security.custom.store.MongoStorageEngine.CLIENTSECRET;
+import static security.custom.store.MongoStorageEngine.DIGEST;
+import static security.custom.store.MongoStorageEngine.DISPLAYNAME;
+import static security.custom.store.MongoStorageEngine.ENABLED;
+import static security.custom.store.MongoStorageEngine.ID;
+import static security.custom.store.MongoStorageEngine.METADATA;
+import static security.custom.store.MongoStorageEngine.PROVIDERID;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+
+/**
+ * Codec for OAuthClient documents in the OauthClient collection.
+ */
+public class OAuthClientCodec extends AbstractStoreCodec<OAuthClient> {
+
+	private final boolean deriveId;
+
+	/**
+	 * @param deriveId true to write the _id derived from the key, see DocumentIds.
+	 */
+	public OAuthClientCodec(boolean deriveId) {
+		this.deriveId = deriveId;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, OAuthClient oauthClient, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		if (deriveId) {
+			writer.writeBinaryData(ID, DocumentIds.forClient(oauthClient.getProviderId(), oauthClient.getClientId()));
+		}
+		writeString(writer, CLIENTID, oauthClient.getClientId());
+		writeString(writer, PROVIDERID, oauthClient.getProviderId());
+		writeString(writer, CLIENTSECRET, oauthClient.getClientSecret());
+		writeString(writer, DISPLAYNAME, oauthClient.getDisplayName());
+		writer.writeBoolean(ENABLED, true); /* oauthClient.isEnabled() - Currently can't set on registration end-point */
+		writeString(writer, METADATA, oauthClient.getClientMetadata());
+		writer.writeInt64(DIGEST, digest(oauthClient.getClientId(), oauthClient.getProviderId(),
+				oauthClient.getClientSecret(), oauthClient.getDisplayName(), oauthClient.getClientMetadata()));
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public OAuthClient decode(BsonReader reader, DecoderContext decoderContext) {
+		String providerId = null;
+		String clientId = null;
+		String clientSecret = null;
+		String displayName = null;
+		boolean enabled = true;
+		String metadata = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			switch (reader.readName()) {
+			case CLIENTID:
+				clientId = readString(reader);
+				break;
+			case PROVIDERID:
+				providerId = readString(reader);
+				break;
+			case CLIENTSECRET:
+				clientSecret = readString(reader);
+				break;
+			case DISPLAYNAME:
+				displayName = readString(reader);
+				break;
+			case ENABLED:
+				enabled = readBoolean(reader, true);
+				break;
+			case METADATA:
+				metadata = readString(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+		return new OAuthClient(providerId, clientId, clientSecret, displayName, enabled, metadata);
+	}
+
+	@Override
+	public Class<OAuthClient> getEncoderClass() {
+		return OAuthClient.class;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static security.custom.store.MongoStorageEngine.CLIENTID;
+import static security.custom.store.MongoStorageEngine.EXPIRES;
+import static security.custom.store.MongoStorageEngine.EXPIRESAT;
+import static security.custom.store.MongoStorageEngine.ID;
+import static security.custom.store.MongoStorageEngine.PROPS;
+import static security.custom.store.MongoStorageEngine.PROVIDERID;
+import static security.custom.store.MongoStorageEngine.RESOURCE;
+import static security.custom.store.MongoStorageEngine.SCOPE;
+import static security.custom.store.MongoStorageEngine.USERNAME;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+
+/**
+ * Codec for OAuthConsent documents in the OauthConsent collection.
+ */
+public class OAuthConsentCodec extends AbstractStoreCodec<OAuthConsent> {
+
+	private final boolean writeExpiresAt;
+	private final boolean deriveId;
+
+	/**
+	 * @param writeExpiresAt true to write the EXPIRESAT date used by the ttl expiry mode.
+	 * @param deriveId true to write the _id derived from the key, see DocumentIds.
+	 */
+	public OAuthConsentCodec(boolean writeExpiresAt, boolean deriveId) {
+		this.writeExpiresAt = writeExpiresAt;
+		this.deriveId = deriveId;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, OAuthConsent oauthConsent, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		if (deriveId) {
+			writer.writeBinaryData(ID, DocumentIds.forConsent(oauthConsent.getProviderId(), oauthConsent.getUser(),
+					oauthConsent.getClientId(), oauthConsent.getResource()));
+		}
+		writeString(writer, CLIENTID, oauthConsent.getClientId());
+		writeString(writer, USERNAME, oauthConsent.getUser());
+		writeString(writer, SCOPE, oauthConsent.getScope());
+		writeString(writer, RESOURCE, oauthConsent.getResource());
+		writeString(writer, PROVIDERID, oauthConsent.getProviderId());
+		writer.writeInt64(EXPIRES, oauthConsent.getExpires());
+		writeString(writer, PROPS, oauthConsent.getConsentProperties());
+		if (writeExpiresAt && oauthConsent.getExpires() > 0) {
+			writer.writeDateTime(EXPIRESAT, oauthConsent.getExpires());
+		}
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public OAuthConsent decode(BsonReader reader, DecoderContext decoderContext) {
+		String clientId = null;
+		String user = null;
+		String scope = null;
+		String resource = null;
+		String providerId = null;
+		long expires = 0;
+		String props = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			switch (reader.readName()) {
+			case CLIENTID:
+				clientId = readString(reader);
+				break;
+			case USERNAME:
+				user = readString(reader);
+				break;
+			case SCOPE:
+				scope = readString(reader);
+				break;
+			case RESOURCE:
+				resource = readString(reader);
+				break;
+			case PROVIDERID:
+				providerId = readString(reader);
+				break;
+			case EXPIRES:
+				expires = readLong(reader);
+				break;
+			case PROPS:
+				props = readString(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+		return new OAuthConsent(clientId, user, scope, resource, providerId, expires, props);
+	}
+
+	@Override
+	public Class<OAuthConsent> getEncoderClass() {
+		return OAuthConsent.class;
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import static security.custom.store.MongoStorageEngine.CLIENTID;
+import static security.custom.store.MongoStorageEngine.CREATEDAT;
+import static security.custom.store.MongoStorageEngine.DIGEST;
+import static security.custom.store.MongoStorageEngine.EXPIRES;
+import static security.custom.store.MongoStorageEngine.EXPIRESAT;
+import static security.custom.store.MongoStorageEngine.ID;
+import static security.custom.store.MongoStorageEngine.LIFETIME;
+import static security.custom.store.MongoStorageEngine.LOOKUPKEY;
+import static security.custom.store.MongoStorageEngine.PROPS;
+import static security.custom.store.MongoStorageEngine.PROVIDERID;
+import static security.custom.store.MongoStorageEngine.REDIRECTURI;
+import static security.custom.store.MongoStorageEngine.SCOPE;
+import static security.custom.store.MongoStorageEngine.STATEID;
+import static security.custom.store.MongoStorageEngine.SUBTYPE;
+import static security.custom.store.MongoStorageEngine.TOKENSTRING;
+import static security.custom.store.MongoStorageEngine.TYPE;
+import static security.custom.store.MongoStorageEngine.UNIQUEID;
+import static security.custom.store.MongoStorageEngine.USERNAME;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * Codec for OAuthToken documents in the OauthToken collection.
+ */
+public class OAuthTokenCodec extends AbstractStoreCodec<OAuthToken> {
+
+	private final boolean writeExpiresAt;
+	private final boolean deriveId;
+
+	/**
+	 * @param writeExpiresAt true to write the EXPIRESAT date used by the ttl expiry mode.
+	 * @param deriveId true to write the _id derived from the key, see DocumentIds.
+	 */
+	public OAuthTokenCodec(boolean writeExpiresAt, boolean deriveId) {
+		this.writeExpiresAt = writeExpiresAt;
+		this.deriveId = deriveId;
+	}
+
+	@Override
+	public void encode(BsonWriter writer, OAuthToken oauthToken, EncoderContext encoderContext) {
+		writer.writeStartDocument();
+		if (deriveId) {
+			writer.writeBinaryData(ID, DocumentIds.forToken(oauthToken.getProviderId(), oauthToken.getLookupKey()));
+		}
+		writeString(writer, LOOKUPKEY, oauthToken.getLookupKey());
+		writeString(writer, UNIQUEID, oauthToken.getUniqueId());
+		writeString(writer, PROVIDERID, oauthToken.getProviderId());
+		writeString(writer, TYPE, oauthToken.getType());
+		writeString(writer, SUBTYPE, oauthToken.getSubType());
+		writer.writeInt64(CREATEDAT, oauthToken.getCreatedAt());
+		writer.writeInt32(LIFETIME, oauthToken.getLifetimeInSeconds());
+		writer.writeInt64(EXPIRES, oauthToken.getExpires());
+		writeString(writer, TOKENSTRING, oauthToken.getTokenString());
+		writeString(writer, CLIENTID, oauthToken.getClientId());
+		writeString(writer, USERNAME, oauthToken.getUsername());
+		writeString(writer, SCOPE, oauthToken.getScope());
+		writeString(writer, REDIRECTURI, oauthToken.getRedirectUri());
+		writeString(writer, STATEID, oauthToken.getStateId());
+		writeString(writer, PROPS, oauthToken.getTokenProperties());
+		if (writeExpiresAt && oauthToken.getExpires() > 0) {
+			writer.writeDateTime(EXPIRESAT, oauthToken.getExpires());
+		}
+		writer.writeInt64(DIGEST, digest(oauthToken.getLookupKey(), oauthToken.getUniqueId(), oauthToken.getProviderId(),
+				oauthToken.getType(), oauthToken.getSubType(), oauthToken.getCreatedAt(), oauthToken.getLifetimeInSeconds(),
+				oauthToken.getExpires(), oauthToken.getTokenString(), oauthToken.getClientId(), oauthToken.getUsername(),
+				oauthToken.getScope(), oauthToken.getRedirectUri(), oauthToken.getStateId(), oauthToken.getTokenProperties()));
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public OAuthToken decode(BsonReader reader, DecoderContext decoderContext) {
+		String lookupKey = null;
+		String uniqueId = null;
+		String providerId = null;
+		String type = null;
+		String subType = null;
+		long createdAt = 0;
+		int lifetime = 0;
+		long expires = 0;
+		String tokenString = null;
+		String clientId = null;
+		String username = null;
+		String scope = null;
+		String redirectUri = null;
+		String stateId = null;
+		String props = null;
+
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			switch (reader.readName()) {
+			case LOOKUPKEY:
+				lookupKey = readString(reader);
+				break;
+			case UNIQUEID:
+				uniqueId = readString(reader);
+				break;
+			case PROVIDERID:
+				providerId = readString(reader);
+				break;
+			case TYPE:
+				type = readString(reader);
+				break;
+			case SUBTYPE:
+				subType = readString(reader);
+				break;
+			case CREATEDAT:
+				createdAt = readLong(reader);
+				break;
+			case LIFETIME:
+				lifetime = readInt(reader);
+				break;
+			case EXPIRES:
+				expires = readLong(reader);
+				break;
+			case TOKENSTRING:
+				tokenString = readString(reader);
+				break;
+			case CLIENTID:
+				clientId = readString(reader);
+				break;
+			case USERNAME:
+				username = readString(reader);
+				break;
+			case SCOPE:
+				scope = readString(reader);
+				break;
+			case REDIRECTURI:
+				redirectUri = readString(reader);
+				break;
+			case STATEID:
+				stateId = readString(reader);
+				break;
+			case PROPS:
+				props = readString(reader);
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.readEndDocument();
+		return new OAuthToken(lookupKey, uniqueId, providerId, type, subType, createdAt, lifetime, expires, tokenString,
+				clientId, username, scope, redirectUri, stateId, props);
+	}
+
+	@Override
+	public Class<OAuthToken> getEncoderClass() {
+		return OAuthToken.class;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * A StorageEngine for a single server with millions of tokens. The tokens are kept outside
+ * of the Java heap in an OffHeapTokenStore, the clients and consents, of which there are
+ * few, in an InMemoryStorageEngine. Like the InMemoryStorageEngine, nothing is persisted.
+ * </p>
+ * The size of the store is set with the offHeapSlabSize and offHeapMaxSize options of
+ * MongoDBHelper. The JVM must allow that much direct memory, see -XX:MaxDirectMemorySize.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(OffHeapStorageEngine.class.getName());
+
+	private static final int MEGABYTE = 1024 * 1024;
+
+	private final InMemoryStorageEngine onHeap = new InMemoryStorageEngine();
+	private final OffHeapTokenStore tokens;
+
+	/**
+	 * Selects the OffHeapStorageEngine by the name offheap, see META-INF/services.
+	 */
+	public static class Provider implements StorageEngineProvider {
+		@Override
+		public String getName() {
+			return MongoDBHelper.STORAGE_ENGINE_OFFHEAP;
+		}
+
+		@Override
+		public StorageEngine createEngine() {
+			MongoDBHelper config = MongoDBHelper.getInstance();
+			return new OffHeapStorageEngine(config.getOffHeapSlabSize() * MEGABYTE,
+					(long) config.getOffHeapMaxSize() * MEGABYTE);
+		}
+	}
+
+	/**
+	 * @param slabSize The size of a slab of the token store in bytes.
+	 * @param maxSize The most memory the token records can use, in bytes.
+	 */
+	public OffHeapStorageEngine(int slabSize, long maxSize) {
+		tokens = new OffHeapTokenStore(slabSize, maxSize);
+	}
+
+	@Override
+	public void create(OAuthClient oauthClient) throws OAuthStoreException {
+		onHeap.create(oauthClient);
+	}
+
+	@Override
+	public void create(OAuthToken oauthToken) throws OAuthStoreException {
+		tokens.put(oauthToken);
+		LOGGER.log(Level.FINEST, "Created token " + oauthToken.getLookupKey());
+	}
+
+	@Override
+	public void create(OAuthConsent oauthConsent) throws OAuthStoreException {
+		onHeap.create(oauthConsent);
+	}
+
+	@Override
+	public OAuthClient readClient(String providerId, String clientId) throws OAuthStoreException {
+		return onHeap.readClient(providerId, clientId);
+	}
+
+	@Override
+	public Collection<OAuthClient> readAllClients(String providerId, String attribute) throws OAuthStoreException {
+		return onHeap.readAllClients(providerId, attribute);
+	}
+
+	@Override
+	public OAuthToken readToken(String providerId, String lookupKey) throws OAuthStoreException {
+		OAuthToken token = tokens.get(providerId, lookupKey);
+		LOGGER.log(Level.FINEST, "readToken " + lookupKey + ", found=" + (token != null));
+		return token;
+	}
+
+	@Override
+	public Collection<OAuthToken> readAllTokens(String providerId, String username) throws OAuthStoreException {
+		return tokens.getAll(providerId, username);
+	}
+
+	@Override
+	public int countTokens(String providerId, String username, String clientId) throws OAuthStoreException {
+		return tokens.count(providerId, username, clientId);
+	}
+
+	@Override
+	public OAuthConsent readConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		return onHeap.readConsent(providerId, username, clientId, resource);
+	}
+
+	@Override
+	public void update(OAuthClient oauthClient) throws OAuthStoreException {
+		onHeap.update(oauthClient);
+	}
+
+	@Override
+	public void update(OAuthToken oauthToken) throws OAuthStoreException {
+		boolean updated = tokens.replace(oauthToken);
+		LOGGER.log(Level.FINEST, "Updated token " + oauthToken.getLookupKey() + ", found=" + updated);
+	}
+
+	@Override
+	public void update(OAuthConsent oauthConsent) throws OAuthStoreException {
+		onHeap.update(oauthConsent);
+	}
+
+	@Override
+	public void deleteClient(String providerId, String clientId) throws OAuthStoreException {
+		onHeap.deleteClient(providerId, clientId);
+	}
+
+	@Override
+	public void deleteToken(String providerId, String lookupKey) throws OAuthStoreException {
+		boolean deleted = tokens.remove(providerId, lookupKey);
+		LOGGER.log(Level.FINEST, "Deleted token " + lookupKey + ", found=" + deleted);
+	}
+
+	@Override
+	public void deleteTokens(String providerId, long timestamp) throws OAuthStoreException {
+		int deleted = tokens.removeExpired(providerId, timestamp);
+		if (deleted > 0) {
+			LOGGER.log(Level.INFO, "Deleted " + deleted + " expired tokens of " + providerId + ", " + tokens.size()
+					+ " tokens in " + tokens.getAllocatedBytes() / MEGABYTE + " MB left");
+		}
+	}
+
+	@Override
+	public void deleteConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		onHeap.deleteConsent(providerId, username, clientId, resource);
+	}
+
+	@Override
+	public void deleteConsents(String providerId, long timestamp) throws OAuthStoreException {
+		onHeap.deleteConsents(providerId, timestamp);
+	}
+
+	@Override
+	public void close() {
+		onHeap.close();
+	}
+}
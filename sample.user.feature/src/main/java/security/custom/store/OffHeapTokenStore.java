@@ -0,0 +1,719 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * Keeps OAuthTokens outside of the Java heap, so millions of tokens do not add to the
+ * work of the garbage collector.
+ * </p>
+ * Each token is encoded into a record in a slab, a direct ByteBuffer of a fixed size.
+ * Records are appended to the current slab. A deleted or replaced record is marked dead
+ * and its space is reclaimed when its slab is compacted. Two open addressing hash tables,
+ * also in direct ByteBuffers, point to the records:
+ * <ul>
+ * <li>The key index, by provider ID and lookup key, serves readToken, update and deleteToken.</li>
+ * <li>The user index, by provider ID and username, points to the newest token of each user.
+ * The tokens of a user are linked to each other through their records, so readAllTokens and
+ * countTokens only visit the tokens of the user.</li>
+ * </ul>
+ * A record is only decoded into an OAuthToken when it is read. deleteTokens scans the
+ * records of all slabs without decoding them, and compacts the slabs that are more than
+ * half dead afterwards. Compaction slides the live records of a slab to its start.
+ * </p>
+ * Reads share a read lock, writes and the expiry sweep take the write lock. The memory of
+ * a slab is only returned when the store is garbage collected, direct buffers are limited
+ * by the -XX:MaxDirectMemorySize option of the JVM.
+ */
+public class OffHeapTokenStore {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(OffHeapTokenStore.class.getName());
+
+	private static final long NONE = -1L;
+	private static final byte DEAD = 0;
+	private static final byte LIVE = 1;
+
+	// The layout of a record. The fields follow the header as an int length, -1 for null,
+	// and the UTF-8 bytes of the value.
+	private static final int LENGTH = 0; // int, the length of the whole record
+	private static final int STATE = 4; // byte, LIVE or DEAD
+	private static final int PREV_USER = 5; // long, the address of the newer token of the user
+	private static final int NEXT_USER = 13; // long, the address of the older token of the user
+	private static final int CREATEDAT = 21; // long
+	private static final int LIFETIME = 29; // int
+	private static final int EXPIRES = 33; // long
+	private static final int FIELDS = 41;
+
+	private static final int PROVIDERID = 0;
+	private static final int LOOKUPKEY = 1;
+	private static final int USERNAME = 2;
+	private static final int CLIENTID = 3;
+	private static final int UNIQUEID = 4;
+	private static final int TYPE = 5;
+	private static final int SUBTYPE = 6;
+	private static final int TOKENSTRING = 7;
+	private static final int SCOPE = 8;
+	private static final int REDIRECTURI = 9;
+	private static final int STATEID = 10;
+	private static final int TOKENPROPERTIES = 11;
+	private static final int FIELD_COUNT = 12;
+
+	private final int slabSize;
+	private final int maxSlabs;
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private final int[] slabUsed;
+	private final int[] slabDead;
+	private final Deque<Integer> freeSlabs = new ArrayDeque<Integer>();
+	private int current = -1;
+	private int liveCount = 0;
+
+	private final OffHeapIndex keyIndex = new OffHeapIndex(1 << 16);
+	private final OffHeapIndex userIndex = new OffHeapIndex(1 << 12);
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param slabSize The size of a slab in bytes. A record must fit in one slab.
+	 * @param maxSize The most memory the slabs can use, in bytes. The indexes come on top.
+	 */
+	public OffHeapTokenStore(int slabSize, long maxSize) {
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.max(1, maxSize / slabSize);
+		this.slabUsed = new int[maxSlabs];
+		this.slabDead = new int[maxSlabs];
+		LOGGER.log(Level.INFO, "Created the off-heap token store: slabSize=" + slabSize + ", maxSlabs=" + maxSlabs);
+	}
+
+	/**
+	 * An open addressing hash table with linear probing, in a direct ByteBuffer. Each slot
+	 * holds the 64 bit hash of a key and the address of its record plus one, so that 0 marks
+	 * an empty slot. A removed entry leaves a tombstone that lookups probe past.
+	 * </p>
+	 * The table only stores hashes. Entries whose hash matches are checked against the
+	 * record by the caller's predicate, so colliding keys are told apart.
+	 */
+	static final class OffHeapIndex {
+		private static final int SLOT = 16;
+		private static final long EMPTY = 0L;
+		private static final long TOMBSTONE = -1L;
+
+		private ByteBuffer table;
+		private int capacity;
+		private int used; // live entries and tombstones
+		private int size;
+
+		OffHeapIndex(int capacity) {
+			this.capacity = capacity;
+			this.table = ByteBuffer.allocateDirect(capacity * SLOT);
+		}
+
+		/**
+		 * @param hash
+		 * @param matches Whether the record at an address has the key.
+		 * @return The address of the record, or NONE.
+		 */
+		long get(long hash, LongPredicate matches) {
+			int slot = find(hash, matches);
+			return slot < 0 ? NONE : table.getLong(slot * SLOT + 8) - 1;
+		}
+
+		/**
+		 * Set the address of a key, replacing the address of the key if it is present.
+		 */
+		void put(long hash, long address, LongPredicate matches) {
+			int slot = find(hash, matches);
+			if (slot >= 0) {
+				table.putLong(slot * SLOT + 8, address + 1);
+				return;
+			}
+			if ((used + 1) * 10L > capacity * 7L) {
+				rehash(size * 2 >= capacity / 2 ? capacity * 2 : capacity);
+			}
+			int mask = capacity - 1;
+			for (int i = (int) mix(hash) & mask;; i = (i + 1) & mask) {
+				long stored = table.getLong(i * SLOT + 8);
+				if (stored == EMPTY || stored == TOMBSTONE) {
+					if (stored == EMPTY) {
+						used++;
+					}
+					size++;
+					table.putLong(i * SLOT, hash);
+					table.putLong(i * SLOT + 8, address + 1);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Change the address of an entry, found by its current address.
+		 */
+		void replace(long hash, long oldAddress, long newAddress) {
+			int slot = find(hash, address -> address == oldAddress);
+			if (slot >= 0) {
+				table.putLong(slot * SLOT + 8, newAddress + 1);
+			}
+		}
+
+		void remove(long hash, LongPredicate matches) {
+			int slot = find(hash, matches);
+			if (slot >= 0) {
+				table.putLong(slot * SLOT + 8, TOMBSTONE);
+				size--;
+			}
+		}
+
+		private int find(long hash, LongPredicate matches) {
+			int mask = capacity - 1;
+			for (int i = (int) mix(hash) & mask;; i = (i + 1) & mask) {
+				long stored = table.getLong(i * SLOT + 8);
+				if (stored == EMPTY) {
+					return -1;
+				}
+				if (stored != TOMBSTONE && table.getLong(i * SLOT) == hash && matches.test(stored - 1)) {
+					return i;
+				}
+			}
+		}
+
+		private void rehash(int newCapacity) {
+			ByteBuffer old = table;
+			int oldCapacity = capacity;
+			table = ByteBuffer.allocateDirect(newCapacity * SLOT);
+			capacity = newCapacity;
+			used = size;
+			int mask = capacity - 1;
+			for (int j = 0; j < oldCapacity; j++) {
+				long stored = old.getLong(j * SLOT + 8);
+				if (stored != EMPTY && stored != TOMBSTONE) {
+					long hash = old.getLong(j * SLOT);
+					int i = (int) mix(hash) & mask;
+					while (table.getLong(i * SLOT + 8) != EMPTY) {
+						i = (i + 1) & mask;
+					}
+					table.putLong(i * SLOT, hash);
+					table.putLong(i * SLOT + 8, stored);
+				}
+			}
+		}
+
+		private static long mix(long h) {
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
+	/**
+	 * Create or replace a token.
+	 * @param token
+	 * @throws OAuthStoreException If the token does not fit in the store.
+	 */
+	public void put(OAuthToken token) throws OAuthStoreException {
+		byte[] record = encode(token);
+		byte[] providerId = utf8(token.getProviderId());
+		byte[] lookupKey = utf8(token.getLookupKey());
+		lock.writeLock().lock();
+		try {
+			long existing = keyIndex.get(hash(providerId, lookupKey), a -> keyMatches(a, providerId, lookupKey));
+			if (existing != NONE) {
+				delete(existing);
+			}
+			insert(record, providerId, lookupKey, utf8(token.getUsername()));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace a token if it is present.
+	 * @param token
+	 * @return true if the token was replaced.
+	 * @throws OAuthStoreException If the token does not fit in the store.
+	 */
+	public boolean replace(OAuthToken token) throws OAuthStoreException {
+		byte[] record = encode(token);
+		byte[] providerId = utf8(token.getProviderId());
+		byte[] lookupKey = utf8(token.getLookupKey());
+		lock.writeLock().lock();
+		try {
+			long existing = keyIndex.get(hash(providerId, lookupKey), a -> keyMatches(a, providerId, lookupKey));
+			if (existing == NONE) {
+				return false;
+			}
+			delete(existing);
+			insert(record, providerId, lookupKey, utf8(token.getUsername()));
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param providerId
+	 * @param lookupKey
+	 * @return The token, or null if it is not present.
+	 */
+	public OAuthToken get(String providerId, String lookupKey) {
+		byte[] provider = utf8(providerId);
+		byte[] key = utf8(lookupKey);
+		lock.readLock().lock();
+		try {
+			long address = keyIndex.get(hash(provider, key), a -> keyMatches(a, provider, key));
+			return address == NONE ? null : decode(address);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param providerId
+	 * @param username
+	 * @return The tokens of the user, newest first, or null if there are none.
+	 */
+	public Collection<OAuthToken> getAll(String providerId, String username) {
+		byte[] provider = utf8(providerId);
+		byte[] user = utf8(username);
+		lock.readLock().lock();
+		try {
+			List<OAuthToken> tokens = null;
+			for (long a = userHead(provider, user); a != NONE; a = getLong(a, NEXT_USER)) {
+				if (tokens == null) {
+					tokens = new ArrayList<OAuthToken>();
+				}
+				tokens.add(decode(a));
+			}
+			return tokens;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param providerId
+	 * @param username
+	 * @param clientId
+	 * @return The number of tokens of the user for the client.
+	 */
+	public int count(String providerId, String username, String clientId) {
+		byte[] provider = utf8(providerId);
+		byte[] user = utf8(username);
+		byte[] client = utf8(clientId);
+		lock.readLock().lock();
+		try {
+			int count = 0;
+			for (long a = userHead(provider, user); a != NONE; a = getLong(a, NEXT_USER)) {
+				if (fieldEquals(a, CLIENTID, client)) {
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param providerId
+	 * @param lookupKey
+	 * @return true if the token was present.
+	 */
+	public boolean remove(String providerId, String lookupKey) {
+		byte[] provider = utf8(providerId);
+		byte[] key = utf8(lookupKey);
+		lock.writeLock().lock();
+		try {
+			long address = keyIndex.get(hash(provider, key), a -> keyMatches(a, provider, key));
+			if (address == NONE) {
+				return false;
+			}
+			delete(address);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the tokens of a provider that expire before a time, then compact the slabs that
+	 * are more than half dead.
+	 * @param providerId
+	 * @param timestamp
+	 * @return The number of removed tokens.
+	 */
+	public int removeExpired(String providerId, long timestamp) {
+		byte[] provider = utf8(providerId);
+		lock.writeLock().lock();
+		try {
+			int removed = 0;
+			for (int s = 0; s < slabs.size(); s++) {
+				ByteBuffer slab = slabs.get(s);
+				for (int offset = 0; offset < slabUsed[s]; offset += slab.getInt(offset + LENGTH)) {
+					long address = address(s, offset);
+					if (slab.get(offset + STATE) == LIVE && slab.getLong(offset + EXPIRES) < timestamp
+							&& fieldEquals(address, PROVIDERID, provider)) {
+						delete(address);
+						removed++;
+					}
+				}
+			}
+			for (int s = 0; s < slabs.size(); s++) {
+				if (slabDead[s] > slabSize / 2) {
+					compact(s);
+					if (slabUsed[s] == 0 && s != current) {
+						freeSlabs.push(s);
+					}
+				}
+			}
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of tokens in the store.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return liveCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The bytes allocated to slabs.
+	 */
+	public long getAllocatedBytes() {
+		lock.readLock().lock();
+		try {
+			return (long) slabs.size() * slabSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Append a record and add it to the indexes. Called with the write lock held.
+	 */
+	private void insert(byte[] record, byte[] providerId, byte[] lookupKey, byte[] username) throws OAuthStoreException {
+		long address = allocate(record.length);
+		ByteBuffer slab = slabs.get(slabOf(address)).duplicate();
+		slab.position(offsetOf(address));
+		slab.put(record);
+		liveCount++;
+
+		keyIndex.put(hash(providerId, lookupKey), address, a -> keyMatches(a, providerId, lookupKey));
+		long userHash = hash(providerId, username);
+		long head = userIndex.get(userHash, a -> userMatches(a, providerId, username));
+		if (head != NONE) {
+			putLong(head, PREV_USER, address);
+			putLong(address, NEXT_USER, head);
+		}
+		userIndex.put(userHash, address, a -> userMatches(a, providerId, username));
+	}
+
+	/**
+	 * Remove a record from the indexes and mark it dead. Called with the write lock held.
+	 */
+	private void delete(long address) {
+		byte[] providerId = getField(address, PROVIDERID);
+		byte[] lookupKey = getField(address, LOOKUPKEY);
+		keyIndex.remove(hash(providerId, lookupKey), a -> a == address);
+
+		long prev = getLong(address, PREV_USER);
+		long next = getLong(address, NEXT_USER);
+		if (next != NONE) {
+			putLong(next, PREV_USER, prev);
+		}
+		if (prev != NONE) {
+			putLong(prev, NEXT_USER, next);
+		} else {
+			long userHash = hash(providerId, getField(address, USERNAME));
+			if (next != NONE) {
+				userIndex.replace(userHash, address, next);
+			} else {
+				userIndex.remove(userHash, a -> a == address);
+			}
+		}
+
+		ByteBuffer slab = slabs.get(slabOf(address));
+		int offset = offsetOf(address);
+		slab.put(offset + STATE, DEAD);
+		slabDead[slabOf(address)] += slab.getInt(offset + LENGTH);
+		liveCount--;
+	}
+
+	/**
+	 * Find room for a record, in the current slab, a free or new slab, at the end of any other
+	 * slab, or else by compacting the slabs with the most dead records until one has room. A
+	 * slab compacted by removeExpired has no dead records but room at its end. Called with the
+	 * write lock held.
+	 * @return The address for the record.
+	 * @throws OAuthStoreException If there is no room.
+	 */
+	private long allocate(int length) throws OAuthStoreException {
+		if (length > slabSize) {
+			throw new OAuthStoreException("The token record of " + length + " bytes is larger than the slab size " + slabSize);
+		}
+		if (current < 0 || slabUsed[current] + length > slabSize) {
+			if (!freeSlabs.isEmpty()) {
+				current = freeSlabs.pop();
+			} else if (slabs.size() < maxSlabs) {
+				slabs.add(ByteBuffer.allocateDirect(slabSize));
+				current = slabs.size() - 1;
+			} else {
+				while ((current = slabWithRoom(length)) < 0) {
+					int mostDead = 0;
+					for (int s = 1; s < slabs.size(); s++) {
+						if (slabDead[s] > slabDead[mostDead]) {
+							mostDead = s;
+						}
+					}
+					if (slabDead[mostDead] == 0) {
+						throw new OAuthStoreException("The off-heap token store is full, " + liveCount + " tokens in "
+								+ slabs.size() + " slabs of " + slabSize + " bytes");
+					}
+					compact(mostDead);
+				}
+			}
+		}
+		int offset = slabUsed[current];
+		slabUsed[current] += length;
+		return address(current, offset);
+	}
+
+	/**
+	 * @return A slab with room for a record of the length at its end, or -1.
+	 */
+	private int slabWithRoom(int length) {
+		for (int s = 0; s < slabs.size(); s++) {
+			if (slabUsed[s] + length <= slabSize) {
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Slide the live records of a slab to its start and update the pointers to the records
+	 * that moved. Called with the write lock held.
+	 * @param s The slab.
+	 */
+	private void compact(int s) {
+		ByteBuffer slab = slabs.get(s);
+		int used = slabUsed[s];
+		int to = 0;
+		byte[] buffer = new byte[256];
+		for (int from = 0; from < used;) {
+			int length = slab.getInt(from + LENGTH);
+			if (slab.get(from + STATE) == LIVE) {
+				if (to != from) {
+					if (buffer.length < length) {
+						buffer = new byte[length];
+					}
+					ByteBuffer src = slab.duplicate();
+					src.position(from);
+					src.get(buffer, 0, length);
+					ByteBuffer dst = slab.duplicate();
+					dst.position(to);
+					dst.put(buffer, 0, length);
+					moved(address(s, from), address(s, to));
+				}
+				to += length;
+			}
+			from += length;
+		}
+		LOGGER.log(Level.FINEST, "Compacted slab " + s + " from " + used + " to " + to + " bytes");
+		slabUsed[s] = to;
+		slabDead[s] = 0;
+	}
+
+	/**
+	 * Point the indexes and the neighbouring records of the user to a record that moved.
+	 */
+	private void moved(long oldAddress, long newAddress) {
+		byte[] providerId = getField(newAddress, PROVIDERID);
+		keyIndex.replace(hash(providerId, getField(newAddress, LOOKUPKEY)), oldAddress, newAddress);
+		long prev = getLong(newAddress, PREV_USER);
+		long next = getLong(newAddress, NEXT_USER);
+		if (prev != NONE) {
+			putLong(prev, NEXT_USER, newAddress);
+		} else {
+			userIndex.replace(hash(providerId, getField(newAddress, USERNAME)), oldAddress, newAddress);
+		}
+		if (next != NONE) {
+			putLong(next, PREV_USER, newAddress);
+		}
+	}
+
+	private long userHead(byte[] providerId, byte[] username) {
+		return userIndex.get(hash(providerId, username), a -> userMatches(a, providerId, username));
+	}
+
+	private boolean keyMatches(long address, byte[] providerId, byte[] lookupKey) {
+		return fieldEquals(address, LOOKUPKEY, lookupKey) && fieldEquals(address, PROVIDERID, providerId);
+	}
+
+	private boolean userMatches(long address, byte[] providerId, byte[] username) {
+		return fieldEquals(address, USERNAME, username) && fieldEquals(address, PROVIDERID, providerId);
+	}
+
+	private static byte[] encode(OAuthToken token) {
+		byte[][] fields = { utf8(token.getProviderId()), utf8(token.getLookupKey()), utf8(token.getUsername()),
+				utf8(token.getClientId()), utf8(token.getUniqueId()), utf8(token.getType()), utf8(token.getSubType()),
+				utf8(token.getTokenString()), utf8(token.getScope()), utf8(token.getRedirectUri()),
+				utf8(token.getStateId()), utf8(token.getTokenProperties()) };
+		int length = FIELDS;
+		for (byte[] field : fields) {
+			length += 4 + (field == null ? 0 : field.length);
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(length).put(LIVE).putLong(NONE).putLong(NONE).putLong(token.getCreatedAt())
+				.putInt(token.getLifetimeInSeconds()).putLong(token.getExpires());
+		for (byte[] field : fields) {
+			if (field == null) {
+				record.putInt(-1);
+			} else {
+				record.putInt(field.length).put(field);
+			}
+		}
+		return record.array();
+	}
+
+	private OAuthToken decode(long address) {
+		ByteBuffer slab = slabs.get(slabOf(address)).duplicate();
+		int offset = offsetOf(address);
+		long createdAt = slab.getLong(offset + CREATEDAT);
+		int lifetime = slab.getInt(offset + LIFETIME);
+		long expires = slab.getLong(offset + EXPIRES);
+		String[] fields = new String[FIELD_COUNT];
+		slab.position(offset + FIELDS);
+		for (int i = 0; i < FIELD_COUNT; i++) {
+			int length = slab.getInt();
+			if (length >= 0) {
+				byte[] bytes = new byte[length];
+				slab.get(bytes);
+				fields[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+		}
+		return new OAuthToken(fields[LOOKUPKEY], fields[UNIQUEID], fields[PROVIDERID], fields[TYPE], fields[SUBTYPE],
+				createdAt, lifetime, expires, fields[TOKENSTRING], fields[CLIENTID], fields[USERNAME], fields[SCOPE],
+				fields[REDIRECTURI], fields[STATEID], fields[TOKENPROPERTIES]);
+	}
+
+	private int fieldOffset(ByteBuffer slab, int offset, int field) {
+		int position = offset + FIELDS;
+		for (int i = 0; i < field; i++) {
+			position += 4 + Math.max(slab.getInt(position), 0);
+		}
+		return position;
+	}
+
+	private byte[] getField(long address, int field) {
+		ByteBuffer slab = slabs.get(slabOf(address));
+		int position = fieldOffset(slab, offsetOf(address), field);
+		int length = slab.getInt(position);
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = slab.get(position + 4 + i);
+		}
+		return bytes;
+	}
+
+	private boolean fieldEquals(long address, int field, byte[] value) {
+		ByteBuffer slab = slabs.get(slabOf(address));
+		int position = fieldOffset(slab, offsetOf(address), field);
+		int length = slab.getInt(position);
+		if (value == null || length < 0) {
+			return value == null && length < 0;
+		}
+		if (length != value.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (slab.get(position + 4 + i) != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long getLong(long address, int field) {
+		return slabs.get(slabOf(address)).getLong(offsetOf(address) + field);
+	}
+
+	private void putLong(long address, int field, long value) {
+		slabs.get(slabOf(address)).putLong(offsetOf(address) + field, value);
+	}
+
+	private static long address(int slab, int offset) {
+		return ((long) slab << 32) | offset;
+	}
+
+	private static int slabOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	private static byte[] utf8(String value) {
+		return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * FNV-1a over two byte arrays, with a separator so that the keys can not be ambiguous.
+	 */
+	private static long hash(byte[] first, byte[] second) {
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, first);
+		h = (h ^ 0xff) * 0x100000001b3L;
+		return hash(h, second);
+	}
+
+	private static long hash(long h, byte[] value) {
+		if (value == null) {
+			return (h ^ 0xfe) * 0x100000001b3L;
+		}
+		for (byte b : value) {
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		return h;
+	}
+}
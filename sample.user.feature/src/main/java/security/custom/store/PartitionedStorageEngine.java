@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * A StorageEngine that gives every OAuth provider its own MongoStorageEngine, so that the
+ * collections, indexes and caches of a busy provider do not slow down the others. With the
+ * partitioning option set to collection, each provider has its own OauthClient_partition,
+ * OauthToken_partition and OauthConsent_partition collections in the configured database; set
+ * to database, each provider has the usual collections in a database of its own named
+ * dbName_partition.
+ * </p>
+ * The engine of a provider is created on its first request; MongoDB creates its collections
+ * on the first write. All the partitions share the connection pool of MongoDBHelper.
+ */
+public class PartitionedStorageEngine implements StorageEngine {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(PartitionedStorageEngine.class.getName());
+
+	// Keeps collection names, and database names with a short dbName, within the MongoDB limits
+	private static final int MAX_PARTITION_NAME = 32;
+
+	private final ConcurrentHashMap<String, MongoStorageEngine> partitions = new ConcurrentHashMap<String, MongoStorageEngine>();
+
+	/**
+	 * Helper method to get the engine of a provider, created if it is new.
+	 * @param providerId
+	 * @return The MongoStorageEngine of the provider's partition.
+	 */
+	private MongoStorageEngine getPartition(String providerId) {
+		return partitions.computeIfAbsent(providerId, id -> {
+			String name = getPartitionName(id);
+			LOGGER.log(Level.INFO, "Creating the " + MongoDBHelper.getInstance().getPartitioning() + " partition " + name
+					+ " for provider " + id);
+			return new MongoStorageEngine(name);
+		});
+	}
+
+	/**
+	 * The partition name of a provider. Provider ids are used as they are when they are short and
+	 * only hold letters, digits, underscores and dashes. Other ids are cut short and have the
+	 * characters that MongoDB does not allow in a name replaced, followed by a hash of the
+	 * id so that they stay distinct.
+	 * @param providerId
+	 * @return A name that can be appended to a database or collection name.
+	 */
+	static String getPartitionName(String providerId) {
+		String name = providerId.replaceAll("[^A-Za-z0-9_-]", "_");
+		if (name.equals(providerId) && name.length() <= MAX_PARTITION_NAME) {
+			return name;
+		}
+		return name.substring(0, Math.min(name.length(), MAX_PARTITION_NAME - 9)) + "_"
+				+ String.format("%08x", providerId.hashCode());
+	}
+
+	@Override
+	public void create(OAuthClient oauthClient) throws OAuthStoreException {
+		getPartition(oauthClient.getProviderId()).create(oauthClient);
+	}
+
+	@Override
+	public void create(OAuthToken oauthToken) throws OAuthStoreException {
+		getPartition(oauthToken.getProviderId()).create(oauthToken);
+	}
+
+	@Override
+	public void create(OAuthConsent oauthConsent) throws OAuthStoreException {
+		getPartition(oauthConsent.getProviderId()).create(oauthConsent);
+	}
+
+	@Override
+	public OAuthClient readClient(String providerId, String clientId) throws OAuthStoreException {
+		return getPartition(providerId).readClient(providerId, clientId);
+	}
+
+	@Override
+	public Collection<OAuthClient> readAllClients(String providerId, String attribute) throws OAuthStoreException {
+		return getPartition(providerId).readAllClients(providerId, attribute);
+	}
+
+	@Override
+	public OAuthToken readToken(String providerId, String lookupKey) throws OAuthStoreException {
+		return getPartition(providerId).readToken(providerId, lookupKey);
+	}
+
+	@Override
+	public Collection<OAuthToken> readAllTokens(String providerId, String username) throws OAuthStoreException {
+		return getPartition(providerId).readAllTokens(providerId, username);
+	}
+
+	@Override
+	public int countTokens(String providerId, String username, String clientId) throws OAuthStoreException {
+		return getPartition(providerId).countTokens(providerId, username, clientId);
+	}
+
+	@Override
+	public OAuthConsent readConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		return getPartition(providerId).readConsent(providerId, username, clientId, resource);
+	}
+
+	@Override
+	public void update(OAuthClient oauthClient) throws OAuthStoreException {
+		getPartition(oauthClient.getProviderId()).update(oauthClient);
+	}
+
+	@Override
+	public void update(OAuthToken oauthToken) throws OAuthStoreException {
+		getPartition(oauthToken.getProviderId()).update(oauthToken);
+	}
+
+	@Override
+	public void update(OAuthConsent oauthConsent) throws OAuthStoreException {
+		getPartition(oauthConsent.getProviderId()).update(oauthConsent);
+	}
+
+	@Override
+	public void deleteClient(String providerId, String clientId) throws OAuthStoreException {
+		getPartition(providerId).deleteClient(providerId, clientId);
+	}
+
+	@Override
+	public void deleteToken(String providerId, String lookupKey) throws OAuthStoreException {
+		getPartition(providerId).deleteToken(providerId, lookupKey);
+	}
+
+	@Override
+	public void deleteTokens(String providerId, long timestamp) throws OAuthStoreException {
+		getPartition(providerId).deleteTokens(providerId, timestamp);
+	}
+
+	@Override
+	public void deleteConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException {
+		getPartition(providerId).deleteConsent(providerId, username, clientId, resource);
+	}
+
+	@Override
+	public void deleteConsents(String providerId, long timestamp) throws OAuthStoreException {
+		getPartition(providerId).deleteConsents(providerId, timestamp);
+	}
+
+	@Override
+	public void close() {
+		for (MongoStorageEngine partition : partitions.values()) {
+			partition.close();
+		}
+		partitions.clear();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.Collection;
+
+import com.ibm.websphere.security.oauth20.store.OAuthClient;
+import com.ibm.websphere.security.oauth20.store.OAuthConsent;
+import com.ibm.websphere.security.oauth20.store.OAuthStoreException;
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+
+/**
+ * The storage behind the CustomStoreSample. The CustomStoreSample passes every OAuthStore
+ * call to one engine, selected by name through a StorageEngineProvider.
+ * </p>
+ * The operations have the semantics of the OAuthStore methods of the same name:
+ * <ul>
+ * <li>readAllClients and readAllTokens return null when nothing matches.</li>
+ * <li>update replaces an existing entry and does nothing when there is none.</li>
+ * <li>deleteTokens and deleteConsents remove the entries of the provider that expire before the timestamp.</li>
+ * </ul>
+ * An engine must be safe to call from many threads at the same time.
+ */
+public interface StorageEngine {
+
+	void create(OAuthClient oauthClient) throws OAuthStoreException;
+
+	void create(OAuthToken oauthToken) throws OAuthStoreException;
+
+	void create(OAuthConsent oauthConsent) throws OAuthStoreException;
+
+	OAuthClient readClient(String providerId, String clientId) throws OAuthStoreException;
+
+	Collection<OAuthClient> readAllClients(String providerId, String attribute) throws OAuthStoreException;
+
+	OAuthToken readToken(String providerId, String lookupKey) throws OAuthStoreException;
+
+	Collection<OAuthToken> readAllTokens(String providerId, String username) throws OAuthStoreException;
+
+	int countTokens(String providerId, String username, String clientId) throws OAuthStoreException;
+
+	OAuthConsent readConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException;
+
+	void update(OAuthClient oauthClient) throws OAuthStoreException;
+
+	void update(OAuthToken oauthToken) throws OAuthStoreException;
+
+	void update(OAuthConsent oauthConsent) throws OAuthStoreException;
+
+	void deleteClient(String providerId, String clientId) throws OAuthStoreException;
+
+	void deleteToken(String providerId, String lookupKey) throws OAuthStoreException;
+
+	void deleteTokens(String providerId, long timestamp) throws OAuthStoreException;
+
+	void deleteConsent(String providerId, String username, String clientId, String resource)
+			throws OAuthStoreException;
+
+	void deleteConsents(String providerId, long timestamp) throws OAuthStoreException;
+
+	/**
+	 * Release the resources of the engine. Called when the OSGi component of the store is
+	 * deactivated, no other method is called after it.
+	 */
+	void close();
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+/**
+ * Creates a StorageEngine. The providers are listed in
+ * META-INF/services/security.custom.store.StorageEngineProvider and found with the
+ * ServiceLoader, so an engine can be added without changing the CustomStoreSample.
+ */
+public interface StorageEngineProvider {
+
+	/**
+	 * @return The name that selects the engine, in lower case. See the storageEngine option of
+	 * MongoDBHelper and the storage.engine property of the OSGi component.
+	 */
+	String getName();
+
+	/**
+	 * Create the engine. It should not connect to anything until its first operation.
+	 * @return A new engine.
+	 */
+	StorageEngine createEngine();
+}
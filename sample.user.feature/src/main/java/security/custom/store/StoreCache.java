@@ -0,0 +1,302 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * A size bounded, in-process cache for entries read from the database.
+ * </p>
+ * Every entry carries its own expiry time. The cache is split into segments, each a
+ * least recently used map guarded by its own lock, so concurrent requests for
+ * different keys rarely wait on each other. When a segment is full its least
+ * recently used entry is evicted.
+ * </p>
+ * A value read from the database is only cached if its key was not invalidated since the
+ * read started. Each key maps to a generation counter that invalidate increments, and put
+ * is given the generation the caller took with stamp before its read. A read that
+ * overlaps an update or delete of the same key can so not put the old value back into
+ * the cache after the writer invalidated it.
+ * </p>
+ * A cache created with a maximum size of 0 or less is disabled: it never returns an
+ * entry and ignores puts.
+ *
+ * @param <V> The type of the cached values.
+ */
+public class StoreCache<V> {
+
+	private static final int SEGMENTS = 16;
+	private static final int GENERATIONS = 1024; // a multiple of SEGMENTS, so each counter belongs to one segment
+
+	private final String name;
+	private final int maxSize;
+	private final List<Segment<V>> segments;
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * A cached value and the time it expires. The value may be null, which caches the
+	 * fact that the key was not found.
+	 *
+	 * @param <V> The type of the cached value.
+	 */
+	public static final class Entry<V> {
+		private final V value;
+		private final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+
+	/**
+	 * One lock striped part of the cache.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Segment<T> extends LinkedHashMap<String, StoreCache.Entry<T>> {
+		private final int capacity;
+		private final AtomicLong evictions;
+
+		Segment(int capacity, AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StoreCache.Entry<T>> eldest) {
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param name The name of the cache, used in the toString.
+	 * @param maxSize The maximum number of entries, 0 or less to disable the cache.
+	 */
+	public StoreCache(String name, int maxSize) {
+		this.name = name;
+		this.maxSize = Math.max(maxSize, 0);
+		this.segments = new ArrayList<Segment<V>>(SEGMENTS);
+		int perSegment = (this.maxSize + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments.add(new Segment<V>(perSegment, evictions));
+		}
+	}
+
+	/**
+	 * @return true if the cache holds entries.
+	 */
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Get the entry for a key.
+	 * @param key
+	 * @return The entry, or null if there is no entry or the entry has expired.
+	 */
+	public Entry<V> get(String key) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Segment<V> segment = segmentFor(key);
+		Entry<V> entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+			if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+				segment.remove(key);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Get the generation of a key, to pass to put. Take it before reading the value from
+	 * the database.
+	 * @param key
+	 * @return The generation of the key.
+	 */
+	public long stamp(String key) {
+		return generations.get(generationFor(key));
+	}
+
+	/**
+	 * Put an entry in the cache, replacing any existing entry for the key. The entry is not
+	 * put if the key was invalidated after the stamp was taken.
+	 * @param key
+	 * @param value The value to cache, null to cache that the key was not found.
+	 * @param expiresAt The time in milliseconds when the entry expires.
+	 * @param stamp The generation of the key, taken with stamp before the value was read.
+	 * @return true if the entry was put.
+	 */
+	public boolean put(String key, V value, long expiresAt, long stamp) {
+		if (!isEnabled() || expiresAt <= System.currentTimeMillis()) {
+			return false;
+		}
+		int generation = generationFor(key);
+		Segment<V> segment = segments.get(generation & (SEGMENTS - 1));
+		synchronized (segment) {
+			if (generations.get(generation) != stamp) {
+				return false;
+			}
+			segment.put(key, new Entry<V>(value, expiresAt));
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the entry for a key. A put with a stamp taken before this call is ignored.
+	 * @param key
+	 */
+	public void invalidate(String key) {
+		if (!isEnabled()) {
+			return;
+		}
+		int generation = generationFor(key);
+		Segment<V> segment = segments.get(generation & (SEGMENTS - 1));
+		synchronized (segment) {
+			generations.incrementAndGet(generation);
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Remove all entries whose value matches the predicate. Entries that cache a
+	 * missing key are not passed to the predicate. A put with a stamp taken before this
+	 * call is ignored, whatever its value.
+	 * @param predicate
+	 */
+	public void invalidateIf(Predicate<V> predicate) {
+		if (!isEnabled()) {
+			return;
+		}
+		for (int i = 0; i < SEGMENTS; i++) {
+			Segment<V> segment = segments.get(i);
+			synchronized (segment) {
+				advanceGenerations(i);
+				Iterator<Entry<V>> it = segment.values().iterator();
+				while (it.hasNext()) {
+					V value = it.next().value;
+					if (value != null && predicate.test(value)) {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void invalidateAll() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			Segment<V> segment = segments.get(i);
+			synchronized (segment) {
+				advanceGenerations(i);
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Increment the generations of all keys of a segment. Call with the segment locked.
+	 * @param segment The index of the segment.
+	 */
+	private void advanceGenerations(int segment) {
+		for (int i = segment; i < GENERATIONS; i += SEGMENTS) {
+			generations.incrementAndGet(i);
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of entries removed because the cache was full or the entry expired.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	private Segment<V> segmentFor(String key) {
+		return segments.get(generationFor(key) & (SEGMENTS - 1));
+	}
+
+	/**
+	 * @return The index of the generation counter of a key. Its low bits select the segment.
+	 */
+	private static int generationFor(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (GENERATIONS - 1);
+	}
+
+	@Override
+	public String toString() {
+		return "{" + name + ": size=" + size() + ", maxSize=" + maxSize + ", hits=" + hits.get() + ", misses="
+				+ misses.get() + ", evictions=" + evictions.get() + "}";
+	}
+}
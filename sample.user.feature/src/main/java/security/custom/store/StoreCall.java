@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package security.custom.store;
+
+import security.custom.store.StoreMetrics.Operation;
+
+/**
+ * The OAuthStore call in progress on a thread. CustomStoreSample begins one at the start
+ * of each operation, and the StoreCommandListener adds the database commands the
+ * synchronous driver sends for it on the same thread. The object of each thread is reused,
+ * so tracking a call does not allocate.
+ * </p>
+ * When the JVM has Java Flight Recorder, the call also holds the StoreEvents event that is
+ * committed at its end. Without it, the StoreEvents class is never loaded. StoreEvents is
+ * compiled apart from the other classes, so the user feature also builds with a JDK that
+ * does not have the jdk.jfr API, and then has no StoreEvents.
+ */
+final class StoreCall {
+
+	/**
+	 * The StoreEvents, when the jdk.jfr API is available, in Java 11 and later and in Java 8
+	 * update 262 and later, and visible to the bundle, and the user feature was built with
+	 * StoreEvents. Else null.
+	 */
+	static final StoreRecorder RECORDER = loadRecorder();
+
+	/**
+	 * Whether the store operations and database commands are recorded, see RECORDER.
+	 */
+	static final boolean JFR_AVAILABLE = RECORDER != null;
+
+	private static final ThreadLocal<StoreCall> CALLS = new ThreadLocal<StoreCall>() {
+		@Override
+		protected StoreCall initialValue() {
+			return new StoreCall();
+		}
+	};
+
+	Operation operation = null; // null when no call is in progress
+	long startNanos;
+	int commands;
+	long documents;
+	Object event; // a StoreEvents.OperationEvent, or null when it is not recorded
+
+	private StoreCall() {
+	}
+
+	/**
+	 * Begin a call on this thread.
+	 * @param operation
+	 * @return The call of this thread.
+	 */
+	static StoreCall begin(Operation operation) {
+		StoreCall call = CALLS.get();
+		call.operation = operation;
+		call.commands = 0;
+		call.documents = 0;
+		call.event = JFR_AVAILABLE ? RECORDER.beginOperation() : null;
+		call.startNanos = System.nanoTime();
+		return call;
+	}
+
+	/**
+	 * @return The call in progress on this thread, or null.
+	 */
+	static StoreCall current() {
+		StoreCall call = CALLS.get();
+		return call.operation == null ? null : call;
+	}
+
+	/**
+	 * Add a database command that the call sent.
+	 * @param documentCount The documents the command returned or changed.
+	 */
+	void addCommand(int documentCount) {
+		commands++;
+		documents += documentCount;
+	}
+
+	/**
+	 * End the call, committing its event if it is recorded.
+	 * @param storeId The oauth.store.id of the store.
+	 * @param providerId
+	 * @param key The client ID, lookup key or user name the call is for, or null.
+	 * @param resultSize The entries read or counted, or -1 for the operations that do not read and
+	 *        for streamed results.
+	 * @param database Whether the storage engine keeps the entries in the database, so that a
+	 *        read without a database command was served by a cache.
+	 * @param failed Whether the call threw an exception.
+	 */
+	void end(String storeId, String providerId, String key, int resultSize, boolean database, boolean failed) {
+		if (event != null) {
+			RECORDER.commitOperation(this, storeId, providerId, key, resultSize, database, failed);
+			event = null;
+		}
+		operation = null;
+	}
+
+	private static StoreRecorder loadRecorder() {
+		try {
+			ClassLoader loader = StoreCall.class.getClassLoader();
+			Class.forName("jdk.jfr.Event", false, loader);
+			return (StoreRecorder) Class.forName("security.custom.store.StoreEvents", true, loader)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+			return null;
+		}
+	}
+}
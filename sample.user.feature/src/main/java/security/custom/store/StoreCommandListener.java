@@ -0,0 +1,427 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package security.custom.store;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Listens to the commands the MongoDB drivers of MongoDBHelper send. It adds each command
+ * to the StoreCall in progress on its thread, and, when the JVM has Java Flight Recorder,
+ * records it as a StoreEvents.CommandEvent.
+ * </p>
+ * It also keeps a slow command log. The duration of each command is traced at FINER, and
+ * a command that takes longer than the slowCommandThreshold is logged as a warning with
+ * the shape of its filter, where every value is replaced by ?, so that no token or client
+ * values are logged, and the OAuthStore method that sent it. With slowCommandExplain, the
+ * first slow command of each shape is also explained in the background, and its query
+ * plan is logged as its stages and indexes, for example FETCH &lt; IXSCAN LOOKUPKEY_1, or
+ * COLLSCAN for a collection scan.
+ * </p>
+ * The filter of a command must be copied when the command starts, as the driver releases
+ * the command once it is sent, and most commands are not slow. So unless FINER is on, only
+ * the commands of a name and OAuthStore method that were slow before are copied. The first
+ * slow command of a name and method is logged without its shape.
+ * </p>
+ * The synchronous driver calls the listener on the thread that runs the OAuthStore
+ * method. The commands of the asynchronous driver, used by the async token writer and
+ * the expired entry cleanup, complete on other threads and are not added to a call.
+ */
+class StoreCommandListener implements CommandListener {
+
+	static final Logger LOGGER = Logger.getLogger(StoreCommandListener.class.getName());
+
+	// The most query shapes explained, so that varied filters do not grow the set without end
+	private static final int MAX_EXPLAINED_SHAPES = 1000;
+	// The most command names and methods whose commands are copied to log their shape
+	private static final int MAX_SLOW_KINDS = 1000;
+
+	private volatile long slowThresholdNanos = 0; // 0 to disable the slow command log
+	private volatile MongoClient explainClient = null; // null unless slow commands are explained
+	private ThreadPoolExecutor explainExecutor = null;
+
+	// The commands in progress whose shape is logged, by request ID
+	private final Map<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+	private final Set<String> explainedShapes = ConcurrentHashMap.newKeySet();
+	// The command names and methods that had a slow command, see getKind
+	private final Set<String> slowKinds = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * A command in progress, with the parts of it the slow command log needs.
+	 */
+	private static class Pending {
+		final String commandName;
+		final String databaseName;
+		final String collection;
+		final BsonDocument filter; // null for commands without a filter
+		final BsonDocument sort;
+		final String operation; // the OAuthStore method, or null
+
+		Pending(String commandName, String databaseName, String collection, BsonDocument filter, BsonDocument sort,
+				String operation) {
+			this.commandName = commandName;
+			this.databaseName = databaseName;
+			this.collection = collection;
+			this.filter = filter;
+			this.sort = sort;
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * Configure the slow command log.
+	 * @param thresholdMillis The milliseconds above which a command is logged, 0 to disable the log.
+	 * @param client The client to explain slow commands with, or null to not explain them.
+	 */
+	synchronized void configure(int thresholdMillis, MongoClient client) {
+		slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(thresholdMillis, 0));
+		if (client != null && explainExecutor == null) {
+			explainExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(100), r -> {
+						Thread t = new Thread(r, "Slow command explain");
+						t.setDaemon(true);
+						return t;
+					}, new ThreadPoolExecutor.DiscardPolicy());
+		}
+		explainClient = client;
+		LOGGER.log(Level.FINEST, "Slow command log: slowCommandThreshold=" + thresholdMillis + ", slowCommandExplain="
+				+ (client != null));
+	}
+
+	/**
+	 * Stop explaining slow commands.
+	 */
+	synchronized void close() {
+		explainClient = null;
+		if (explainExecutor != null) {
+			explainExecutor.shutdownNow();
+			explainExecutor = null;
+		}
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		if (StoreCall.JFR_AVAILABLE) {
+			StoreCall.RECORDER.beginCommand(event.getRequestId(), event.getDatabaseName());
+		}
+		// The explain commands of the slow command log are not logged themselves
+		if ((slowThresholdNanos > 0 || LOGGER.isLoggable(Level.FINER)) && !"explain".equals(event.getCommandName())) {
+			String operation = getOperation(StoreCall.current());
+			if (LOGGER.isLoggable(Level.FINER)
+					|| (!slowKinds.isEmpty() && slowKinds.contains(getKind(event.getCommandName(), operation)))) {
+				pending.put(event.getRequestId(),
+						createPending(event.getCommandName(), event.getDatabaseName(), event.getCommand(), operation));
+			}
+		}
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		StoreCall call = StoreCall.current();
+		int documents = getDocumentCount(event.getResponse());
+		if (call != null) {
+			call.addCommand(documents);
+		}
+		if (StoreCall.JFR_AVAILABLE) {
+			StoreCall.RECORDER.commitCommand(event.getRequestId(), event.getCommandName(),
+					event.getConnectionDescription().getServerAddress(), call, documents, false);
+		}
+		completed(event.getRequestId(), event.getCommandName(), call, event.getElapsedTime(TimeUnit.NANOSECONDS),
+				documents, false);
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		StoreCall call = StoreCall.current();
+		if (call != null) {
+			call.addCommand(0);
+		}
+		if (StoreCall.JFR_AVAILABLE) {
+			StoreCall.RECORDER.commitCommand(event.getRequestId(), event.getCommandName(),
+					event.getConnectionDescription().getServerAddress(), call, 0, true);
+		}
+		completed(event.getRequestId(), event.getCommandName(), call, event.getElapsedTime(TimeUnit.NANOSECONDS), 0,
+				true);
+	}
+
+	/**
+	 * Helper method to trace a completed command, and log it if it is slow. A slow command
+	 * that was not copied when it started is logged without its shape, and the next commands
+	 * of its name and method are copied.
+	 */
+	private void completed(int requestId, String commandName, StoreCall call, long elapsedNanos, int documents,
+			boolean failed) {
+		Pending command = pending.isEmpty() ? null : pending.remove(requestId);
+		long threshold = slowThresholdNanos;
+		boolean slow = threshold > 0 && elapsedNanos > threshold;
+		if (command == null) {
+			if (slow && !"explain".equals(commandName)) {
+				String operation = getOperation(call);
+				LOGGER.log(Level.WARNING, "Slow MongoDB command: " + commandName + " took "
+						+ TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms" + (failed ? " and failed" : "") + ", "
+						+ documents + " documents" + (operation == null ? "" : ", for " + operation)
+						+ ", the shape is logged for the next slow " + commandName + " of this method");
+				if (slowKinds.size() < MAX_SLOW_KINDS) {
+					slowKinds.add(getKind(commandName, operation));
+				}
+			}
+			return;
+		}
+		if (slow || LOGGER.isLoggable(Level.FINER)) {
+			String shape = getShape(command);
+			String message = shape + " on " + command.databaseName + " took "
+					+ TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms" + (failed ? " and failed" : "") + ", "
+					+ documents + " documents"
+					+ (command.operation == null ? "" : ", for " + command.operation);
+			if (slow) {
+				LOGGER.log(Level.WARNING, "Slow MongoDB command: " + message);
+				explainLater(command, shape);
+			} else {
+				LOGGER.log(Level.FINER, "MongoDB command: " + message);
+			}
+		}
+	}
+
+	private static String getOperation(StoreCall call) {
+		return call == null ? null : call.operation.getMethodName();
+	}
+
+	/**
+	 * @return The key of the commands of a name sent by an OAuthStore method in slowKinds.
+	 */
+	private static String getKind(String commandName, String operation) {
+		return operation == null ? commandName : commandName + ' ' + operation;
+	}
+
+	/**
+	 * Helper method to keep the name, collection, filter and sort of a command. The filter is
+	 * copied, as the driver may release the buffer of the command once it is sent.
+	 */
+	private static Pending createPending(String commandName, String databaseName, BsonDocument command,
+			String operation) {
+		BsonValue collection = command.get(commandName);
+		if ("getMore".equals(commandName)) {
+			collection = command.get("collection");
+		}
+		BsonValue filter = null;
+		BsonValue sort = null;
+		switch (commandName) {
+		case "find":
+			filter = command.get("filter");
+			sort = command.get("sort");
+			break;
+		case "count":
+		case "distinct":
+		case "findAndModify":
+			filter = command.get("query");
+			sort = command.get("sort");
+			break;
+		case "delete":
+		case "update":
+			BsonValue statements = command.get("delete".equals(commandName) ? "deletes" : "updates");
+			if (statements != null && statements.isArray() && !statements.asArray().isEmpty()
+					&& statements.asArray().get(0).isDocument()) {
+				filter = statements.asArray().get(0).asDocument().get("q");
+			}
+			break;
+		case "aggregate":
+			BsonValue pipeline = command.get("pipeline");
+			if (pipeline != null && pipeline.isArray()) {
+				for (BsonValue stage : pipeline.asArray()) {
+					if (stage.isDocument() && stage.asDocument().containsKey("$match")) {
+						filter = stage.asDocument().get("$match");
+						break;
+					}
+				}
+			}
+			break;
+		default:
+			break;
+		}
+		return new Pending(commandName, databaseName,
+				collection != null && collection.isString() ? collection.asString().getValue() : null,
+				filter != null && filter.isDocument() ? filter.asDocument().clone() : null,
+				sort != null && sort.isDocument() ? sort.asDocument().clone() : null, operation);
+	}
+
+	/**
+	 * Helper method to describe a command without its values, for example
+	 * find OauthToken {LOOKUPKEY: ?, PROVIDERID: ?}.
+	 */
+	private static String getShape(Pending command) {
+		StringBuilder sb = new StringBuilder(command.commandName);
+		if (command.collection != null) {
+			sb.append(' ').append(command.collection);
+		}
+		if (command.filter != null) {
+			appendShape(sb.append(' '), command.filter);
+		}
+		if (command.sort != null && !command.sort.isEmpty()) {
+			sb.append(" sort ").append(command.sort.keySet());
+		}
+		return sb.toString();
+	}
+
+	private static void appendShape(StringBuilder sb, BsonValue value) {
+		if (value.isDocument()) {
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+				if (!first) {
+					sb.append(", ");
+				}
+				first = false;
+				appendShape(sb.append(entry.getKey()).append(": "), entry.getValue());
+			}
+			sb.append('}');
+		} else if (value.isArray()) {
+			// The elements of $and and $or are filters, those of $in are values
+			BsonArray array = value.asArray();
+			if (!array.isEmpty() && array.get(0).isDocument()) {
+				sb.append('[');
+				for (int i = 0; i < array.size(); i++) {
+					appendShape(sb.append(i == 0 ? "" : ", "), array.get(i));
+				}
+				sb.append(']');
+			} else {
+				sb.append("[?]");
+			}
+		} else {
+			sb.append('?');
+		}
+	}
+
+	/**
+	 * Helper method to explain the first slow command of a shape in the background.
+	 */
+	private void explainLater(Pending command, String shape) {
+		MongoClient client = explainClient;
+		if (client == null || command.collection == null || command.filter == null
+				|| explainedShapes.size() >= MAX_EXPLAINED_SHAPES || !explainedShapes.add(shape)) {
+			return;
+		}
+		BsonDocument explained;
+		switch (command.commandName) {
+		case "find":
+			explained = new BsonDocument("find", new BsonString(command.collection)).append("filter", command.filter);
+			if (command.sort != null) {
+				explained.append("sort", command.sort);
+			}
+			break;
+		case "count":
+			explained = new BsonDocument("count", new BsonString(command.collection)).append("query", command.filter);
+			break;
+		case "delete":
+			explained = new BsonDocument("delete", new BsonString(command.collection)).append("deletes",
+					new BsonArray(Collections.singletonList(
+							new BsonDocument("q", command.filter).append("limit", new BsonInt32(0)))));
+			break;
+		default:
+			explainedShapes.remove(shape);
+			return;
+		}
+		BsonDocument explain = new BsonDocument("explain", explained).append("verbosity", new BsonString("queryPlanner"));
+		synchronized (this) {
+			if (explainExecutor == null) {
+				return;
+			}
+			explainExecutor.execute(() -> {
+				try {
+					BsonDocument result = client.getDatabase(command.databaseName).runCommand(explain, BsonDocument.class);
+					BsonValue planner = result.get("queryPlanner");
+					BsonValue plan = planner != null && planner.isDocument() ? planner.asDocument().get("winningPlan") : null;
+					String stages = plan != null && plan.isDocument() ? getStages(plan.asDocument()) : "unknown";
+					LOGGER.log(stages.contains("COLLSCAN") ? Level.WARNING : Level.INFO,
+							"Query plan of the slow MongoDB command " + shape + ": " + stages);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.FINEST, "Could not explain the slow MongoDB command " + shape, e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Helper method to list the stages of a plan and the indexes they use, without the index
+	 * bounds and filters, which hold the values of the query.
+	 */
+	static String getStages(BsonDocument plan) {
+		StringBuilder sb = new StringBuilder();
+		BsonValue stage = plan.get("stage");
+		sb.append(stage != null && stage.isString() ? stage.asString().getValue() : "?");
+		BsonValue index = plan.get("indexName");
+		if (index != null && index.isString()) {
+			sb.append(' ').append(index.asString().getValue());
+		}
+		BsonValue input = plan.get("inputStage");
+		if (input != null && input.isDocument()) {
+			sb.append(" < ").append(getStages(input.asDocument()));
+		}
+		BsonValue inputs = plan.get("inputStages");
+		if (inputs != null && inputs.isArray()) {
+			sb.append(" < [");
+			for (int i = 0; i < inputs.asArray().size(); i++) {
+				BsonValue child = inputs.asArray().get(i);
+				sb.append(i == 0 ? "" : ", ").append(child.isDocument() ? getStages(child.asDocument()) : "?");
+			}
+			sb.append(']');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Helper method to find the documents a command returned or changed in its reply: the
+	 * batch of a cursor for find, aggregate and getMore, else the n of a write or count.
+	 * @param response
+	 * @return The number of documents, or 0 if the reply does not tell.
+	 */
+	static int getDocumentCount(BsonDocument response) {
+		if (response == null) {
+			return 0;
+		}
+		BsonValue cursor = response.get("cursor");
+		if (cursor != null && cursor.isDocument()) {
+			BsonValue batch = cursor.asDocument().get("firstBatch");
+			if (batch == null) {
+				batch = cursor.asDocument().get("nextBatch");
+			}
+			if (batch != null && batch.isArray()) {
+				return batch.asArray().size();
+			}
+		}
+		BsonValue n = response.get("n");
+		return n != null && n.isNumber() ? n.asNumber().intValue() : 0;
+	}
+}
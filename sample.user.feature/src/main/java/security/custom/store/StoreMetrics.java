@@ -0,0 +1,431 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package security.custom.store;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the calls, errors, latency and result size of each OAuthStore operation of a
+ * CustomStoreSample, by provider ID and token type.
+ * </p>
+ * Recording does not allocate once a series exists: the series are found in maps keyed
+ * by the provider ID and token type strings, and the histograms have fixed buckets held
+ * in AtomicLongArrays. The metrics are read through the StoreMetricsMXBean, as a list of
+ * snapshots or as Prometheus text.
+ */
+public class StoreMetrics implements StoreMetricsMXBean {
+
+	static final Logger LOGGER = Logger.getLogger(StoreMetrics.class.getName());
+
+	/**
+	 * The OAuthStore operations, named as their OAuthStore methods.
+	 */
+	public enum Operation {
+		CREATE_CLIENT("createClient"), CREATE_TOKEN("createToken"), CREATE_CONSENT("createConsent"),
+		READ_CLIENT("readClient"), READ_ALL_CLIENTS("readAllClients"), READ_TOKEN("readToken"),
+		READ_ALL_TOKENS("readAllTokens"), COUNT_TOKENS("countTokens"), READ_CONSENT("readConsent"),
+		UPDATE_CLIENT("updateClient"), UPDATE_TOKEN("updateToken"), UPDATE_CONSENT("updateConsent"),
+		DELETE_CLIENT("deleteClient"), DELETE_TOKEN("deleteToken"), DELETE_TOKENS("deleteTokens"),
+		DELETE_CONSENT("deleteConsent"), DELETE_CONSENTS("deleteConsents");
+
+		private final String methodName;
+
+		Operation(String methodName) {
+			this.methodName = methodName;
+		}
+
+		public String getMethodName() {
+			return methodName;
+		}
+	}
+
+	// The upper bounds of the latency buckets, in nanoseconds. The last bucket holds the rest.
+	private static final long[] LATENCY_BOUNDS = { 50000L, 100000L, 250000L, 500000L, 1000000L, 2500000L,
+			5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L, 500000000L, 1000000000L,
+			2500000000L, 5000000000L, 10000000000L };
+
+	// The upper bounds of the result size buckets, in entries. The last bucket holds the rest.
+	private static final long[] SIZE_BOUNDS = { 0, 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 10000 };
+
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	private final String storeId;
+	private final ConcurrentHashMap<String, ProviderSeries> providers = new ConcurrentHashMap<String, ProviderSeries>();
+	private ObjectName objectName = null;
+
+	/**
+	 * @param storeId The oauth.store.id of the store.
+	 */
+	public StoreMetrics(String storeId) {
+		this.storeId = storeId == null ? "" : storeId;
+	}
+
+	/**
+	 * Record a call.
+	 * @param operation
+	 * @param providerId The provider ID, or null.
+	 * @param tokenType The token type, or null for the operations on clients and consents and
+	 *        the token operations that do not know it.
+	 * @param startNanos The System.nanoTime() at the start of the call.
+	 * @param resultSize The number of entries read or counted, or -1 for the operations that do not read
+	 *        and for streamed results, whose size is not known.
+	 * @param failed Whether the call threw an exception.
+	 */
+	public void record(Operation operation, String providerId, String tokenType, long startNanos, int resultSize,
+			boolean failed) {
+		long latency = System.nanoTime() - startNanos;
+		Series series = getSeries(operation, providerId == null ? "" : providerId, tokenType == null ? "" : tokenType);
+		series.latencies.incrementAndGet(bucket(LATENCY_BOUNDS, latency));
+		series.latencySum.addAndGet(latency);
+		long max = series.latencyMax.get();
+		while (latency > max && !series.latencyMax.compareAndSet(max, latency)) {
+			max = series.latencyMax.get();
+		}
+		if (failed) {
+			series.errors.incrementAndGet();
+		} else if (resultSize >= 0) {
+			series.sizes.incrementAndGet(bucket(SIZE_BOUNDS, resultSize));
+			series.sizeSum.addAndGet(resultSize);
+		}
+	}
+
+	/**
+	 * Helper method to find or add the series of a call.
+	 */
+	private Series getSeries(Operation operation, String providerId, String tokenType) {
+		ProviderSeries provider = providers.get(providerId);
+		if (provider == null) {
+			provider = new ProviderSeries();
+			ProviderSeries existing = providers.putIfAbsent(providerId, provider);
+			if (existing != null) {
+				provider = existing;
+			}
+		}
+		AtomicReferenceArray<Series> byOperation = provider.byType.get(tokenType);
+		if (byOperation == null) {
+			byOperation = new AtomicReferenceArray<Series>(OPERATIONS.length);
+			AtomicReferenceArray<Series> existing = provider.byType.putIfAbsent(tokenType, byOperation);
+			if (existing != null) {
+				byOperation = existing;
+			}
+		}
+		Series series = byOperation.get(operation.ordinal());
+		if (series == null) {
+			byOperation.compareAndSet(operation.ordinal(), null, new Series(operation, providerId, tokenType));
+			series = byOperation.get(operation.ordinal());
+		}
+		return series;
+	}
+
+	private static int bucket(long[] bounds, long value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server, where Liberty also registers its own.
+	 * A failure is logged, as the store works without them.
+	 */
+	public synchronized void register() {
+		try {
+			ObjectName name = new ObjectName("security.custom.store:type=StoreMetrics,name=" + ObjectName.quote(storeId));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+			LOGGER.log(Level.FINEST, "Registered the store metrics as " + name);
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Could not register the store metrics of " + storeId, e);
+		}
+	}
+
+	/**
+	 * Unregister the metrics from the platform MBean server.
+	 */
+	public synchronized void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				LOGGER.log(Level.FINEST, "Could not unregister the store metrics " + objectName, e);
+			}
+			objectName = null;
+		}
+	}
+
+	@Override
+	public String getStoreId() {
+		return storeId;
+	}
+
+	@Override
+	public List<Snapshot> getOperations() {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		for (Series series : getAllSeries()) {
+			snapshots.add(new Snapshot(series));
+		}
+		return snapshots;
+	}
+
+	@Override
+	public String getPrometheusText() {
+		List<Series> all = getAllSeries();
+		StringBuilder sb = new StringBuilder();
+		sb.append("# TYPE oauth_store_calls_total counter\n");
+		for (Series series : all) {
+			appendLabels(sb.append("oauth_store_calls_total"), series, null).append(' ')
+					.append(sum(series.latencies)).append('\n');
+		}
+		sb.append("# TYPE oauth_store_errors_total counter\n");
+		for (Series series : all) {
+			appendLabels(sb.append("oauth_store_errors_total"), series, null).append(' ')
+					.append(series.errors.get()).append('\n');
+		}
+		sb.append("# TYPE oauth_store_latency_seconds histogram\n");
+		for (Series series : all) {
+			appendHistogram(sb, "oauth_store_latency_seconds", series, series.latencies, LATENCY_BOUNDS, 1e9,
+					series.latencySum.get());
+		}
+		sb.append("# TYPE oauth_store_result_size histogram\n");
+		for (Series series : all) {
+			if (sum(series.sizes) > 0) {
+				appendHistogram(sb, "oauth_store_result_size", series, series.sizes, SIZE_BOUNDS, 1,
+						series.sizeSum.get());
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		providers.clear();
+	}
+
+	private List<Series> getAllSeries() {
+		List<Series> all = new ArrayList<Series>();
+		for (ProviderSeries provider : providers.values()) {
+			for (AtomicReferenceArray<Series> byOperation : provider.byType.values()) {
+				for (int i = 0; i < byOperation.length(); i++) {
+					if (byOperation.get(i) != null) {
+						all.add(byOperation.get(i));
+					}
+				}
+			}
+		}
+		return all;
+	}
+
+	private void appendHistogram(StringBuilder sb, String name, Series series, AtomicLongArray buckets, long[] bounds,
+			double scale, long sum) {
+		long cumulative = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			cumulative += buckets.get(i);
+			String le = i < bounds.length ? String.valueOf(bounds[i] / scale) : "+Inf";
+			appendLabels(sb.append(name).append("_bucket"), series, le).append(' ').append(cumulative).append('\n');
+		}
+		appendLabels(sb.append(name).append("_count"), series, null).append(' ').append(cumulative).append('\n');
+		appendLabels(sb.append(name).append("_sum"), series, null).append(' ').append(sum / scale).append('\n');
+	}
+
+	private StringBuilder appendLabels(StringBuilder sb, Series series, String le) {
+		sb.append("{store=\"");
+		escape(sb, storeId).append("\",operation=\"").append(series.operation.getMethodName())
+				.append("\",provider=\"");
+		escape(sb, series.providerId).append("\",token_type=\"");
+		escape(sb, series.tokenType).append('"');
+		if (le != null) {
+			sb.append(",le=\"").append(le).append('"');
+		}
+		return sb.append('}');
+	}
+
+	private static StringBuilder escape(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb;
+	}
+
+	private static long sum(AtomicLongArray buckets) {
+		long sum = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			sum += buckets.get(i);
+		}
+		return sum;
+	}
+
+	/**
+	 * Estimate a percentile as the upper bound of the bucket that holds it, or the
+	 * maximum for the last bucket.
+	 */
+	private static long percentile(AtomicLongArray buckets, long[] bounds, double percentile, long max) {
+		long count = sum(buckets);
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long cumulative = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			cumulative += buckets.get(i);
+			if (cumulative >= rank && cumulative > 0) {
+				return Math.min(bounds[i], max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * The series of a provider, by token type and operation.
+	 */
+	private static class ProviderSeries {
+		final Map<String, AtomicReferenceArray<Series>> byType = new ConcurrentHashMap<String, AtomicReferenceArray<Series>>();
+	}
+
+	/**
+	 * The counters of an operation, provider ID and token type.
+	 */
+	private static class Series {
+		final Operation operation;
+		final String providerId;
+		final String tokenType;
+		final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+		final AtomicLong latencySum = new AtomicLong();
+		final AtomicLong latencyMax = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLongArray sizes = new AtomicLongArray(SIZE_BOUNDS.length + 1);
+		final AtomicLong sizeSum = new AtomicLong();
+
+		Series(Operation operation, String providerId, String tokenType) {
+			this.operation = operation;
+			this.providerId = providerId;
+			this.tokenType = tokenType;
+		}
+	}
+
+	/**
+	 * The metrics of an operation, provider ID and token type at the time they were read.
+	 * The percentiles are the upper bounds of the histogram buckets that hold them.
+	 */
+	public static class Snapshot {
+		private final String operation;
+		private final String providerId;
+		private final String tokenType;
+		private final long count;
+		private final long errorCount;
+		private final double meanMillis;
+		private final double p50Millis;
+		private final double p90Millis;
+		private final double p99Millis;
+		private final double maxMillis;
+		private final double meanResultSize;
+		private final long maxResultSizeBucket;
+
+		Snapshot(Series series) {
+			operation = series.operation.getMethodName();
+			providerId = series.providerId;
+			tokenType = series.tokenType;
+			count = sum(series.latencies);
+			errorCount = series.errors.get();
+			long max = series.latencyMax.get();
+			meanMillis = count == 0 ? 0 : series.latencySum.get() / 1e6 / count;
+			p50Millis = percentile(series.latencies, LATENCY_BOUNDS, 50, max) / 1e6;
+			p90Millis = percentile(series.latencies, LATENCY_BOUNDS, 90, max) / 1e6;
+			p99Millis = percentile(series.latencies, LATENCY_BOUNDS, 99, max) / 1e6;
+			maxMillis = max / 1e6;
+			long sizeCount = sum(series.sizes);
+			meanResultSize = sizeCount == 0 ? 0 : (double) series.sizeSum.get() / sizeCount;
+			maxResultSizeBucket = sizeCount == 0 ? 0 : percentile(series.sizes, SIZE_BOUNDS, 100, Long.MAX_VALUE);
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public String getProviderId() {
+			return providerId;
+		}
+
+		/**
+		 * @return The token type, or an empty string.
+		 */
+		public String getTokenType() {
+			return tokenType;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getErrorCount() {
+			return errorCount;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP90Millis() {
+			return p90Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+
+		public double getMeanResultSize() {
+			return meanResultSize;
+		}
+
+		/**
+		 * @return The upper bound of the highest result size bucket with a call, Long.MAX_VALUE
+		 *         above 10000 entries.
+		 */
+		public long getMaxResultSizeBucket() {
+			return maxResultSizeBucket;
+		}
+	}
+}
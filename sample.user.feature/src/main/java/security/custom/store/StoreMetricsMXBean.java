@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package security.custom.store;
+
+import java.util.List;
+
+/**
+ * The management interface of the StoreMetrics of a CustomStoreSample. It is registered
+ * as security.custom.store:type=StoreMetrics,name=&lt;oauth.store.id&gt;.
+ */
+public interface StoreMetricsMXBean {
+
+	/**
+	 * @return The oauth.store.id of the store.
+	 */
+	String getStoreId();
+
+	/**
+	 * @return A snapshot of each operation, provider ID and token type that was called.
+	 */
+	List<StoreMetrics.Snapshot> getOperations();
+
+	/**
+	 * @return The metrics in the Prometheus text format that the mpMetrics /metrics endpoint serves.
+	 */
+	String getPrometheusText();
+
+	/**
+	 * Clear all metrics.
+	 */
+	void reset();
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import com.mongodb.ServerAddress;
+
+/**
+ * Records the store operations and database commands as Java Flight Recorder events. The
+ * implementation, StoreEvents, uses the jdk.jfr API, so it is compiled separately from the
+ * rest of the user feature and loaded by StoreCall when the JVM has the API.
+ */
+interface StoreRecorder {
+
+	/**
+	 * Begin the event of a StoreCall.
+	 * @return The event to keep in the call, or null when the event is not enabled.
+	 */
+	Object beginOperation();
+
+	/**
+	 * Commit the event of a StoreCall, see StoreCall.end.
+	 */
+	void commitOperation(StoreCall call, String storeId, String providerId, String key, int resultSize,
+			boolean database, boolean failed);
+
+	/**
+	 * Begin the event of a database command.
+	 * @param requestId The request ID of the command, to find the event when it completes.
+	 * @param databaseName
+	 */
+	void beginCommand(int requestId, String databaseName);
+
+	/**
+	 * Commit the event of a database command, if it was begun.
+	 * @param requestId
+	 * @param commandName
+	 * @param server
+	 * @param call The StoreCall that sent the command, or null.
+	 * @param documents The documents the command returned or changed.
+	 * @param failed
+	 */
+	void commitCommand(int requestId, String commandName, ServerAddress server, StoreCall call, int documents,
+			boolean failed);
+}
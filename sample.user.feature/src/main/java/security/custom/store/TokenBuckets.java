@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.ibm.websphere.security.oauth20.store.OAuthToken;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Routes the OAuthToken documents into collections by expiry window, so that the expired
+ * tokens are removed by dropping whole collections instead of deleting the documents one by one.
+ * </p>
+ * A bucket collection is named after its window, OauthToken_start_end in seconds since the
+ * epoch, and holds the tokens that expire in [start, end). The window size is set per token
+ * subType or type with the tokenBucketSizes option, or else by tokenBucketSize, so short lived
+ * authorization codes and long lived refresh tokens each get a fitting size. Windows of
+ * different sizes can exist side by side.
+ * </p>
+ * The buckets of the database are listed when the buckets are created and again on each
+ * refresh, so the buckets created by other servers are found. A token can not be found by
+ * its lookup key alone, so the reads go to every bucket that has not been dropped, see
+ * MongoStorageEngine.
+ */
+public class TokenBuckets {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(TokenBuckets.class.getName());
+
+	/**
+	 * A bucket collection and its window, in milliseconds.
+	 */
+	public static final class Bucket {
+		final String name;
+		final long start;
+		final long end;
+		final MongoCollection<OAuthToken> objects;
+
+		Bucket(String name, long start, long end, MongoCollection<OAuthToken> objects) {
+			this.name = name;
+			this.start = start;
+			this.end = end;
+			this.objects = objects;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public MongoCollection<OAuthToken> getObjects() {
+			return objects;
+		}
+
+		/**
+		 * @param timestamp
+		 * @return true if all the tokens of the bucket expire before the time.
+		 */
+		public boolean expiresBefore(long timestamp) {
+			return end <= timestamp;
+		}
+
+		/**
+		 * @param timestamp
+		 * @return true if some, but not all, tokens of the bucket can expire before the time.
+		 */
+		public boolean straddles(long timestamp) {
+			return start < timestamp && timestamp < end;
+		}
+	}
+
+	private final String prefix;
+	private final MongoDatabase db;
+	private final Function<MongoCollection<Document>, MongoCollection<OAuthToken>> prepare;
+	private final long defaultSize;
+	private final Map<String, Long> sizes = new HashMap<String, Long>();
+	// By end, then name, so the buckets that expire first come first
+	private final ConcurrentSkipListMap<String, Bucket> buckets = new ConcurrentSkipListMap<String, Bucket>();
+
+	/**
+	 * @param db
+	 * @param collectionName The name of the token collection, the prefix of the bucket names.
+	 * @param prepare Creates the indexes of a bucket and returns it with the codecs and concerns of
+	 * the token collection.
+	 * @param defaultSize The window size in seconds for the tokens without a size of their own.
+	 * @param sizesByType Window sizes by subType or type, for example authorization_code=60,refresh_token=86400.
+	 */
+	public TokenBuckets(MongoDatabase db, String collectionName,
+			Function<MongoCollection<Document>, MongoCollection<OAuthToken>> prepare, int defaultSize, String sizesByType) {
+		this.prefix = collectionName + "_";
+		this.db = db;
+		this.prepare = prepare;
+		this.defaultSize = defaultSize * 1000L;
+		if (sizesByType != null) {
+			for (String entry : sizesByType.split(",")) {
+				int eq = entry.indexOf('=');
+				try {
+					long size = Long.parseLong(entry.substring(eq + 1).trim()) * 1000L;
+					if (eq <= 0 || size <= 0) {
+						throw new NumberFormatException();
+					}
+					sizes.put(entry.substring(0, eq).trim(), size);
+				} catch (NumberFormatException e) {
+					if (!entry.trim().isEmpty()) {
+						LOGGER.log(Level.WARNING, "tokenBucketSizes entry " + entry + " is not of the form type=seconds. Ignoring it.");
+					}
+				}
+			}
+		}
+		refresh();
+		LOGGER.log(Level.INFO, "Token buckets of " + defaultSize + " seconds, by type " + sizes + ", found " + buckets.size());
+	}
+
+	/**
+	 * List the bucket collections of the database, to find the buckets created or dropped by
+	 * other servers.
+	 */
+	public void refresh() {
+		Map<String, Bucket> found = new HashMap<String, Bucket>();
+		for (String name : db.listCollectionNames()) {
+			Bucket bucket = buckets.get(sortKey(name));
+			if (bucket == null) {
+				bucket = parse(name);
+			}
+			if (bucket != null) {
+				found.put(sortKey(name), bucket);
+			}
+		}
+		buckets.keySet().retainAll(found.keySet());
+		buckets.putAll(found);
+	}
+
+	/**
+	 * @param oauthToken
+	 * @return The bucket of the token, created if it is new, or null for a token that does not expire.
+	 */
+	public Bucket bucketFor(OAuthToken oauthToken) {
+		if (oauthToken.getExpires() <= 0) {
+			return null;
+		}
+		long size = getSize(oauthToken);
+		long start = oauthToken.getExpires() / size * size;
+		String name = prefix + start / 1000 + "_" + (start + size) / 1000;
+		return buckets.computeIfAbsent(sortKey(name), key -> {
+			LOGGER.log(Level.FINEST, "Creating token bucket " + name);
+			return new Bucket(name, start, start + size, prepare.apply(db.getCollection(name)));
+		});
+	}
+
+	/**
+	 * @return The buckets that have not been dropped, the first to expire first.
+	 */
+	public List<Bucket> getBuckets() {
+		return new ArrayList<Bucket>(buckets.values());
+	}
+
+	/**
+	 * Forget a bucket that was dropped.
+	 * @param bucket
+	 */
+	public void remove(Bucket bucket) {
+		buckets.remove(sortKey(bucket.name));
+	}
+
+	private long getSize(OAuthToken oauthToken) {
+		Long size = oauthToken.getSubType() == null ? null : sizes.get(oauthToken.getSubType());
+		if (size == null && oauthToken.getType() != null) {
+			size = sizes.get(oauthToken.getType());
+		}
+		return size == null ? defaultSize : size;
+	}
+
+	private Bucket parse(String name) {
+		if (!name.startsWith(prefix)) {
+			return null;
+		}
+		String[] window = name.substring(prefix.length()).split("_");
+		try {
+			if (window.length == 2) {
+				return new Bucket(name, Long.parseLong(window[0]) * 1000L, Long.parseLong(window[1]) * 1000L,
+						prepare.apply(db.getCollection(name)));
+			}
+		} catch (NumberFormatException e) {
+			// Not a bucket
+		}
+		return null;
+	}
+
+	/**
+	 * @return A key that sorts the buckets by their end. Ends are seconds since the epoch, which
+	 * have the same number of digits until the year 2286.
+	 */
+	private String sortKey(String name) {
+		int end = name.lastIndexOf('_');
+		return name.substring(end + 1) + name;
+	}
+}
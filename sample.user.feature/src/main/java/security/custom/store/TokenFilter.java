@@ -0,0 +1,536 @@
+/*
+ * Copyright 2018 International Business Machines Corp.
+ *
+ * See the NOTICE file distributed with this work for additional information
+ * regarding copyright ownership. Licensed under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package security.custom.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A filter over the lookup keys of the stored tokens, so that a readToken for a key that was
+ * never stored, or was deleted, is answered without a database query.
+ * </p>
+ * Each provider has a scalable cuckoo filter: a list of cuckoo filters with 16 bit fingerprints
+ * in buckets of 4, where a new filter of twice the size is added when the last one is full.
+ * A cuckoo filter, unlike a Bloom filter, can remove a key, so deleted tokens stop passing the
+ * filter. A key must only be removed after it was found and deleted: removing a key that was
+ * never added could remove the fingerprint of another key. The keys of the expired tokens are
+ * not known when they are deleted, so the filter of a provider is rebuilt from the database
+ * after its cleanup instead.
+ * </p>
+ * The filter knows the tokens that were created through it and the tokens that were found by
+ * its last rebuild. A token is added before it is stored, so a concurrent read can not skip it,
+ * and confirmed after, in case a rebuild read the database before the token was there and
+ * replaced the filter it was added to. The filter answers maybe for everything until the
+ * first rebuild, which is run in the background at startup, is done. The tokens that other
+ * servers create are not known until the next rebuild, so the filter is only for deployments
+ * where one server writes the tokens, and it is not used with write-behind, whose pending
+ * tokens a rebuild can not read.
+ */
+public class TokenFilter {
+
+	// To enable trace for this class, enable trace in the server.xml and add this package name to the trace specification: security.custom.store.*=all
+	static final Logger LOGGER = Logger.getLogger(TokenFilter.class.getName());
+
+	private static final int INITIAL_BUCKETS = 1 << 12;
+	private static final int SLOTS = 4;
+	private static final int MAX_KICKS = 500;
+
+	/**
+	 * Lists the stored lookup keys for a rebuild.
+	 */
+	@FunctionalInterface
+	public interface Scanner {
+		/**
+		 * @param providerId The provider to list the keys of, or null for all providers.
+		 * @param keys Receives the provider ID and lookup key of each stored token.
+		 */
+		void scan(String providerId, BiConsumer<String, String> keys) throws Exception;
+	}
+
+	/**
+	 * One cuckoo filter. A fingerprint of 0 marks an empty slot.
+	 */
+	private static final class Cuckoo {
+		final short[] slots;
+		final int mask;
+		int count;
+		short victim; // the fingerprint that did not fit when the filter became full
+		int victimBucket;
+
+		Cuckoo(int buckets) {
+			slots = new short[buckets * SLOTS];
+			mask = buckets - 1;
+		}
+
+		int alternate(int bucket, short fingerprint) {
+			return (bucket ^ (int) mix(fingerprint * 0x5bd1e995L)) & mask;
+		}
+
+		boolean contains(int bucket, short fingerprint) {
+			int other = alternate(bucket, fingerprint);
+			return indexOf(bucket, fingerprint) >= 0 || indexOf(other, fingerprint) >= 0
+					|| (victim == fingerprint && (victimBucket == bucket || victimBucket == other));
+		}
+
+		/**
+		 * @return false if the filter is full. The filter then keeps one fingerprint aside and
+		 * takes no more keys.
+		 */
+		boolean add(int bucket, short fingerprint) {
+			if (victim != 0) {
+				return false;
+			}
+			if (put(bucket, fingerprint) || put(alternate(bucket, fingerprint), fingerprint)) {
+				count++;
+				return true;
+			}
+			int kick = 0;
+			for (int i = 0; i < MAX_KICKS; i++) {
+				int slot = bucket * SLOTS + kick;
+				short evicted = slots[slot];
+				slots[slot] = fingerprint;
+				fingerprint = evicted;
+				bucket = alternate(bucket, fingerprint);
+				if (put(bucket, fingerprint)) {
+					count++;
+					return true;
+				}
+				kick = (kick + 1) % SLOTS;
+			}
+			victim = fingerprint;
+			victimBucket = bucket;
+			count++;
+			return true;
+		}
+
+		boolean remove(int bucket, short fingerprint) {
+			int other = alternate(bucket, fingerprint);
+			if (victim == fingerprint && (victimBucket == bucket || victimBucket == other)) {
+				victim = 0;
+				count--;
+				return true;
+			}
+			int slot = indexOf(bucket, fingerprint);
+			if (slot < 0) {
+				slot = indexOf(other, fingerprint);
+			}
+			if (slot < 0) {
+				return false;
+			}
+			slots[slot] = 0;
+			count--;
+			return true;
+		}
+
+		private boolean put(int bucket, short fingerprint) {
+			int index = indexOf(bucket, (short) 0);
+			if (index < 0) {
+				return false;
+			}
+			slots[index] = fingerprint;
+			return true;
+		}
+
+		private int indexOf(int bucket, short fingerprint) {
+			int start = bucket * SLOTS;
+			for (int i = start; i < start + SLOTS; i++) {
+				if (slots[i] == fingerprint) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * The filters of one provider, the newest last.
+	 */
+	private static final class Scalable {
+		final List<Cuckoo> filters = new ArrayList<Cuckoo>();
+
+		Scalable() {
+			filters.add(new Cuckoo(INITIAL_BUCKETS));
+		}
+
+		synchronized boolean mightContain(long hash) {
+			for (Cuckoo filter : filters) {
+				if (filter.contains((int) hash & filter.mask, fingerprint(hash))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		synchronized void add(long hash) {
+			Cuckoo last = filters.get(filters.size() - 1);
+			if (!last.add((int) hash & last.mask, fingerprint(hash))) {
+				last = new Cuckoo((last.mask + 1) * 2);
+				filters.add(last);
+				last.add((int) hash & last.mask, fingerprint(hash));
+			}
+		}
+
+		synchronized void remove(long hash) {
+			for (int i = filters.size() - 1; i >= 0; i--) {
+				Cuckoo filter = filters.get(i);
+				if (filter.remove((int) hash & filter.mask, fingerprint(hash))) {
+					return;
+				}
+			}
+		}
+
+		synchronized long count() {
+			long count = 0;
+			for (Cuckoo filter : filters) {
+				count += filter.count;
+			}
+			return count;
+		}
+
+		synchronized long sizeInBytes() {
+			long size = 0;
+			for (Cuckoo filter : filters) {
+				size += filter.slots.length * 2L;
+			}
+			return size;
+		}
+
+		/**
+		 * The chance that an absent key matches a fingerprint in one of two buckets of each filter.
+		 */
+		synchronized double falsePositiveRate() {
+			double pass = 1;
+			for (Cuckoo filter : filters) {
+				pass *= 1 - 2.0 * SLOTS * filter.count / filter.slots.length / 65535;
+			}
+			return 1 - pass;
+		}
+	}
+
+	private final Scanner scanner;
+	private final ConcurrentHashMap<String, Scalable> filters = new ConcurrentHashMap<String, Scalable>();
+	// The filters being rebuilt, which also receive the keys created during the rebuild
+	private final ConcurrentHashMap<String, Scalable> rebuilding = new ConcurrentHashMap<String, Scalable>();
+	private volatile String rebuildingProvider = null; // "" while all providers are rebuilt
+	private long rebuildsStarted = 0; // Guarded by the swapLock
+	// Held by add and confirm, so that no key is added to a filter while it is replaced
+	private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+	private volatile boolean ready = false;
+	private final ExecutorService rebuilder;
+
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+	private volatile long lastRebuildMillis = 0;
+	private volatile long lastRebuildKeys = 0;
+
+	/**
+	 * Creates the filter and starts its first rebuild in the background.
+	 * @param scanner Lists the stored lookup keys.
+	 */
+	public TokenFilter(Scanner scanner) {
+		this.scanner = scanner;
+		rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "TokenFilter rebuild");
+			thread.setDaemon(true);
+			return thread;
+		});
+		rebuilder.execute(() -> rebuild(null));
+	}
+
+	/**
+	 * @param providerId
+	 * @param lookupKey
+	 * @return false if the token is certainly not stored, true if it might be.
+	 */
+	public boolean mightContain(String providerId, String lookupKey) {
+		if (!ready) {
+			return true;
+		}
+		Scalable filter = filters.get(providerId);
+		if (filter != null && filter.mightContain(hash(lookupKey))) {
+			return true;
+		}
+		skipped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Record a token that is about to be stored. Call confirm once it is stored.
+	 * @param providerId
+	 * @param lookupKey
+	 * @return The number of rebuilds started so far, to pass to confirm.
+	 */
+	public long add(String providerId, String lookupKey) {
+		swapLock.readLock().lock();
+		try {
+			add(providerId, hash(lookupKey));
+			return rebuildsStarted;
+		} finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Record again a token that was added and is now stored, if a rebuild started since. The
+	 * rebuild may have read the database before the token was stored, and then replaced the
+	 * filter it was added to.
+	 * @param providerId
+	 * @param lookupKey
+	 * @param rebuildsStarted The value add returned.
+	 */
+	public void confirm(String providerId, String lookupKey, long rebuildsStarted) {
+		swapLock.readLock().lock();
+		try {
+			if (this.rebuildsStarted != rebuildsStarted) {
+				add(providerId, hash(lookupKey));
+			}
+		} finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add a key to the filter of a provider, and to its filter being rebuilt. Called with the
+	 * read lock of the swapLock held.
+	 */
+	private void add(String providerId, long hash) {
+		filters.computeIfAbsent(providerId, id -> new Scalable()).add(hash);
+		String rebuildingProvider = this.rebuildingProvider;
+		if (rebuildingProvider != null && (rebuildingProvider.isEmpty() || rebuildingProvider.equals(providerId))) {
+			// The rebuild may have read the database before the token was written
+			rebuilding.computeIfAbsent(providerId, id -> new Scalable()).add(hash);
+		}
+	}
+
+	/**
+	 * Record a token that was found and deleted. A filter being rebuilt keeps the key, as the
+	 * rebuild may not have reached it yet.
+	 * @param providerId
+	 * @param lookupKey
+	 */
+	public void remove(String providerId, String lookupKey) {
+		Scalable filter = filters.get(providerId);
+		if (filter != null) {
+			filter.remove(hash(lookupKey));
+		}
+	}
+
+	/**
+	 * Record that a key passed the filter but was not stored.
+	 */
+	public void recordFalsePositive() {
+		falsePositives.incrementAndGet();
+	}
+
+	/**
+	 * Rebuild the filter of a provider in the background, to drop the keys of the tokens that
+	 * expired or were deleted without the filter knowing.
+	 * @param providerId
+	 */
+	public void rebuildLater(String providerId) {
+		if (!rebuilder.isShutdown()) {
+			rebuilder.execute(() -> rebuild(providerId));
+		}
+	}
+
+	private void rebuild(String providerId) {
+		if (!ready) {
+			// Until all providers were read once, a provider without a filter is not known to have no tokens
+			providerId = null;
+		}
+		long start = System.currentTimeMillis();
+		long[] keys = new long[1];
+		swapLock.writeLock().lock();
+		try {
+			rebuilding.clear();
+			rebuildingProvider = providerId == null ? "" : providerId;
+			rebuildsStarted++;
+		} finally {
+			swapLock.writeLock().unlock();
+		}
+		try {
+			scanner.scan(providerId, (provider, lookupKey) -> {
+				if (lookupKey != null) {
+					rebuilding.computeIfAbsent(provider, id -> new Scalable()).add(hash(lookupKey));
+					keys[0]++;
+				}
+			});
+			swapLock.writeLock().lock();
+			try {
+				if (providerId == null) {
+					filters.keySet().retainAll(rebuilding.keySet());
+					filters.putAll(rebuilding);
+				} else {
+					Scalable next = rebuilding.get(providerId);
+					if (next == null) {
+						filters.remove(providerId);
+					} else {
+						filters.put(providerId, next);
+					}
+				}
+				finishRebuild();
+			} finally {
+				swapLock.writeLock().unlock();
+			}
+			ready = ready || providerId == null;
+			lastRebuildMillis = System.currentTimeMillis() - start;
+			lastRebuildKeys = keys[0];
+			rebuilds.incrementAndGet();
+			LOGGER.log(Level.INFO, "Rebuilt the token filter of " + (providerId == null ? "all providers" : providerId) + ": "
+					+ keys[0] + " keys in " + lastRebuildMillis + " ms, " + this);
+		} catch (Exception e) {
+			// The old filter, or none, stays in use. A token created during the rebuild is in both.
+			LOGGER.log(Level.WARNING, "Failed to rebuild the token filter of " + (providerId == null ? "all providers" : providerId), e);
+			swapLock.writeLock().lock();
+			try {
+				finishRebuild();
+			} finally {
+				swapLock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void finishRebuild() {
+		rebuildingProvider = null;
+		rebuilding.clear();
+	}
+
+	/**
+	 * Stop the rebuilds. The filter keeps answering.
+	 */
+	public void close() {
+		rebuilder.shutdownNow();
+	}
+
+	/**
+	 * @return true once the first rebuild is done and the filter skips queries.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return The number of keys in the filters.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (Scalable filter : filters.values()) {
+			count += filter.count();
+		}
+		return count;
+	}
+
+	/**
+	 * @return The memory used by the filters, in bytes.
+	 */
+	public long getSizeInBytes() {
+		long size = 0;
+		for (Scalable filter : filters.values()) {
+			size += filter.sizeInBytes();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The expected false positive rate of the fullest provider filter, from the number of
+	 * keys it holds.
+	 */
+	public double getExpectedFalsePositiveRate() {
+		double rate = 0;
+		for (Scalable filter : filters.values()) {
+			rate = Math.max(rate, filter.falsePositiveRate());
+		}
+		return rate;
+	}
+
+	/**
+	 * @return The share of the missing keys that passed the filter and were queried anyway.
+	 */
+	public double getObservedFalsePositiveRate() {
+		long passed = falsePositives.get();
+		long absent = passed + skipped.get();
+		return absent == 0 ? 0 : (double) passed / absent;
+	}
+
+	/**
+	 * @return The number of readToken queries the filter saved.
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	public long getFalsePositiveCount() {
+		return falsePositives.get();
+	}
+
+	public long getRebuildCount() {
+		return rebuilds.get();
+	}
+
+	/**
+	 * @return How long the last rebuild took, in milliseconds.
+	 */
+	public long getLastRebuildMillis() {
+		return lastRebuildMillis;
+	}
+
+	/**
+	 * @return The number of keys the last rebuild read from the database.
+	 */
+	public long getLastRebuildKeys() {
+		return lastRebuildKeys;
+	}
+
+	@Override
+	public String toString() {
+		return "{TokenFilter: providers=" + filters.size() + ", keys=" + getCount() + ", bytes=" + getSizeInBytes()
+				+ ", expectedFpp=" + getExpectedFalsePositiveRate() + ", observedFpp=" + getObservedFalsePositiveRate()
+				+ ", skipped=" + skipped.get() + ", rebuilds=" + rebuilds.get() + ", lastRebuildMillis=" + lastRebuildMillis
+				+ ", lastRebuildKeys=" + lastRebuildKeys + "}";
+	}
+
+	private static short fingerprint(long hash) {
+		short fingerprint = (short) (hash >>> 48);
+		return fingerprint == 0 ? 1 : fingerprint;
+	}
+
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h = (h ^ key.charAt(i)) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb53a8ec53e63L;
+		return h ^ (h >>> 33);
+	}
+}